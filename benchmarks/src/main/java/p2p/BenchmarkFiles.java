@@ -0,0 +1,41 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmark programs to create and remove test data.
+ */
+class BenchmarkFiles {
+
+	static File tempDir(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	static File randomFile(File dir, String name, long size, long seed) throws IOException {
+		File f = new File(dir, name);
+		Random rnd = new Random(seed);
+		byte[] chunk = new byte[1 << 20];
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			long left = size;
+			while(left > 0) {
+				rnd.nextBytes(chunk);
+				int n = (int) Math.min(chunk.length, left);
+				raf.write(chunk, 0, n);
+				left -= n;
+			}
+		}
+		return f;
+	}
+
+	static void deleteTree(File f) {
+		File[] children = f.listFiles();
+		if(children != null)
+			for(File c : children)
+				deleteTree(c);
+		f.delete();
+	}
+}
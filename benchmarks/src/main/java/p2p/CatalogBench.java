@@ -0,0 +1,94 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of encoding and parsing catalogs as they go to the index server: a whole
+ * snapshot in a REGISTER frame, and a delta changing one percent of the files in an UPDATE frame.
+ * Usage: java -jar benchmarks/target/benchmarks.jar CatalogBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBench {
+
+	@Param({ "100", "10000" })
+	public int files;
+
+	private PeerCatalog catalog;
+	private PeerCatalog.Delta delta;
+	private byte[] snapshotFrame;
+	private byte[] deltaFrame;
+
+	@Setup
+	public void setup() {
+		SortedMap<String, PeerCatalog.Entry> entries = IndexLoadTest.catalog(0, files, false);
+		catalog = new PeerCatalog();
+		catalog.reset(1, entries);
+		//one percent of the files each added, modified and removed, at least one of each
+		SortedMap<String, PeerCatalog.Entry> added = new TreeMap<String, PeerCatalog.Entry>();
+		SortedMap<String, PeerCatalog.Entry> modified = new TreeMap<String, PeerCatalog.Entry>();
+		TreeSet<String> removed = new TreeSet<String>();
+		int step = Math.min(100, files);
+		int f = 0;
+		for(Map.Entry<String, PeerCatalog.Entry> e : entries.entrySet()) {
+			if(f % step == 0)
+				modified.put(e.getKey(), new PeerCatalog.Entry(e.getValue().size + 1, e.getValue().modified + 1));
+			else if(f % step == 1)
+				removed.add(e.getKey());
+			f++;
+		}
+		for(int i = 0; i < Math.max(1, files / 100); i++)
+			added.put(IndexLoadTest.fileName(1, i), new PeerCatalog.Entry(100, 2));
+		delta = new PeerCatalog.Delta(1, 2, added, modified, removed);
+		snapshotFrame = encodeSnapshot();
+		deltaFrame = encodeDelta();
+	}
+
+	@Benchmark
+	public byte[] encodeSnapshot() {
+		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.REGISTER);
+		catalog.writeSnapshot(w);
+		return w.toFrame();
+	}
+
+	@Benchmark
+	public SortedMap<String, PeerCatalog.Entry> parseSnapshot() throws IOException {
+		ByteBuffer in = IndexProtocol.decode(ByteBuffer.wrap(snapshotFrame)).payload;
+		IndexProtocol.readVarlong(in);
+		return PeerCatalog.readEntries(in);
+	}
+
+	@Benchmark
+	public byte[] encodeDelta() {
+		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.UPDATE);
+		delta.write(w);
+		return w.toFrame();
+	}
+
+	@Benchmark
+	public PeerCatalog.Delta parseDelta() throws IOException {
+		return PeerCatalog.Delta.read(IndexProtocol.decode(ByteBuffer.wrap(deltaFrame)).payload);
+	}
+}
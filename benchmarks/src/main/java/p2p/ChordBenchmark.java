@@ -0,0 +1,92 @@
+package p2p;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs Chord rings of growing size in one JVM on loopback ports and reports
+ * lookup hops and latency against node count, then checks that keys survive
+ * nodes joining and leaving.
+ * Usage: ChordBenchmark [maxNodes] [keys] [lookups]
+ */
+public class ChordBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		Random rnd = new Random(42);
+
+		System.out.println("nodes\tlog2(n)\tavg hops\tmax hops\tp50 us\tp99 us");
+		for(int n = 8; n <= maxNodes; n *= 2) {
+			List<ChordNode> ring = buildRing(n);
+			try {
+				for(int k = 0; k < keys; k++)
+					ring.get(rnd.nextInt(n)).put("file-" + k, "10.0.0." + (k % 250) + ":57265");
+				long[] nanos = new long[lookups];
+				long hops = 0;
+				int maxHops = 0;
+				for(int i = 0; i < lookups; i++) {
+					ChordNode from = ring.get(rnd.nextInt(n));
+					long t0 = System.nanoTime();
+					ChordNode.Lookup l = from.lookup("file-" + rnd.nextInt(keys));
+					nanos[i] = System.nanoTime() - t0;
+					hops += l.hops;
+					maxHops = Math.max(maxHops, l.hops);
+				}
+				Arrays.sort(nanos);
+				System.out.printf("%d\t%.1f\t%.2f\t\t%d\t\t%d\t%d%n", n, Math.log(n) / Math.log(2), (double) hops / lookups, maxHops,
+						nanos[lookups / 2] / 1000, nanos[lookups * 99 / 100] / 1000);
+
+				//churn: half of the nodes leave gracefully, new ones join, every key must still be found
+				int left = 0;
+				for(int i = n - 1; i >= n / 2; i--, left++)
+					ring.remove(i).leave();
+				settle(ring, 2);
+				for(int i = 0; i < left / 2; i++) {
+					ChordNode joiner = new ChordNode(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+					joiner.start();
+					joiner.join(ring.get(0).getSelf().address);
+					ring.add(joiner);
+					settle(ring, 3);
+				}
+				settle(ring, 2 * Integer.numberOfTrailingZeros(n) + 8);
+				int missing = 0;
+				for(int k = 0; k < keys; k++)
+					if(ring.get(rnd.nextInt(ring.size())).get("file-" + k).isEmpty())
+						missing++;
+				if(missing > 0)
+					System.out.println("\t" + missing + " keys lost after churn");
+			} finally {
+				for(ChordNode node : ring)
+					node.close();
+			}
+		}
+	}
+
+	// starts n nodes, joins them into one ring and runs maintenance until fingers are built
+	private static List<ChordNode> buildRing(int n) throws Exception {
+		List<ChordNode> ring = new ArrayList<ChordNode>();
+		for(int i = 0; i < n; i++) {
+			ChordNode node = new ChordNode(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			node.start();
+			if(i > 0) {
+				node.join(ring.get(0).getSelf().address);
+				settle(ring, 1);
+			}
+			ring.add(node);
+		}
+		settle(ring, 2 * Integer.numberOfTrailingZeros(n) + 16);
+		return ring;
+	}
+
+	private static void settle(List<ChordNode> ring, int rounds) {
+		for(int r = 0; r < rounds; r++)
+			for(ChordNode node : ring)
+				node.maintain();
+	}
+}
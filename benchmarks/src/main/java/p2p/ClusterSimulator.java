@@ -0,0 +1,260 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a whole p2p network in one JVM for scale testing.
+ * Every node is a p2pNode bound to its own loopback address (127.0.x.y) with its own shared
+ * folder, so the index server keys the nodes apart; all nodes use the same two ports, as the
+ * systems of a real network do. Broadcast discovery is simulated by sending REGISTER to the
+ * address of every node started so far, which reaches whichever of them run the index server.
+ * A script of steps separated by ';' drives the cluster:
+ *   join N    starts N nodes sharing filesPerNode random files each and registers them, the
+ *             first one of the cluster alone (it creates the index server), the rest JOINERS at a time
+ *   leave N   N random nodes unregister and exit
+ *   crash N   N random nodes halt without unregistering (the index drops them once their lease runs out)
+ *   sync N    N random nodes sync from another random node each, all at once
+ *   wait MS   sleeps
+ *   report    prints what happened since the last report: the latency of joins and syncs as
+ *             seen by the nodes, the data received per second, and the index server's load,
+ *             transfer latencies and failures summed over all nodes (see Metrics)
+ * The nodes' console output is dropped while the script runs.
+ * Usage: ClusterSimulator [script] [filesPerNode] [fileSize] [leaseMs] [comPort] [ftPort]
+ */
+public class ClusterSimulator {
+	// Nodes registering at once after the first
+	private static final int JOINERS = 16;
+	private static final String DEFAULT_SCRIPT = "join 50; sync 25; report; join 50; sync 50; report; "
+			+ "crash 10; leave 10; wait 3000; sync 50; report; join 100; sync 100; report";
+
+	private final int filesPerNode;
+	private final int fileSize;
+	private final long lease;
+	private final int comPort;
+	private final int ftPort;
+	private final File root;
+	private final PrintStream console;
+	private final Random rnd = new Random(1);
+	// Nodes running, and every node started (stopped ones keep their metrics)
+	private final List<p2pNode> live = new ArrayList<p2pNode>();
+	private final List<p2pNode> all = new ArrayList<p2pNode>();
+	// Discovery targets: the address of every node started
+	private final List<InetAddress> addresses = new CopyOnWriteArrayList<InetAddress>();
+	private int crashed;
+	private int left;
+	// Latencies of the steps since the last report
+	private final Histogram joins = new Histogram();
+	private final Histogram syncs = new Histogram();
+	private int joinFailures;
+	private long phaseStart = System.nanoTime();
+
+	public static void main(String[] args) throws Exception {
+		String script = args.length > 0 ? args[0] : DEFAULT_SCRIPT;
+		int filesPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 << 10;
+		long lease = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+		int comPort = args.length > 4 ? Integer.parseInt(args[4]) : 47264;
+		int ftPort = args.length > 5 ? Integer.parseInt(args[5]) : 47265;
+		ClusterSimulator sim = new ClusterSimulator(filesPerNode, fileSize, lease, comPort, ftPort);
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		try {
+			sim.run(script);
+		} finally {
+			sim.shutdown();
+			System.setOut(sim.console);
+		}
+	}
+
+	ClusterSimulator(int filesPerNode, int fileSize, long lease, int comPort, int ftPort) throws IOException {
+		this.filesPerNode = filesPerNode;
+		this.fileSize = fileSize;
+		this.lease = lease;
+		this.comPort = comPort;
+		this.ftPort = ftPort;
+		this.root = BenchmarkFiles.tempDir("cluster");
+		this.console = System.out;
+	}
+
+	void run(String script) throws Exception {
+		for(String step : script.split(";")) {
+			String[] words = step.trim().split("\\s+");
+			if(words[0].isEmpty())
+				continue;
+			int n = words.length > 1 ? Integer.parseInt(words[1]) : 0;
+			console.println("> " + step.trim());
+			switch(words[0]) {
+			case "join":
+				join(n);
+				break;
+			case "leave":
+				for(p2pNode node : pick(n)) {
+					stop(node, false);
+					left++;
+				}
+				break;
+			case "crash":
+				for(p2pNode node : pick(n)) {
+					stop(node, true);
+					crashed++;
+				}
+				break;
+			case "sync":
+				sync(n);
+				break;
+			case "wait":
+				Thread.sleep(n);
+				break;
+			case "report":
+				report();
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown step: " + step);
+			}
+		}
+	}
+
+	// starts n nodes and registers them; the first node of the cluster registers alone
+	private void join(int n) throws Exception {
+		List<p2pNode> started = new ArrayList<p2pNode>();
+		for(int i = 0; i < n; i++) {
+			int id = all.size();
+			InetAddress address = IndexLoadTest.peerAddress(id);
+			File dir = new File(root, "node-" + id);
+			dir.mkdirs();
+			for(int f = 0; f < filesPerNode; f++)
+				BenchmarkFiles.randomFile(dir, String.format("n%04d-f%03d.dat", id, f), fileSize, id * 1000L + f);
+			p2pNode node = new p2pNode(address, comPort, ftPort, dir);
+			node.setIndexLease(lease);
+			node.setDiscovery(addresses);
+			addresses.add(address);
+			all.add(node);
+			started.add(node);
+		}
+		int first = 0;
+		if(live.isEmpty() && !started.isEmpty()) {
+			register(started.get(0));
+			first = 1;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(JOINERS);
+		try {
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			for(p2pNode node : started.subList(first, started.size()))
+				pending.add(pool.submit(() -> register(node)));
+			for(Future<?> f : pending)
+				f.get();
+		} finally {
+			pool.shutdown();
+		}
+		live.addAll(started);
+	}
+
+	private void register(p2pNode node) {
+		long start = System.nanoTime();
+		try {
+			node.register();
+			joins.record(System.nanoTime() - start);
+		} catch (IOException e) {
+			synchronized(this) {
+				joinFailures++;
+			}
+		}
+	}
+
+	// n random nodes sync from another random node each, all at once through the asynchronous API
+	private void sync(int n) throws Exception {
+		if(live.size() < 2)
+			return;
+		List<CompletableFuture<p2pNode.SyncReport>> pending = new ArrayList<CompletableFuture<p2pNode.SyncReport>>();
+		for(int i = 0; i < n; i++) {
+			p2pNode node = live.get(rnd.nextInt(live.size()));
+			p2pNode from;
+			do {
+				from = live.get(rnd.nextInt(live.size()));
+			} while(from == node);
+			pending.add(node.syncAsync(from.getAddress()));
+		}
+		for(CompletableFuture<p2pNode.SyncReport> f : pending) {
+			try {
+				syncs.record(f.get().nanos);
+			} catch (ExecutionException e) {
+				//counted in the node's metrics
+			}
+		}
+	}
+
+	// n distinct random live nodes, taken out of the live list
+	private List<p2pNode> pick(int n) {
+		Collections.shuffle(live, rnd);
+		List<p2pNode> picked = new ArrayList<p2pNode>(live.subList(0, Math.min(n, live.size())));
+		live.removeAll(picked);
+		return picked;
+	}
+
+	private static void stop(p2pNode node, boolean crash) {
+		try {
+			if(crash)
+				node.halt();
+			else
+				node.exit();
+		} catch (IOException e) {
+			//counted in the node's metrics
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void report() {
+		double seconds = (System.nanoTime() - phaseStart) / 1e9;
+		Metrics total = new Metrics();
+		for(p2pNode node : all)
+			total.add(node.getMetrics());
+		console.printf("%d nodes live, %d crashed, %d left; %.1f s since the last report%n", live.size(), crashed, left, seconds);
+		console.println(summary("joins", joins) + (joinFailures > 0 ? ", " + joinFailures + " failed" : ""));
+		console.println(summary("syncs", syncs));
+		console.printf("received %.1f MB/s, %.0f index requests/s%n", total.getBytesReceived() / seconds / 1e6,
+				total.getIndexRequests() / seconds);
+		for(String line : total.getReport().split("\n"))
+			console.println("\t" + line);
+		for(p2pNode node : all)
+			node.getMetrics().reset();
+		joins.reset();
+		syncs.reset();
+		joinFailures = 0;
+		phaseStart = System.nanoTime();
+	}
+
+	private static String summary(String name, Histogram h) {
+		return String.format("%s: %d, p50 %.1f, p99 %.1f, max %.1f ms", name, h.getCount(), h.percentile(0.5) / 1e6,
+				h.percentile(0.99) / 1e6, h.getMax() / 1e6);
+	}
+
+	// halts every node: unregistering one by one would wait out a failover for each once the index servers are gone
+	void shutdown() {
+		for(p2pNode node : live)
+			stop(node, true);
+		live.clear();
+		BenchmarkFiles.deleteTree(root);
+	}
+}
@@ -0,0 +1,174 @@
+package p2p;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Loopback benchmark of compressed file transfers by file type.
+ * Creates a log, a source-like text, a CSV table, random data (media) and an already
+ * deflated file (archive) of the same size, and downloads each through TransferClient with
+ * compression off and on. Prints the effective throughput (file bytes per second), the share
+ * of the file that crossed the wire, the CPU time of client and server together per MB, and
+ * the throughput projected onto a link of the given speed, where the wire bytes are the limit.
+ * Usage: CompressionBenchmark [fileSizeMB] [rounds] [linkMbit]
+ */
+public class CompressionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		double linkMbit = args.length > 2 ? Double.parseDouble(args[2]) : 100;
+		long size = (long) sizeMB << 20;
+
+		File dir = BenchmarkFiles.tempDir("compressbench");
+		File out = BenchmarkFiles.tempDir("compressbench-out");
+		String[] types = { "log", "source", "csv", "media", "archive" };
+		for(String type : types)
+			create(dir, type, size);
+		FileServer server = new FileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, () -> dir);
+		server.setVerbose(false);
+		server.start();
+		try {
+			InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			//warm up, and let the server compute every checksum and sample once
+			for(String type : types) {
+				fetch(addr, type, out, TransferProtocol.DEFLATE);
+				fetch(addr, type, out, (byte) 0);
+			}
+			System.out.printf("file size: %d MB, rounds: %d, link: %.0f Mbit/s%n", sizeMB, rounds, linkMbit);
+			System.out.println("type\tcodec\tMB/s\twire\tCPU ms/MB\tMB/s on link");
+			for(String type : types) {
+				for(byte codec : new byte[] { 0, TransferProtocol.DEFLATE }) {
+					long wire = 0;
+					long cpu = cpuNanos();
+					long t0 = System.nanoTime();
+					for(int r = 0; r < rounds; r++)
+						wire = fetch(addr, type, out, codec);
+					long elapsed = System.nanoTime() - t0;
+					cpu = cpuNanos() - cpu;
+					double seconds = elapsed / 1e9 / rounds;
+					double linkSeconds = Math.max(seconds, wire * 8 / (linkMbit * 1e6));
+					System.out.printf("%s\t%s\t%.1f\t%.1f%%\t%.2f\t\t%.1f%n", type, codec == 0 ? "none" : "deflate",
+							sizeMB / seconds, 100.0 * wire / size, cpu / 1e6 / rounds / sizeMB, sizeMB / linkSeconds);
+				}
+			}
+		} finally {
+			server.stop();
+			BenchmarkFiles.deleteTree(dir);
+			BenchmarkFiles.deleteTree(out);
+		}
+	}
+
+	// downloads one file over a fresh connection; returns the bytes of file data on the wire
+	private static long fetch(InetSocketAddress addr, String name, File dir, byte codec) throws IOException {
+		new File(dir, name).delete();
+		try (TransferClient client = new TransferClient(addr, codec)) {
+			List<TransferClient.Result> results = client.fetch(Collections.singletonList(name), dir);
+			if(!results.get(0).ok)
+				throw new IOException(results.get(0).toString());
+			return results.get(0).transferred;
+		}
+	}
+
+	private static long cpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return 0;
+	}
+
+	// a file of the given kind and size
+	private static void create(File dir, String type, long size) throws IOException {
+		if(type.equals("media")) {
+			BenchmarkFiles.randomFile(dir, type, size, 1);
+			return;
+		}
+		Random rnd = new Random(type.hashCode());
+		try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(new File(dir, type)))) {
+			if(type.equals("archive")) {
+				//deflated log, cut to size
+				LimitedStream limited = new LimitedStream(fos, size);
+				try (OutputStream z = new DeflaterOutputStream(limited, new Deflater(Deflater.DEFAULT_COMPRESSION))) {
+					while(limited.left > 0)
+						z.write(text("log", rnd, 4 << 20));
+				}
+				return;
+			}
+			fos.write(text(type, rnd, size));
+		}
+	}
+
+	private static final String[] LEVELS = { "INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR" };
+	private static final String[] WORDS = { "file", "peer", "index", "catalog", "lease", "transfer", "block", "name",
+			"server", "client", "size", "count", "buffer", "request", "response", "offset" };
+	private static final String[] SYMBOLS = { "ACME", "INIT", "P2PX", "NODE", "HASH", "SYNC" };
+
+	// text of the given kind, exactly size bytes
+	private static byte[] text(String type, Random rnd, long size) {
+		StringBuilder sb = new StringBuilder((int) size + 256);
+		long t = 1760000000000L;
+		while(sb.length() < size) {
+			t += rnd.nextInt(1000);
+			switch(type) {
+			case "log":
+				sb.append(String.format("2026-10-18 %02d:%02d:%02d.%03d %-5s [worker-%d] p2p.FileServer - sent file-%05d.dat to 10.0.%d.%d in %d ms%n",
+						t / 3600000 % 24, t / 60000 % 60, t / 1000 % 60, t % 1000, LEVELS[rnd.nextInt(LEVELS.length)],
+						rnd.nextInt(16), rnd.nextInt(100000), rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(500)));
+				break;
+			case "source": {
+				String a = WORDS[rnd.nextInt(WORDS.length)];
+				String b = WORDS[rnd.nextInt(WORDS.length)];
+				sb.append("\tprivate long ").append(a).append(Character.toUpperCase(b.charAt(0))).append(b.substring(1))
+						.append("(int ").append(b).append(") throws IOException {\n\t\tif(").append(b).append(" < ")
+						.append(rnd.nextInt(4096)).append(")\n\t\t\treturn ").append(a).append(".get(").append(b)
+						.append(");\n\t\treturn -1;\n\t}\n\n");
+				break;
+			}
+			default:
+				sb.append(rnd.nextInt(1000000)).append(',').append(t).append(',').append(SYMBOLS[rnd.nextInt(SYMBOLS.length)])
+						.append(',').append(rnd.nextInt(100000) / 100.0).append(',').append(rnd.nextInt(1000)).append('\n');
+			}
+		}
+		sb.setLength((int) size);
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	// passes on the first limit bytes and drops the rest
+	private static final class LimitedStream extends OutputStream {
+		private final OutputStream out;
+		private long left;
+
+		LimitedStream(OutputStream out, long limit) {
+			this.out = out;
+			this.left = limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(left > 0) {
+				out.write(b);
+				left--;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int n = (int) Math.min(len, left);
+			out.write(b, off, n);
+			left -= n;
+		}
+	}
+}
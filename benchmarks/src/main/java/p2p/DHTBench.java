@@ -0,0 +1,115 @@
+package p2p;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the index table in memory: registering a peer's catalog (put), dropping a peer
+ * and registering it again (nodeExit and put), and looking up a file, alone and while other
+ * threads write. The table is not started, so no leases are kept and no sockets are involved.
+ * Usage: java -jar benchmarks/target/benchmarks.jar DHTBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DHTBench {
+
+	@Param({ "1000" })
+	public int peers;
+
+	@Param({ "20" })
+	public int files;
+
+	private DHT dht;
+	// Catalog of every peer, and the same with the first entry changed
+	private List<SortedMap<String, PeerCatalog.Entry>> catalogs;
+	private List<SortedMap<String, PeerCatalog.Entry>> changed;
+	private InetAddress[] addresses;
+	// Every registered file name, so lookups do not format names
+	private String[] names;
+
+	@Setup
+	public void setup() {
+		dht = new DHT(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		catalogs = new ArrayList<SortedMap<String, PeerCatalog.Entry>>(peers);
+		changed = new ArrayList<SortedMap<String, PeerCatalog.Entry>>(peers);
+		addresses = new InetAddress[peers];
+		names = new String[peers * files];
+		for(int p = 0; p < peers; p++) {
+			addresses[p] = IndexLoadTest.peerAddress(p);
+			catalogs.add(IndexLoadTest.catalog(p, files, false));
+			changed.add(IndexLoadTest.catalog(p, files, true));
+			dht.put(addresses[p], 1, catalogs.get(p));
+			for(int f = 0; f < files; f++)
+				names[p * files + f] = IndexLoadTest.fileName(p, f);
+		}
+	}
+
+	// a snapshot that differs from the registered one in one entry half of the time
+	@Benchmark
+	public void put() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		int p = rnd.nextInt(peers);
+		dht.put(addresses[p], 2, rnd.nextBoolean() ? catalogs.get(p) : changed.get(p));
+	}
+
+	@Benchmark
+	public void exitAndPut() {
+		int p = ThreadLocalRandom.current().nextInt(peers);
+		dht.nodeExit(addresses[p]);
+		dht.put(addresses[p], 1, catalogs.get(p));
+	}
+
+	@Benchmark
+	public Set<InetAddress> lookup() {
+		return dht.lookup(name());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Set<InetAddress> lookupConcurrent() {
+		return dht.lookup(name());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedPut() {
+		put();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public Set<InetAddress> mixedLookup() {
+		return dht.lookup(name());
+	}
+
+	private String name() {
+		return names[ThreadLocalRandom.current().nextInt(names.length)];
+	}
+}
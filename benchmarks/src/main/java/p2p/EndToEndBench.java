@@ -0,0 +1,176 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the user-facing operations over loopback, against a running index server
+ * holding the given number of peers and a file server sharing the given number of files:
+ * registering a catalog (REGISTER datagram and its answer), retrieving the whole table
+ * (RETRIEVE pages over TCP), retrieving it again with the tag of the last answer, and syncing
+ * the shared folder (FILES from the index, then all files over one connection) into an empty
+ * folder and into one that already holds all of it.
+ * Usage: java -jar benchmarks/target/benchmarks.jar EndToEndBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBench {
+
+	@Param({ "1000" })
+	public int peers;
+
+	// Files shared by the synced peer
+	@Param({ "100" })
+	public int files;
+
+	// Size of every shared file
+	@Param({ "16384" })
+	public int fileSize;
+
+	private DHT index;
+	private InetSocketAddress indexAddress;
+	private File seed;
+	private File out;
+	private FileServer server;
+	private InetSocketAddress serverAddress;
+	private InetAddress seedAddress;
+	private byte[][] snapshots;
+	private IndexProtocol.Tag tag;
+
+	@Setup
+	public void setup() throws Exception {
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		index = new DHT(new InetSocketAddress(lo, 0));
+		//no lease runs out during the run
+		index.setLease(TimeUnit.HOURS.toMillis(1));
+		index.start();
+		indexAddress = new InetSocketAddress(lo, index.getLocalPort());
+		snapshots = new byte[peers][];
+		for(int p = 0; p < peers; p++) {
+			snapshots[p] = IndexLoadTest.snapshot(1, IndexLoadTest.catalog(p, 20, false));
+			if(IndexLoadTest.send(IndexLoadTest.peerAddress(p), indexAddress, snapshots[p]) != IndexProtocol.REGISTERED)
+				throw new IOException("Registration of peer " + p + " refused");
+		}
+
+		seed = BenchmarkFiles.tempDir("e2ebench");
+		out = BenchmarkFiles.tempDir("e2ebench-out");
+		for(int f = 0; f < files; f++)
+			BenchmarkFiles.randomFile(seed, IndexLoadTest.fileName(0, f), fileSize, f);
+		PeerCatalog catalog = new PeerCatalog();
+		catalog.scan(seed, name -> false);
+		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.REGISTER);
+		catalog.writeSnapshot(w);
+		seedAddress = lo;
+		if(IndexLoadTest.send(seedAddress, indexAddress, w.toFrame()) != IndexProtocol.REGISTERED)
+			throw new IOException("Registration of the seed refused");
+		server = new FileServer(new InetSocketAddress(lo, 0), 16, () -> seed);
+		server.setVerbose(false);
+		server.start();
+		serverAddress = new InetSocketAddress(lo, server.getLocalPort());
+		tag = retrieve(IndexProtocol.Tag.NONE);
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		server.stop();
+		index.switchOff();
+		index.join();
+		BenchmarkFiles.deleteTree(seed);
+		BenchmarkFiles.deleteTree(out);
+	}
+
+	@Benchmark
+	public byte register() throws IOException {
+		int p = ThreadLocalRandom.current().nextInt(peers);
+		return IndexLoadTest.send(IndexLoadTest.peerAddress(p), indexAddress, snapshots[p]);
+	}
+
+	@Benchmark
+	public IndexProtocol.Tag retrieveAll() throws IOException {
+		return retrieve(IndexProtocol.Tag.NONE);
+	}
+
+	@Benchmark
+	public IndexProtocol.Tag retrieveNotModified() throws IOException {
+		return retrieve(tag);
+	}
+
+	@Benchmark
+	public long syncCold(Empty empty) throws IOException {
+		return sync();
+	}
+
+	@Benchmark
+	public long syncUnchanged() throws IOException {
+		return sync();
+	}
+
+	/**
+	 * Empties the target folder before every cold sync
+	 */
+	@State(Scope.Thread)
+	public static class Empty {
+		@Setup(Level.Invocation)
+		public void clear(EndToEndBench b) {
+			File[] copies = b.out.listFiles();
+			if(copies != null)
+				for(File f : copies)
+					f.delete();
+		}
+	}
+
+	// pages through the table; returns the tag of the first page
+	private IndexProtocol.Tag retrieve(IndexProtocol.Tag since) throws IOException {
+		IndexProtocol.Retrieve q = new IndexProtocol.Retrieve(since, null, "", null, null, DHT.MAX_PAGE);
+		IndexProtocol.Tag first = null;
+		while(true) {
+			IndexProtocol.Page p = IndexProtocol.Page.read(IndexProtocol.call(indexAddress, q.toFrame(), 5000));
+			if(first == null)
+				first = p.tag;
+			if(p.nextPeer == null)
+				return first;
+			q = q.next(p);
+		}
+	}
+
+	// asks the index for the seed's files and fetches them as p2pNode.sync does; returns the bytes received
+	private long sync() throws IOException {
+		IndexProtocol.Frame f = IndexProtocol.call(indexAddress,
+				new IndexProtocol.Writer(IndexProtocol.FILES).writeAddress(seedAddress).toFrame(), 5000);
+		if(f.type != IndexProtocol.FILE_LIST)
+			throw new IOException("Seed is not registered");
+		List<String> names = IndexProtocol.readFileList(f.payload);
+		long received = 0;
+		try (TransferClient client = new TransferClient(serverAddress)) {
+			for(TransferClient.Result r : client.fetchDelta(names, out)) {
+				if(!r.ok)
+					throw new IOException(r.toString());
+				received += r.transferred;
+			}
+		}
+		return received;
+	}
+}
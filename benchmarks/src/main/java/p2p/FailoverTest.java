@@ -0,0 +1,182 @@
+package p2p;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+
+/**
+ * Failover test of the replicated index server, with every replica and peer in one JVM.
+ * Starts a leader and its standbys on their own loopback ports, registers simulated peers
+ * (each from its own loopback address, 127.0.x.y) through IndexClient, then kills the leader
+ * a number of times. After every kill each peer at once sends its next change; the test reports
+ * how long the replicas took to elect a new leader, how long the peers' requests took to reach
+ * it, whether any acknowledged change was lost (a RESYNC answer) and whether the new leader's
+ * table is complete. Kills have to leave a majority of the replicas; if no leader is elected
+ * anyway, the test says so and exits with status 1.
+ * Usage: FailoverTest [replicas] [peers] [filesPerPeer] [kills]
+ */
+public class FailoverTest {
+
+	public static void main(String[] args) throws Exception {
+		int replicas = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int peers = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int filesPerPeer = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		//killing a majority would leave nobody to elect a leader
+		int kills = args.length > 3 ? Integer.parseInt(args[3]) : (replicas - 1) / 2;
+		if(replicas < 1 || kills < 0 || kills >= replicas / 2 + 1) {
+			System.err.println("Usage: FailoverTest [replicas] [peers] [filesPerPeer] [kills]");
+			System.err.println("\tkills must leave a majority: at most " + (replicas - 1) / 2 + " of " + replicas + " replicas");
+			System.exit(2);
+		}
+
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		List<DHT> servers = new ArrayList<DHT>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(peers, 64));
+		boolean elected = true;
+		try {
+			long t0 = System.nanoTime();
+			DHT first = new DHT(new InetSocketAddress(lo, 0));
+			first.replicate(lo, replicas - 1, null);
+			first.start();
+			servers.add(first);
+			InetSocketAddress seed = new InetSocketAddress(lo, first.getLocalPort());
+			for(int i = 1; i < replicas; i++) {
+				DHT standby = new DHT(new InetSocketAddress(lo, 0));
+				standby.replicate(lo, replicas - 1, seed);
+				standby.start();
+				if(standby.getLocalPort() < 0)
+					throw new IOException("Index replica could not bind");
+				servers.add(standby);
+			}
+			if(!await(() -> first.getReplicator().getMembers().size() == replicas, 10000))
+				throw new IOException("Standbys did not join: " + first.getReplicator().getMembers());
+			System.out.printf("%d replicas up in %.1f ms%n", replicas, (System.nanoTime() - t0) / 1e6);
+
+			IndexClient[] clients = new IndexClient[peers];
+			for(int p = 0; p < peers; p++)
+				clients[p] = new IndexClient(IndexLoadTest.peerAddress(p), seed);
+			run("register", pool, peers, peer -> IndexLoadTest.snapshot(1, IndexLoadTest.catalog(peer, filesPerPeer, false)),
+					clients, IndexProtocol.REGISTERED);
+			check(servers, peers, peers * filesPerPeer);
+
+			for(int kill = 1; kill <= kills; kill++) {
+				DHT leader = leader(servers);
+				System.out.println("killing leader " + leader.getReplicator().getLeader() + " (term "
+						+ leader.getReplicator().getTerm() + ")");
+				final int k = kill;
+				long killed = System.nanoTime();
+				leader.switchOff();
+				leader.join();
+				servers.remove(leader);
+				//election watched on the side while the peers look for the new leader
+				long[] electedAt = new long[1];
+				Thread watch = new Thread(() -> {
+					await(() -> leader(servers) != null, 10000);
+					electedAt[0] = System.nanoTime();
+				});
+				watch.start();
+				run("update after kill " + kill, pool, peers, peer -> {
+					SortedMap<String, PeerCatalog.Entry> added = new TreeMap<String, PeerCatalog.Entry>();
+					added.put(IndexLoadTest.fileName(peer, filesPerPeer + k - 1), new PeerCatalog.Entry(100, 1));
+					IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.UPDATE);
+					new PeerCatalog.Delta(k, k + 1, added, new TreeMap<String, PeerCatalog.Entry>(), new TreeSet<String>()).write(w);
+					return w.toFrame();
+				}, clients, IndexProtocol.UPDATED);
+				watch.join();
+				DHT next = leader(servers);
+				if(next == null) {
+					System.out.printf("\tno leader elected %.1f ms after the kill%n", (electedAt[0] - killed) / 1e6);
+					elected = false;
+					break;
+				}
+				System.out.printf("\tnew leader elected %.1f ms after the kill (term %d)%n", (electedAt[0] - killed) / 1e6,
+						next.getReplicator().getTerm());
+				check(servers, peers, peers * (filesPerPeer + kill));
+			}
+		} finally {
+			pool.shutdown();
+			for(DHT d : servers) {
+				d.switchOff();
+				d.join();
+			}
+		}
+		if(!elected)
+			System.exit(1);
+	}
+
+	// every peer sends its frame through its own client and expects the given answer
+	private static void run(String name, ExecutorService pool, int peers, IntFunction<byte[]> frameFor,
+			IndexClient[] clients, byte expected) throws Exception {
+		long[] nanos = new long[peers];
+		AtomicInteger resync = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		long t0 = System.nanoTime();
+		for(int p = 0; p < peers; p++) {
+			final int peer = p;
+			pending.add(pool.submit(() -> {
+				long start = System.nanoTime();
+				try {
+					byte type = clients[peer].call(frameFor.apply(peer)).type;
+					if(type == IndexProtocol.RESYNC)
+						resync.incrementAndGet();
+					else if(type != expected)
+						failed.incrementAndGet();
+					nanos[peer] = System.nanoTime() - start;
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					nanos[peer] = Long.MAX_VALUE;
+				}
+			}));
+		}
+		for(Future<?> f : pending)
+			f.get();
+		IndexLoadTest.report(name, nanos, System.nanoTime() - t0);
+		if(resync.get() > 0)
+			System.out.println("\t" + resync.get() + " changes lost in the failover (RESYNC)");
+		if(failed.get() > 0)
+			System.out.println("\t" + failed.get() + " requests failed");
+	}
+
+	// waits until every live replica applied the whole table
+	private static void check(List<DHT> servers, int peers, int names) throws InterruptedException {
+		for(DHT d : servers) {
+			boolean complete = await(() -> d.getDht().size() == peers && d.getIndex().size() == names, 5000);
+			System.out.println("\t" + d.getReplicator().getMembers().size() + " replicas, " + (d.isLeader() ? "leader" : "standby")
+					+ " :" + d.getLocalPort() + " holds " + d.getDht().size() + " peers, " + d.getIndex().size() + " names"
+					+ (complete ? "" : " (expected " + peers + " peers, " + names + " names)"));
+		}
+	}
+
+	private static DHT leader(List<DHT> servers) {
+		for(DHT d : servers)
+			if(d.isLeader())
+				return d;
+		return null;
+	}
+
+	private static boolean await(BooleanSupplier condition, long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while(!condition.getAsBoolean()) {
+			if(System.currentTimeMillis() > deadline)
+				return false;
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,96 @@
+package p2p;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback throughput test for the FileServer.
+ * Serves one file from a temporary directory and lets a growing number of clients
+ * download it at the same time, printing the aggregate MB/s for every client count.
+ * Usage: FileServerBenchmark [fileSizeMB] [downloadsPerClient] [maxConnections]
+ */
+public class FileServerBenchmark {
+
+	// request for the payload: GET payload.bin, END
+	private static final byte[] REQUEST = request("payload.bin");
+
+	public static void main(String[] args) throws Exception {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+		File dir = BenchmarkFiles.tempDir("fsbench");
+		BenchmarkFiles.randomFile(dir, "payload.bin", (long) sizeMB << 20, 1);
+		FileServer server = new FileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), maxConnections, () -> dir);
+		server.setVerbose(false);
+		server.start();
+		try {
+			InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			//warm up
+			run(addr, 2, 1);
+			System.out.println("file size: " + sizeMB + " MB, downloads per client: " + rounds + ", max connections: " + maxConnections);
+			System.out.println("clients\tMB/s");
+			for(int clients = 1; clients <= 32; clients *= 2)
+				System.out.printf("%d\t%.1f%n", clients, run(addr, clients, rounds));
+		} finally {
+			server.stop();
+			BenchmarkFiles.deleteTree(dir);
+		}
+	}
+
+	// every client downloads the file rounds times; returns aggregate MB/s
+	private static double run(InetSocketAddress addr, int clients, int rounds) throws InterruptedException {
+		AtomicLong bytes = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(clients);
+		for(int i = 0; i < clients; i++) {
+			Thread t = new Thread(() -> {
+				ByteBuffer buf = ByteBuffer.allocateDirect(256 << 10);
+				try {
+					start.await();
+					for(int r = 0; r < rounds; r++) {
+						try (SocketChannel ch = SocketChannel.open(addr)) {
+							ch.write(ByteBuffer.wrap(REQUEST));
+							int n;
+							while((n = ch.read(buf)) >= 0) {
+								bytes.addAndGet(n);
+								buf.clear();
+							}
+						}
+					}
+				} catch (IOException | InterruptedException e) {
+					System.out.println("\t" + e.getMessage() + ": Benchmark Client");
+				} finally {
+					done.countDown();
+				}
+			});
+			t.start();
+		}
+		long t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - t0;
+		return (bytes.get() / 1048576.0) / (elapsed / 1e9);
+	}
+
+	private static byte[] request(String name) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(TransferProtocol.GET);
+			out.writeUTF(name);
+			out.writeByte(TransferProtocol.END);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
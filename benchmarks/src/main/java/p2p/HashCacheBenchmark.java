@@ -0,0 +1,81 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Startup cost of hashing a shared folder with and without the HashCache.
+ * A folder of many files is hashed from scratch by one thread and by one per core; then the
+ * node is restarted three times as p2pNode does it (cache opened, folder walked, files whose
+ * size or modification time changed hashed): with nothing changed, with a share of the files
+ * rewritten, and with the last record of the log cut off as by a crash. Every file is dated
+ * back a minute so that it is old enough to be logged (see HashCache.RACY_MS).
+ * Usage: HashCacheBenchmark [files] [fileKB] [changedPercent]
+ */
+public class HashCacheBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+		int fileKB = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		double changed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+
+		File root = BenchmarkFiles.tempDir("hashbench");
+		File dir = new File(root, "shared");
+		File log = p2pNode.hashCacheOf(dir);
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			long past = System.currentTimeMillis() - 60000;
+			for(int i = 0; i < files; i++) {
+				File sub = new File(dir, "dir-" + (i % 50));
+				if(!sub.isDirectory() && !sub.mkdirs())
+					throw new IOException("Cannot create " + sub);
+				BenchmarkFiles.randomFile(sub, "file-" + i + ".bin", (long) fileKB << 10, i).setLastModified(past);
+			}
+			System.out.printf("%d files of %d KB, %d cores%n", files, fileKB, threads);
+			System.out.println("run\t\t\t\topen ms\twalk ms\thash ms\thashed\tcached");
+			restart("no cache, 1 thread", dir, log, 1, true);
+			restart("no cache, " + threads + " threads", dir, log, threads, true);
+			restart("restart, unchanged", dir, log, threads, false);
+
+			Random rnd = new Random(1);
+			int n = (int) Math.round(files * changed / 100);
+			for(int k = 0; k < n; k++) {
+				int i = rnd.nextInt(files);
+				File f = new File(new File(dir, "dir-" + (i % 50)), "file-" + i + ".bin");
+				try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+					raf.seek(rnd.nextInt(fileKB << 10));
+					raf.write(rnd.nextInt(256) ^ 0x55);
+				}
+				f.setLastModified(past + 1000 + k);
+			}
+			restart("restart, " + changed + "% changed", dir, log, threads, false);
+
+			try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+				raf.setLength(raf.length() - 3);
+			}
+			restart("restart, torn log", dir, log, threads, false);
+		} finally {
+			BenchmarkFiles.deleteTree(root);
+		}
+	}
+
+	private static void restart(String run, File dir, File log, int threads, boolean cold) throws IOException {
+		if(cold)
+			log.delete();
+		long t0 = System.nanoTime();
+		try (HashCache cache = HashCache.open(log, threads)) {
+			int cached = cache.size();
+			long t1 = System.nanoTime();
+			PeerCatalog catalog = new PeerCatalog();
+			catalog.scan(dir, DirectoryWatcher::isTemporary);
+			cache.retain(catalog.names());
+			long t2 = System.nanoTime();
+			int hashed = cache.update(dir, catalog.entries(), FileServer::digest);
+			long t3 = System.nanoTime();
+			System.out.printf("%-28s\t%.0f\t%.0f\t%.0f\t%d\t%d%n", run, (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6,
+					hashed, cached);
+		}
+	}
+}
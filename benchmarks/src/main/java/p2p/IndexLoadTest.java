@@ -0,0 +1,241 @@
+package p2p;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Load test of the index server with hundreds of simulated peers in one JVM.
+ * Every peer binds its own loopback address (127.0.x.y) so the server keys them apart,
+ * registers its catalog (over UDP, or over TCP when it does not fit in a datagram), then
+ * publishes a small change both as an UPDATE delta and as a full re-registration, pages
+ * through the table with RETRIEVE (whole, conditional and filtered), and finally sends a
+ * mix of LOOKUP, PREFIX and FILES queries over TCP.
+ * Reports requests per second, latency percentiles and bytes per catalog message.
+ * Usage: IndexLoadTest [peers] [filesPerPeer] [queriesPerPeer] [threads]
+ */
+public class IndexLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int peers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int filesPerPeer = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int queries = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+		DHT server = new DHT(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.start();
+		int port = server.getLocalPort();
+		if(port < 0)
+			throw new IOException("Index server could not bind");
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			//registration: one snapshot per peer, answered with REGISTERED
+			phase("register", pool, peers, peer -> snapshot(1, catalog(peer, filesPerPeer, false)), address, IndexProtocol.REGISTERED);
+			System.out.println("\tindexed peers: " + server.getDht().size() + ", names: " + server.getIndex().size());
+			IndexProtocol.Tag tag = retrieve("retrieve all", address, IndexProtocol.Tag.NONE, "");
+
+			//one file added and one modified per peer: as a delta, then as a full snapshot
+			phase("update", pool, peers, peer -> {
+				SortedMap<String, PeerCatalog.Entry> added = new TreeMap<String, PeerCatalog.Entry>();
+				added.put(fileName(peer, filesPerPeer), new PeerCatalog.Entry(100, 1));
+				SortedMap<String, PeerCatalog.Entry> modified = new TreeMap<String, PeerCatalog.Entry>();
+				modified.put(fileName(peer, 0), new PeerCatalog.Entry(200, 2));
+				IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.UPDATE);
+				new PeerCatalog.Delta(1, 2, added, modified, new TreeSet<String>()).write(w);
+				return w.toFrame();
+			}, address, IndexProtocol.UPDATED);
+			tag = retrieve("retrieve changes", address, tag, "");
+			retrieve("retrieve again", address, tag, "");
+			retrieve("retrieve pattern", address, IndexProtocol.Tag.NONE, "file-0000[0-4]-00?.dat");
+			phase("re-register", pool, peers, peer -> snapshot(3, catalog(peer, filesPerPeer + 1, true)), address, IndexProtocol.REGISTERED);
+
+			//a delta that skips a sequence number must be answered with RESYNC
+			IndexProtocol.Writer gap = new IndexProtocol.Writer(IndexProtocol.UPDATE);
+			new PeerCatalog.Delta(10, 11, new TreeMap<String, PeerCatalog.Entry>(), new TreeMap<String, PeerCatalog.Entry>(),
+					new TreeSet<String>(Arrays.asList(fileName(0, 1)))).write(gap);
+			if(send(peerAddress(0), address, gap.toFrame()) != IndexProtocol.RESYNC)
+				System.out.println("\tgap in sequence numbers not detected");
+
+			//queries: each peer sends its share over fresh TCP connections
+			long[] queryNanos = new long[peers * queries];
+			AtomicInteger failed = new AtomicInteger();
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			long t0 = System.nanoTime();
+			for(int p = 0; p < peers; p++) {
+				final int peer = p;
+				pending.add(pool.submit(() -> {
+					Random rnd = new Random(peer);
+					for(int q = 0; q < queries; q++) {
+						int kind = rnd.nextInt(100);
+						byte[] request;
+						if(kind < 70)
+							request = new IndexProtocol.Writer(IndexProtocol.LOOKUP)
+									.writeString(fileName(rnd.nextInt(peers), rnd.nextInt(filesPerPeer))).toFrame();
+						else if(kind < 95)
+							request = new IndexProtocol.Writer(IndexProtocol.PREFIX)
+									.writeString(fileName(rnd.nextInt(peers), 0).substring(0, 10)).toFrame();
+						else
+							request = new IndexProtocol.Writer(IndexProtocol.FILES).writeAddress(peerAddress(rnd.nextInt(peers))).toFrame();
+						long start = System.nanoTime();
+						try {
+							//every answer starts with a count; an empty one means the index missed
+							IndexProtocol.Frame f = IndexProtocol.call(address, request, 5000);
+							if(f.type == IndexProtocol.UNKNOWN || IndexProtocol.readVarint(f.payload) == 0)
+								failed.incrementAndGet();
+							queryNanos[peer * queries + q] = System.nanoTime() - start;
+						} catch (IOException e) {
+							failed.incrementAndGet();
+							queryNanos[peer * queries + q] = Long.MAX_VALUE;
+						}
+					}
+				}));
+			}
+			for(Future<?> f : pending)
+				f.get();
+			report("query", queryNanos, System.nanoTime() - t0);
+			if(failed.get() > 0)
+				System.out.println("\t" + failed.get() + " queries failed or came back empty");
+		} finally {
+			pool.shutdown();
+			server.switchOff();
+			server.join();
+		}
+	}
+
+	// every peer sends the frame built for it and expects the given answer
+	private static void phase(String name, ExecutorService pool, int peers, IntFunction<byte[]> frameFor,
+			InetSocketAddress server, byte expected) throws Exception {
+		long[] nanos = new long[peers];
+		AtomicInteger lost = new AtomicInteger();
+		AtomicLong bytes = new AtomicLong();
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		long t0 = System.nanoTime();
+		for(int p = 0; p < peers; p++) {
+			final int peer = p;
+			pending.add(pool.submit(() -> {
+				byte[] frame = frameFor.apply(peer);
+				bytes.addAndGet(frame.length);
+				long start = System.nanoTime();
+				try {
+					if(send(peerAddress(peer), server, frame) != expected)
+						lost.incrementAndGet();
+					nanos[peer] = System.nanoTime() - start;
+				} catch (IOException e) {
+					lost.incrementAndGet();
+					nanos[peer] = Long.MAX_VALUE;
+				}
+			}));
+		}
+		for(Future<?> f : pending)
+			f.get();
+		report(name, nanos, System.nanoTime() - t0);
+		System.out.println("\t" + bytes.get() / peers + " bytes per message");
+		if(lost.get() > 0)
+			System.out.println("\t" + lost.get() + " messages unanswered or refused");
+	}
+
+	// pages through the table and returns the tag to use for the next conditional request
+	private static IndexProtocol.Tag retrieve(String name, InetSocketAddress server, IndexProtocol.Tag since, String pattern) throws IOException {
+		IndexProtocol.Retrieve q = new IndexProtocol.Retrieve(since, null, pattern, null, null, DHT.MAX_PAGE);
+		long t0 = System.nanoTime();
+		long bytes = 0;
+		int pages = 0;
+		int peers = 0;
+		int names = 0;
+		IndexProtocol.Page first = null;
+		while(true) {
+			byte[] request = q.toFrame();
+			IndexProtocol.Frame f = IndexProtocol.call(server, request, 5000);
+			bytes += request.length + IndexProtocol.HEADER + f.payload.remaining();
+			IndexProtocol.Page p = IndexProtocol.Page.read(f);
+			if(first == null)
+				first = p;
+			pages++;
+			for(List<String> l : p.peers.values())
+				names += l.size();
+			peers += p.peers.size();
+			if(p.nextPeer == null)
+				break;
+			q = q.next(p);
+		}
+		System.out.printf("%s: %s, %d pages, %d peer entries, %d names, %d bytes in %.1f ms%n", name,
+				first.notModified ? "not modified" : first.full ? "whole table" : "changes only", pages, peers, names, bytes,
+				(System.nanoTime() - t0) / 1e6);
+		return first.tag;
+	}
+
+	// sends a catalog frame from the peer's own address, over UDP if it fits, and returns the answer type
+	static byte send(InetAddress peer, InetSocketAddress server, byte[] frame) throws IOException {
+		if(frame.length <= IndexProtocol.MAX_DATAGRAM) {
+			try (DatagramSocket ds = new DatagramSocket(new InetSocketAddress(peer, 0))) {
+				ds.setSoTimeout(2000);
+				ds.send(new DatagramPacket(frame, frame.length, server));
+				DatagramPacket response = new DatagramPacket(new byte[64], 64);
+				ds.receive(response);
+				return IndexProtocol.decode(ByteBuffer.wrap(response.getData(), 0, response.getLength())).type;
+			}
+		}
+		try (Socket s = new Socket()) {
+			s.bind(new InetSocketAddress(peer, 0));
+			s.connect(server, 5000);
+			s.setSoTimeout(5000);
+			s.getOutputStream().write(frame);
+			return IndexProtocol.read(new DataInputStream(s.getInputStream())).type;
+		}
+	}
+
+	static SortedMap<String, PeerCatalog.Entry> catalog(int peer, int files, boolean changed) {
+		SortedMap<String, PeerCatalog.Entry> entries = new TreeMap<String, PeerCatalog.Entry>();
+		for(int f = 0; f < files; f++)
+			entries.put(fileName(peer, f), changed && f == 0 ? new PeerCatalog.Entry(200, 2) : new PeerCatalog.Entry(100, 1));
+		return entries;
+	}
+
+	static byte[] snapshot(long seq, SortedMap<String, PeerCatalog.Entry> entries) {
+		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.REGISTER).writeVarlong(seq);
+		PeerCatalog.writeEntries(w, entries);
+		return w.toFrame();
+	}
+
+	// a distinct loopback address per simulated peer
+	static InetAddress peerAddress(int peer) {
+		int n = peer + 2;
+		try {
+			return InetAddress.getByAddress(new byte[] { 127, 0, (byte) (n >> 8), (byte) n });
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String fileName(int peer, int file) {
+		return String.format("file-%05d-%03d.dat", peer, file);
+	}
+
+	static void report(String phase, long[] nanos, long elapsed) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		System.out.printf("%s: %d requests in %.2f s, %.0f req/s, p50 %d us, p99 %d us, max %d us%n", phase, sorted.length,
+				elapsed / 1e9, sorted.length / (elapsed / 1e9), sorted[sorted.length / 2] / 1000,
+				sorted[sorted.length * 99 / 100] / 1000, sorted[sorted.length - 1] / 1000);
+	}
+}
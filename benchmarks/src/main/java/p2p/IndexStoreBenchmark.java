@@ -0,0 +1,161 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of keeping the index server's table on disk, and time to get it back after a restart.
+ * Simulated peers (see IndexLoadTest) register their catalogs with a server that keeps its
+ * table in memory only, then with one that keeps it in an IndexStore, from many threads at
+ * once so that the changes share fsyncs; both register again a few times, which grows the log
+ * past the point where the store writes a snapshot. The second server is stopped and a new one
+ * started on the same folder: the time to restore the table is compared with the time all the
+ * peers took to register, a LOOKUP has to find a peer at once and a RENEW has to be accepted
+ * without registering again. Last, the log is cut in the middle of a record, as by a crash, and
+ * the table is restored once more.
+ * Usage: IndexStoreBenchmark [peers] [filesPerPeer] [rounds] [threads]
+ */
+public class IndexStoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int peers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+		File dir = BenchmarkFiles.tempDir("indexstore");
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			System.out.printf("%d peers of %d files, %d rounds of registration, %d threads%n", peers, files, rounds, threads);
+			DHT memory = start(null);
+			try {
+				register("in memory", memory, pool, peers, files, rounds);
+			} finally {
+				stop(memory);
+			}
+			DHT kept = start(dir);
+			long registration;
+			try {
+				registration = register("kept on disk", kept, pool, peers, files, rounds);
+				IndexStore s = kept.getStore();
+				System.out.printf("\t%d changes in %d fsyncs (%.1f per fsync), %d snapshots%n", s.getChanges(), s.getSyncs(),
+						(double) s.getChanges() / Math.max(1, s.getSyncs()), s.getSnapshots());
+				//a few changes after the last snapshot, for the log to hold something
+				register("updates after the snapshot", kept, pool, Math.min(peers, 100), files, 1);
+			} finally {
+				stop(kept);
+			}
+			restart("restart", dir, peers, files, registration);
+
+			File log = newestLog(dir);
+			try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+				raf.setLength(raf.length() - 3);
+			}
+			restart("restart, torn log", dir, peers, files, registration);
+		} finally {
+			pool.shutdown();
+			BenchmarkFiles.deleteTree(dir);
+		}
+	}
+
+	private static DHT start(File dir) throws Exception {
+		DHT server = new DHT(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		if(dir != null)
+			server.persist(dir);
+		server.start();
+		if(server.getLocalPort() < 0)
+			throw new IOException("Index server could not bind");
+		return server;
+	}
+
+	private static void stop(DHT server) throws InterruptedException {
+		server.switchOff();
+		server.join();
+	}
+
+	private static InetSocketAddress address(DHT server) throws InterruptedException {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+	}
+
+	// every peer registers rounds times, a new snapshot each time; returns the nanoseconds of the first round
+	private static long register(String run, DHT server, ExecutorService pool, int peers, int files, int rounds)
+			throws Exception {
+		InetSocketAddress address = address(server);
+		long first = 0;
+		long total = 0;
+		AtomicInteger lost = new AtomicInteger();
+		for(int round = 1; round <= rounds; round++) {
+			final long seq = round;
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			long t0 = System.nanoTime();
+			for(int p = 0; p < peers; p++) {
+				final int peer = p;
+				pending.add(pool.submit(() -> {
+					byte[] frame = IndexLoadTest.snapshot(seq, IndexLoadTest.catalog(peer, files, seq % 2 == 0));
+					try {
+						if(IndexLoadTest.send(IndexLoadTest.peerAddress(peer), address, frame) != IndexProtocol.REGISTERED)
+							lost.incrementAndGet();
+					} catch (IOException e) {
+						lost.incrementAndGet();
+					}
+				}));
+			}
+			for(Future<?> f : pending)
+				f.get();
+			long nanos = System.nanoTime() - t0;
+			if(round == 1)
+				first = nanos;
+			total += nanos;
+		}
+		System.out.printf("%-28s\t%d registrations in %.2f s, %.0f per s%s%n", run, peers * rounds, total / 1e9,
+				peers * rounds / (total / 1e9), lost.get() > 0 ? ", " + lost.get() + " unanswered" : "");
+		return first;
+	}
+
+	private static void restart(String run, File dir, int peers, int files, long registration) throws Exception {
+		long t0 = System.nanoTime();
+		DHT server = new DHT(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.persist(dir);
+		long restored = System.nanoTime() - t0;
+		server.start();
+		try {
+			InetSocketAddress address = address(server);
+			long t1 = System.nanoTime();
+			String name = IndexLoadTest.fileName(peers - 1, files - 1);
+			List<InetAddress> holders = IndexProtocol.readAddresses(IndexProtocol.call(address,
+					new IndexProtocol.Writer(IndexProtocol.LOOKUP).writeString(name).toFrame(), 5000).payload);
+			long lookup = System.nanoTime() - t1;
+			byte renewed = IndexLoadTest.send(IndexLoadTest.peerAddress(0), address, IndexProtocol.empty(IndexProtocol.RENEW));
+			System.out.printf("%-28s\t%d peers and %d names restored in %.0f ms (registering them took %.0f ms); "
+					+ "first LOOKUP %.1f ms, found %s; RENEW accepted %s%n", run, server.getDht().size(), server.getIndex().size(),
+					restored / 1e6, registration / 1e6, lookup / 1e6, holders.contains(IndexLoadTest.peerAddress(peers - 1)),
+					renewed == IndexProtocol.RENEWED);
+		} finally {
+			stop(server);
+		}
+	}
+
+	// the log the changes after the last snapshot went to
+	private static File newestLog(File dir) throws IOException {
+		File newest = null;
+		long n = -1;
+		File[] listed = dir.listFiles();
+		for(File f : listed == null ? new File[0] : listed)
+			if(f.getName().startsWith("log-") && f.length() > 0 && Long.parseLong(f.getName().substring(4)) > n) {
+				n = Long.parseLong(f.getName().substring(4));
+				newest = f;
+			}
+		if(newest == null)
+			throw new IOException("No log in " + dir);
+		return newest;
+	}
+}
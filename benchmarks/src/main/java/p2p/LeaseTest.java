@@ -0,0 +1,189 @@
+package p2p;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test of lease expiry in the index server.
+ * First times TimerWheel on its own against scanning every deadline each tick, with simulated
+ * time. Then registers simulated peers (each from its own loopback address, 127.0.x.y) with a
+ * short lease, keeps half of them renewing over UDP while the other half falls silent, and
+ * reports how long after its lease ran out each silent peer was gone from every replica, and
+ * whether any query listed a silent peer after its lease.
+ * Usage: LeaseTest [replicas] [peers] [leaseMs] [wheelKeys]
+ */
+public class LeaseTest {
+
+	public static void main(String[] args) throws Exception {
+		int replicas = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		int peers = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		long lease = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		int keys = args.length > 3 ? Integer.parseInt(args[3]) : 1000000;
+		wheel(keys);
+		churn(replicas, peers, lease);
+	}
+
+	// ticks through 30 s of deadlines, with the wheel and with a scan of all of them
+	private static void wheel(int keys) {
+		long tick = 100;
+		long span = 30000;
+		Random rnd = new Random(1);
+		long[] deadlines = new long[keys];
+		for(int k = 0; k < keys; k++)
+			deadlines[k] = 1 + (long) (rnd.nextDouble() * span);
+
+		TimerWheel<Integer> wheel = new TimerWheel<Integer>(tick, span, 0);
+		long t0 = System.nanoTime();
+		for(int k = 0; k < keys; k++)
+			wheel.schedule(k, deadlines[k]);
+		long scheduled = System.nanoTime() - t0;
+		t0 = System.nanoTime();
+		for(int k = 0; k < keys; k++)
+			wheel.schedule(k, deadlines[k] + tick);
+		long renewed = System.nanoTime() - t0;
+		long expired = 0;
+		t0 = System.nanoTime();
+		for(long now = tick; now <= span + 2 * tick; now += tick)
+			expired += wheel.advance(now).size();
+		long wheelNanos = System.nanoTime() - t0;
+
+		Map<Integer, Long> map = new HashMap<Integer, Long>();
+		for(int k = 0; k < keys; k++)
+			map.put(k, deadlines[k] + tick);
+		long scanned = 0;
+		t0 = System.nanoTime();
+		for(long now = tick; now <= span + 2 * tick; now += tick)
+			for(Iterator<Long> it = map.values().iterator(); it.hasNext(); )
+				if(it.next() <= now) {
+					it.remove();
+					scanned++;
+				}
+		long scanNanos = System.nanoTime() - t0;
+		long ticks = (span + 2 * tick) / tick;
+		System.out.printf("wheel, %d leases: schedule %.0f ns, renew %.0f ns, %d ticks %.1f us/tick (%d expired), "
+				+ "scan %.1f us/tick (%d expired)%n", keys, (double) scheduled / keys, (double) renewed / keys, ticks,
+				wheelNanos / 1e3 / ticks, expired, scanNanos / 1e3 / ticks, scanned);
+	}
+
+	// half of the peers renew, the other half falls silent; every replica has to drop the silent ones
+	private static void churn(int replicas, int peers, long lease) throws Exception {
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		List<DHT> servers = new ArrayList<DHT>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(peers, 32));
+		try {
+			DHT first = new DHT(new InetSocketAddress(lo, 0));
+			first.setLease(lease);
+			if(replicas > 1)
+				first.replicate(lo, replicas - 1, null);
+			first.start();
+			servers.add(first);
+			InetSocketAddress address = new InetSocketAddress(lo, first.getLocalPort());
+			for(int i = 1; i < replicas; i++) {
+				DHT standby = new DHT(new InetSocketAddress(lo, 0));
+				standby.setLease(lease);
+				standby.replicate(lo, replicas - 1, address);
+				standby.start();
+				servers.add(standby);
+			}
+			long deadline = System.currentTimeMillis() + 10000;
+			while(replicas > 1 && first.getReplicator().getMembers().size() < replicas && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+
+			//registered: the lease of each peer runs out lease ms after its REGISTERED
+			long[] expiry = new long[peers];
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			for(int p = 0; p < peers; p++) {
+				final int peer = p;
+				pending.add(pool.submit(() -> {
+					byte answer = IndexLoadTest.send(IndexLoadTest.peerAddress(peer), address,
+							IndexLoadTest.snapshot(1, IndexLoadTest.catalog(peer, 10, false)));
+					expiry[peer] = System.currentTimeMillis() + lease;
+					if(answer != IndexProtocol.REGISTERED)
+						throw new IOException("Registration refused: " + answer);
+					return null;
+				}));
+			}
+			for(Future<?> f : pending)
+				f.get();
+			System.out.printf("%d peers registered with %d replicas, lease %d ms%n", peers, replicas, lease);
+
+			//odd peers renew a third of the lease apart for three leases
+			Thread renewing = new Thread(() -> {
+				long end = System.currentTimeMillis() + 3 * lease;
+				while(System.currentTimeMillis() < end) {
+					for(int p = 1; p < peers; p += 2)
+						try {
+							IndexLoadTest.send(IndexLoadTest.peerAddress(p), address, IndexProtocol.empty(IndexProtocol.RENEW));
+						} catch (IOException e) {
+							System.out.println("\trenew of peer " + p + " lost");
+						}
+					try {
+						Thread.sleep(lease / 3);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			});
+			renewing.start();
+
+			//watch the even peers disappear from every replica, and query for them past their lease
+			long[] gone = new long[peers];
+			int listed = 0;
+			int left = peers / 2 + peers % 2;
+			deadline = System.currentTimeMillis() + 5 * lease;
+			while(left > 0 && System.currentTimeMillis() < deadline) {
+				long now = System.currentTimeMillis();
+				for(int p = 0; p < peers; p += 2) {
+					if(gone[p] != 0)
+						continue;
+					InetAddress ip = IndexLoadTest.peerAddress(p);
+					boolean present = false;
+					for(DHT d : servers)
+						present |= d.getDht().containsKey(ip);
+					if(!present) {
+						gone[p] = now;
+						left--;
+					}
+					else if(now > expiry[p] && servers.get(0).lookup(IndexLoadTest.fileName(p, 0)).contains(ip))
+						listed++;
+				}
+				Thread.sleep(2);
+			}
+			renewing.join();
+
+			long[] lag = new long[peers / 2 + peers % 2];
+			for(int p = 0; p < peers; p += 2)
+				lag[p / 2] = gone[p] == 0 ? Long.MAX_VALUE : gone[p] - expiry[p];
+			Arrays.sort(lag);
+			System.out.printf("evicted %d of %d silent peers from every replica: lag after lease p50 %d ms, p99 %d ms, max %d ms%n",
+					lag.length - left, lag.length, lag[lag.length / 2], lag[lag.length * 99 / 100], lag[lag.length - 1]);
+			if(listed > 0)
+				System.out.println("\t" + listed + " lookups listed a peer past its lease");
+			int kept = 0;
+			for(int p = 1; p < peers; p += 2)
+				if(first.getDht().containsKey(IndexLoadTest.peerAddress(p)))
+					kept++;
+			System.out.println("\t" + kept + " of " + peers / 2 + " renewing peers still registered, table holds "
+					+ first.getDht().size());
+			byte late = IndexLoadTest.send(IndexLoadTest.peerAddress(0), address, IndexProtocol.empty(IndexProtocol.RENEW));
+			System.out.println("\trenew after eviction answered " + (late == IndexProtocol.UNKNOWN ? "UNKNOWN" : "type " + late));
+		} finally {
+			pool.shutdown();
+			for(DHT d : servers) {
+				d.switchOff();
+				d.join();
+			}
+		}
+	}
+}
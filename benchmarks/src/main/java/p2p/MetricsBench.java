@@ -0,0 +1,63 @@
+package p2p;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording into Metrics from the transfer and index paths, from one thread and
+ * from four at once: an upload (per-peer and total bytes plus the duration histogram),
+ * bytes received from a range, and the service time of an index request.
+ * Run with -prof gc to check that recording allocates nothing (gc.alloc.rate.norm of 0 B/op).
+ * Usage: java -jar benchmarks/target/benchmarks.jar MetricsBench -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBench {
+
+	private Metrics metrics;
+	private Metrics.Traffic traffic;
+
+	@Setup
+	public void setup() {
+		metrics = new Metrics();
+		traffic = metrics.peer(InetAddress.getLoopbackAddress());
+	}
+
+	@Benchmark
+	public void upload() {
+		metrics.upload(traffic, ThreadLocalRandom.current().nextLong(1_000_000_000L), 65536);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void uploadContended() {
+		metrics.upload(traffic, ThreadLocalRandom.current().nextLong(1_000_000_000L), 65536);
+	}
+
+	@Benchmark
+	public void received() {
+		metrics.received(traffic, 1 << 20);
+	}
+
+	@Benchmark
+	public void indexOperation() {
+		metrics.indexOperation(IndexProtocol.LOOKUP, ThreadLocalRandom.current().nextLong(1_000_000L));
+	}
+}
@@ -0,0 +1,143 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Loopback throughput test of the receiving side of a single transfer connection.
+ * A FileServer serves one large file and a batch of small ones; each receiver downloads them
+ * over one connection into an empty folder, several rounds, and the median MB/s is printed:
+ *   stream 1K    byte stream copied through a 1 KB array into a FileOutputStream, forced per file
+ *   stream 128K  the same through a 128 KB array (the heap buffered path TransferClient used to take)
+ *   then TransferClient with its direct buffers, with a mapping of the large file, and with
+ *   each PartFile.Sync policy: forced per file, per batch, or not at all
+ * Usage: ReceiveBenchmark [largeMB] [smallFiles] [smallKB] [rounds]
+ */
+public class ReceiveBenchmark {
+
+	private interface Receiver {
+		void fetch(InetSocketAddress addr, List<String> names, File dir) throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int largeMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int smallFiles = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int smallKB = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		File dir = BenchmarkFiles.tempDir("recvbench");
+		File out = BenchmarkFiles.tempDir("recvbench-out");
+		BenchmarkFiles.randomFile(dir, "large.bin", (long) largeMB << 20, 1);
+		List<String> small = new ArrayList<String>();
+		for(int i = 0; i < smallFiles; i++) {
+			String name = String.format("small-%04d.bin", i);
+			BenchmarkFiles.randomFile(dir, name, (long) smallKB << 10, i + 2);
+			small.add(name);
+		}
+		FileServer server = new FileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, () -> dir);
+		server.setVerbose(false);
+		server.start();
+		try {
+			InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			String[] names = { "stream 1K", "stream 128K", "client, sync FILE", "client mapped, sync FILE",
+					"client, sync BATCH", "client, sync NONE" };
+			Receiver[] receivers = { (a, n, d) -> stream(a, n, d, 1 << 10), (a, n, d) -> stream(a, n, d, 128 << 10),
+					client(PartFile.Sync.FILE, false), client(PartFile.Sync.FILE, true), client(PartFile.Sync.BATCH, false),
+					client(PartFile.Sync.NONE, false) };
+			System.out.printf("large file: %d MB, batch: %d files of %d KB, median of %d rounds%n", largeMB, smallFiles,
+					smallKB, rounds);
+			System.out.println("receiver\t\t\tlarge MB/s\tbatch MB/s");
+			for(int i = 0; i < receivers.length; i++) {
+				double large = run(receivers[i], addr, Collections.singletonList("large.bin"), out, rounds);
+				double batch = run(receivers[i], addr, small, out, rounds);
+				System.out.printf("%-24s\t%.1f\t\t%.1f%n", names[i], large, batch);
+			}
+		} finally {
+			server.stop();
+			BenchmarkFiles.deleteTree(dir);
+			BenchmarkFiles.deleteTree(out);
+		}
+	}
+
+	// median MB/s of receiving the files into an emptied folder, after one round of warm up
+	private static double run(Receiver r, InetSocketAddress addr, List<String> names, File dir, int rounds) throws IOException {
+		double[] rates = new double[rounds];
+		for(int i = -1; i < rounds; i++) {
+			for(File f : dir.listFiles())
+				f.delete();
+			long t0 = System.nanoTime();
+			r.fetch(addr, names, dir);
+			long elapsed = System.nanoTime() - t0;
+			long bytes = 0;
+			for(String name : names)
+				bytes += new File(dir, name).length();
+			if(i >= 0)
+				rates[i] = (bytes / 1048576.0) / (elapsed / 1e9);
+		}
+		Arrays.sort(rates);
+		return rates[rounds / 2];
+	}
+
+	private static Receiver client(PartFile.Sync sync, boolean mapping) {
+		return (addr, names, dir) -> {
+			try (TransferClient client = new TransferClient(addr, (byte) 0)) {
+				client.setSync(sync);
+				client.setMapping(mapping);
+				for(TransferClient.Result res : client.fetch(names, dir))
+					if(!res.ok)
+						throw new IOException(res.toString());
+			}
+		};
+	}
+
+	// receives files the plain way: through a byte array of the given size into a temporary file,
+	// checked against its CRC32, forced to disk and renamed into place
+	private static void stream(InetSocketAddress addr, List<String> names, File dir, int bufferSize) throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.connect(addr);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			for(String name : names) {
+				out.writeByte(TransferProtocol.GET);
+				out.writeUTF(name);
+			}
+			out.writeByte(TransferProtocol.END);
+			out.flush();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] buf = new byte[bufferSize];
+			for(int i = 0; i < names.size(); i++) {
+				TransferProtocol.Header h = TransferProtocol.Header.read(in);
+				if(h.status != TransferProtocol.OK)
+					throw new IOException(h.name + ": status " + h.status);
+				File tmp = new File(dir, h.name + ".tmp");
+				CRC32 crc = new CRC32();
+				try (FileOutputStream file = new FileOutputStream(tmp)) {
+					for(long left = h.count; left > 0; ) {
+						int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+						if(n < 0)
+							throw new IOException("Connection closed while receiving " + h.name);
+						crc.update(buf, 0, n);
+						file.write(buf, 0, n);
+						left -= n;
+					}
+					file.getFD().sync();
+				}
+				if(crc.getValue() != h.crc)
+					throw new IOException(h.name + ": checksum mismatch");
+				PartFile.moveIntoPlace(tmp, new File(dir, h.name));
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package p2p;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Traffic needed to find what one peer has and another does not, for two large catalogs that
+ * differ in a few files. One peer registers a catalog of many files with an index server on
+ * loopback; the other holds the same catalog with some files missing and some of another size.
+ * For every number of differences the second peer reconciles with RECONCILE as sync does
+ * (tables of FIRST_CELLS cells, four times as many on every retry) and the bytes sent and
+ * received are compared with the FILES answer the whole name list used to take. The SUMMARY
+ * answer (the Bloom filter of the names) and its false positive rate are reported as well.
+ * Usage: ReconcileBenchmark [files] [differences,...]
+ */
+public class ReconcileBenchmark {
+	private static final int FIRST_CELLS = 96;
+	private static final int MAX_CELLS = 1 << 16;
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String[] differences = (args.length > 1 ? args[1] : "0,10,100,1000,10000").split(",");
+
+		DHT server = new DHT(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.start();
+		int port = server.getLocalPort();
+		if(port < 0)
+			throw new IOException("Index server could not bind");
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		try {
+			InetAddress owner = IndexLoadTest.peerAddress(0);
+			Random rnd = new Random(1);
+			TreeMap<String, PeerCatalog.Entry> catalog = new TreeMap<String, PeerCatalog.Entry>();
+			for(int i = 0; i < files; i++)
+				catalog.put(String.format("dir-%03d/file-%07d.dat", i % 1000, i), new PeerCatalog.Entry(rnd.nextInt(1 << 24), 1));
+			IndexProtocol.Writer register = new IndexProtocol.Writer(IndexProtocol.REGISTER).writeVarlong(1);
+			PeerCatalog.writeEntries(register, catalog);
+			long t0 = System.nanoTime();
+			IndexClient client = new IndexClient(owner, address);
+			client.call(register.toFrame());
+			System.out.printf("%d files registered (%.1f MB snapshot) in %.0f ms%n", files, register.size() / 1e6,
+					(System.nanoTime() - t0) / 1e6);
+
+			IndexClient other = new IndexClient(IndexLoadTest.peerAddress(1), address);
+			IndexProtocol.Frame list = other.call(new IndexProtocol.Writer(IndexProtocol.FILES).writeAddress(owner).toFrame());
+			System.out.printf("FILES answer (whole name list): %.1f KB%n", (list.payload.remaining() + IndexProtocol.HEADER) / 1e3);
+			IndexProtocol.Writer summary = new IndexProtocol.Writer(IndexProtocol.SUMMARY);
+			IndexProtocol.Tag.NONE.write(summary);
+			IndexProtocol.Frame filters = other.call(summary.toFrame());
+			System.out.printf("SUMMARY answer (Bloom filter of the names): %.1f KB, false positives %.2f%%%n",
+					(filters.payload.remaining() + IndexProtocol.HEADER) / 1e3, falsePositives(server, owner) * 100);
+
+			System.out.println("differences\trounds\tcells\tsent KB\treceived KB\tms\tfound");
+			for(String d : differences) {
+				int n = Integer.parseInt(d.trim());
+				//the first half of the differences is missing here, the second half has another size
+				TreeMap<String, PeerCatalog.Entry> mine = new TreeMap<String, PeerCatalog.Entry>(catalog);
+				TreeSet<String> expected = new TreeSet<String>();
+				Random pick = new Random(n);
+				while(expected.size() < n) {
+					int i = pick.nextInt(files);
+					String name = String.format("dir-%03d/file-%07d.dat", i % 1000, i);
+					if(!expected.add(name))
+						continue;
+					if(expected.size() % 2 == 0)
+						mine.remove(name);
+					else
+						mine.put(name, new PeerCatalog.Entry(catalog.get(name).size + 1, 1));
+				}
+				PeerCatalog local = new PeerCatalog();
+				local.reset(1, mine);
+				CatalogSummary own = local.summary();
+				//built ahead, as a node keeps it until its catalog changes
+				own.table(FIRST_CELLS);
+				long sent = 0;
+				long received = 0;
+				int rounds = 0;
+				int cells = FIRST_CELLS;
+				SortedMap<String, PeerCatalog.Entry> missing = null;
+				long start = System.nanoTime();
+				for(; cells <= MAX_CELLS; cells *= 4) {
+					IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.RECONCILE).writeAddress(owner);
+					own.table(cells).write(w);
+					byte[] request = w.toFrame();
+					IndexProtocol.Frame f = other.call(request);
+					rounds++;
+					sent += request.length;
+					received += f.payload.remaining() + IndexProtocol.HEADER;
+					if(IndexProtocol.readByte(f.payload) == 1) {
+						missing = PeerCatalog.readEntries(f.payload);
+						break;
+					}
+				}
+				long nanos = System.nanoTime() - start;
+				String found = missing == null ? "too many, whole list needed"
+						: missing.keySet().equals(expected) ? missing.size() + " (all)" : missing.size() + " (WRONG)";
+				System.out.printf("%d\t\t%d\t%d\t%.1f\t%.1f\t\t%.1f\t%s%n", n, rounds, Math.min(cells, MAX_CELLS), sent / 1e3,
+						received / 1e3, nanos / 1e6, found);
+			}
+		} finally {
+			server.switchOff();
+			server.join();
+		}
+	}
+
+	// share of names not in the catalog that its filter lets through
+	private static double falsePositives(DHT server, InetAddress owner) {
+		BloomFilter filter = server.filters().get(owner);
+		int hits = 0;
+		int tries = 100000;
+		for(int i = 0; i < tries; i++)
+			if(filter.mightContain(CatalogSummary.nameKey("absent-" + i + ".dat")))
+				hits++;
+		return (double) hits / tries;
+	}
+}
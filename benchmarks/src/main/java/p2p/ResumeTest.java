@@ -0,0 +1,149 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test of resumable downloads over a link that keeps dropping.
+ * Serves one file through a proxy that cuts every connection after a random amount of data
+ * (uniform between a quarter and seven quarters of the mean), and downloads it with
+ * TransferClient until it arrives: once continuing every cut-off download from its part file,
+ * and once starting over from byte zero as before. Reports attempts, bytes moved and time, and
+ * checks that the target never shows up before it is complete.
+ * Usage: ResumeTest [fileSizeMB] [meanDropMB] [maxAttempts]
+ */
+public class ResumeTest {
+
+	public static void main(String[] args) throws Exception {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int meanMB = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int maxAttempts = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		File dir = BenchmarkFiles.tempDir("resumetest");
+		File out = BenchmarkFiles.tempDir("resumetest-out");
+		BenchmarkFiles.randomFile(dir, "big.bin", (long) sizeMB << 20, 1);
+		FileServer server = new FileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, () -> dir);
+		server.setVerbose(false);
+		server.start();
+		try {
+			System.out.printf("file size: %d MB, connection cut after %d MB on average%n", sizeMB, meanMB);
+			for(boolean resume : new boolean[] { true, false }) {
+				Proxy proxy = new Proxy(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+						(long) meanMB << 20, 1);
+				File target = new File(out, "big.bin");
+				target.delete();
+				PartFile.remove(target);
+				boolean torn = false;
+				int attempts = 0;
+				boolean done = false;
+				long t0 = System.nanoTime();
+				while(!done && attempts < maxAttempts) {
+					attempts++;
+					if(!resume)
+						PartFile.remove(target);
+					try (TransferClient client = new TransferClient(proxy.address(), (byte) 0)) {
+						TransferClient.Result r = client.fetch(Collections.singletonList("big.bin"), out).get(0);
+						if(!r.ok)
+							throw new IOException(r.toString());
+						done = true;
+					} catch (IOException e) {
+						torn |= target.exists();
+					}
+				}
+				long elapsed = System.nanoTime() - t0;
+				proxy.close();
+				System.out.printf("%s: %s after %d connections, %.1f MB moved (%.2fx the file) in %.2f s%s%n",
+						resume ? "resume" : "restart", done ? "complete" : "NOT complete", attempts, proxy.bytes.get() / 1048576.0,
+						proxy.bytes.get() / (double) ((long) sizeMB << 20), elapsed / 1e9, torn ? ", target seen half written" : "");
+			}
+		} finally {
+			server.stop();
+			BenchmarkFiles.deleteTree(dir);
+			BenchmarkFiles.deleteTree(out);
+		}
+	}
+
+	// forwards connections to the file server and cuts each one after a random number of bytes towards the client
+	private static final class Proxy {
+		private final ServerSocket listener;
+		private final InetSocketAddress upstream;
+		private final long mean;
+		private final Random rnd;
+		final AtomicLong bytes = new AtomicLong();
+
+		Proxy(InetSocketAddress upstream, long mean, long seed) throws IOException {
+			this.upstream = upstream;
+			this.mean = mean;
+			this.rnd = new Random(seed);
+			listener = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+			Thread t = new Thread(this::accept, "Proxy");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		InetSocketAddress address() {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		}
+
+		void close() throws IOException {
+			listener.close();
+		}
+
+		private void accept() {
+			try {
+				while(true) {
+					Socket client = listener.accept();
+					Socket server = new Socket();
+					server.connect(upstream);
+					long budget;
+					synchronized(rnd) {
+						budget = (long) (mean * (0.25 + 1.5 * rnd.nextDouble()));
+					}
+					pump(client, server, Long.MAX_VALUE);
+					pump(server, client, budget);
+				}
+			} catch (IOException e) {
+				//closed
+			}
+		}
+
+		// copies from one socket to the other; after budget bytes both are closed
+		private void pump(Socket from, Socket to, long budget) {
+			Thread t = new Thread(() -> {
+				byte[] buf = new byte[64 << 10];
+				long left = budget;
+				try {
+					InputStream in = from.getInputStream();
+					OutputStream o = to.getOutputStream();
+					int n;
+					while(left > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, left))) > 0) {
+						o.write(buf, 0, n);
+						left -= n;
+						if(budget != Long.MAX_VALUE)
+							bytes.addAndGet(n);
+					}
+				} catch (IOException e) {
+					//the other direction was cut
+				} finally {
+					try {
+						from.close();
+						to.close();
+					} catch (IOException e) {
+						//already closed
+					}
+				}
+			}, "Proxy-pump");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Loopback benchmark of the transfer scheduler under an upload limit.
+ * A seeder limited to the given rate serves a few large and many small files. They are queued
+ * large ones first, as a sync would find them, once in arrival order and once smallest first;
+ * halfway through the large ones an interactive download is queued as well. Prints the
+ * achieved rate against the limit, when the small files were done and how long the
+ * interactive download waited for a slot.
+ * Usage: SchedulerBenchmark [limitMBps] [largeFiles] [largeMB] [smallFiles] [smallKB]
+ */
+public class SchedulerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int limitMBps = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int large = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+		int largeMB = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		int small = args.length > 3 ? Integer.parseInt(args[3]) : 40;
+		int smallKB = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+		File seed = BenchmarkFiles.tempDir("schedseed");
+		File out = BenchmarkFiles.tempDir("schedout");
+		for(int i = 0; i < large; i++)
+			BenchmarkFiles.randomFile(seed, "large-" + i, (long) largeMB << 20, i);
+		for(int i = 0; i < small; i++)
+			BenchmarkFiles.randomFile(seed, "small-" + i, (long) smallKB << 10, 1000 + i);
+		BenchmarkFiles.randomFile(seed, "wanted", (long) smallKB << 10, 2000);
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		FileServer server = new FileServer(new InetSocketAddress(lo, 0), 16, () -> seed);
+		server.setVerbose(false);
+		server.setCompression(false);
+		server.setUploadLimit((long) limitMBps << 20);
+		server.start();
+		try {
+			InetSocketAddress addr = new InetSocketAddress(lo, server.getLocalPort());
+			System.out.printf("upload limit %d MB/s, %d x %d MB and %d x %d KB queued large first, max %d running, %d per peer%n",
+					limitMBps, large, largeMB, small, smallKB, TransferScheduler.DEFAULT_MAX_ACTIVE,
+					TransferScheduler.DEFAULT_MAX_PER_PEER);
+			System.out.println("order\t\tMB/s\tsmall done p50/max ms\tinteractive wait ms\tall done s\tmean/max wait ms");
+			for(boolean smallFirst : new boolean[] { false, true }) {
+				BenchmarkFiles.deleteTree(out);
+				out.mkdirs();
+				TransferScheduler scheduler = new TransferScheduler(TransferScheduler.DEFAULT_MAX_ACTIVE,
+						TransferScheduler.DEFAULT_MAX_PER_PEER);
+				scheduler.setSmallFirst(smallFirst);
+				long uploaded = server.getUploaded();
+				long t0 = System.nanoTime();
+				long[] smallDone = new long[small];
+				List<Future<Long>> all = new ArrayList<Future<Long>>();
+				for(int i = 0; i < large; i++) {
+					String name = "large-" + i;
+					all.add(scheduler.submit(name, TransferScheduler.NORMAL, (long) largeMB << 20, lo, () -> fetch(addr, name, out)));
+				}
+				for(int i = 0; i < small; i++) {
+					final int n = i;
+					all.add(scheduler.submit("small-" + i, TransferScheduler.NORMAL, (long) smallKB << 10, lo, () -> {
+						fetch(addr, "small-" + n, out);
+						return smallDone[n] = System.nanoTime() - t0;
+					}));
+				}
+				//once half of the large data is through, the user asks for a file
+				while(server.getUploaded() - uploaded < (long) large * largeMB << 19)
+					Thread.sleep(5);
+				long asked = System.nanoTime();
+				long[] interactiveWait = new long[1];
+				scheduler.submit("wanted", TransferScheduler.INTERACTIVE, (long) smallKB << 10, lo, () -> {
+					interactiveWait[0] = System.nanoTime() - asked;
+					return fetch(addr, "wanted", out);
+				}).get();
+				for(Future<Long> f : all)
+					f.get();
+				double seconds = (System.nanoTime() - t0) / 1e9;
+				Arrays.sort(smallDone);
+				TransferScheduler.Stats s = scheduler.getStats();
+				System.out.printf("%s\t%.1f\t%.0f / %.0f\t\t\t%.1f\t\t\t%.2f\t\t%.0f / %.0f%n", smallFirst ? "small first" : "arrival\t",
+						(server.getUploaded() - uploaded) / 1048576.0 / seconds, smallDone[small / 2] / 1e6,
+						smallDone[small - 1] / 1e6, interactiveWait[0] / 1e6, seconds, s.meanWait, s.maxWait);
+				scheduler.shutdown();
+			}
+		} finally {
+			server.stop();
+			BenchmarkFiles.deleteTree(seed);
+			BenchmarkFiles.deleteTree(out);
+		}
+	}
+
+	// downloads one file over a fresh connection; returns its length
+	private static long fetch(InetSocketAddress addr, String name, File dir) throws IOException {
+		try (TransferClient client = new TransferClient(addr)) {
+			TransferClient.Result r = client.fetch(Collections.singletonList(name), dir).get(0);
+			if(!r.ok)
+				throw new IOException(r.toString());
+			return r.length;
+		}
+	}
+}
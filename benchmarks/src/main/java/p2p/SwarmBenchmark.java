@@ -0,0 +1,131 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loopback benchmark of the swarm download with N in-process seeders.
+ * Loopback itself is not a bottleneck, so every seeder sits behind a proxy that caps
+ * its upload rate like a LAN link would. Throughput should grow with the number of seeders.
+ * Usage: SwarmBenchmark [fileSizeMB] [linkMBps] [maxSeeders]
+ */
+public class SwarmBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int linkMBps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int maxSeeders = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		File seedDir = BenchmarkFiles.tempDir("swarmseed");
+		File leechDir = BenchmarkFiles.tempDir("swarmleech");
+		BenchmarkFiles.randomFile(seedDir, "payload.bin", (long) sizeMB << 20, 7);
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		List<FileServer> servers = new ArrayList<FileServer>();
+		List<ThrottledLink> links = new ArrayList<ThrottledLink>();
+		try {
+			System.out.println("file size: " + sizeMB + " MB, link per seeder: " + linkMBps + " MB/s");
+			System.out.println("seeders\tMB/s\tchunks per seeder");
+			for(int n = 1; n <= maxSeeders; n *= 2) {
+				while(servers.size() < n) {
+					FileServer server = new FileServer(new InetSocketAddress(lo, 0), 8, () -> seedDir);
+					server.setVerbose(false);
+					server.start();
+					servers.add(server);
+					links.add(new ThrottledLink(new InetSocketAddress(lo, server.getLocalPort()), (long) linkMBps << 20));
+				}
+				List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+				for(ThrottledLink l : links)
+					peers.add(new InetSocketAddress(lo, l.getLocalPort()));
+				SwarmDownloader.Result r = new SwarmDownloader(peers, 256 << 10).download("payload.bin", new File(leechDir, "payload.bin"));
+				System.out.printf("%d\t%.1f\t%s%n", n, (r.length / 1048576.0) / (r.nanos / 1e9), Arrays.toString(r.chunksPerPeer));
+			}
+		} finally {
+			for(ThrottledLink l : links)
+				l.close();
+			for(FileServer s : servers)
+				s.stop();
+			BenchmarkFiles.deleteTree(seedDir);
+			BenchmarkFiles.deleteTree(leechDir);
+		}
+	}
+
+	/**
+	 * TCP proxy in front of one seeder that limits the bytes sent back to the client
+	 */
+	static class ThrottledLink {
+		private final ServerSocket ss;
+		private final InetSocketAddress target;
+		private final long bytesPerSecond;
+
+		ThrottledLink(InetSocketAddress target, long bytesPerSecond) throws IOException {
+			this.ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.target = target;
+			this.bytesPerSecond = bytesPerSecond;
+			Thread t = new Thread(this::acceptLoop, "ThrottledLink-" + target.getPort());
+			t.setDaemon(true);
+			t.start();
+		}
+
+		int getLocalPort() {
+			return ss.getLocalPort();
+		}
+
+		void close() throws IOException {
+			ss.close();
+		}
+
+		private void acceptLoop() {
+			while(!ss.isClosed()) {
+				try {
+					Socket client = ss.accept();
+					Socket server = new Socket(target.getAddress(), target.getPort());
+					pump(client.getInputStream(), server.getOutputStream(), 0, client, server);
+					pump(server.getInputStream(), client.getOutputStream(), bytesPerSecond, client, server);
+				} catch (IOException e) {
+					//proxy closed
+				}
+			}
+		}
+
+		private static void pump(InputStream in, OutputStream out, long rate, Socket a, Socket b) {
+			Thread t = new Thread(() -> {
+				byte[] buf = new byte[16 << 10];
+				long sent = 0;
+				long start = System.nanoTime();
+				try {
+					int n;
+					while((n = in.read(buf)) >= 0) {
+						out.write(buf, 0, n);
+						sent += n;
+						if(rate > 0) {
+							long due = start + sent * 1000000000L / rate;
+							long wait = due - System.nanoTime();
+							if(wait > 0)
+								Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						}
+					}
+				} catch (IOException | InterruptedException e) {
+					//one side closed the connection
+				} finally {
+					try {
+						a.close();
+						b.close();
+					} catch (IOException e) {
+						//already closed
+					}
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+}
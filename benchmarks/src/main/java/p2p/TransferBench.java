@@ -0,0 +1,83 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of downloading one file over loopback from a FileServer: over a single connection
+ * with TransferClient, and over several connections at once with SwarmDownloader. The file is
+ * random, so it goes out uncompressed, and it stays in the page cache on both sides.
+ * Usage: java -jar benchmarks/target/benchmarks.jar TransferBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBench {
+
+	@Param({ "65536", "4194304", "67108864" })
+	public long size;
+
+	// Connections of the multi-stream download
+	@Param({ "4" })
+	public int streams;
+
+	private File seed;
+	private File out;
+	private FileServer server;
+	private InetSocketAddress address;
+
+	@Setup
+	public void setup() throws IOException {
+		seed = BenchmarkFiles.tempDir("transferbench");
+		out = BenchmarkFiles.tempDir("transferbench-out");
+		BenchmarkFiles.randomFile(seed, "payload.bin", size, 1);
+		server = new FileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, () -> seed);
+		server.setVerbose(false);
+		server.start();
+		address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.stop();
+		BenchmarkFiles.deleteTree(seed);
+		BenchmarkFiles.deleteTree(out);
+	}
+
+	@Benchmark
+	public long singleStream() throws IOException {
+		try (TransferClient client = new TransferClient(address)) {
+			TransferClient.Result r = client.fetch(Collections.singletonList("payload.bin"), out).get(0);
+			if(!r.ok)
+				throw new IOException(r.toString());
+			return r.transferred;
+		}
+	}
+
+	@Benchmark
+	public long multiStream() throws IOException {
+		SwarmDownloader.Result r = new SwarmDownloader(Collections.nCopies(streams, address), 256 << 10)
+				.download("payload.bin", new File(out, "payload.bin"));
+		return r.length;
+	}
+}
@@ -0,0 +1,157 @@
+package p2p;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to catalog a deep folder tree, and a check that subfolders are followed end to end.
+ * A tree of folders (fanout per level, depth levels) with small files in every folder is
+ * cataloged by a sequential recursive walk through File.listFiles (one array per folder, one
+ * stat per call) and by PeerCatalog.scan (the parallel TreeWalk), best of several rounds,
+ * cold for the first round only as far as the page cache allows. Then a DirectoryWatcher on the
+ * tree must pick up a folder created with files two levels down and drop it again when it is
+ * removed, and one of the files is received by TransferClient into an empty folder under its
+ * relative name.
+ * Usage: TreeScanBenchmark [fanout] [depth] [filesPerFolder] [rounds]
+ */
+public class TreeScanBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int fanout = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int depth = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int perFolder = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		File dir = BenchmarkFiles.tempDir("treescan");
+		File out = BenchmarkFiles.tempDir("treescan-out");
+		try {
+			long t0 = System.nanoTime();
+			int files = build(dir, depth, fanout, perFolder);
+			System.out.printf("%d files in a tree of fanout %d and depth %d, built in %.1f s%n", files, fanout, depth,
+					(System.nanoTime() - t0) / 1e9);
+
+			long sequential = Long.MAX_VALUE;
+			long parallel = Long.MAX_VALUE;
+			int listed = 0;
+			int cataloged = 0;
+			for(int i = 0; i < rounds; i++) {
+				TreeMap<String, PeerCatalog.Entry> found = new TreeMap<String, PeerCatalog.Entry>();
+				long start = System.nanoTime();
+				list(dir, "", found);
+				sequential = Math.min(sequential, System.nanoTime() - start);
+				listed = found.size();
+				PeerCatalog catalog = new PeerCatalog();
+				start = System.nanoTime();
+				catalog.scan(dir, DirectoryWatcher::isTemporary);
+				parallel = Math.min(parallel, System.nanoTime() - start);
+				cataloged = catalog.size();
+				if(!catalog.entries().equals(found))
+					throw new IOException("The walks disagree");
+			}
+			System.out.printf("sequential listFiles walk: %d files in %.0f ms%n", listed, sequential / 1e6);
+			System.out.printf("PeerCatalog.scan (TreeWalk): %d files in %.0f ms%n", cataloged, parallel / 1e6);
+
+			watch(dir);
+			fetch(dir, out);
+		} finally {
+			BenchmarkFiles.deleteTree(dir);
+			BenchmarkFiles.deleteTree(out);
+		}
+	}
+
+	// creates the tree; returns the number of files
+	private static int build(File dir, int depth, int fanout, int perFolder) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		byte[] data = new byte[128];
+		for(int i = 0; i < perFolder; i++)
+			try (FileOutputStream f = new FileOutputStream(new File(dir, "file-" + i + ".dat"))) {
+				Arrays.fill(data, (byte) i);
+				f.write(data, 0, 1 + i % data.length);
+			}
+		int n = perFolder;
+		if(depth > 0)
+			for(int i = 0; i < fanout; i++)
+				n += build(new File(dir, "dir-" + i), depth - 1, fanout, perFolder);
+		return n;
+	}
+
+	// the tree the plain way: one array per folder, a stat call per question
+	private static void list(File dir, String prefix, Map<String, PeerCatalog.Entry> found) {
+		File[] listed = dir.listFiles();
+		if(listed == null)
+			return;
+		for(File f : listed) {
+			if(f.isDirectory())
+				list(f, prefix + f.getName() + "/", found);
+			else if(f.isFile())
+				found.put(prefix + f.getName(), new PeerCatalog.Entry(f.length(), f.lastModified()));
+		}
+	}
+
+	private static void watch(File dir) throws Exception {
+		PeerCatalog catalog = new PeerCatalog();
+		final CountDownLatch[] change = { new CountDownLatch(1) };
+		try (DirectoryWatcher w = new DirectoryWatcher(dir, DirectoryWatcher.DEFAULT_DEBOUNCE_MS, catalog,
+				d -> change[0].countDown())) {
+			long t0 = System.nanoTime();
+			w.start();
+			System.out.printf("watcher started on %d files (%s) in %.0f ms%n", catalog.size(),
+					w.isWatching() ? "events" : "polling", (System.nanoTime() - t0) / 1e6);
+			File added = new File(dir, "new/inner");
+			if(!added.mkdirs())
+				throw new IOException("Cannot create " + added);
+			BenchmarkFiles.randomFile(added, "a.bin", 1000, 1);
+			BenchmarkFiles.randomFile(added, "b.bin", 2000, 2);
+			boolean seen = await(change, catalog, "new/inner/a.bin", true) && await(change, catalog, "new/inner/b.bin", true);
+			BenchmarkFiles.deleteTree(new File(dir, "new"));
+			boolean dropped = await(change, catalog, "new/inner/a.bin", false) && await(change, catalog, "new/inner/b.bin", false);
+			System.out.println("new folder picked up: " + seen + ", removed folder dropped: " + dropped);
+		}
+	}
+
+	// waits up to ten seconds for the catalog to hold (or not hold) a name
+	private static boolean await(CountDownLatch[] change, PeerCatalog catalog, String name, boolean held)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while(catalog.contains(name) != held) {
+			long left = deadline - System.nanoTime();
+			if(left <= 0)
+				return false;
+			change[0].await(Math.min(left, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
+			change[0] = new CountDownLatch(1);
+		}
+		return true;
+	}
+
+	private static void fetch(File dir, File out) throws IOException {
+		FileServer server = new FileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, () -> dir);
+		server.setVerbose(false);
+		server.start();
+		try (TransferClient client = new TransferClient(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), (byte) 0)) {
+			String name = "dir-1/dir-2/file-3.dat";
+			TransferClient.Result r = client.fetch(Collections.singletonList(name), out).get(0);
+			boolean same = r.ok && new File(out, name).length() == new File(dir, name).length();
+			boolean refused;
+			try {
+				client.fetch(Collections.singletonList("../escape.dat"), out);
+				refused = false;
+			} catch (IOException e) {
+				refused = true;
+			}
+			System.out.println("received under its relative name: " + same + ", name leaving the folder refused: " + refused);
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter of 64-bit keys, such as the hashes of file names (see CatalogSummary).
+ * A key that was added always tests positive; one that was not tests positive with about
+ * the false positive rate the filter was sized for. The bit positions of a key are derived
+ * from its two 32-bit halves (double hashing), so the keys should be well mixed already.
+ *
+ * Encoding: hashes(byte) words(varint) {word(long)}
+ */
+public class BloomFilter {
+	// Most bits a filter is given, whatever the number of keys
+	public static final int MAX_BITS = 1 << 30;
+
+	private final long[] words;
+	private final int hashes;
+	private final long bits;
+
+	private BloomFilter(long[] words, int hashes) {
+		this.words = words;
+		this.hashes = hashes;
+		this.bits = (long) words.length << 6;
+	}
+
+	/**
+	 * Empty filter sized for a number of keys
+	 * @param keys Keys expected
+	 * @param falsePositives False positive rate wanted once they are all added, such as 0.01
+	 */
+	public static BloomFilter forKeys(int keys, double falsePositives) {
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-Math.max(keys, 1) * Math.log(falsePositives) / (ln2 * ln2));
+		m = Math.max(64, Math.min(MAX_BITS, m));
+		int k = (int) Math.max(1, Math.min(16, Math.round((double) m / Math.max(keys, 1) * ln2)));
+		return new BloomFilter(new long[(int) ((m + 63) >>> 6)], k);
+	}
+
+	public void add(long key) {
+		int h1 = (int) key;
+		int h2 = (int) (key >>> 32);
+		for(int i = 0; i < hashes; i++) {
+			long bit = Integer.toUnsignedLong(h1 + i * h2) % bits;
+			words[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return false if the key was certainly not added
+	 */
+	public boolean mightContain(long key) {
+		int h1 = (int) key;
+		int h2 = (int) (key >>> 32);
+		for(int i = 0; i < hashes; i++) {
+			long bit = Integer.toUnsignedLong(h1 + i * h2) % bits;
+			if((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Getter for the encoded size
+	 * @return bytes, roughly
+	 */
+	public int size() {
+		return words.length * 8 + 6;
+	}
+
+	public void write(IndexProtocol.Writer w) {
+		w.writeByte(hashes).writeVarint(words.length);
+		for(long word : words)
+			w.writeLong(word);
+	}
+
+	public static BloomFilter read(ByteBuffer in) throws IOException {
+		int k = IndexProtocol.readByte(in);
+		int n = IndexProtocol.readVarint(in);
+		if(k <= 0 || n <= 0 || n > (MAX_BITS >>> 6) || in.remaining() < n * 8L)
+			throw new IOException("Malformed Bloom filter");
+		long[] words = new long[n];
+		for(int i = 0; i < n; i++)
+			words[i] = in.getLong();
+		return new BloomFilter(words, k);
+	}
+}
@@ -0,0 +1,116 @@
+package p2p;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Compact summaries of one version of a PeerCatalog.
+ * The Bloom filter of the names tells whether the peer may hold a file without asking for its
+ * catalog (about one byte per file at a 1% false positive rate). The invertible Bloom lookup
+ * table of the files lets two catalogs be compared by exchanging tables whose size follows
+ * the number of files that differ, not the size of the catalogs (see InvertibleBloomFilter).
+ * A file is keyed by its name, size and CRC32, so a file edited without changing its size is a
+ * difference like any other; the modification time is left out as it differs between copies.
+ * A file not hashed yet differs from every hashed copy until its CRC is cataloged.
+ * Summaries are built on first use and kept until the catalog changes (see PeerCatalog.summary).
+ */
+public final class CatalogSummary {
+	// False positive rate of the name filters
+	public static final double FALSE_POSITIVES = 0.01;
+
+	private final long seq;
+	private final String[] names;
+	private final PeerCatalog.Entry[] entries;
+	// Key of every file, at the same position as its name
+	private final long[] keys;
+	private BloomFilter filter;
+	// Last lookup table built, reused while the same number of cells is asked for
+	private InvertibleBloomFilter table;
+
+	CatalogSummary(long seq, SortedMap<String, PeerCatalog.Entry> files) {
+		this.seq = seq;
+		int n = files.size();
+		names = new String[n];
+		entries = new PeerCatalog.Entry[n];
+		keys = new long[n];
+		int i = 0;
+		for(Map.Entry<String, PeerCatalog.Entry> e : files.entrySet()) {
+			names[i] = e.getKey();
+			entries[i] = e.getValue();
+			keys[i] = key(e.getKey(), e.getValue().size, e.getValue().crc);
+			i++;
+		}
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Key of a file name in the name filters
+	 * @return 64-bit hash of the name
+	 */
+	public static long nameKey(String name) {
+		//FNV-1a over the characters, mixed so that every bit depends on all of them
+		long h = 0xCBF29CE484222325L;
+		for(int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return InvertibleBloomFilter.mix(h);
+	}
+
+	/**
+	 * Key of a file in the lookup tables
+	 * @return 64-bit hash of name, size and CRC
+	 */
+	public static long key(String name, long size, long crc) {
+		long content = InvertibleBloomFilter.mix(size + 0x9E3779B97F4A7C15L) ^ InvertibleBloomFilter.mix(crc ^ 0xC2B2AE3D27D4EB4FL);
+		return InvertibleBloomFilter.mix(nameKey(name) ^ InvertibleBloomFilter.mix(content));
+	}
+
+	/**
+	 * Getter for the Bloom filter of the names
+	 * @return filter, shared: not to be changed
+	 */
+	public synchronized BloomFilter filter() {
+		if(filter == null) {
+			filter = BloomFilter.forKeys(names.length, FALSE_POSITIVES);
+			for(String name : names)
+				filter.add(nameKey(name));
+		}
+		return filter;
+	}
+
+	/**
+	 * Lookup table of the files
+	 * @param cells Number of cells, about twice the number of differences it has to tell
+	 * @return a table of its own for the caller
+	 */
+	public synchronized InvertibleBloomFilter table(int cells) {
+		if(table == null || table.cells() != InvertibleBloomFilter.round(cells)) {
+			table = new InvertibleBloomFilter(cells);
+			for(long key : keys)
+				table.add(key);
+		}
+		return table.copy();
+	}
+
+	/**
+	 * Files with the given keys
+	 * @param wanted Keys, as decoded from a lookup table
+	 * @return the files of this catalog among them, by name
+	 */
+	public SortedMap<String, PeerCatalog.Entry> entries(Collection<Long> wanted) {
+		Set<Long> set = new HashSet<Long>(wanted);
+		TreeMap<String, PeerCatalog.Entry> found = new TreeMap<String, PeerCatalog.Entry>();
+		for(int i = 0; i < keys.length && found.size() < set.size(); i++)
+			if(set.contains(keys[i]))
+				found.put(names[i], entries[i]);
+		return found;
+	}
+}
@@ -0,0 +1,810 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Node of a Chord ring that spreads the file index over all peers.
+ * Nodes and keys (file names or content hashes) are hashed onto a 64-bit ring; every key
+ * is stored on its successor, the first node at or after it. Each node keeps a finger
+ * table (successor of id + 2^i) and a short successor list, so a lookup is resolved in
+ * O(log n) hops. Joining nodes take over their share of keys from their successor and link
+ * themselves between it and its predecessor at once, so keys stored right after a join are
+ * placed on their owner; leaving nodes hand all their keys to the successor. Ring pointers are
+ * repaired by periodic stabilization, so crashed nodes are routed around as well.
+ * A p2pNode given a ring port keeps the holders of each of its file names here, keyed by name.
+ *
+ * RPC: every request is op(byte) args, answered on the same TCP connection.
+ */
+public class ChordNode {
+	// Number of bits of the identifier space
+	private static final int BITS = 64;
+	// Length of the successor list
+	private static final int SUCCESSORS = 4;
+	// Fingers refreshed per maintenance round
+	private static final int FINGERS_PER_ROUND = 8;
+	// Network timeouts in milliseconds
+	private static final int CONNECT_TIMEOUT = 500;
+	private static final int READ_TIMEOUT = 2000;
+	// Attempts to reach the owner of a key before giving up when owners fail
+	private static final int LOOKUP_ATTEMPTS = 3;
+
+	private static final byte NEXT_HOP = 1;
+	private static final byte GET_PREDECESSOR = 2;
+	private static final byte GET_SUCCESSORS = 3;
+	private static final byte NOTIFY = 4;
+	private static final byte PING = 5;
+	private static final byte PUT = 6;
+	private static final byte GET = 7;
+	private static final byte REMOVE = 8;
+	private static final byte HANDOFF = 9;
+	private static final byte STORE_ALL = 10;
+	private static final byte SET_PREDECESSOR = 11;
+	private static final byte SET_SUCCESSOR = 12;
+
+	private static final byte DONE = 1;
+	private static final byte NEXT = 2;
+
+	/**
+	 * Identifier and address of a node on the ring
+	 */
+	public static final class NodeRef {
+		public final long id;
+		public final InetSocketAddress address;
+
+		public NodeRef(long id, InetSocketAddress address) {
+			this.id = id;
+			this.address = address;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeLong(id);
+			out.writeUTF(address.getHostString());
+			out.writeShort(address.getPort());
+		}
+
+		static NodeRef read(DataInputStream in) throws IOException {
+			long id = in.readLong();
+			String host = in.readUTF();
+			return new NodeRef(id, new InetSocketAddress(host, in.readUnsignedShort()));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof NodeRef && ((NodeRef) o).id == id && ((NodeRef) o).address.equals(address);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(id);
+		}
+
+		@Override
+		public String toString() {
+			return Long.toHexString(id) + "@" + address.getHostString() + ":" + address.getPort();
+		}
+	}
+
+	/**
+	 * Node responsible for a key and the number of hops it took to find it
+	 */
+	public static final class Lookup {
+		public final NodeRef owner;
+		public final int hops;
+
+		Lookup(NodeRef owner, int hops) {
+			this.owner = owner;
+			this.hops = hops;
+		}
+	}
+
+	// This node
+	private final NodeRef self;
+	// Keys stored on this node: key id -> (key -> values)
+	private final ConcurrentSkipListMap<Long, Map<String, Set<String>>> store =
+			new ConcurrentSkipListMap<Long, Map<String, Set<String>>>(Long::compareUnsigned);
+	// finger[i] = successor(self.id + 2^i)
+	private final AtomicReferenceArray<NodeRef> fingers = new AtomicReferenceArray<NodeRef>(BITS);
+	// Next finger to refresh
+	private int nextFinger;
+	// Immediate successors, closest first
+	private volatile List<NodeRef> successors;
+	private volatile NodeRef predecessor;
+	// Cached connections to other nodes
+	private final ConcurrentHashMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<InetSocketAddress, Connection>();
+	private final ServerSocket server;
+	private final ScheduledExecutorService maintenance;
+	private final long maintenanceInterval;
+	private volatile boolean on;
+
+	/**
+	 * Constructor for a node listening on the given address
+	 * @param bindAddress Address to listen on (port 0 picks a free port)
+	 * @param maintenanceInterval Milliseconds between stabilization rounds, 0 to run them only through maintain()
+	 * @throws IOException if the address cannot be bound
+	 */
+	public ChordNode(InetSocketAddress bindAddress, long maintenanceInterval) throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(bindAddress);
+		InetSocketAddress address = new InetSocketAddress(server.getInetAddress().getHostAddress(), server.getLocalPort());
+		self = new NodeRef(hash(address.getHostString() + ":" + address.getPort()), address);
+		successors = Collections.singletonList(self);
+		this.maintenanceInterval = maintenanceInterval;
+		maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Chord-maintenance-" + address.getPort());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Position of a key on the ring (first 8 bytes of its SHA-1)
+	 * @param key Key to place
+	 * @return identifier of the key
+	 */
+	public static long hash(String key) {
+		try {
+			byte[] d = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			long v = 0;
+			for(int i = 0; i < 8; i++)
+				v = (v << 8) | (d[i] & 0xFF);
+			return v;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Getter for this node's identifier and address
+	 * @return reference to this node
+	 */
+	public NodeRef getSelf() {
+		return self;
+	}
+
+	/**
+	 * Getter for the closest successor
+	 * @return successor, this node if it is alone on the ring
+	 */
+	public NodeRef getSuccessor() {
+		return successors.get(0);
+	}
+
+	/**
+	 * Getter for the predecessor
+	 * @return predecessor, or null if not known yet
+	 */
+	public NodeRef getPredecessor() {
+		return predecessor;
+	}
+
+	/**
+	 * Getter for the number of keys stored on this node
+	 * @return stored keys
+	 */
+	public int getKeyCount() {
+		int n = 0;
+		for(Map<String, Set<String>> m : store.values())
+			n += m.size();
+		return n;
+	}
+
+	/**
+	 * Starts serving RPCs and, if an interval was given, periodic stabilization.
+	 * A started node forms a ring of its own until join() is called.
+	 */
+	public void start() {
+		on = true;
+		Thread acceptor = new Thread(this::acceptLoop, "Chord-" + self.address.getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		if(maintenanceInterval > 0)
+			maintenance.scheduleWithFixedDelay(this::maintain, maintenanceInterval, maintenanceInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Joins the ring that bootstrap belongs to and takes over this node's share of keys
+	 * @param bootstrap Address of any node on the ring
+	 * @throws IOException if the ring cannot be reached
+	 */
+	public void join(InetSocketAddress bootstrap) throws IOException {
+		NodeRef via = new NodeRef(0, bootstrap);
+		NodeRef succ = lookupFrom(via, self.id, new HashSet<Long>()).owner;
+		successors = Collections.singletonList(succ);
+		//keys in (predecessor, self] now belong to this node, and the predecessor links to it
+		NodeRef pred = call(succ, out -> {
+			out.writeByte(HANDOFF);
+			self.write(out);
+		}, in -> {
+			NodeRef p = in.readBoolean() ? NodeRef.read(in) : null;
+			readEntries(in);
+			return p;
+		});
+		predecessor = pred != null ? pred : succ;
+		if(pred != null && !pred.equals(succ))
+			call(pred, out -> {
+				out.writeByte(SET_SUCCESSOR);
+				self.write(out);
+			}, in -> in.readByte());
+	}
+
+	/**
+	 * Leaves the ring gracefully: all keys go to the successor and the neighbours are linked
+	 */
+	public void leave() {
+		NodeRef succ = getSuccessor();
+		NodeRef pred = predecessor;
+		if(!succ.equals(self)) {
+			try {
+				call(succ, out -> {
+					out.writeByte(STORE_ALL);
+					writeEntries(out, store);
+					out.writeByte(SET_PREDECESSOR);
+					out.writeBoolean(pred != null);
+					if(pred != null)
+						pred.write(out);
+				}, in -> {
+					in.readByte();
+					return in.readByte();
+				});
+				store.clear();
+				if(pred != null && !pred.equals(self))
+					call(pred, out -> {
+						out.writeByte(SET_SUCCESSOR);
+						succ.write(out);
+					}, in -> in.readByte());
+			} catch (IOException e) {
+				System.out.println("\t" + e.getMessage() + ": Chord Leave");
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Stops the node without telling the ring (as if it crashed)
+	 */
+	public void close() {
+		on = false;
+		maintenance.shutdownNow();
+		try {
+			server.close();
+		} catch (IOException e) {
+			//already closed
+		}
+		for(Connection c : connections.values())
+			c.close();
+		connections.clear();
+	}
+
+	/**
+	 * Finds the node responsible for a key
+	 * @param key Key to look up
+	 * @return owner of the key and the number of hops taken
+	 * @throws IOException if the ring cannot be reached
+	 */
+	public Lookup lookup(String key) throws IOException {
+		return lookupId(hash(key));
+	}
+
+	/**
+	 * Adds a value (for example a peer address) to a key
+	 * @param key Key such as a file name
+	 * @param value Value to add
+	 * @return number of hops to the owner
+	 * @throws IOException if the ring cannot be reached
+	 */
+	public int put(String key, String value) throws IOException {
+		return invoke(key, out -> {
+			out.writeByte(PUT);
+			out.writeUTF(key);
+			out.writeUTF(value);
+		}, in -> in.readByte()).hops;
+	}
+
+	/**
+	 * Removes a value from a key
+	 * @param key Key such as a file name
+	 * @param value Value to remove
+	 * @throws IOException if the ring cannot be reached
+	 */
+	public void remove(String key, String value) throws IOException {
+		invoke(key, out -> {
+			out.writeByte(REMOVE);
+			out.writeUTF(key);
+			out.writeUTF(value);
+		}, in -> in.readByte());
+	}
+
+	/**
+	 * Values stored under a key
+	 * @param key Key such as a file name
+	 * @return values of the key, empty if none
+	 * @throws IOException if the ring cannot be reached
+	 */
+	public Set<String> get(String key) throws IOException {
+		Set<String> values = new HashSet<String>();
+		invoke(key, out -> {
+			out.writeByte(GET);
+			out.writeUTF(key);
+		}, in -> {
+			int n = in.readInt();
+			for(int i = 0; i < n; i++)
+				values.add(in.readUTF());
+			return null;
+		});
+		return values;
+	}
+
+	/**
+	 * One round of ring maintenance: stabilize the successor, check the predecessor
+	 * and refresh some fingers. Runs periodically after start() or can be driven directly.
+	 */
+	public void maintain() {
+		if(!on)
+			return;
+		stabilize();
+		checkPredecessor();
+		fixFingers();
+	}
+
+	// looks up the owner of key and sends it a request; an owner that turns out
+	// to be dead is avoided and the lookup repeated
+	private <T> Lookup invoke(String key, Request request, Response<T> response) throws IOException {
+		long id = hash(key);
+		Set<Long> avoid = new HashSet<Long>();
+		IOException last = null;
+		for(int attempt = 0; attempt < LOOKUP_ATTEMPTS; attempt++) {
+			Lookup l = lookupFrom(self, id, avoid);
+			try {
+				call(l.owner, request, response);
+				return l;
+			} catch (IOException e) {
+				last = e;
+				avoid.add(l.owner.id);
+				forget(l.owner);
+			}
+		}
+		throw last;
+	}
+
+	// iterative lookup starting at this node
+	private Lookup lookupId(long id) throws IOException {
+		return lookupFrom(self, id, new HashSet<Long>());
+	}
+
+	// iterative lookup; nodes that fail on the way are added to avoid and the
+	// previous node is asked for an alternative route
+	private Lookup lookupFrom(NodeRef start, long id, Set<Long> avoid) throws IOException {
+		ArrayDeque<NodeRef> path = new ArrayDeque<NodeRef>();
+		NodeRef n = start;
+		int hops = 0;
+		for(int guard = 0; guard < 2 * BITS + SUCCESSORS; guard++) {
+			NodeRef[] step = new NodeRef[1];
+			byte kind;
+			if(n.equals(self)) {
+				kind = nextHop(id, step, avoid);
+			}
+			else {
+				hops++;
+				try {
+					kind = call(n, out -> {
+						out.writeByte(NEXT_HOP);
+						out.writeLong(id);
+						out.writeInt(avoid.size());
+						for(long a : avoid)
+							out.writeLong(a);
+					}, in -> {
+						byte k = in.readByte();
+						step[0] = NodeRef.read(in);
+						return k;
+					});
+				} catch (IOException e) {
+					if(path.isEmpty())
+						throw e;
+					avoid.add(n.id);
+					forget(n);
+					n = path.pop();
+					continue;
+				}
+			}
+			if(kind == DONE)
+				return new Lookup(step[0], hops);
+			path.push(n);
+			n = step[0];
+		}
+		throw new IOException("Lookup of " + Long.toHexString(id) + " did not converge");
+	}
+
+	// one routing step on this node: DONE with the owner, or NEXT with a closer node
+	private byte nextHop(long id, NodeRef[] result, Set<Long> avoid) {
+		NodeRef succ = self;
+		for(NodeRef r : successors)
+			if(!avoid.contains(r.id)) {
+				succ = r;
+				break;
+			}
+		if(succ.equals(self) || between(id, self.id, succ.id)) {
+			result[0] = succ;
+			return DONE;
+		}
+		NodeRef next = closestPreceding(id, avoid);
+		if(next.equals(self)) {
+			result[0] = succ;
+			return DONE;
+		}
+		result[0] = next;
+		return NEXT;
+	}
+
+	private NodeRef closestPreceding(long id, Set<Long> avoid) {
+		for(int i = BITS - 1; i >= 0; i--) {
+			NodeRef f = fingers.get(i);
+			if(f != null && f.id != id && between(f.id, self.id, id) && !avoid.contains(f.id))
+				return f;
+		}
+		List<NodeRef> succ = successors;
+		for(int i = succ.size() - 1; i >= 0; i--)
+			if(succ.get(i).id != id && between(succ.get(i).id, self.id, id) && !avoid.contains(succ.get(i).id))
+				return succ.get(i);
+		return self;
+	}
+
+	// drops a node that failed to answer from the fingers and the successor list
+	private void forget(NodeRef dead) {
+		for(int i = 0; i < BITS; i++)
+			fingers.compareAndSet(i, dead, null);
+		List<NodeRef> list = successors;
+		if(list.contains(dead)) {
+			List<NodeRef> updated = new ArrayList<NodeRef>(list);
+			updated.remove(dead);
+			successors = updated.isEmpty() ? Collections.singletonList(self) : updated;
+		}
+	}
+
+	private void stabilize() {
+		List<NodeRef> list = successors;
+		for(int i = 0; i < list.size(); i++) {
+			NodeRef succ = list.get(i);
+			try {
+				if(succ.equals(self)) {
+					//alone, or successor unknown: adopt the predecessor if one appeared
+					NodeRef p = predecessor;
+					if(p != null && !p.equals(self))
+						successors = Collections.singletonList(p);
+					return;
+				}
+				NodeRef x = call(succ, out -> out.writeByte(GET_PREDECESSOR), in -> in.readBoolean() ? NodeRef.read(in) : null);
+				if(x != null && !x.equals(self) && between(x.id, self.id, succ.id) && x.id != succ.id && ping(x))
+					succ = x;
+				final NodeRef s = succ;
+				List<NodeRef> tail = call(s, out -> {
+					out.writeByte(NOTIFY);
+					self.write(out);
+					out.writeByte(GET_SUCCESSORS);
+				}, in -> {
+					in.readByte();
+					int n = in.readInt();
+					List<NodeRef> l = new ArrayList<NodeRef>();
+					for(int k = 0; k < n; k++)
+						l.add(NodeRef.read(in));
+					return l;
+				});
+				List<NodeRef> updated = new ArrayList<NodeRef>();
+				updated.add(s);
+				for(NodeRef r : tail)
+					if(updated.size() < SUCCESSORS && !r.equals(self) && !updated.contains(r))
+						updated.add(r);
+				successors = updated;
+				return;
+			} catch (IOException e) {
+				//successor is gone: try the next one in the list
+			}
+		}
+		successors = Collections.singletonList(self);
+	}
+
+	private void checkPredecessor() {
+		NodeRef p = predecessor;
+		if(p != null && !p.equals(self) && !ping(p))
+			predecessor = null;
+	}
+
+	private void fixFingers() {
+		for(int k = 0; k < FINGERS_PER_ROUND; k++) {
+			int i = nextFinger;
+			nextFinger = (nextFinger + 1) % BITS;
+			try {
+				fingers.set(i, lookupId(self.id + (1L << i)).owner);
+			} catch (IOException e) {
+				fingers.set(i, null);
+			}
+		}
+	}
+
+	private boolean ping(NodeRef n) {
+		try {
+			call(n, out -> out.writeByte(PING), in -> in.readByte());
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// true if x lies in the ring interval (a, b]
+	static boolean between(long x, long a, long b) {
+		if(Long.compareUnsigned(a, b) < 0)
+			return Long.compareUnsigned(x, a) > 0 && Long.compareUnsigned(x, b) <= 0;
+		return Long.compareUnsigned(x, a) > 0 || Long.compareUnsigned(x, b) <= 0;
+	}
+
+	// ---------------------------------------------------------------- server side
+
+	private void acceptLoop() {
+		while(on) {
+			try {
+				Socket s = server.accept();
+				Thread t = new Thread(() -> serve(s), "Chord-" + self.address.getPort() + "-conn");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if(on)
+					System.out.println("\t" + e.getMessage() + ": Chord Listener");
+			}
+		}
+	}
+
+	private void serve(Socket s) {
+		try (Socket sock = s) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			while(on) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+				handle(op, in, out);
+				if(in.available() == 0)
+					out.flush();
+			}
+		} catch (IOException e) {
+			//peer went away
+		}
+	}
+
+	private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+		switch(op) {
+		case NEXT_HOP: {
+			NodeRef[] result = new NodeRef[1];
+			long id = in.readLong();
+			int n = in.readInt();
+			Set<Long> avoid = n == 0 ? Collections.<Long>emptySet() : new HashSet<Long>();
+			for(int i = 0; i < n; i++)
+				avoid.add(in.readLong());
+			out.writeByte(nextHop(id, result, avoid));
+			result[0].write(out);
+			break;
+		}
+		case GET_PREDECESSOR: {
+			NodeRef p = predecessor;
+			out.writeBoolean(p != null);
+			if(p != null)
+				p.write(out);
+			break;
+		}
+		case GET_SUCCESSORS: {
+			List<NodeRef> list = successors;
+			out.writeInt(list.size());
+			for(NodeRef r : list)
+				r.write(out);
+			break;
+		}
+		case NOTIFY: {
+			NodeRef n = NodeRef.read(in);
+			NodeRef p = predecessor;
+			if(p == null || p.equals(self) || (between(n.id, p.id, self.id) && n.id != self.id))
+				predecessor = n;
+			out.writeByte(DONE);
+			break;
+		}
+		case PING:
+			out.writeByte(DONE);
+			break;
+		case PUT: {
+			String key = in.readUTF();
+			String value = in.readUTF();
+			store.computeIfAbsent(hash(key), k -> new ConcurrentHashMap<String, Set<String>>())
+				.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(value);
+			out.writeByte(DONE);
+			break;
+		}
+		case GET: {
+			String key = in.readUTF();
+			Map<String, Set<String>> m = store.get(hash(key));
+			Set<String> values = m == null ? null : m.get(key);
+			if(values == null)
+				values = Collections.emptySet();
+			List<String> copy = new ArrayList<String>(values);
+			out.writeInt(copy.size());
+			for(String v : copy)
+				out.writeUTF(v);
+			break;
+		}
+		case REMOVE: {
+			String key = in.readUTF();
+			String value = in.readUTF();
+			Map<String, Set<String>> m = store.get(hash(key));
+			if(m != null && m.containsKey(key)) {
+				Set<String> values = m.get(key);
+				values.remove(value);
+				if(values.isEmpty())
+					m.remove(key);
+			}
+			out.writeByte(DONE);
+			break;
+		}
+		case HANDOFF: {
+			//a new predecessor joined: it owns every key outside (newcomer, self], and is told the old predecessor
+			NodeRef n = NodeRef.read(in);
+			Map<Long, Map<String, Set<String>>> moved = new ConcurrentSkipListMap<Long, Map<String, Set<String>>>(Long::compareUnsigned);
+			for(Map.Entry<Long, Map<String, Set<String>>> e : store.entrySet())
+				if(!between(e.getKey(), n.id, self.id))
+					moved.put(e.getKey(), e.getValue());
+			NodeRef p = predecessor;
+			predecessor = n;
+			//alone until now: the newcomer is the successor as well
+			if(getSuccessor().equals(self))
+				successors = Collections.singletonList(n);
+			out.writeBoolean(p != null && !p.equals(self));
+			if(p != null && !p.equals(self))
+				p.write(out);
+			writeEntries(out, moved);
+			for(Long k : moved.keySet())
+				store.remove(k);
+			break;
+		}
+		case STORE_ALL:
+			readEntries(in);
+			out.writeByte(DONE);
+			break;
+		case SET_PREDECESSOR:
+			predecessor = in.readBoolean() ? NodeRef.read(in) : null;
+			out.writeByte(DONE);
+			break;
+		case SET_SUCCESSOR: {
+			NodeRef n = NodeRef.read(in);
+			List<NodeRef> updated = new ArrayList<NodeRef>();
+			updated.add(n);
+			for(NodeRef r : successors)
+				if(updated.size() < SUCCESSORS && !r.equals(n) && !r.equals(self) && Long.compareUnsigned(r.id - self.id, n.id - self.id) > 0)
+					updated.add(r);
+			successors = updated;
+			out.writeByte(DONE);
+			break;
+		}
+		default:
+			throw new IOException("Unknown Chord request " + op);
+		}
+	}
+
+	private static void writeEntries(DataOutputStream out, Map<Long, Map<String, Set<String>>> entries) throws IOException {
+		//snapshot first, the count has to match what follows
+		List<String> keys = new ArrayList<String>();
+		List<List<String>> values = new ArrayList<List<String>>();
+		for(Map<String, Set<String>> m : entries.values())
+			for(Map.Entry<String, Set<String>> e : m.entrySet()) {
+				keys.add(e.getKey());
+				values.add(new ArrayList<String>(e.getValue()));
+			}
+		out.writeInt(keys.size());
+		for(int i = 0; i < keys.size(); i++) {
+			out.writeUTF(keys.get(i));
+			out.writeInt(values.get(i).size());
+			for(String v : values.get(i))
+				out.writeUTF(v);
+		}
+	}
+
+	private void readEntries(DataInputStream in) throws IOException {
+		int keys = in.readInt();
+		for(int i = 0; i < keys; i++) {
+			String key = in.readUTF();
+			int n = in.readInt();
+			Set<String> values = store.computeIfAbsent(hash(key), k -> new ConcurrentHashMap<String, Set<String>>())
+					.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+			for(int k = 0; k < n; k++)
+				values.add(in.readUTF());
+		}
+	}
+
+	// ---------------------------------------------------------------- client side
+
+	private interface Request {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private interface Response<T> {
+		T read(DataInputStream in) throws IOException;
+	}
+
+	// one request/response exchange with another node over a cached connection
+	private <T> T call(NodeRef n, Request request, Response<T> response) throws IOException {
+		for(int attempt = 0; ; attempt++) {
+			Connection c = connections.get(n.address);
+			if(c == null) {
+				c = new Connection(n.address);
+				Connection raced = connections.putIfAbsent(n.address, c);
+				if(raced != null) {
+					c.close();
+					c = raced;
+				}
+			}
+			try {
+				synchronized(c) {
+					request.write(c.out);
+					c.out.flush();
+					return response.read(c.in);
+				}
+			} catch (IOException e) {
+				connections.remove(n.address, c);
+				c.close();
+				//a cached connection may have gone stale, retry once on a fresh one
+				if(attempt > 0)
+					throw e;
+			}
+		}
+	}
+
+	private static final class Connection {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Connection(InetSocketAddress address) throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(address, CONNECT_TIMEOUT);
+				socket.setSoTimeout(READ_TIMEOUT);
+				socket.setTcpNoDelay(true);
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+	}
+}
@@ -1,178 +1,1174 @@
 package p2p;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
 
 /**
  * Distributed Hash Table (DHT) class for the p2p network term project.
  * This class creates a hash table (key, value) for the users and their files.
  * The thread interfaced is used here in order to create a hash table for each user.
+ * The server runs one event loop on a Selector: the UDP channel (registration and
+ * unregistration) and the TCP channel (queries) stay open for the whole lifetime of the
+ * server, and any number of queries are served at once without blocking on a peer.
+ *
+ * Messages are IndexProtocol frames. Datagrams carry REGISTER (answered with REGISTERED),
+ * UNREGISTER and DISCOVER; a TCP connection carries request frames of any type, one at a
+ * time, each answered with one response frame, until the client closes it.
+ *
+ * The server can be one of several replicas of the index (see replicate and IndexReplicator):
+ * then only the leader serves peers, the others answer NOT_LEADER, and every change of the
+ * table is answered once the replicas committed it.
+ *
+ * A registration is a lease: REGISTER, UPDATE and RENEW extend it by the lease time, and a
+ * peer that lets it run out is removed as if it had sent UNREGISTER (through the log when
+ * replicated). Leases are kept in a TimerWheel by the server that answers peers only; a new
+ * leader grants every listed peer a fresh lease. Queries never list a peer whose lease ran
+ * out, even before the wheel got to remove it.
+ *
+ * Given a folder (see persist), the table outlives the server: every change is logged and
+ * answered once it is on disk (see IndexStore), and a server started on the same folder
+ * serves the restored table at once. Its peers keep their registration, and a lease to renew.
+ *
+ * Given a Metrics, the server records the time it takes to answer each type of request.
  * @author kyle nakano & Daehee Kang
  *
  */
 public class DHT extends Thread {
-	private static final String registered = "REGISTERED";
-	private static final String retrieve = "RETRIEVE";
-	private static final String unregister = "UNREGISTER";
-	// DHT for the IP address of peer and string (list of files)
-	private Hashtable<InetAddress, String> dht;
-	// Datagram socket to create port to send packets between peers
-	private DatagramSocket ds;
+	// Maximum number of names answered to a prefix query
+	public static final int PREFIX_LIMIT = 1000;
 	// Default port for sockets to establish connection
-	private int port = 57264;
+	public static final int DEFAULT_PORT = 57264;
+	// Milliseconds a TCP connection may stay idle before it is dropped
+	private static final long IDLE_TIMEOUT = 10000;
+	// Names in one RETRIEVE page when the client asks for more (or for none)
+	public static final int MAX_PAGE = 4096;
+	// Milliseconds a registration lasts unless the peer renews it
+	public static final long DEFAULT_LEASE = 30000;
+	// Resolution of lease expiry
+	private static final long LEASE_TICK = 100;
+	// Departed peers remembered for conditional RETRIEVE; older versions get the whole table
+	private static final int MAX_TOMBSTONES = 4096;
+	// DHT for the IP address of peer and its catalog of files
+	private Hashtable<InetAddress, PeerCatalog> dht;
+	// Inverted index from file name to the peers holding it
+	private FileIndex<InetAddress> index;
+	// Table version: the epoch is new for every server, the version counts changes
+	private final long epoch = new SecureRandom().nextLong();
+	private long version;
+	// Version of the last change of each peer
+	private final HashMap<InetAddress, Long> changed = new HashMap<InetAddress, Long>();
+	// Version at which departed peers left, oldest first
+	private final LinkedHashMap<InetAddress, Long> tombstones = new LinkedHashMap<InetAddress, Long>();
+	// Changes up to this version can no longer be told apart: older tags get the whole table
+	private long horizon;
+	// Address the channels are bound to
+	private final InetSocketAddress bindAddress;
+	// Event loop and the channels it serves
+	private volatile Selector selector;
+	private DatagramChannel udp;
+	private ServerSocketChannel tcp;
+	// Released once the channels are bound (or binding failed)
+	private final CountDownLatch bound = new CountDownLatch(1);
+	// Replication settings (standbys < 0: not replicated) and the replicator, once bound
+	private InetAddress advertise;
+	private int standbys = -1;
+	private InetSocketAddress seed;
+	private volatile IndexReplicator replicator;
+	// Lease time, and the lease deadlines of the peers while this server answers them
+	private long lease = DEFAULT_LEASE;
+	private volatile TimerWheel<InetAddress> leases;
+	// Snapshot and log the table is kept in, null if it lives in memory only
+	private volatile IndexStore store;
+	// Answers to changes committed after their request was read, sent by the event loop
+	private final ConcurrentLinkedQueue<Reply> replies = new ConcurrentLinkedQueue<Reply>();
 	// Boolean for the server thread
-	private boolean on;
+	private volatile boolean on = true;
+	// Where service times and failures are recorded, null for nowhere
+	private volatile Metrics metrics;
 	
 	/**
 	 * Constructor to instantiate the hash table
 	 */
 	public DHT(){
-		dht = new Hashtable<InetAddress, String>();
+		this(new InetSocketAddress(DEFAULT_PORT));
+	}
+
+	/**
+	 * Constructor for a server bound to the given address (port 0 picks a free port)
+	 * @param bindAddress Address of the UDP and TCP channels
+	 */
+	public DHT(InetSocketAddress bindAddress) {
+		super("DHT-" + bindAddress.getPort());
+		setDaemon(true);
+		this.bindAddress = bindAddress;
+		dht = new Hashtable<InetAddress, PeerCatalog>();
+		index = new FileIndex<InetAddress>();
+	}
+
+	/**
+	 * Makes this server a replica of the index; to be called before start()
+	 * @param advertise Address the other replicas and the peers reach this server at
+	 * @param standbys Number of standby replicas the leader keeps besides itself
+	 * @param leader Replica to join as a standby, null to start as the first replica
+	 */
+	public void replicate(InetAddress advertise, int standbys, InetSocketAddress leader) {
+		this.advertise = advertise;
+		this.standbys = standbys;
+		this.seed = leader;
+	}
+
+	/**
+	 * Sets the time a registration lasts unless renewed; to be called before start()
+	 * @param ms Lease time in milliseconds
+	 */
+	public void setLease(long ms) {
+		if(ms < LEASE_TICK)
+			throw new IllegalArgumentException("lease shorter than " + LEASE_TICK + " ms: " + ms);
+		lease = ms;
+	}
+
+	/**
+	 * Restores the table kept in a folder and keeps every change there from now on; to be called before start()
+	 * @param dir Folder of the snapshot and the log, created if it does not exist
+	 * @throws IOException if the folder cannot be written or does not hold a table
+	 */
+	public void persist(File dir) throws IOException {
+		if(store != null)
+			throw new IllegalStateException("Table already kept in " + store.getDir());
+		//restored before the changes are logged, so the restored ones are not logged again
+		store = IndexStore.open(dir, this);
+	}
+
+	/**
+	 * Getter for the store of the table
+	 * @return store, null if the table lives in memory only
+	 */
+	public IndexStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Records the service time of every request and the failures of the server from now on
+	 * @param metrics Metrics to record into, null to stop recording
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public long getLease() {
+		return lease;
+	}
+
+	/**
+	 * Getter for the replicator
+	 * @return replicator, null if the server is not replicated or not bound yet
+	 */
+	public IndexReplicator getReplicator() {
+		return replicator;
+	}
+
+	/**
+	 * True if this server answers peers: it runs and, if replicated, leads the replicas
+	 */
+	public boolean isLeader() {
+		IndexReplicator r = replicator;
+		return on && isAlive() && (standbys < 0 || (r != null && r.isLeader()));
+	}
+
+	/**
+	 * Getter for the port the server listens on, waiting until the channels are bound
+	 * @return local port, or -1 if the channels could not be bound
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int getLocalPort() throws InterruptedException {
+		bound.await();
+		return tcp == null || !tcp.isOpen() ? -1 : tcp.socket().getLocalPort();
 	}
 
 	/**
 	 * Getter for the hash table
 	 * @return hash table
 	 */
-	public Hashtable<InetAddress, String> getDht() {
+	public Hashtable<InetAddress, PeerCatalog> getDht() {
 		return dht;
 	}
 
 	/**
-	 * Get method to get the string of files for a peer
+	 * Get method to get the files of a peer
 	 * @param ip Parameter for the IP address of the peer
-	 * @return Files for specified peer
+	 * @return Files for specified peer, null if the peer is not registered
+	 */
+	public List<String> getFiles(InetAddress ip) {
+		PeerCatalog catalog = dht.get(ip);
+		return catalog == null || !live(ip, System.currentTimeMillis()) ? null : catalog.names();
+	}
+
+	/**
+	 * @return true if the peer is registered and its lease has not run out
+	 */
+	public boolean isRegistered(InetAddress ip) {
+		return dht.containsKey(ip) && live(ip, System.currentTimeMillis());
+	}
+
+	/**
+	 * Bloom filters of the names the peers hold
+	 * @return filters of the peers whose lease has not run out
+	 */
+	public synchronized Map<InetAddress, BloomFilter> filters() {
+		return filters(IndexProtocol.Tag.NONE);
+	}
+
+	// filters of the live peers that changed after the tag, of all of them if it is not recent enough (see full)
+	private Map<InetAddress, BloomFilter> filters(IndexProtocol.Tag since) {
+		boolean full = full(since);
+		long now = System.currentTimeMillis();
+		Map<InetAddress, BloomFilter> filters = new HashMap<InetAddress, BloomFilter>();
+		for(Map.Entry<InetAddress, PeerCatalog> e : dht.entrySet())
+			if(live(e.getKey(), now) && (full || changed.get(e.getKey()) > since.version))
+				filters.put(e.getKey(), e.getValue().summary().filter());
+		return filters;
+	}
+
+	// true if the changes since the tag cannot be told: another epoch, or older than the departures remembered
+	private boolean full(IndexProtocol.Tag since) {
+		return since.epoch != epoch || since.version < horizon || since.version > version || since.version == 0;
+	}
+
+	/**
+	 * Compares the catalog of a peer with a set of files given by its lookup table
+	 * @param ip Peer whose catalog is compared
+	 * @param theirs Lookup table of the other files (see CatalogSummary.table), used up on the way
+	 * @return the peer's files missing from the other set or differing in size or CRC,
+	 * 		null if the table is too small to tell (or the peer is not registered)
+	 */
+	public SortedMap<String, PeerCatalog.Entry> reconcile(InetAddress ip, InvertibleBloomFilter theirs) {
+		PeerCatalog catalog = dht.get(ip);
+		if(catalog == null)
+			return null;
+		CatalogSummary summary = catalog.summary();
+		theirs.subtract(summary.table(theirs.cells()));
+		InvertibleBloomFilter.Difference d = theirs.decode();
+		//what is left of their table after taking the peer's files away: the peer's own files come out negative
+		return d == null ? null : summary.entries(d.removed);
+	}
+
+	/**
+	 * Peers holding a file
+	 * @param name Exact file name
+	 * @return peers whose lease has not run out
 	 */
-	public String getFiles(InetAddress ip) {
-		return dht.get(ip);
+	public Set<InetAddress> lookup(String name) {
+		long now = System.currentTimeMillis();
+		Set<InetAddress> holders = index.lookup(name);
+		holders.removeIf(ip -> !live(ip, now));
+		return holders;
+	}
+
+	/**
+	 * File names starting with a prefix, with their holders
+	 * @param prefix Beginning of the names
+	 * @param limit Maximum number of names looked at
+	 * @return names held by a peer whose lease has not run out
+	 */
+	public SortedMap<String, Set<InetAddress>> prefix(String prefix, int limit) {
+		long now = System.currentTimeMillis();
+		SortedMap<String, Set<InetAddress>> matches = index.prefix(prefix, limit);
+		for(Iterator<Set<InetAddress>> it = matches.values().iterator(); it.hasNext(); ) {
+			Set<InetAddress> holders = it.next();
+			holders.removeIf(ip -> !live(ip, now));
+			if(holders.isEmpty())
+				it.remove();
+		}
+		return matches;
+	}
+
+	// false if the peer's lease ran out; without leases (a standby, or not running yet) every peer is live
+	private boolean live(InetAddress ip, long now) {
+		TimerWheel<InetAddress> l = leases;
+		return l == null || l.deadline(ip) >= now;
 	}
 	
+	/**
+	 * Getter for the inverted file name index
+	 * @return index from file name to peers
+	 */
+	public FileIndex<InetAddress> getIndex() {
+		return index;
+	}
+
 	/**
 	 * Removes the hash table if a peer is to leave the network
 	 * @param ip IP address of peer
 	 */
-	public void nodeExit(InetAddress ip) {
-		dht.remove(ip);
+	public synchronized void nodeExit(InetAddress ip) {
+		PeerCatalog old = dht.remove(ip);
+		TimerWheel<InetAddress> l = leases;
+		if(l != null)
+			l.cancel(ip);
+		if(old != null) {
+			if(store != null)
+				store.append(new IndexProtocol.Writer(IndexProtocol.UNREGISTER).writeAddress(ip).toFrame());
+			index.remove(ip, old.names());
+			changed.remove(ip);
+			tombstones.put(ip, ++version);
+			if(tombstones.size() > MAX_TOMBSTONES) {
+				Iterator<Map.Entry<InetAddress, Long>> it = tombstones.entrySet().iterator();
+				horizon = it.next().getValue();
+				it.remove();
+			}
+		}
 	}
 	
 	/**
-	 * Serves as the DHT set method to place a peer and files into the hash table
+	 * Serves as the DHT set method to place a peer and files into the hash table.
+	 * A snapshot replaces the peer's catalog; the index only sees the names that differ.
 	 * @param ip IP address of peer
-	 * @param files String of files located on the peer
+	 * @param seq Sequence number of the snapshot
+	 * @param files Files located on the peer
+	 */
+	public synchronized void put(InetAddress ip, long seq, Map<String, PeerCatalog.Entry> files) {
+		PeerCatalog catalog = dht.get(ip);
+		if(catalog == null) {
+			catalog = new PeerCatalog();
+			dht.put(ip, catalog);
+		}
+		List<String> removed = new ArrayList<String>();
+		for(String name : catalog.names())
+			if(!files.containsKey(name))
+				removed.add(name);
+		List<String> added = new ArrayList<String>();
+		for(String name : files.keySet())
+			if(!catalog.contains(name))
+				added.add(name);
+		catalog.reset(seq, files);
+		if(store != null) {
+			IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.REGISTER).writeAddress(ip);
+			catalog.writeSnapshot(w);
+			store.append(w.toFrame());
+		}
+		index.remove(ip, removed);
+		index.add(ip, added);
+		touch(ip);
+	}
+
+	/**
+	 * Applies the changes of a peer's catalog in place
+	 * @param ip IP address of peer
+	 * @param delta Changes to the catalog
+	 * @return false if the peer is unknown or delta does not continue its catalog,
+	 * 		in which case the peer has to send a snapshot
+	 */
+	public synchronized boolean update(InetAddress ip, PeerCatalog.Delta delta) {
+		PeerCatalog catalog = dht.get(ip);
+		if(catalog == null || !catalog.apply(delta))
+			return false;
+		if(store != null) {
+			IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.UPDATE).writeAddress(ip);
+			delta.write(w);
+			store.append(w.toFrame());
+		}
+		index.remove(ip, delta.removed);
+		index.add(ip, delta.added.keySet());
+		touch(ip);
+		return true;
+	}
+
+	// records a change of a peer under a new table version
+	private void touch(InetAddress ip) {
+		changed.put(ip, ++version);
+		tombstones.remove(ip);
+		//a change committed under an earlier leader still leaves the peer a lease to lose
+		TimerWheel<InetAddress> l = leases;
+		if(l != null && l.deadline(ip) < 0)
+			l.schedule(ip, System.currentTimeMillis() + lease);
+	}
+
+	/**
+	 * Getter for the current table version
+	 * @return tag of the table
+	 */
+	public synchronized IndexProtocol.Tag getTag() {
+		return new IndexProtocol.Tag(epoch, version);
+	}
+
+	/**
+	 * Builds one page of the table for a RETRIEVE request.
+	 * Peers come in the order of their address bytes, so a cursor stays valid while peers
+	 * come and go. With a tag of this table, only the peers that changed after it are listed
+	 * (with all their matching names) together with the peers that left; otherwise, or when
+	 * the tag is older than the remembered departures, the pages list the whole table.
+	 * @param q Request
+	 * @return the page
 	 */
-	public void put(InetAddress ip, String files) {
-		dht.put(ip, files);
+	public synchronized IndexProtocol.Page retrieve(IndexProtocol.Retrieve q) {
+		IndexProtocol.Tag tag = getTag();
+		boolean full = full(q.since);
+		int limit = q.limit <= 0 ? MAX_PAGE : Math.min(q.limit, MAX_PAGE);
+		Pattern glob = q.pattern.isEmpty() ? null : glob(q.pattern);
+		List<InetAddress> candidates = new ArrayList<InetAddress>();
+		long now = System.currentTimeMillis();
+		for(InetAddress ip : q.peer == null ? dht.keySet() : Collections.singleton(q.peer))
+			if(dht.containsKey(ip) && live(ip, now) && (full || changed.get(ip) > q.since.version)
+					&& (q.afterPeer == null || compare(ip, q.afterPeer) >= 0))
+				candidates.add(ip);
+		List<InetAddress> removed = new ArrayList<InetAddress>();
+		if(!full && q.afterPeer == null)
+			for(Map.Entry<InetAddress, Long> e : tombstones.entrySet())
+				if(e.getValue() > q.since.version && (q.peer == null || q.peer.equals(e.getKey())))
+					removed.add(e.getKey());
+		if(!full && candidates.isEmpty() && removed.isEmpty() && q.afterPeer == null)
+			return IndexProtocol.Page.notModified(tag);
+		Collections.sort(candidates, DHT::compare);
+		Map<InetAddress, List<String>> peers = new LinkedHashMap<InetAddress, List<String>>();
+		int names = 0;
+		InetAddress lastPeer = q.afterPeer;
+		String lastName = q.afterName;
+		for(InetAddress ip : candidates) {
+			List<String> matching = new ArrayList<String>();
+			boolean continued = ip.equals(q.afterPeer);
+			for(String name : continued ? dht.get(ip).namesAfter(q.afterName) : dht.get(ip).names()) {
+				if(glob != null && !glob.matcher(name).matches())
+					continue;
+				if(names == limit) {
+					//page is full: the next one starts after the last name sent
+					if(!matching.isEmpty() || continued)
+						peers.put(ip, matching);
+					return new IndexProtocol.Page(tag, full, false, peers, removed, lastPeer, lastName);
+				}
+				matching.add(name);
+				names++;
+				lastPeer = ip;
+				lastName = name;
+			}
+			//a changed peer is listed even without matches, so the client drops its old names
+			if(!matching.isEmpty() || (!full && !continued))
+				peers.put(ip, matching);
+		}
+		return new IndexProtocol.Page(tag, full, false, peers, removed, null, null);
+	}
+
+	// order of peers in RETRIEVE pages: unsigned address bytes, shorter addresses first
+	private static int compare(InetAddress a, InetAddress b) {
+		byte[] x = a.getAddress();
+		byte[] y = b.getAddress();
+		if(x.length != y.length)
+			return x.length - y.length;
+		for(int i = 0; i < x.length; i++)
+			if(x[i] != y[i])
+				return (x[i] & 0xFF) - (y[i] & 0xFF);
+		return 0;
+	}
+
+	// regular expression for a file name glob: '*' any run, '?' one character, [..] a class
+	private static Pattern glob(String glob) {
+		StringBuilder re = new StringBuilder();
+		boolean inClass = false;
+		for(char c : glob.toCharArray()) {
+			if(inClass) {
+				if(c == ']')
+					inClass = false;
+				re.append(c == '\\' ? "\\\\" : String.valueOf(c));
+			}
+			else if(c == '*')
+				re.append(".*");
+			else if(c == '?')
+				re.append('.');
+			else if(c == '[') {
+				inClass = true;
+				re.append('[');
+			}
+			else
+				re.append(Pattern.quote(String.valueOf(c)));
+		}
+		if(inClass)
+			re.append(']');
+		return Pattern.compile(re.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * Writes the whole table: count(varint) {address snapshot}
+	 * @param w Frame being encoded
+	 */
+	public synchronized void writeTable(IndexProtocol.Writer w) {
+		w.writeVarint(dht.size());
+		for(Map.Entry<InetAddress, PeerCatalog> e : dht.entrySet()) {
+			w.writeAddress(e.getKey());
+			e.getValue().writeSnapshot(w);
+		}
+	}
+
+	/**
+	 * Replaces the whole table by one written with writeTable
+	 * @param in Encoded table
+	 * @throws IOException if the table is malformed; nothing is changed then
+	 */
+	public synchronized void readTable(ByteBuffer in) throws IOException {
+		Map<InetAddress, PeerCatalog> peers = new HashMap<InetAddress, PeerCatalog>();
+		for(int n = IndexProtocol.readVarint(in); n > 0; n--) {
+			InetAddress ip = IndexProtocol.readAddress(in);
+			PeerCatalog catalog = new PeerCatalog();
+			long seq = IndexProtocol.readVarlong(in);
+			catalog.reset(seq, PeerCatalog.readEntries(in));
+			peers.put(ip, catalog);
+		}
+		for(InetAddress ip : new ArrayList<InetAddress>(dht.keySet()))
+			if(!peers.containsKey(ip))
+				nodeExit(ip);
+		//peers new to the table (all of them when a table is restored) are taken as read and indexed in one go
+		Map<InetAddress, List<String>> added = new HashMap<InetAddress, List<String>>();
+		for(Map.Entry<InetAddress, PeerCatalog> e : peers.entrySet()) {
+			InetAddress ip = e.getKey();
+			PeerCatalog catalog = e.getValue();
+			if(dht.containsKey(ip) || store != null)
+				put(ip, catalog.getSeq(), catalog.entries());
+			else {
+				dht.put(ip, catalog);
+				added.put(ip, catalog.names());
+				touch(ip);
+			}
+		}
+		index.addAll(added);
+	}
+
+	/**
+	 * Replaces the whole table by the one the replicas' log is at with entry index (see IndexReplicator.install)
+	 * @param in Encoded table
+	 * @param index Index of the last entry the table holds
+	 * @param term Term of that entry
+	 * @throws IOException if the table is malformed; nothing is changed then
+	 */
+	synchronized void readTable(ByteBuffer in, long index, long term) throws IOException {
+		IndexStore s = store;
+		if(s == null) {
+			readTable(in);
+			return;
+		}
+		long before = s.getIndex();
+		long beforeTerm = s.getTerm();
+		s.position(index, term);
+		try {
+			readTable(in);
+		} catch (IOException e) {
+			s.position(before, beforeTerm);
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies the table for a snapshot and has the store start a new log at the same change
+	 * @param s Store the snapshot is for
+	 * @return frame holding the table as writeTable writes it
+	 */
+	synchronized byte[] checkpoint(IndexStore s) {
+		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.INSTALL);
+		writeTable(w);
+		s.rotate();
+		return w.toFrame();
+	}
+
+	/**
+	 * Applies entry index of the replicas' log, once committed; the store records the table as being at it
+	 * @param entry Request with the sender's address in front of its payload
+	 * @param index Index of the entry
+	 * @param term Term of the entry
+	 * @return the answer to the sender
+	 */
+	synchronized byte[] apply(byte[] entry, long index, long term) {
+		IndexStore s = store;
+		if(s != null)
+			s.position(index, term);
+		return apply(entry);
+	}
+
+	/**
+	 * Applies one committed log entry (see IndexReplicator, IndexStore)
+	 * @param entry Request with the sender's address in front of its payload
+	 * @return the answer to the sender
+	 */
+	byte[] apply(byte[] entry) {
+		try {
+			IndexProtocol.Frame f = IndexProtocol.decode(ByteBuffer.wrap(entry));
+			InetAddress ip = IndexProtocol.readAddress(f.payload);
+			if(f.type == IndexProtocol.UNREGISTER) {
+				nodeExit(ip);
+				return registered(false);
+			}
+			return catalog(ip, f);
+		} catch (IOException e) {
+			//every replica fails the same way, so the tables stay alike
+			return new IndexProtocol.Writer(IndexProtocol.ERROR).writeString(String.valueOf(e.getMessage())).toFrame();
+		}
+	}
+
+	// an answer computed after its request was read; to is a SelectionKey or a datagram's sender
+	private static final class Reply {
+		final Object to;
+		final byte[] frame;
+
+		Reply(Object to, byte[] frame) {
+			this.to = to;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Sends an answer from the event loop, for a request whose answer had to wait
+	 * @param to SelectionKey of the connection or address of the datagram's sender
+	 * @param frame Answer
+	 */
+	void reply(Object to, byte[] frame) {
+		IndexStore st = store;
+		if(st == null)
+			queue(to, frame);
+		else
+			//a committed change is answered once this replica also has it on disk
+			st.sync(() -> queue(to, frame), e -> queue(to, unkept(e)));
+	}
+
+	private void queue(Object to, byte[] frame) {
+		replies.add(new Reply(to, frame));
+		Selector s = selector;
+		if(s != null)
+			s.wakeup();
+	}
+
+	/**
+	 * Getter for the sequence number of a peer's catalog
+	 * @param ip IP address of peer
+	 * @return sequence number, -1 if the peer is not registered
+	 */
+	public long getSeq(InetAddress ip) {
+		PeerCatalog catalog = dht.get(ip);
+		return catalog == null ? -1 : catalog.getSeq();
 	}
 	
+	/**
+	 * Joins the addresses of peers into one line
+	 * @param peers Peers to list
+	 * @return addresses separated by spaces
+	 */
+	public static String addresses(Set<InetAddress> peers) {
+		StringBuilder line = new StringBuilder();
+		for(InetAddress p : peers)
+			line.append(line.length() == 0 ? "" : " ").append(p.getHostAddress());
+		return line.toString();
+	}
+
 	/**
 	 * Print method to out the IP address (key) in the hash table
 	 */
 	public void print() {
-		for(InetAddress k : dht.keySet())
-			System.out.println("\t" + k + " : " + dht.get(k));
+		for(Map.Entry<InetAddress, PeerCatalog> e : new ArrayList<Map.Entry<InetAddress, PeerCatalog>>(dht.entrySet()))
+			System.out.println("\t" + e.getKey().getHostAddress() + " : " + String.join("@", e.getValue().names()));
 	}
 	
 	/**
 	 * Method to indicate a disconnect on the server thread (peer leaves network)
 	 */
 	public void switchOff() {
-		ds.close();
 		on = false;
-	}
-	
-	/**
-	 * Method to indicate a peer is creating a server thread (joining network)
-	 */
-	public void switchOn() {
-		on = true;
+		if(selector != null)
+			selector.wakeup();
 	}
 
 	/**
-	 * Running thread method. Each peer will create its own thread in order to
-	 * establish a connection to the network of peers.
-	 * Also creates a datagram packet so that the peer's files maybe distributed 
-	 * over the network.
+	 * Running thread method. The index server's event loop: registrations arrive as
+	 * datagrams, queries as TCP connections, and all of them are served from one thread
+	 * without ever closing the listening channels.
 	 */
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
 		try {
-			ds = new DatagramSocket(port);
-			ds.setBroadcast(true);
-		} catch (SocketException e2) {
-			// TODO Auto-generated catch block
-			e2.printStackTrace();
-		}
-		on = true;
-		while(on) {
-			while(true) {
-				try {
-					byte[] recv = new byte[1000];
-					DatagramPacket dp = new DatagramPacket(recv, recv.length);
-					ds.receive(dp);
-					
-					// Check to ensure that the DHT does not already contain the IP address
-					// Otherwise, it will register the peer onto the network and create a hash
-					if(!dht.keySet().contains(dp.getAddress())) {
-						dht.put(dp.getAddress(), new String(dp.getData()));
-						ds.close();
-						Socket s = new Socket(dp.getAddress(), port);
-						PrintWriter output = new PrintWriter(s.getOutputStream());
-						output.print(registered);
-						output.close();
-						s.close();
-						ds = new DatagramSocket(port);
-					}
-					
-					// Once the peer is on the network, the peer will establish a server socket
-					else {
-						if(new String(dp.getData(), 0, dp.getLength()).equals(retrieve)) {
-							ds.close();
-							ServerSocket ss = new ServerSocket(port);
-							Socket s = ss.accept();
-							PrintWriter output = new PrintWriter(s.getOutputStream());
-							for(InetAddress k : dht.keySet())
-								output.println(k + " : " + dht.get(k));
-							output.flush();
-							output.close();
-							s.close();
-							ss.close();
-							ds = new DatagramSocket(port);
-						}
-						else if(new String(dp.getData(), 0, dp.getLength()).equals(unregister)) {
-							dht.remove(dp.getAddress());
-						}
-						else if(dht.keySet().contains(InetAddress.getByName(new String(dp.getData(), 0, dp.getLength())))) {
-							InetAddress reqIP = InetAddress.getByName(new String(dp.getData(), 0, dp.getLength()));
-							ds.close();
-							ServerSocket ss = new ServerSocket(port);
-							Socket s = ss.accept();
-							PrintWriter output = new PrintWriter(s.getOutputStream());
-							output.print(this.getFiles(reqIP));
-							output.flush();
-							output.close();
-							s.close();
-							ss.close();
-							ds = new DatagramSocket(port);
-						}
+			selector = Selector.open();
+			//TCP first: a free TCP port is far more often also free for UDP than the reverse
+			tcp = ServerSocketChannel.open();
+			tcp.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			tcp.bind(bindAddress, 256);
+			tcp.configureBlocking(false);
+			tcp.register(selector, SelectionKey.OP_ACCEPT);
+			udp = DatagramChannel.open(StandardProtocolFamily.INET);
+			udp.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			udp.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			udp.bind(new InetSocketAddress(bindAddress.getAddress(), tcp.socket().getLocalPort()));
+			udp.configureBlocking(false);
+			udp.register(selector, SelectionKey.OP_READ);
+			if(standbys >= 0) {
+				replicator = new IndexReplicator(this, new InetSocketAddress(advertise, tcp.socket().getLocalPort()), standbys, seed);
+				replicator.start();
+			}
+		} catch (IOException e) {
+			System.out.println("\t" + e.getMessage() + ": Index Server");
+			failed("Index Server", e);
+			on = false;
+			closeAll();
+			bound.countDown();
+			return;
+		}
+		bound.countDown();
+		ByteBuffer datagram = ByteBuffer.allocateDirect(65536);
+		long lastSweep = System.currentTimeMillis();
+		//leases are kept from the first request on
+		expireLeases(lastSweep);
+		try {
+			while(on) {
+				selector.select(LEASE_TICK);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if(!key.isValid())
+							continue;
+						if(key.channel() == udp)
+							receive(datagram);
+						else if(key.isAcceptable())
+							accept();
+						else if(key.isReadable())
+							read(key);
+						else if(key.isWritable())
+							write(key);
+					} catch (IOException e) {
+						//a single peer failing must not stop the server
+						if(key.channel() != udp)
+							close(key);
 					}
-				} catch (SocketException e) {
-					// TODO Auto-generated catch block
-					System.out.println("\t" + e.getMessage() + ": Temporal Stop of Index Server");
+				}
+				sendReplies();
+				long now = System.currentTimeMillis();
+				expireLeases(now);
+				if(now - lastSweep >= 1000) {
+					sweepIdle(now);
+					lastSweep = now;
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			System.out.println("\t" + e.getMessage() + ": Temporal Stop of Index Server");
+			failed("Index Server", e);
+		} finally {
+			closeAll();
+		}
+	}
+
+	// removes the peers whose lease ran out; leases are kept only while this server answers peers
+	private void expireLeases(long now) {
+		IndexReplicator r = replicator;
+		boolean serving = r == null || r.isLeader();
+		if(serving != (leases != null)) {
+			if(serving) {
+				//a new leader does not know when the peers last renewed: each gets a whole lease
+				TimerWheel<InetAddress> l = new TimerWheel<InetAddress>(LEASE_TICK, lease, now);
+				for(InetAddress ip : new ArrayList<InetAddress>(dht.keySet()))
+					l.schedule(ip, now + lease);
+				leases = l;
+			}
+			else
+				leases = null;
+		}
+		if(leases == null)
+			return;
+		for(InetAddress ip : leases.advance(now)) {
+			if(r == null) {
+				nodeExit(ip);
+				continue;
+			}
+			try {
+				//removed on every replica once committed, like an UNREGISTER of the peer
+				r.propose(entry(IndexProtocol.UNREGISTER, ip, new byte[0]), null);
+			} catch (IOException e) {
+				//only MEMBERS entries are checked
+			}
+		}
+	}
+
+	// extends the lease of a peer that registered or changed its catalog
+	private void renew(InetAddress ip) {
+		TimerWheel<InetAddress> l = leases;
+		if(l != null)
+			l.schedule(ip, System.currentTimeMillis() + lease);
+	}
+
+	// registration and unregistration datagrams
+	private void receive(ByteBuffer datagram) throws IOException {
+		SocketAddress from;
+		while(true) {
+			datagram.clear();
+			from = udp.receive(datagram);
+			if(from == null)
+				return;
+			datagram.flip();
+			InetAddress ip = ((InetSocketAddress) from).getAddress();
+			try {
+				IndexProtocol.Frame f = IndexProtocol.decode(datagram);
+				switch(f.type) {
+				case IndexProtocol.REGISTER:
+				case IndexProtocol.UPDATE:
+				case IndexProtocol.DISCOVER:
+				case IndexProtocol.RENEW:
+					byte[] response = handle(ip, f, from);
+					//during an election nobody answers a broadcast, so the sender waits for the leader
+					if(response != null && (response[1] != IndexProtocol.NOT_LEADER || replicator.getLeader() != null))
+						udp.send(ByteBuffer.wrap(response), from);
 					break;
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
+				case IndexProtocol.UNREGISTER:
+					handle(ip, f, null);
+					break;
+				default:
+					//queries and replication are served over TCP only
+				}
+			} catch (IOException e) {
+				//malformed or foreign datagram: dropped
+			}
+		}
+	}
+
+	// per-connection state: request frame being read, then the response being written
+	private static final class Conn {
+		ByteBuffer in = ByteBuffer.allocate(512);
+		ByteBuffer out;
+		long lastActive = System.currentTimeMillis();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch;
+		while((ch = tcp.accept()) != null) {
+			ch.configureBlocking(false);
+			ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			ch.register(selector, SelectionKey.OP_READ, new Conn());
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+		c.lastActive = System.currentTimeMillis();
+		serve(key, ch.read(c.in) < 0);
+	}
+
+	// answers the request buffered in c.in once it is complete
+	private void serve(SelectionKey key, boolean eof) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+		if(c.in.position() < IndexProtocol.HEADER) {
+			if(eof)
+				close(key);
+			return;
+		}
+		c.in.flip();
+		int need = IndexProtocol.HEADER + IndexProtocol.payloadLength(c.in);
+		c.in.position(c.in.limit()).limit(c.in.capacity());
+		if(need > c.in.capacity()) {
+			//large catalog: grow once to the announced size
+			ByteBuffer bigger = ByteBuffer.allocate(need);
+			c.in.flip();
+			bigger.put(c.in);
+			c.in = bigger;
+			if(!eof)
+				eof = ch.read(c.in) < 0;
+		}
+		if(c.in.position() < need) {
+			if(eof)
+				close(key);
+			return;
+		}
+		byte[] request = new byte[need];
+		c.in.flip();
+		c.in.get(request);
+		if(c.in.capacity() > 512 && c.in.remaining() <= 512) {
+			//back to a small buffer once a large request is through
+			ByteBuffer small = ByteBuffer.allocate(512);
+			small.put(c.in);
+			c.in = small;
+		}
+		else
+			c.in.compact();
+		InetAddress ip = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+		byte[] response;
+		try {
+			response = handle(ip, IndexProtocol.decode(ByteBuffer.wrap(request)), key);
+		} catch (IOException e) {
+			failed("Index request", e);
+			response = new IndexProtocol.Writer(IndexProtocol.ERROR).writeString(String.valueOf(e.getMessage())).toFrame();
+		}
+		if(response == null) {
+			//answered by sendReplies once the change is committed; nothing is read meanwhile
+			key.interestOps(0);
+			return;
+		}
+		respond(key, response);
+	}
+
+	private void respond(SelectionKey key, byte[] response) throws IOException {
+		((Conn) key.attachment()).out = ByteBuffer.wrap(response);
+		key.interestOps(SelectionKey.OP_WRITE);
+		write(key);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+		c.lastActive = System.currentTimeMillis();
+		ch.write(c.out);
+		if(!c.out.hasRemaining()) {
+			//ready for the next request; the client closes the connection when it is done
+			c.out = null;
+			key.interestOps(SelectionKey.OP_READ);
+			if(c.in.position() > 0)
+				serve(key, false);
+		}
+	}
+
+	// answers that waited for their change to be committed
+	private void sendReplies() {
+		Reply r;
+		while((r = replies.poll()) != null) {
+			try {
+				if(r.to instanceof SelectionKey) {
+					SelectionKey key = (SelectionKey) r.to;
+					if(key.isValid())
+						respond(key, r.frame);
+				}
+				else
+					udp.send(ByteBuffer.wrap(r.frame), (SocketAddress) r.to);
+			} catch (IOException e) {
+				if(r.to instanceof SelectionKey)
+					close((SelectionKey) r.to);
+			}
+		}
+	}
+
+	/**
+	 * Response to one request from ip, over UDP or TCP
+	 * @param replyTo Where the answer goes if it has to wait for the replicas
+	 * @return the answer, or null if it is sent once the change is committed
+	 */
+	private byte[] handle(InetAddress ip, IndexProtocol.Frame request, Object replyTo) throws IOException {
+		Metrics m = metrics;
+		if(m == null)
+			return route(ip, request, replyTo);
+		long start = System.nanoTime();
+		try {
+			return route(ip, request, replyTo);
+		} finally {
+			m.indexOperation(request.type, System.nanoTime() - start);
+		}
+	}
+
+	void failed(String where, Exception e) {
+		Metrics m = metrics;
+		if(m != null)
+			m.failure(where, e);
+	}
+
+	// answer to a change the store could not keep, failing the peer's call; the server stops meanwhile
+	private static byte[] unkept(IOException e) {
+		return new IndexProtocol.Writer(IndexProtocol.ERROR).writeString("Index Store: " + e.getMessage()).toFrame();
+	}
+
+	// answers ip, or hands a change to the replicas; a change is timed until it is proposed only
+	private byte[] route(InetAddress ip, IndexProtocol.Frame request, Object replyTo) throws IOException {
+		IndexReplicator r = replicator;
+		if(request.type == IndexProtocol.REGISTER || request.type == IndexProtocol.UPDATE)
+			renew(ip);
+		if(r == null) {
+			byte[] response = answer(ip, request);
+			IndexStore s = store;
+			if(s == null || replyTo == null || (request.type != IndexProtocol.REGISTER && request.type != IndexProtocol.UPDATE
+					&& request.type != IndexProtocol.UNREGISTER))
+				return response;
+			//answered once the change is on disk, in one fsync with the changes around it
+			s.sync(() -> queue(replyTo, response), e -> queue(replyTo, unkept(e)));
+			return null;
+		}
+		switch(request.type) {
+		case IndexProtocol.APPEND:
+			return r.append(request.payload);
+		case IndexProtocol.INSTALL:
+			return r.install(request.payload);
+		case IndexProtocol.VOTE:
+			return r.vote(request.payload);
+		case IndexProtocol.JOIN:
+			return r.join(IndexProtocol.readEndpoint(request.payload), replyTo);
+		case IndexProtocol.REGISTER:
+		case IndexProtocol.UPDATE:
+		case IndexProtocol.UNREGISTER: {
+			//changes go through the log
+			ByteBuffer payload = request.payload.duplicate();
+			byte[] b = new byte[payload.remaining()];
+			payload.get(b);
+			return r.propose(entry(request.type, ip, b), replyTo) ? null : r.notLeader();
+		}
+		default:
+			return r.isLeader() ? answer(ip, request) : r.notLeader();
+		}
+	}
+
+	// log entry: the request with the sender's address in front of its payload
+	private static byte[] entry(byte type, InetAddress ip, byte[] payload) {
+		return new IndexProtocol.Writer(type).writeAddress(ip).writeBytes(payload, 0, payload.length).toFrame();
+	}
+
+	// REGISTERED frame: whether the peer is to JOIN as a standby, its lease, and the replicas
+	private byte[] registered(boolean standby) {
+		IndexReplicator r = replicator;
+		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.REGISTERED).writeByte(standby ? 1 : 0).writeVarint((int) lease);
+		return w.writeEndpoints(r == null ? Collections.<InetSocketAddress>emptyList() : r.getMembers()).toFrame();
+	}
+
+	// response to a catalog message, over UDP or TCP
+	private byte[] catalog(InetAddress ip, IndexProtocol.Frame request) throws IOException {
+		switch(request.type) {
+		case IndexProtocol.REGISTER:
+			// A snapshot replaces whatever the peer registered before
+			long seq = IndexProtocol.readVarlong(request.payload);
+			put(ip, seq, PeerCatalog.readEntries(request.payload));
+			return registered(replicator != null && replicator.invite(ip));
+		case IndexProtocol.UPDATE:
+			// A delta that does not continue the catalog means one was lost: ask for a snapshot
+			if(update(ip, PeerCatalog.Delta.read(request.payload)))
+				return IndexProtocol.empty(IndexProtocol.UPDATED);
+			return new IndexProtocol.Writer(IndexProtocol.RESYNC).writeVarlong(getSeq(ip)).toFrame();
+		default:
+			return IndexProtocol.empty(IndexProtocol.PRESENT);
+		}
+	}
+
+	// response frame to one request received over TCP from ip
+	private byte[] answer(InetAddress ip, IndexProtocol.Frame request) throws IOException {
+		switch(request.type) {
+		case IndexProtocol.REGISTER:
+		case IndexProtocol.UPDATE:
+		case IndexProtocol.DISCOVER:
+			return catalog(ip, request);
+		case IndexProtocol.UNREGISTER:
+			nodeExit(ip);
+			return registered(false);
+		case IndexProtocol.RENEW:
+			// Heartbeat: a peer that is no longer listed has to REGISTER again
+			if(!dht.containsKey(ip))
+				return IndexProtocol.empty(IndexProtocol.UNKNOWN);
+			renew(ip);
+			return new IndexProtocol.Writer(IndexProtocol.RENEWED).writeVarint((int) lease).toFrame();
+		case IndexProtocol.RETRIEVE:
+			return retrieve(IndexProtocol.Retrieve.read(request.payload)).toFrame();
+		// File queries are answered from the inverted index with the matching peers only
+		case IndexProtocol.LOOKUP:
+			return new IndexProtocol.Writer(IndexProtocol.HOLDERS)
+					.writeAddresses(lookup(IndexProtocol.readString(request.payload))).toFrame();
+		case IndexProtocol.PREFIX: {
+			Map<String, Set<InetAddress>> matches = prefix(IndexProtocol.readString(request.payload), PREFIX_LIMIT);
+			IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.MATCHES).writeVarint(matches.size());
+			for(Map.Entry<String, Set<InetAddress>> e : matches.entrySet())
+				w.writeString(e.getKey()).writeAddresses(e.getValue());
+			return w.toFrame();
+		}
+		case IndexProtocol.FILES: {
+			List<String> files = getFiles(IndexProtocol.readAddress(request.payload));
+			if(files == null)
+				return IndexProtocol.empty(IndexProtocol.UNKNOWN);
+			return new IndexProtocol.Writer(IndexProtocol.FILE_LIST).writeFileList(files).toFrame();
+		}
+		case IndexProtocol.SUMMARY: {
+			// Only the filters of the peers that changed since the tag are sent, with the peers that left
+			IndexProtocol.Tag since = IndexProtocol.Tag.read(request.payload);
+			IndexProtocol.Writer w;
+			synchronized(this) {
+				IndexProtocol.Tag tag = getTag();
+				if(since.epoch == tag.epoch && since.version == tag.version)
+					return IndexProtocol.Page.notModified(tag).toFrame();
+				boolean full = full(since);
+				w = new IndexProtocol.Writer(IndexProtocol.FILTERS);
+				tag.write(w);
+				w.writeByte(full ? 1 : 0);
+				Map<InetAddress, BloomFilter> filters = filters(since);
+				w.writeVarint(filters.size());
+				for(Map.Entry<InetAddress, BloomFilter> e : filters.entrySet()) {
+					w.writeAddress(e.getKey());
+					e.getValue().write(w);
 				}
+				List<InetAddress> removed = new ArrayList<InetAddress>();
+				if(!full)
+					for(Map.Entry<InetAddress, Long> e : tombstones.entrySet())
+						if(e.getValue() > since.version)
+							removed.add(e.getKey());
+				w.writeAddresses(removed);
+			}
+			return w.toFrame();
+		}
+		case IndexProtocol.RECONCILE: {
+			InetAddress peer = IndexProtocol.readAddress(request.payload);
+			if(!isRegistered(peer))
+				return IndexProtocol.empty(IndexProtocol.UNKNOWN);
+			SortedMap<String, PeerCatalog.Entry> missing = reconcile(peer, InvertibleBloomFilter.read(request.payload));
+			IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.DIFFERENCE).writeByte(missing == null ? 0 : 1);
+			if(missing != null)
+				PeerCatalog.writeEntries(w, missing);
+			return w.toFrame();
+		}
+		default:
+			throw new IOException("Unknown request type " + request.type);
+		}
+	}
+
+	// drops connections whose peer stopped reading or writing
+	private void sweepIdle(long now) {
+		for(SelectionKey key : selector.keys())
+			if(key.attachment() instanceof Conn && now - ((Conn) key.attachment()).lastActive > IDLE_TIMEOUT)
+				close(key);
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			//already closed
+		}
+	}
+
+	private void closeAll() {
+		if(replicator != null)
+			replicator.close();
+		if(store != null)
+			store.close();
+		try {
+			if(selector != null) {
+				for(SelectionKey key : selector.keys())
+					close(key);
+				selector.close();
 			}
+			if(udp != null)
+				udp.close();
+			if(tcp != null)
+				tcp.close();
+		} catch (IOException e) {
+			System.out.println("\t" + e.getMessage() + ": Index Server Close");
 		}
 	}
 
-}
\ No newline at end of file
+}
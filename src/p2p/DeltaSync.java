@@ -0,0 +1,390 @@
+package p2p;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Block-level delta transfer in the style of rsync.
+ * The receiver describes its copy of a file as a list of fixed-size blocks, each with a
+ * rolling weak checksum and a truncated MD5 (the signature). The sender slides a window
+ * over its own copy and emits COPY tokens for blocks the receiver already has and
+ * LITERAL tokens for everything else, so unchanged data never crosses the network.
+ *
+ * Delta stream: token(byte) ...
+ *               COPY    - block index(int)
+ *               LITERAL - length(int) data(length bytes)
+ *               DONE    - end of the delta
+ */
+public final class DeltaSync {
+	public static final byte DONE = 0;
+	public static final byte COPY = 1;
+	public static final byte LITERAL = 2;
+	// Bounds of the block size picked for a file
+	public static final int MIN_BLOCK = 1 << 10;
+	public static final int MAX_BLOCK = 1 << 17;
+	// Literal data is flushed in tokens of at most this size
+	private static final int MAX_LITERAL = 64 << 10;
+
+	private DeltaSync() {
+	}
+
+	/**
+	 * Block checksums of the receiver's copy of a file
+	 */
+	public static final class Signature {
+		public final int blockSize;
+		// Length of the described file
+		public final long length;
+		// MD5 of the whole file
+		public final byte[] md5;
+		public final int[] weak;
+		public final long[] strong;
+
+		public Signature(int blockSize, long length, byte[] md5, int[] weak, long[] strong) {
+			this.blockSize = blockSize;
+			this.length = length;
+			this.md5 = md5;
+			this.weak = weak;
+			this.strong = strong;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(blockSize);
+			out.writeLong(length);
+			out.write(md5);
+			out.writeInt(weak.length);
+			for(int i = 0; i < weak.length; i++) {
+				out.writeInt(weak[i]);
+				out.writeLong(strong[i]);
+			}
+		}
+
+		public static Signature read(DataInputStream in) throws IOException {
+			int blockSize = in.readInt();
+			long length = in.readLong();
+			byte[] md5 = new byte[16];
+			in.readFully(md5);
+			int blocks = in.readInt();
+			if(blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || length < 0 || blocks != (length + blockSize - 1) / blockSize)
+				throw new IOException("Malformed signature");
+			int[] weak = new int[blocks];
+			long[] strong = new long[blocks];
+			for(int i = 0; i < blocks; i++) {
+				weak[i] = in.readInt();
+				strong[i] = in.readLong();
+			}
+			return new Signature(blockSize, length, md5, weak, strong);
+		}
+	}
+
+	/**
+	 * Picks a block size of roughly the square root of the file length
+	 * @param length Length of the file
+	 * @return block size in bytes, a power of two between MIN_BLOCK and MAX_BLOCK
+	 */
+	public static int blockSizeFor(long length) {
+		int size = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(length)));
+		return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+	}
+
+	/**
+	 * Computes the signature of a file
+	 * @param f File to describe
+	 * @param blockSize Block size in bytes
+	 * @return signature of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static Signature signature(File f, int blockSize) throws IOException {
+		long length = f.length();
+		int blocks = (int) ((length + blockSize - 1) / blockSize);
+		int[] weak = new int[blocks];
+		long[] strong = new long[blocks];
+		MessageDigest whole = md5();
+		MessageDigest block = md5();
+		byte[] buf = new byte[blockSize];
+		try (InputStream in = Files.newInputStream(f.toPath())) {
+			for(int i = 0; i < blocks; i++) {
+				int n = readBlock(in, buf);
+				whole.update(buf, 0, n);
+				weak[i] = weakChecksum(buf, 0, n);
+				block.update(buf, 0, n);
+				strong[i] = strongChecksum(block.digest());
+			}
+		}
+		return new Signature(blockSize, length, whole.digest(), weak, strong);
+	}
+
+	/**
+	 * Writes the delta that turns the receiver's copy described by sig into f
+	 * @param f Sender's copy of the file
+	 * @param sig Signature of the receiver's copy
+	 * @param out Stream the delta is written to
+	 * @throws IOException if the file cannot be read or the stream fails
+	 */
+	public static void writeDelta(File f, Signature sig, DataOutputStream out) throws IOException {
+		new Matcher(sig, out).run(Files.newInputStream(f.toPath()));
+	}
+
+	/**
+	 * Rebuilds the sender's file from the receiver's copy and a delta read from in.
+	 * The result is written next to target and moved over it only if it matches crc.
+	 * @param in Stream the delta is read from
+	 * @param target Receiver's copy of the file, replaced by the sender's version
+	 * @param sig Signature the delta was computed against
+	 * @param crc CRC32 of the sender's version
+	 * @return number of literal bytes received, or -1 if the result does not match crc
+	 * 		(target is left unchanged)
+	 * @throws IOException if the delta is malformed or the files fail
+	 */
+	public static long applyDelta(DataInputStream in, File target, Signature sig, long crc) throws IOException {
+		File tmp = new File(target.getParentFile(), target.getName() + ".delta");
+		CRC32 check = new CRC32();
+		long literal = 0;
+		byte[] buf = new byte[Math.max(sig.blockSize, MAX_LITERAL)];
+		try (RandomAccessFile old = new RandomAccessFile(target, "r");
+				OutputStream out = Files.newOutputStream(tmp.toPath())) {
+			byte token;
+			while((token = in.readByte()) != DONE) {
+				int n;
+				if(token == COPY) {
+					int block = in.readInt();
+					if(block < 0 || block >= sig.weak.length)
+						throw new IOException("Delta refers to missing block " + block);
+					long pos = (long) block * sig.blockSize;
+					n = (int) Math.min(sig.blockSize, sig.length - pos);
+					old.seek(pos);
+					old.readFully(buf, 0, n);
+				}
+				else if(token == LITERAL) {
+					n = in.readInt();
+					if(n < 0 || n > buf.length)
+						throw new IOException("Malformed literal of " + n + " bytes");
+					in.readFully(buf, 0, n);
+					literal += n;
+				}
+				else
+					throw new IOException("Unknown delta token " + token);
+				check.update(buf, 0, n);
+				out.write(buf, 0, n);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		if(check.getValue() != crc) {
+			tmp.delete();
+			return -1;
+		}
+		PartFile.moveIntoPlace(tmp, target);
+		return literal;
+	}
+
+	/**
+	 * rsync weak checksum: a is the sum of the bytes, b the sum of the running sums, both mod 2^16
+	 */
+	static int weakChecksum(byte[] buf, int off, int len) {
+		int a = 0;
+		int b = 0;
+		for(int i = 0; i < len; i++) {
+			a += buf[off + i] & 0xFF;
+			b += (len - i) * (buf[off + i] & 0xFF);
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// first 8 bytes of a digest
+	private static long strongChecksum(byte[] digest) {
+		long v = 0;
+		for(int i = 0; i < 8; i++)
+			v = (v << 8) | (digest[i] & 0xFF);
+		return v;
+	}
+
+	private static int readBlock(InputStream in, byte[] buf) throws IOException {
+		int n = 0;
+		while(n < buf.length) {
+			int r = in.read(buf, n, buf.length - n);
+			if(r < 0)
+				break;
+			n += r;
+		}
+		return n;
+	}
+
+	/**
+	 * Sliding-window search of the sender's file for blocks of the signature
+	 */
+	private static final class Matcher {
+		private final Signature sig;
+		private final DataOutputStream out;
+		private final int size;
+		// Block indices sorted by weak checksum, with the sorted checksums alongside
+		private final int[] order;
+		private final int[] sortedWeak;
+		// 16-bit tags of the weak checksums present, to skip most lookups
+		private final boolean[] tags = new boolean[1 << 16];
+		private final MessageDigest md5 = md5();
+		// Circular window over the sender's file
+		private final byte[] window;
+		private int start;
+		private int count;
+		// rolling checksum parts of the window
+		private int a;
+		private int b;
+		// Pending literal data
+		private final byte[] literal = new byte[MAX_LITERAL];
+		private int literalLength;
+		// Read buffer over the sender's file
+		private final byte[] in = new byte[64 << 10];
+		private int inPos;
+		private int inLimit;
+		private InputStream src;
+
+		Matcher(Signature sig, DataOutputStream out) {
+			this.sig = sig;
+			this.out = out;
+			this.size = sig.blockSize;
+			this.window = new byte[size];
+			int blocks = sig.weak.length;
+			Integer[] boxed = new Integer[blocks];
+			for(int i = 0; i < blocks; i++)
+				boxed[i] = i;
+			Arrays.sort(boxed, (x, y) -> Integer.compare(sig.weak[x], sig.weak[y]));
+			order = new int[blocks];
+			sortedWeak = new int[blocks];
+			for(int i = 0; i < blocks; i++) {
+				order[i] = boxed[i];
+				sortedWeak[i] = sig.weak[boxed[i]];
+				tags[tag(sortedWeak[i])] = true;
+			}
+		}
+
+		void run(InputStream src) throws IOException {
+			this.src = src;
+			try {
+				fill();
+				while(count > 0) {
+					int block = match();
+					if(block >= 0) {
+						flushLiteral();
+						out.writeByte(COPY);
+						out.writeInt(block);
+						fill();
+						continue;
+					}
+					//no block starts here: the first byte of the window becomes literal data
+					int first = window[start] & 0xFF;
+					if(literalLength == literal.length)
+						flushLiteral();
+					literal[literalLength++] = (byte) first;
+					int next = read();
+					if(next >= 0) {
+						window[start] = (byte) next;
+						start = (start + 1) % size;
+						a += next - first;
+						b += a - size * first;
+					}
+					else {
+						//end of file: the window shrinks from the front
+						a -= first;
+						b -= count * first;
+						start = (start + 1) % size;
+						count--;
+					}
+				}
+				flushLiteral();
+				out.writeByte(DONE);
+			} finally {
+				src.close();
+			}
+		}
+
+		// index of a receiver block equal to the current window, or -1
+		private int match() {
+			int weak = (a & 0xFFFF) | (b << 16);
+			if(!tags[tag(weak)])
+				return -1;
+			int i = Arrays.binarySearch(sortedWeak, weak);
+			if(i < 0)
+				return -1;
+			while(i > 0 && sortedWeak[i - 1] == weak)
+				i--;
+			long strong = 0;
+			boolean hashed = false;
+			for(; i < sortedWeak.length && sortedWeak[i] == weak; i++) {
+				int block = order[i];
+				long blockLength = Math.min(size, sig.length - (long) block * size);
+				if(blockLength != count)
+					continue;
+				if(!hashed) {
+					md5.update(window, start, Math.min(count, size - start));
+					if(start + count > size)
+						md5.update(window, 0, start + count - size);
+					strong = strongChecksum(md5.digest());
+					hashed = true;
+				}
+				if(strong == sig.strong[block])
+					return block;
+			}
+			return -1;
+		}
+
+		// loads the next block of the file into the window and recomputes its checksum
+		private void fill() throws IOException {
+			start = 0;
+			count = 0;
+			int c;
+			while(count < size && (c = read()) >= 0)
+				window[count++] = (byte) c;
+			a = 0;
+			b = 0;
+			for(int i = 0; i < count; i++) {
+				a += window[i] & 0xFF;
+				b += (count - i) * (window[i] & 0xFF);
+			}
+		}
+
+		private int read() throws IOException {
+			if(inPos == inLimit) {
+				inLimit = src.read(in, 0, in.length);
+				inPos = 0;
+				if(inLimit <= 0) {
+					inLimit = 0;
+					return -1;
+				}
+			}
+			return in[inPos++] & 0xFF;
+		}
+
+		private void flushLiteral() throws IOException {
+			if(literalLength == 0)
+				return;
+			out.writeByte(LITERAL);
+			out.writeInt(literalLength);
+			out.write(literal, 0, literalLength);
+			literalLength = 0;
+		}
+
+		private static int tag(int weak) {
+			return (weak ^ (weak >>> 16)) & 0xFFFF;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package p2p;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Keeps a PeerCatalog of a shared folder tree current from file system events.
+ * The tree is walked once at start; after that only the files named by WatchService
+ * events are looked at. Every folder of the tree is watched, the ones created later as well,
+ * and a folder that is created, moved in or removed is walked or dropped as a whole. Events are collected until the folder has been quiet for the
+ * debounce interval (or for at most MAX_DELAY_FACTOR intervals while files keep changing),
+ * so a burst of writes becomes one delta. Every non-empty delta is handed to the listener.
+ * If the event queue overflows, the tree is walked again.
+ * A folder that cannot be watched (Linux limits inotify watches per user, which a large tree
+ * can run out of) is reported once and listed every MAX_DELAY_FACTOR debounce intervals
+ * instead, on its own: its files are looked at again and new subfolders are watched and walked,
+ * while the rest of the tree stays on events. Only where no WatchService can be had at all
+ * (Linux also limits inotify instances per user, 128 by default, which many nodes in one
+ * process run out of) is the whole tree walked at that interval.
+ */
+public class DirectoryWatcher implements Closeable {
+	public static final long DEFAULT_DEBOUNCE_MS = 200;
+	// A burst is cut after this many debounce intervals even if events keep coming
+	private static final int MAX_DELAY_FACTOR = 10;
+	// Files being written by a transfer, left out of the catalog until they are renamed
+	private static final String[] TEMPORARY_SUFFIXES = { ".delta", PartFile.SUFFIX, PartFile.PROGRESS_SUFFIX };
+
+	private final File dir;
+	private final long debounceMs;
+	private final PeerCatalog catalog;
+	private final Consumer<PeerCatalog.Delta> listener;
+	private final Predicate<String> ignore = DirectoryWatcher::isTemporary;
+	private WatchService watchService;
+	// Relative name of the folder of every watch, followed by '/' ("" for the root)
+	private final Map<WatchKey, String> folders = new ConcurrentHashMap<WatchKey, String>();
+	// Folders, named the same way, whose watch could not be registered: listed periodically
+	private final Set<String> unwatched = ConcurrentHashMap.newKeySet();
+	private Thread thread;
+
+	/**
+	 * @param dir Folder to watch, created if it does not exist
+	 * @param debounceMs Quiet time that ends a burst of events
+	 * @param catalog Catalog kept current
+	 * @param listener Receives every change of the catalog, on the watcher thread
+	 */
+	public DirectoryWatcher(File dir, long debounceMs, PeerCatalog catalog, Consumer<PeerCatalog.Delta> listener) {
+		this.dir = dir;
+		this.debounceMs = debounceMs;
+		this.catalog = catalog;
+		this.listener = listener;
+	}
+
+	/**
+	 * Lists the folder into the catalog and starts watching it
+	 * @return the changes found by the initial listing
+	 * @throws IOException if the folder cannot be watched
+	 */
+	public synchronized PeerCatalog.Delta start() throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		WatchService ws;
+		try {
+			ws = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			//no WatchService left: poll the whole tree instead
+			System.out.println("\t" + e.getMessage() + ": Directory Watcher, listing " + dir + " periodically");
+			ws = null;
+		}
+		if(ws != null)
+			register(ws, "");
+		watchService = ws;
+		//events that arrive while listing are applied afterwards, so nothing falls in between
+		PeerCatalog.Delta initial = catalog.scan(dir, ignore);
+		thread = new Thread(ws != null ? this::run : this::poll, "DirectoryWatcher-" + dir.getName());
+		thread.setDaemon(true);
+		thread.start();
+		return initial;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public PeerCatalog getCatalog() {
+		return catalog;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(thread == null)
+			return;
+		if(watchService != null)
+			watchService.close();
+		else
+			thread.interrupt();
+		watchService = null;
+		folders.clear();
+		unwatched.clear();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	/**
+	 * Checks whether the folder is watched through events rather than listed periodically
+	 */
+	public synchronized boolean isWatching() {
+		return watchService != null;
+	}
+
+	/**
+	 * True for names of files still being written by a transfer
+	 * @param name Name of the file
+	 */
+	public static boolean isTemporary(String name) {
+		for(String suffix : TEMPORARY_SUFFIXES)
+			if(name.endsWith(suffix))
+				return true;
+		return false;
+	}
+
+	// watches the folder of the given relative name and every folder below it; the folders that
+	// cannot be watched are listed periodically instead, and reported once per call
+	private void register(WatchService ws, String folder) {
+		List<String> below = Collections.synchronizedList(new ArrayList<String>());
+		if(!folder.isEmpty())
+			below.add(folder);
+		TreeWalk.walk(dir, folder, ignore, (name, e) -> {
+		}, below::add);
+		List<String> prefixes = new ArrayList<String>();
+		if(folder.isEmpty())
+			prefixes.add("");
+		for(String name : below)
+			prefixes.add(name + "/");
+		IOException first = null;
+		int failed = 0;
+		for(String prefix : prefixes) {
+			try {
+				watch(ws, prefix);
+			} catch (IOException e) {
+				unwatched.add(prefix);
+				if(first == null)
+					first = e;
+				failed++;
+			}
+		}
+		if(first != null)
+			System.out.println("\t" + first.getMessage() + ": Directory Watcher, listing " + failed + " of "
+					+ prefixes.size() + " folders periodically");
+	}
+
+	private void watch(WatchService ws, String prefix) throws IOException {
+		Path p = prefix.isEmpty() ? dir.toPath() : new File(dir, prefix).toPath();
+		WatchKey key = p.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		folders.put(key, prefix);
+	}
+
+	// adds the names that may have changed in the folders without a watch: the files listed in them
+	// or cataloged there, and new subfolders, which are watched from now on and walked as a whole
+	private void listUnwatched(WatchService ws, Set<String> dirty) {
+		Set<String> known = new HashSet<String>(folders.values());
+		known.addAll(unwatched);
+		for(String prefix : new ArrayList<String>(unwatched)) {
+			File folder = prefix.isEmpty() ? dir : new File(dir, prefix);
+			String[] listed = folder.list();
+			if(listed == null) {
+				//gone: dropped as a whole, and listed no more
+				unwatched.remove(prefix);
+				if(!prefix.isEmpty())
+					dirty.add(prefix.substring(0, prefix.length() - 1));
+				continue;
+			}
+			for(String child : listed) {
+				String name = prefix + child;
+				if(ignore.test(name))
+					continue;
+				if(!new File(folder, child).isDirectory())
+					dirty.add(name);
+				else if(!known.contains(name + "/")) {
+					register(ws, name);
+					dirty.add(name);
+				}
+			}
+			dirty.addAll(catalog.namesIn(prefix));
+		}
+	}
+
+	private void run() {
+		WatchService ws = watchService;
+		Set<String> dirty = new HashSet<String>();
+		boolean overflow = false;
+		long first = 0;
+		long last = 0;
+		long listEvery = TimeUnit.MILLISECONDS.toNanos(debounceMs * MAX_DELAY_FACTOR);
+		long nextList = System.nanoTime() + listEvery;
+		try {
+			while(true) {
+				long now = System.nanoTime();
+				if(!unwatched.isEmpty() && now - nextList >= 0) {
+					nextList = now + listEvery;
+					boolean wasIdle = dirty.isEmpty() && !overflow;
+					listUnwatched(ws, dirty);
+					if(wasIdle && !dirty.isEmpty())
+						first = last = now;
+				}
+				boolean idle = dirty.isEmpty() && !overflow;
+				long flushAt = Math.min(last + TimeUnit.MILLISECONDS.toNanos(debounceMs), first + listEvery);
+				WatchKey key;
+				if(idle && unwatched.isEmpty())
+					key = ws.take();
+				else {
+					long until = idle ? nextList : unwatched.isEmpty() || flushAt - nextList < 0 ? flushAt : nextList;
+					key = until - now > 0 ? ws.poll(until - now, TimeUnit.NANOSECONDS) : null;
+				}
+				if(key == null) {
+					//quiet long enough (or burst too long): one delta for everything collected;
+					//otherwise it is time to list the folders without a watch
+					if(!idle && System.nanoTime() - flushAt >= 0) {
+						flush(dirty, overflow);
+						dirty.clear();
+						overflow = false;
+					}
+					continue;
+				}
+				now = System.nanoTime();
+				if(dirty.isEmpty() && !overflow)
+					first = now;
+				last = now;
+				String prefix = folders.get(key);
+				for(WatchEvent<?> event : key.pollEvents()) {
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW || prefix == null) {
+						overflow = true;
+						continue;
+					}
+					String name = prefix + ((Path) event.context()).toString();
+					dirty.add(name);
+					//a new folder is watched before it is walked, so no file created in it is missed
+					if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && new File(dir, name).isDirectory()
+							&& !ignore.test(name))
+						register(ws, name);
+				}
+				if(!key.reset())
+					folders.remove(key);
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			//closed: pending changes are dropped with the watcher
+		}
+	}
+
+	// without a WatchService: the whole folder is listed at the longest delay of a burst
+	private void poll() {
+		try {
+			while(true) {
+				Thread.sleep(debounceMs * MAX_DELAY_FACTOR);
+				flush(null, true);
+			}
+		} catch (InterruptedException e) {
+			//closed
+		}
+	}
+
+	private void flush(Set<String> dirty, boolean overflow) {
+		PeerCatalog.Delta delta = overflow ? catalog.scan(dir, ignore) : catalog.refresh(dir, dirty, ignore);
+		if(delta.isEmpty())
+			return;
+		try {
+			listener.accept(delta);
+		} catch (RuntimeException e) {
+			System.out.println("\t" + e.getMessage() + ": Directory Watcher");
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package p2p;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index from file name to the peers holding it, kept by the index server.
+ * Names live once in a sorted array next to a parallel array of peer sets, so exact
+ * lookups and prefix lookups are binary searches. Peers are interned to small int ids
+ * and the sets are sorted int arrays; the common single-holder set is shared per peer,
+ * which keeps an entry down to the name itself plus two array slots.
+ * New names collect in a small sorted buffer that is merged into the arrays in bulk.
+ * @param <P> type identifying a peer
+ */
+public class FileIndex<P> {
+	private static final int[] NONE = new int[0];
+	// Smallest pending buffer that triggers a merge
+	private static final int MIN_MERGE = 1024;
+
+	// Sorted names and, at the same position, the ids of the peers holding them
+	private String[] names = new String[0];
+	private int[][] holders = new int[0][];
+	// Names whose last holder left, dropped at the next merge
+	private int empty;
+	// Names added since the last merge
+	private final TreeMap<String, int[]> pending = new TreeMap<String, int[]>();
+	// Peer interning
+	private final List<P> peers = new ArrayList<P>();
+	private final Map<P, Integer> peerIds = new HashMap<P, Integer>();
+	private final List<Integer> freeIds = new ArrayList<Integer>();
+	// Number of names held by each peer id, to recycle ids of peers that hold nothing
+	private final List<Integer> peerFiles = new ArrayList<Integer>();
+	// Shared single-holder sets, by peer id
+	private final List<int[]> singletons = new ArrayList<int[]>();
+
+	/**
+	 * Records that a peer holds the given files
+	 * @param peer Peer holding the files
+	 * @param files Names of the files
+	 */
+	public synchronized void add(P peer, Collection<String> files) {
+		insert(peer, files);
+		if(pending.size() > Math.max(MIN_MERGE, names.length / 8))
+			merge();
+	}
+
+	/**
+	 * Records the files of many peers at once, such as a whole table being restored:
+	 * the new names are merged into the sorted arrays once rather than every few peers
+	 * @param files Names of the files by peer
+	 */
+	public synchronized void addAll(Map<P, ? extends Collection<String>> files) {
+		for(Map.Entry<P, ? extends Collection<String>> e : files.entrySet())
+			insert(e.getKey(), e.getValue());
+		if(pending.size() > Math.max(MIN_MERGE, names.length / 8))
+			merge();
+	}
+
+	private void insert(P peer, Collection<String> files) {
+		int id = intern(peer);
+		for(String name : files) {
+			int i = Arrays.binarySearch(names, name);
+			if(i >= 0) {
+				int[] set = holders[i];
+				if(set.length == 0)
+					empty--;
+				int[] updated = with(set, id);
+				if(updated != set)
+					peerFiles.set(id, peerFiles.get(id) + 1);
+				holders[i] = updated;
+			}
+			else {
+				int[] set = pending.get(name);
+				int[] updated = with(set == null ? NONE : set, id);
+				if(updated != set) {
+					peerFiles.set(id, peerFiles.get(id) + 1);
+					pending.put(name, updated);
+				}
+			}
+		}
+		if(peerFiles.get(id) == 0)
+			release(id);
+	}
+
+	/**
+	 * Records that a peer no longer holds the given files
+	 * @param peer Peer that held the files
+	 * @param files Names of the files
+	 */
+	public synchronized void remove(P peer, Collection<String> files) {
+		Integer boxed = peerIds.get(peer);
+		if(boxed == null)
+			return;
+		int id = boxed;
+		for(String name : files) {
+			int i = Arrays.binarySearch(names, name);
+			if(i >= 0) {
+				int[] set = holders[i];
+				int[] updated = without(set, id);
+				if(updated != set) {
+					peerFiles.set(id, peerFiles.get(id) - 1);
+					holders[i] = updated;
+					if(updated.length == 0)
+						empty++;
+				}
+			}
+			else {
+				int[] set = pending.get(name);
+				if(set == null)
+					continue;
+				int[] updated = without(set, id);
+				if(updated != set) {
+					peerFiles.set(id, peerFiles.get(id) - 1);
+					if(updated.length == 0)
+						pending.remove(name);
+					else
+						pending.put(name, updated);
+				}
+			}
+		}
+		if(peerFiles.get(id) == 0)
+			release(id);
+		if(empty > Math.max(MIN_MERGE, names.length / 4))
+			merge();
+	}
+
+	/**
+	 * Peers holding a file
+	 * @param name Exact name of the file
+	 * @return peers holding the file, empty if none
+	 */
+	public synchronized Set<P> lookup(String name) {
+		int i = Arrays.binarySearch(names, name);
+		int[] set = i >= 0 ? holders[i] : pending.get(name);
+		return toPeers(set);
+	}
+
+	/**
+	 * Files whose name starts with a prefix, with their holders
+	 * @param prefix Prefix of the names
+	 * @param limit Maximum number of names returned
+	 * @return matching names in order, each with the peers holding it
+	 */
+	public synchronized SortedMap<String, Set<P>> prefix(String prefix, int limit) {
+		TreeMap<String, Set<P>> result = new TreeMap<String, Set<P>>();
+		int i = Arrays.binarySearch(names, prefix);
+		if(i < 0)
+			i = -i - 1;
+		for(; i < names.length && names[i].startsWith(prefix) && result.size() < limit; i++)
+			if(holders[i].length > 0)
+				result.put(names[i], toPeers(holders[i]));
+		for(Map.Entry<String, int[]> e : pending.tailMap(prefix, true).entrySet()) {
+			if(!e.getKey().startsWith(prefix))
+				break;
+			if(result.size() == limit && e.getKey().compareTo(result.lastKey()) > 0)
+				break;
+			result.put(e.getKey(), toPeers(e.getValue()));
+			if(result.size() > limit)
+				result.remove(result.lastKey());
+		}
+		return result;
+	}
+
+	/**
+	 * Getter for the number of distinct names in the index
+	 * @return indexed names
+	 */
+	public synchronized int size() {
+		return names.length - empty + pending.size();
+	}
+
+	// folds the pending names into the sorted arrays and drops names without holders
+	private void merge() {
+		int n = names.length - empty + pending.size();
+		String[] mergedNames = new String[n];
+		int[][] mergedHolders = new int[n][];
+		int i = 0;
+		int k = 0;
+		Iterator<Map.Entry<String, int[]>> it = pending.entrySet().iterator();
+		Map.Entry<String, int[]> next = it.hasNext() ? it.next() : null;
+		while(i < names.length || next != null) {
+			if(i < names.length && holders[i].length == 0) {
+				i++;
+				continue;
+			}
+			if(next == null || (i < names.length && names[i].compareTo(next.getKey()) < 0)) {
+				mergedNames[k] = names[i];
+				mergedHolders[k++] = holders[i++];
+			}
+			else {
+				mergedNames[k] = next.getKey();
+				mergedHolders[k++] = next.getValue();
+				next = it.hasNext() ? it.next() : null;
+			}
+		}
+		names = mergedNames;
+		holders = mergedHolders;
+		empty = 0;
+		pending.clear();
+	}
+
+	private int intern(P peer) {
+		Integer id = peerIds.get(peer);
+		if(id != null)
+			return id;
+		if(!freeIds.isEmpty()) {
+			id = freeIds.remove(freeIds.size() - 1);
+			peers.set(id, peer);
+			peerFiles.set(id, 0);
+		}
+		else {
+			id = peers.size();
+			peers.add(peer);
+			peerFiles.add(0);
+			singletons.add(new int[] { id });
+		}
+		peerIds.put(peer, id);
+		return id;
+	}
+
+	private void release(int id) {
+		peerIds.remove(peers.get(id));
+		peers.set(id, null);
+		freeIds.add(id);
+	}
+
+	// set plus id, the same array if id is already in it
+	private int[] with(int[] set, int id) {
+		if(set.length == 0)
+			return singletons.get(id);
+		int i = Arrays.binarySearch(set, id);
+		if(i >= 0)
+			return set;
+		i = -i - 1;
+		int[] updated = new int[set.length + 1];
+		System.arraycopy(set, 0, updated, 0, i);
+		updated[i] = id;
+		System.arraycopy(set, i, updated, i + 1, set.length - i);
+		return updated;
+	}
+
+	// set minus id, the same array if id is not in it
+	private int[] without(int[] set, int id) {
+		int i = Arrays.binarySearch(set, id);
+		if(i < 0)
+			return set;
+		if(set.length == 1)
+			return NONE;
+		if(set.length == 2)
+			return singletons.get(set[1 - i]);
+		int[] updated = new int[set.length - 1];
+		System.arraycopy(set, 0, updated, 0, i);
+		System.arraycopy(set, i + 1, updated, i, set.length - i - 1);
+		return updated;
+	}
+
+	private Set<P> toPeers(int[] set) {
+		Set<P> result = new LinkedHashSet<P>();
+		if(set != null)
+			for(int id : set)
+				result.add(peers.get(id));
+		return result;
+	}
+}
@@ -0,0 +1,605 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * File serving engine for the p2p network term project.
+ * One acceptor thread hands every connection to a worker pool, so a slow downloader
+ * only holds its own worker. At most maxConnections transfers run at once; further
+ * connection attempts wait in the accept backlog until a slot is released.
+ * Each connection carries any number of named file requests (see TransferProtocol).
+ * File contents are streamed with FileChannel.transferTo and never copied onto the heap,
+ * which also lifts the old 2 GB limit of the byte[] based listener.
+ * A client that offers DEFLATE in HELLO gets compressible files in deflated blocks instead;
+ * whether a file is compressible is decided once per version from a sample of it, taken
+ * while its checksums are computed.
+ * Uploads can be limited in rate for the server as a whole and for each peer; file data is
+ * charged to the peer's TokenBucket, which charges the server's, while headers and other
+ * small answers go out unthrottled so lookups stay quick under a saturated link.
+ * Given a Metrics, the server records every file it sends, the bytes sent to each peer and
+ * the connections that failed.
+ */
+public class FileServer {
+	// Default limit on concurrent uploads
+	public static final int DEFAULT_MAX_CONNECTIONS = 16;
+	// Address the server is bound to
+	private final InetSocketAddress bindAddress;
+	// Limit on concurrent connections
+	private final int maxConnections;
+	// Permits for the connections currently being served
+	private final Semaphore slots;
+	// Folder whose files are served
+	private final Supplier<File> root;
+	// Checksums of served files keyed by path, valid while size and modification time match
+	private final ConcurrentHashMap<String, HashCache.Digest> checksums = new ConcurrentHashMap<String, HashCache.Digest>();
+	// Checksums kept across restarts, by name relative to the root, null for none
+	private volatile HashCache hashCache;
+	// Read buffer for checksumming, one per worker thread
+	private static final ThreadLocal<byte[]> CRC_BUFFER = ThreadLocal.withInitial(() -> new byte[64 << 10]);
+	// Files smaller than this are never compressed
+	public static final int MIN_COMPRESS = 4 << 10;
+	// A file is compressed if its sample deflates to less than this share of its size
+	private static final double MAX_RATIO = 0.9;
+	// Deflater in its fastest mode and block buffers for compressed answers, one per worker thread
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<byte[][]> BLOCK_BUFFERS = ThreadLocal.withInitial(
+			() -> new byte[][] { new byte[TransferProtocol.BLOCK], new byte[TransferProtocol.BLOCK] });
+
+	// Channel accepting incoming connections
+	private ServerSocketChannel server;
+	// Thread running the accept loop
+	private Thread acceptor;
+	// Pool of threads serving accepted connections
+	private ExecutorService workers;
+	// Boolean for the accept loop
+	private volatile boolean on;
+	// Whether connections are reported on the console
+	private volatile boolean verbose = true;
+	// Codecs accepted in HELLO
+	private volatile byte codecs = TransferProtocol.DEFLATE;
+	// Upload rate of the whole server, and of each peer, 0 for no limit
+	private final TokenBucket uploadLimit = new TokenBucket(0);
+	private volatile long peerUploadRate;
+	// Upload buckets of the connected peers below uploadLimit, dropped with their last connection
+	private final ConcurrentHashMap<InetAddress, PeerShare> peerShares = new ConcurrentHashMap<InetAddress, PeerShare>();
+	// Where uploads are recorded, null for nowhere
+	private volatile Metrics metrics;
+
+	// upload bucket of one peer and the number of its connections being served
+	private static final class PeerShare {
+		final TokenBucket bucket;
+		int connections;
+
+		PeerShare(TokenBucket bucket) {
+			this.bucket = bucket;
+		}
+	}
+
+	/**
+	 * Constructor for a server listening on all interfaces
+	 * @param port Port to listen on
+	 * @param maxConnections Limit on concurrent connections
+	 * @param root Folder whose files are served
+	 */
+	public FileServer(int port, int maxConnections, Supplier<File> root) {
+		this(new InetSocketAddress(port), maxConnections, root);
+	}
+
+	/**
+	 * Constructor for a server listening on the given address (port 0 picks a free port)
+	 * @param bindAddress Address to listen on
+	 * @param maxConnections Limit on concurrent connections
+	 * @param root Folder whose files are served
+	 */
+	public FileServer(InetSocketAddress bindAddress, int maxConnections, Supplier<File> root) {
+		if(maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+		this.bindAddress = bindAddress;
+		this.maxConnections = maxConnections;
+		this.slots = new Semaphore(maxConnections);
+		this.root = root;
+	}
+
+	/**
+	 * Getter for the port the server is listening on
+	 * @return local port, or -1 if the server is not started
+	 */
+	public int getLocalPort() {
+		return server == null ? -1 : server.socket().getLocalPort();
+	}
+
+	/**
+	 * Getter for the limit on concurrent connections
+	 * @return maximum number of connections served at once
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Getter for the number of connections currently being served
+	 * @return active connections
+	 */
+	public int getActiveConnections() {
+		return maxConnections - slots.availablePermits();
+	}
+
+	/**
+	 * Turns the per-connection console output on or off
+	 * @param verbose true to print every served connection
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Turns compression of file data on or off for connections negotiated from now on
+	 * @param compress false to answer every HELLO with no codec
+	 */
+	public void setCompression(boolean compress) {
+		this.codecs = compress ? TransferProtocol.DEFLATE : 0;
+	}
+
+	/**
+	 * Limits the upload rate of the server as a whole, including running transfers
+	 * @param bytesPerSecond Rate in bytes per second, 0 for no limit
+	 */
+	public void setUploadLimit(long bytesPerSecond) {
+		uploadLimit.setRate(bytesPerSecond);
+	}
+
+	public long getUploadLimit() {
+		return uploadLimit.getRate();
+	}
+
+	/**
+	 * Limits the upload rate to each peer, over all of its connections, including running transfers
+	 * @param bytesPerSecond Rate in bytes per second, 0 for no limit
+	 */
+	public void setPeerUploadLimit(long bytesPerSecond) {
+		peerUploadRate = bytesPerSecond;
+		for(PeerShare share : peerShares.values())
+			share.bucket.setRate(bytesPerSecond);
+	}
+
+	public long getPeerUploadLimit() {
+		return peerUploadRate;
+	}
+
+	/**
+	 * Takes checksums from a cache kept across restarts, and adds the ones computed to it
+	 * @param cache Cache of the files of the root, null for none
+	 */
+	public void setHashCache(HashCache cache) {
+		hashCache = cache;
+	}
+
+	/**
+	 * Records uploads and failures from now on
+	 * @param metrics Metrics to record into, null to stop recording
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Getter for the file data sent so far
+	 * @return bytes, compressed size where the data went out compressed
+	 */
+	public long getUploaded() {
+		return uploadLimit.getTaken();
+	}
+
+	/**
+	 * Getter for the time transfers spent held back by the server's upload limit so far
+	 * @return nanoseconds
+	 */
+	public long getThrottled() {
+		return uploadLimit.getWaited();
+	}
+
+	/**
+	 * Checks whether the accept loop is running
+	 * @return true if the server is started and not yet stopped
+	 */
+	public boolean isRunning() {
+		return on;
+	}
+
+	/**
+	 * Binds the server socket and starts the accept loop in a separate thread
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		if(on)
+			return;
+		server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		server.bind(bindAddress, maxConnections * 4);
+		workers = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "FileServer-worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		on = true;
+		acceptor = new Thread(this::acceptLoop, "FileServer-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stops accepting connections and waits briefly for running transfers to finish
+	 */
+	public synchronized void stop() {
+		if(!on)
+			return;
+		on = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+			System.out.println("\t" + e.getMessage() + ": File Server Close");
+		}
+		workers.shutdown();
+		try {
+			acceptor.join();
+			if(!workers.awaitTermination(5, TimeUnit.SECONDS))
+				workers.shutdownNow();
+		} catch (InterruptedException e) {
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// accept loop: take a slot, accept, hand the connection to a worker
+	private void acceptLoop() {
+		if(verbose)
+			System.out.println("\tSocket started listening for connection attempt...");
+		while(on) {
+			SocketChannel ch = null;
+			try {
+				slots.acquire();
+				ch = server.accept();
+				final SocketChannel client = ch;
+				workers.execute(() -> serve(client));
+			} catch (ClosedChannelException e) {
+				slots.release();
+				break;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Exception e) {
+				//accept failure or rejected task: give the slot back and keep serving
+				slots.release();
+				closeQuietly(ch);
+				if(on) {
+					System.out.println("\t" + e.getMessage() + ": Listener");
+					Metrics m = metrics;
+					if(m != null)
+						m.failure("Listener", e);
+				}
+			}
+		}
+	}
+
+	// serves one connection: requests are answered in order until END or end of stream
+	private void serve(SocketChannel ch) {
+		InetAddress peer = null;
+		Metrics m = metrics;
+		try {
+			peer = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+			if(verbose)
+				System.out.println("Sending files to " + peer);
+			Metrics.Traffic traffic = m == null ? null : m.peer(peer);
+			TokenBucket limit = share(peer);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+			//only deltas go through out
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new ThrottledStream(Channels.newOutputStream(ch), limit), 64 << 10));
+			ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+			//codec agreed on in HELLO, none until then
+			byte codec = 0;
+			while(true) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				if(op == TransferProtocol.END)
+					break;
+				long start = System.nanoTime();
+				long sent = 0;
+				switch(op) {
+				case TransferProtocol.HELLO:
+					codec = (byte) (in.readByte() & codecs & TransferProtocol.DEFLATE);
+					writeFully(ch, ByteBuffer.wrap(new byte[] { codec }));
+					//not an upload
+					continue;
+				case TransferProtocol.GET:
+					sent = sendFile(ch, op, in.readUTF(), 0, Long.MAX_VALUE, -1, header, codec, limit);
+					break;
+				case TransferProtocol.STAT:
+					sendFile(ch, op, in.readUTF(), 0, 0, -1, header, codec, limit);
+					continue;
+				case TransferProtocol.RANGE: {
+					String name = in.readUTF();
+					long offset = in.readLong();
+					sent = sendFile(ch, op, name, offset, in.readLong(), -1, header, codec, limit);
+					break;
+				}
+				case TransferProtocol.RESUME: {
+					String name = in.readUTF();
+					long offset = in.readLong();
+					long length = in.readLong();
+					sent = sendFile(ch, op, name, offset, length, in.readLong(), header, codec, limit);
+					break;
+				}
+				case TransferProtocol.DELTA:
+					sent = sendDelta(in.readUTF(), DeltaSync.Signature.read(in), out);
+					break;
+				default:
+					throw new IOException("Unknown request " + op);
+				}
+				//files that were missing or unchanged are not uploads
+				if(traffic != null && sent > 0)
+					m.upload(traffic, System.nanoTime() - start, sent);
+			}
+		} catch (IOException e) {
+			System.out.println("\t" + e.getMessage() + ": Listener");
+			if(m != null)
+				m.failure("Listener", e);
+		} finally {
+			closeQuietly(ch);
+			if(peer != null)
+				release(peer);
+			slots.release();
+		}
+	}
+
+	// upload bucket of a peer for one more connection
+	private TokenBucket share(InetAddress peer) {
+		return peerShares.compute(peer, (ip, share) -> {
+			if(share == null)
+				share = new PeerShare(new TokenBucket(peerUploadRate, uploadLimit));
+			share.connections++;
+			return share;
+		}).bucket;
+	}
+
+	private void release(InetAddress peer) {
+		peerShares.computeIfPresent(peer, (ip, share) -> --share.connections == 0 ? null : share);
+	}
+
+	// writes the header and the requested part of one file (nothing for STAT), deflated if the codec allows it and the file is worth it
+	// for RESUME, count is the length the client's part belongs to and crc its CRC32; returns the bytes of file data sent
+	private long sendFile(SocketChannel ch, byte op, String name, long offset, long count, long crc,
+			ByteArrayOutputStream header, byte codec, TokenBucket limit) throws IOException {
+		File f = TransferProtocol.resolve(root.get(), name);
+		header.reset();
+		if(f == null || offset < 0 || count < 0) {
+			new TransferProtocol.Header(TransferProtocol.NOT_FOUND, name, 0, 0).write(new DataOutputStream(header));
+			writeFully(ch, ByteBuffer.wrap(header.toByteArray()));
+			return 0;
+		}
+		try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long size = fc.size();
+			HashCache.Digest d = digests(f, fc, size);
+			TransferProtocol.Header h;
+			if(op == TransferProtocol.STAT)
+				h = new TransferProtocol.Header(TransferProtocol.INFO, name, size, d.crc);
+			else {
+				//a part of another version is of no use: the client gets the whole file instead
+				boolean partial = op == TransferProtocol.RANGE
+						|| (op == TransferProtocol.RESUME && count == size && crc == d.crc && offset <= size);
+				long start = partial ? Math.min(offset, size) : 0;
+				long n = op == TransferProtocol.RANGE ? Math.min(count, size - start) : size - start;
+				byte encoding = codec == TransferProtocol.DEFLATE && d.compressible && n >= MIN_COMPRESS ? TransferProtocol.DEFLATE : 0;
+				h = new TransferProtocol.Header(partial ? TransferProtocol.PARTIAL : TransferProtocol.OK,
+						name, size, d.crc, start, n, encoding);
+			}
+			h.write(new DataOutputStream(header));
+			writeFully(ch, ByteBuffer.wrap(header.toByteArray()));
+			if(h.encoding == TransferProtocol.DEFLATE)
+				return sendBlocks(ch, fc, h, limit);
+			long pos = h.offset;
+			long end = h.offset + h.count;
+			//under an upload limit a block at a time, so the limit holds back every peer evenly
+			long slice = limit.isLimited() ? TransferProtocol.BLOCK : Long.MAX_VALUE;
+			while(pos < end) {
+				long n = fc.transferTo(pos, Math.min(end - pos, slice), ch);
+				limit.acquire(n);
+				//the header promised count bytes, a shrinking file breaks the framing
+				if(n <= 0 && fc.size() <= pos)
+					throw new IOException(name + " was truncated during transfer");
+				pos += n;
+			}
+			return h.count;
+		}
+	}
+
+	// writes the announced part of a file as deflated blocks; a block that does not shrink is stored
+	// returns the bytes written, block lengths included
+	private static long sendBlocks(SocketChannel ch, FileChannel fc, TransferProtocol.Header h, TokenBucket limit) throws IOException {
+		byte[][] buffers = BLOCK_BUFFERS.get();
+		byte[] raw = buffers[0];
+		byte[] packed = buffers[1];
+		Deflater deflater = DEFLATER.get();
+		ByteBuffer lengths = ByteBuffer.allocate(8);
+		long sent = 0;
+		long pos = h.offset;
+		long end = h.offset + h.count;
+		while(pos < end) {
+			int n = (int) Math.min(raw.length, end - pos);
+			ByteBuffer data = ByteBuffer.wrap(raw, 0, n);
+			while(data.hasRemaining())
+				if(fc.read(data, pos + data.position()) < 0)
+					throw new IOException(h.name + " was truncated during transfer");
+			deflater.reset();
+			deflater.setInput(raw, 0, n);
+			deflater.finish();
+			int stored = 0;
+			while(!deflater.finished() && stored < n)
+				stored += deflater.deflate(packed, stored, n - stored);
+			boolean shrunk = deflater.finished() && stored < n;
+			lengths.clear();
+			lengths.putInt(n).putInt(shrunk ? stored : n).flip();
+			writeFully(ch, lengths);
+			writeFully(ch, ByteBuffer.wrap(shrunk ? packed : raw, 0, shrunk ? stored : n));
+			limit.acquire(8 + (shrunk ? stored : n));
+			sent += 8 + (shrunk ? stored : n);
+			pos += n;
+		}
+		return sent;
+	}
+
+	// writes the changes of one file against the client's copy described by sig; returns the bytes of the delta
+	private long sendDelta(String name, DeltaSync.Signature sig, DataOutputStream out) throws IOException {
+		File f = TransferProtocol.resolve(root.get(), name);
+		if(f == null) {
+			new TransferProtocol.Header(TransferProtocol.NOT_FOUND, name, 0, 0).write(out);
+			out.flush();
+			return 0;
+		}
+		HashCache.Digest d;
+		try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			d = digests(f, fc, fc.size());
+		}
+		if(d.size == sig.length && Arrays.equals(d.md5, sig.md5)) {
+			new TransferProtocol.Header(TransferProtocol.UNCHANGED, name, d.size, d.crc).write(out);
+			out.flush();
+			return 0;
+		}
+		new TransferProtocol.Header(TransferProtocol.DELTA_FOLLOWS, name, d.size, d.crc).write(out);
+		int start = out.size();
+		DeltaSync.writeDelta(f, sig, out);
+		out.flush();
+		//size() stops counting at 2 GB per connection, far beyond a batch of deltas
+		return out.size() - start;
+	}
+
+	// CRC32 and MD5 of the file, computed once per size and modification time, taken from hashCache if it has them
+	private HashCache.Digest digests(File f, FileChannel fc, long size) throws IOException {
+		String key = f.getAbsolutePath();
+		long modified = f.lastModified();
+		HashCache.Digest cached = checksums.get(key);
+		if(cached != null && cached.size == size && cached.modified == modified)
+			return cached;
+		HashCache cache = hashCache;
+		String name = cache != null ? HashCache.relative(root.get(), f) : null;
+		HashCache.Digest d = cache != null ? cache.get(name, size, modified) : null;
+		if(d == null) {
+			d = digest(fc, size, modified);
+			if(cache != null)
+				cache.put(name, d);
+		}
+		checksums.put(key, d);
+		return d;
+	}
+
+	/**
+	 * Reads a whole file for its CRC32 and MD5, and deflates a sample of it to see whether it is
+	 * worth compressing (the first buffer and the one in the middle)
+	 */
+	static HashCache.Digest digest(FileChannel fc, long size, long modified) throws IOException {
+		CRC32 crc = new CRC32();
+		MessageDigest md5 = DeltaSync.md5();
+		byte[] buf = CRC_BUFFER.get();
+		ByteBuffer wrapped = ByteBuffer.wrap(buf);
+		long sampled = 0;
+		long packed = 0;
+		long pos = 0;
+		while(pos < size) {
+			wrapped.clear();
+			int n = fc.read(wrapped, pos);
+			if(n < 0)
+				break;
+			crc.update(buf, 0, n);
+			md5.update(buf, 0, n);
+			if(pos == 0 || (pos <= size / 2 && size / 2 < pos + n && sampled < 2 * buf.length)) {
+				sampled += n;
+				packed += deflatedSize(buf, n);
+			}
+			pos += n;
+		}
+		return new HashCache.Digest(size, modified, crc.getValue(), md5.digest(), size >= MIN_COMPRESS && packed < sampled * MAX_RATIO);
+	}
+
+	// size of data[0..n) deflated in the fastest mode
+	private static long deflatedSize(byte[] data, int n) {
+		Deflater deflater = DEFLATER.get();
+		byte[] sink = BLOCK_BUFFERS.get()[1];
+		deflater.reset();
+		deflater.setInput(data, 0, n);
+		deflater.finish();
+		long size = 0;
+		while(!deflater.finished())
+			size += deflater.deflate(sink);
+		return size;
+	}
+
+	private static void writeFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining())
+			ch.write(buf);
+	}
+
+	// charges everything written to a bucket
+	private static final class ThrottledStream extends FilterOutputStream {
+		private final TokenBucket limit;
+
+		ThrottledStream(OutputStream out, TokenBucket limit) {
+			super(out);
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			limit.acquire(len);
+		}
+	}
+
+	private static void closeQuietly(SocketChannel ch) {
+		if(ch == null)
+			return;
+		try {
+			ch.close();
+		} catch (IOException e) {
+			//nothing left to clean up
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of the files of a shared folder, kept on disk across restarts.
+ * A file is known by its relative name, size and modification time: while all three match, its
+ * checksums are taken from the cache, otherwise it is read again. The cache is an append-only
+ * log of records, one per file version hashed, read back in full when it is opened (the last
+ * record of a name wins); a record whose check does not match ends the log, so a write cut off
+ * by a crash costs only the files hashed last. Once most records are outdated, the log is
+ * rewritten with the current ones. Appends reach the operating system on flush and are not
+ * forced: a lost record only means the file is hashed again.
+ * Files modified less than RACY_MS before they were hashed are cached in memory only, as a
+ * change within the same tick of the modification time would otherwise go unnoticed.
+ * Files are hashed by threads of the cache's own, as many as it was opened with; they end when
+ * idle and are shut down when the cache is closed.
+ *
+ * Log encoding: magic(int) version(byte) {nameLength(short) name(UTF-8) size(long) modified(long) crc(int) md5(16 bytes)
+ *               flags(byte) check(int)}, check being the CRC32 of the record before it
+ */
+public class HashCache implements Closeable {
+	private static final int MAGIC = 0x50325048;
+	private static final byte VERSION = 1;
+	// Bytes of a record after its name and before its check
+	private static final int FIXED = 8 + 8 + 4 + 16 + 1;
+	private static final byte COMPRESSIBLE = 1;
+	// Files younger than this when hashed are not written to the log
+	public static final long RACY_MS = 2000;
+	// The log is rewritten when it holds more than this many records beyond twice the current ones
+	private static final int MIN_GARBAGE = 1024;
+
+	/**
+	 * Checksums of one version of a file, and whether a sample of it deflated well
+	 */
+	public static final class Digest {
+		public final long size;
+		public final long modified;
+		public final long crc;
+		public final byte[] md5;
+		public final boolean compressible;
+
+		public Digest(long size, long modified, long crc, byte[] md5, boolean compressible) {
+			this.size = size;
+			this.modified = modified;
+			this.crc = crc;
+			this.md5 = md5;
+			this.compressible = compressible;
+		}
+	}
+
+	/**
+	 * Interface for computing the digest of an open file (see FileServer.digest)
+	 */
+	public interface Hasher {
+		Digest hash(FileChannel fc, long size, long modified) throws IOException;
+	}
+
+	private final File file;
+	private final Map<String, Digest> digests = new HashMap<String, Digest>();
+	// Records in the log, current or not
+	private int records;
+	private DataOutputStream log;
+	// Files hashed by update since the cache was opened
+	private final AtomicInteger hashed = new AtomicInteger();
+	// Files hashed at once, and the threads hashing them besides the caller of update
+	private final int threads;
+	private final ThreadPoolExecutor hashers;
+
+	private HashCache(File file, int threads) {
+		this.file = file;
+		this.threads = Math.max(1, threads);
+		AtomicInteger n = new AtomicInteger();
+		hashers = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			Thread t = new Thread(r, "Hashing-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		hashers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Reads a cache hashing as many files at once as there are cores
+	 * @see #open(File, int)
+	 */
+	public static HashCache open(File file) throws IOException {
+		return open(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Reads a cache, or starts an empty one if the file does not exist or is not a cache
+	 * @param file Log of the cache
+	 * @param threads Files hashed at once by update, such as the number of cores
+	 * @throws IOException if the log cannot be written
+	 */
+	public static HashCache open(File file, int threads) throws IOException {
+		HashCache c = new HashCache(file, threads);
+		long valid = c.load();
+		if(valid < 0 || c.records > 2 * c.digests.size() + MIN_GARBAGE)
+			c.rewrite();
+		else {
+			try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				//a torn record at the end is dropped before anything is appended
+				fc.truncate(valid);
+			}
+			c.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 << 10));
+		}
+		return c;
+	}
+
+	// reads the log; returns the length of its valid part, -1 if there is no log to append to
+	private long load() throws IOException {
+		if(!file.isFile())
+			return -1;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), 256 << 10)) {
+			DataInputStream data = new DataInputStream(in);
+			try {
+				if(data.readInt() != MAGIC || data.readByte() != VERSION)
+					return -1;
+			} catch (EOFException e) {
+				return -1;
+			}
+			long valid = 5;
+			byte[] fixed = new byte[FIXED];
+			CRC32 check = new CRC32();
+			while(true) {
+				try {
+					int length = data.readUnsignedShort();
+					byte[] name = new byte[length];
+					data.readFully(name);
+					data.readFully(fixed);
+					int expected = data.readInt();
+					check.reset();
+					check.update(length >>> 8);
+					check.update(length);
+					check.update(name);
+					check.update(fixed);
+					if((int) check.getValue() != expected)
+						return valid;
+					ByteBuffer f = ByteBuffer.wrap(fixed);
+					long size = f.getLong();
+					long modified = f.getLong();
+					long crc = f.getInt() & 0xFFFFFFFFL;
+					byte[] md5 = new byte[16];
+					f.get(md5);
+					boolean compressible = (f.get() & COMPRESSIBLE) != 0;
+					digests.put(new String(name, StandardCharsets.UTF_8), new Digest(size, modified, crc, md5, compressible));
+					records++;
+					valid += 2 + length + FIXED + 4;
+				} catch (EOFException e) {
+					return valid;
+				}
+			}
+		}
+	}
+
+	// writes the current records to a new log and moves it over the old one
+	private void rewrite() throws IOException {
+		if(log != null)
+			log.close();
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 256 << 10))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			for(Map.Entry<String, Digest> e : digests.entrySet())
+				write(out, e.getKey(), e.getValue());
+		}
+		PartFile.moveIntoPlace(tmp, file);
+		records = digests.size();
+		log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 << 10));
+	}
+
+	private static void write(DataOutputStream out, String name, Digest d) throws IOException {
+		byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+		if(encoded.length > 0xFFFF)
+			return;
+		ByteArrayOutputStream record = new ByteArrayOutputStream(2 + encoded.length + FIXED + 4);
+		DataOutputStream r = new DataOutputStream(record);
+		r.writeShort(encoded.length);
+		r.write(encoded);
+		r.writeLong(d.size);
+		r.writeLong(d.modified);
+		r.writeInt((int) d.crc);
+		r.write(d.md5, 0, 16);
+		r.writeByte(d.compressible ? COMPRESSIBLE : 0);
+		CRC32 check = new CRC32();
+		check.update(record.toByteArray());
+		r.writeInt((int) check.getValue());
+		record.writeTo(out);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Getter for the number of files cached
+	 */
+	public synchronized int size() {
+		return digests.size();
+	}
+
+	/**
+	 * Getter for the number of files read by update since the cache was opened
+	 */
+	public int getHashed() {
+		return hashed.get();
+	}
+
+	/**
+	 * Looks up the checksums of one version of a file
+	 * @param name Relative name of the file
+	 * @return the digest, null unless size and modification time match the cached ones
+	 */
+	public synchronized Digest get(String name, long size, long modified) {
+		Digest d = digests.get(name);
+		return d != null && d.size == size && d.modified == modified ? d : null;
+	}
+
+	/**
+	 * Takes over the checksums of a file; logged unless it was modified less than RACY_MS before now
+	 * @param name Relative name of the file
+	 */
+	public synchronized void put(String name, Digest d) throws IOException {
+		digests.put(name, d);
+		if(System.currentTimeMillis() - d.modified < RACY_MS || log == null)
+			return;
+		write(log, name, d);
+		records++;
+	}
+
+	/**
+	 * Drops the files no longer in the folder, and rewrites the log if most of it is outdated
+	 * @param names Relative names of the files in the folder
+	 */
+	public synchronized void retain(Collection<String> names) throws IOException {
+		Set<String> keep = new HashSet<String>(names);
+		for(Iterator<String> it = digests.keySet().iterator(); it.hasNext(); )
+			if(!keep.contains(it.next()))
+				it.remove();
+		if(records > 2 * digests.size() + MIN_GARBAGE)
+			rewrite();
+	}
+
+	/**
+	 * Hashes the files whose size or modification time differ from the cache, in parallel.
+	 * The caller and up to threads - 1 of the cache's threads each take the next file to hash and
+	 * read it through its own buffer, so memory does not depend on the number or size of the files.
+	 * @param dir Shared folder
+	 * @param files Files of the folder by relative name, as in its catalog
+	 * @param hasher Computes the digest of an open file
+	 * @return the number of files hashed
+	 * @throws IOException if the log cannot be written
+	 */
+	public int update(File dir, Map<String, PeerCatalog.Entry> files, Hasher hasher) throws IOException {
+		List<String> stale = new ArrayList<String>();
+		synchronized(this) {
+			for(Map.Entry<String, PeerCatalog.Entry> e : files.entrySet())
+				if(get(e.getKey(), e.getValue().size, e.getValue().modified) == null)
+					stale.add(e.getKey());
+		}
+		if(stale.isEmpty())
+			return 0;
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger done = new AtomicInteger();
+		Runnable worker = () -> {
+			for(int i; (i = next.getAndIncrement()) < stale.size(); ) {
+				String name = stale.get(i);
+				Path p = new File(dir, name).toPath();
+				try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+					long modified = Files.getLastModifiedTime(p).toMillis();
+					put(name, hasher.hash(fc, fc.size(), modified));
+					done.incrementAndGet();
+					hashed.incrementAndGet();
+				} catch (IOException e) {
+					//gone or unreadable: hashed when it is asked for or changes again
+				}
+			}
+		};
+		//a helper that starts once every file is taken has nothing left to do: only the helpers that
+		//joined in time are waited for, so updates sharing the threads cannot hold each other up
+		Phaser joined = new Phaser(1);
+		Runnable helper = () -> {
+			if(joined.register() < 0)
+				return;
+			try {
+				worker.run();
+			} finally {
+				joined.arriveAndDeregister();
+			}
+		};
+		try {
+			for(int i = 1; i < Math.min(threads, stale.size()); i++)
+				hashers.execute(helper);
+		} catch (RejectedExecutionException e) {
+			//closed: the caller hashes alone
+		}
+		worker.run();
+		try {
+			joined.awaitAdvanceInterruptibly(joined.arriveAndDeregister());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			next.set(stale.size());
+		}
+		//a log that cannot be written fails here
+		flush();
+		return done.get();
+	}
+
+	/**
+	 * Runs update on the cache's threads
+	 * @return the number of files hashed once done, or the IOException of update; 0 if the cache is closed
+	 */
+	public CompletableFuture<Integer> updateLater(File dir, Map<String, PeerCatalog.Entry> files, Hasher hasher) {
+		CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		try {
+			hashers.execute(() -> {
+				try {
+					result.complete(update(dir, files, hasher));
+				} catch (IOException e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.complete(0);
+		}
+		return result;
+	}
+
+	/**
+	 * Hands the records appended so far to the operating system
+	 */
+	public synchronized void flush() throws IOException {
+		if(log != null)
+			log.flush();
+	}
+
+	/**
+	 * Stops the hashing threads, interrupting the files being hashed, and closes the log
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		hashers.shutdownNow();
+		if(log == null)
+			return;
+		try {
+			log.close();
+		} finally {
+			log = null;
+		}
+	}
+
+	/**
+	 * Relative name of a file of a folder, separated by '/' as in the catalog
+	 */
+	public static String relative(File root, File f) {
+		Path base = root.toPath().toAbsolutePath().normalize();
+		StringBuilder sb = new StringBuilder();
+		for(Path part : base.relativize(f.toPath().toAbsolutePath().normalize())) {
+			if(sb.length() > 0)
+				sb.append('/');
+			sb.append(part.toString());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,120 @@
+package p2p;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative values, such as durations in nanoseconds.
+ * Buckets are log-linear as in HdrHistogram: values below 64 have a bucket each, and every
+ * power of two above is split into 32 buckets of equal width, so a value is known to within
+ * about 3% over the whole range of long. Recording is a few atomic increments into a fixed
+ * array and allocates nothing; percentiles are read off the counts.
+ */
+public class Histogram {
+	// Buckets per power of two are 1 << (SUB_BITS - 1)
+	private static final int SUB_BITS = 6;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int HALF = SUB >> 1;
+	// Enough buckets for Long.MAX_VALUE
+	private static final int BUCKETS = SUB + (63 - SUB_BITS) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one value; negative values count as 0
+	 */
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	// values below SUB are their own bucket; above, the top SUB_BITS bits of the value pick one
+	private static int bucket(long value) {
+		if(value < SUB)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	// largest value that falls into a bucket
+	private static long highest(int bucket) {
+		if(bucket < SUB)
+			return bucket;
+		int shift = (bucket - SUB) / HALF + 1;
+		long top = (bucket - SUB) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Value below which the given share of the recorded values lie
+	 * @param quantile Share between 0 and 1, such as 0.99
+	 * @return the upper end of the bucket that holds it, 0 if nothing was recorded
+	 */
+	public long percentile(double quantile) {
+		long n = 0;
+		for(int b = 0; b < BUCKETS; b++)
+			n += counts.get(b);
+		if(n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for(int b = 0; b < BUCKETS; b++) {
+			seen += counts.get(b);
+			if(seen >= rank)
+				return Math.min(highest(b), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds everything recorded in another histogram to this one
+	 * @param other Histogram to add, which may be recorded into meanwhile
+	 */
+	public void add(Histogram other) {
+		for(int b = 0; b < BUCKETS; b++) {
+			long n = other.counts.get(b);
+			if(n != 0)
+				counts.addAndGet(b, n);
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		long value = other.max.get();
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	/**
+	 * Forgets everything recorded; values recorded meanwhile may be partly lost
+	 */
+	public void reset() {
+		for(int b = 0; b < BUCKETS; b++)
+			counts.set(b, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
@@ -0,0 +1,145 @@
+package p2p;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Connection of a peer to the replicated index server.
+ * Requests go over TCP to the replica believed to lead. If it cannot be reached, or answers
+ * NOT_LEADER, the request is sent to the leader it names, or to the other known replicas in
+ * turn while they elect one, until FAILOVER_TIMEOUT passes. The replicas are learned from the
+ * REGISTERED and NOT_LEADER answers.
+ */
+public class IndexClient {
+	// Milliseconds a request keeps looking for a leader
+	public static final int FAILOVER_TIMEOUT = 3000;
+	// Connect timeout; a replica that is down on the same host refuses at once
+	private static final int CONNECT_TIMEOUT = 500;
+	// Read timeout of one attempt
+	private static final int READ_TIMEOUT = 5000;
+	// Pause after every replica was tried without finding a leader, doubled up to MAX_RETRY_MS
+	// each round so that many peers do not keep the replicas from electing one
+	private static final long RETRY_MS = 10;
+	private static final long MAX_RETRY_MS = 160;
+
+	// Local address requests are sent from (the index keys peers by it), null for any
+	private final InetAddress local;
+	private volatile InetSocketAddress leader;
+	private volatile List<InetSocketAddress> replicas;
+
+	/**
+	 * @param local Address to send from, null for any
+	 * @param server Index server (any replica) to start with
+	 */
+	public IndexClient(InetAddress local, InetSocketAddress server) {
+		this.local = local;
+		this.leader = server;
+		this.replicas = Collections.singletonList(server);
+	}
+
+	/**
+	 * Getter for the replica the last request was answered by
+	 */
+	public InetSocketAddress getLeader() {
+		return leader;
+	}
+
+	public List<InetSocketAddress> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * Sends one request to the leader of the replicas and reads its answer
+	 * @param request Encoded request frame
+	 * @return the answer; REGISTERED also updates the known replicas
+	 * @throws IOException if no leader answered within FAILOVER_TIMEOUT, or it answered ERROR
+	 */
+	public IndexProtocol.Frame call(byte[] request) throws IOException {
+		long deadline = System.currentTimeMillis() + FAILOVER_TIMEOUT;
+		InetSocketAddress target = leader;
+		List<InetSocketAddress> tried = new ArrayList<InetSocketAddress>();
+		IOException failure = null;
+		long pause = RETRY_MS;
+		while(true) {
+			tried.add(target);
+			IndexProtocol.Frame f = null;
+			try {
+				f = send(target, request);
+			} catch (IOException e) {
+				//unreachable, or gone while answering
+				failure = e;
+			}
+			if(f != null && f.type == IndexProtocol.ERROR)
+				throw new IOException(IndexProtocol.readString(f.payload));
+			if(f != null && f.type != IndexProtocol.NOT_LEADER) {
+				leader = target;
+				if(f.type == IndexProtocol.REGISTERED) {
+					ByteBuffer p = f.payload.duplicate();
+					IndexProtocol.readByte(p);
+					IndexProtocol.readVarint(p);
+					learn(IndexProtocol.readEndpoints(p));
+				}
+				return f;
+			}
+			if(f != null) {
+				InetSocketAddress named = IndexProtocol.readByte(f.payload) != 0 ? IndexProtocol.readEndpoint(f.payload) : null;
+				learn(IndexProtocol.readEndpoints(f.payload));
+				if(named != null && !tried.contains(named)) {
+					target = named;
+					continue;
+				}
+			}
+			if(System.currentTimeMillis() >= deadline)
+				throw failure != null ? failure : new ConnectException("No leader among " + replicas);
+			target = next(tried);
+			if(target == null) {
+				//every replica tried: give them time to elect a leader
+				tried.clear();
+				target = leader;
+				try {
+					Thread.sleep(pause);
+					pause = Math.min(pause * 2, MAX_RETRY_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while looking for the index leader");
+				}
+			}
+		}
+	}
+
+	private IndexProtocol.Frame send(InetSocketAddress server, byte[] request) throws IOException {
+		try (Socket s = new Socket()) {
+			if(local != null)
+				s.bind(new InetSocketAddress(local, 0));
+			s.connect(server, CONNECT_TIMEOUT);
+			s.setSoTimeout(READ_TIMEOUT);
+			s.setTcpNoDelay(true);
+			OutputStream out = s.getOutputStream();
+			out.write(request);
+			out.flush();
+			return IndexProtocol.read(new DataInputStream(s.getInputStream()));
+		}
+	}
+
+	// first known replica not tried yet in this round
+	private InetSocketAddress next(List<InetSocketAddress> tried) {
+		for(InetSocketAddress r : replicas)
+			if(!tried.contains(r))
+				return r;
+		return null;
+	}
+
+	private void learn(List<InetSocketAddress> members) {
+		if(!members.isEmpty())
+			replicas = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(members));
+	}
+}
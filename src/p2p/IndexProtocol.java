@@ -0,0 +1,723 @@
+package p2p;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wire format of the control messages exchanged with the index server (port _comPort).
+ * Every message, over UDP or TCP, is one frame:
+ *
+ * Frame:    version(byte) type(byte) length(int) payload(length bytes)
+ *
+ * Requests: REGISTER   - snapshot; registers (or replaces) the sender's catalog
+ *           UPDATE     - delta; changes the sender's catalog in place (see PeerCatalog)
+ *           UNREGISTER - empty; removes the sender
+ *           DISCOVER   - empty; asks the index server to make itself known
+ *           RETRIEVE   - query; one page of the table (see Retrieve)
+ *           LOOKUP     - string; peers holding the exact name
+ *           PREFIX     - string; names starting with the prefix, with their holders
+ *           FILES      - address; file list of one peer
+ *           RENEW      - empty; extends the sender's lease (see DHT)
+ *           SUMMARY    - tag; Bloom filters of the names of the peers that changed since the tag,
+ *                        and the peers that left, or of every peer if the tag is too old
+ *           RECONCILE  - address table; the sender's lookup table of its own files (see
+ *                        CatalogSummary), to learn how the catalog of the given peer differs
+ * Replication between index servers (see IndexReplicator), over TCP only:
+ *           APPEND     - term(varlong) leader(endpoint) prevIndex(varlong) prevTerm(varlong)
+ *                        commit(varlong) count(varint) {term(varlong) entry(bytes)}
+ *           INSTALL    - term(varlong) leader(endpoint) index(varlong) lastTerm(varlong)
+ *                        members(endpoint list) table (see DHT)
+ *           VOTE       - term(varlong) candidate(endpoint) lastIndex(varlong) lastTerm(varlong)
+ *           JOIN       - endpoint; asks the leader to take the sender in as a standby
+ * Log entries are frames of the request they stem from (REGISTER, UPDATE, UNREGISTER) with the
+ * sender's address in front of the payload, or MEMBERS - endpoint list; the new set of replicas.
+ *
+ * Responses: REGISTERED - standby(byte) lease(varint) replicas(endpoint list); standby is 1 if
+ *                        the sender is asked to JOIN as a standby of the index, lease is the
+ *                        milliseconds the registration lasts unless renewed
+ *           UPDATED, PRESENT (to DISCOVER) - empty
+ *           RESYNC     - seq(varlong); the delta did not continue the catalog the server holds
+ *                        (its sequence number, -1 if none), the sender should REGISTER again
+ *           PEERS      - page; peers with their (matching) files (see Page)
+ *           NOT_MODIFIED - tag; nothing changed since the table version the client sent
+ *           HOLDERS    - address list
+ *           MATCHES    - count(varint) {string address list}
+ *           FILE_LIST  - file list
+ *           UNKNOWN    - empty; the peer asked for (or renewing) is not registered
+ *           ERROR      - string
+ *           NOT_LEADER - leader(byte 0 | byte 1 endpoint) replicas(endpoint list); the request
+ *                        has to go to the leader of the replicas
+ *           APPENDED   - term(varlong) success(byte) index(varlong); the last index the follower
+ *                        holds in agreement with the leader, or a hint where to continue
+ *           VOTED      - term(varlong) granted(byte)
+ *           REPLICAS   - full(byte) replicas(endpoint list); answer to JOIN
+ *           RENEWED    - lease(varint); milliseconds until the renewed lease runs out
+ *           FILTERS    - tag full(byte) count(varint) {address filter} removed(address list);
+ *                        with full 0 the filters replace those of the same peers only (see BloomFilter)
+ *           DIFFERENCE - byte 0; the difference is too large for the sender's table, which it
+ *                        may send again with more cells
+ *                        | byte 1 catalog; the peer's files the sender does not have (by name, size and CRC)
+ *
+ * varint:       unsigned LEB128 (varlong: the same for 64 bits)
+ * string:       length(varint) UTF-8 bytes
+ * address:      length(byte, 4 or 16) raw address bytes; never resolved through DNS
+ * address list: count(varint) {address}
+ * endpoint:     address port(varint); endpoint list: count(varint) {endpoint}
+ * file list:    count(varint) {shared(varint) suffixLength(varint) suffix}, names in sorted
+ *               order, each sharing its first shared bytes with the previous name (front coding)
+ * snapshot:     seq(varlong) catalog (see PeerCatalog)
+ * tag:          epoch(long) version(varlong); the epoch changes whenever the index server
+ *               restarts, the version with every change of the table
+ *
+ * Catalogs whose REGISTER frame fits in MAX_DATAGRAM bytes go over UDP; larger ones are
+ * sent over TCP after the index server was found with DISCOVER. A TCP connection carries
+ * one request at a time: the next one is sent after its response was read.
+ */
+public final class IndexProtocol {
+	public static final byte VERSION = 7;
+	// Bytes in front of every payload
+	public static final int HEADER = 6;
+	// Largest frame sent over UDP, safely below the usual path MTU
+	public static final int MAX_DATAGRAM = 1200;
+	// Largest frame accepted at all
+	public static final int MAX_FRAME = 64 << 20;
+
+	public static final byte REGISTER = 1;
+	public static final byte UNREGISTER = 2;
+	public static final byte DISCOVER = 3;
+	public static final byte RETRIEVE = 4;
+	public static final byte LOOKUP = 5;
+	public static final byte PREFIX = 6;
+	public static final byte FILES = 7;
+	public static final byte UPDATE = 8;
+	public static final byte APPEND = 9;
+	public static final byte INSTALL = 10;
+	public static final byte VOTE = 11;
+	public static final byte JOIN = 12;
+	public static final byte MEMBERS = 13;
+	public static final byte RENEW = 14;
+	public static final byte SUMMARY = 15;
+	public static final byte RECONCILE = 32;
+
+	public static final byte REGISTERED = 16;
+	public static final byte PRESENT = 17;
+	public static final byte PEERS = 18;
+	public static final byte HOLDERS = 19;
+	public static final byte MATCHES = 20;
+	public static final byte FILE_LIST = 21;
+	public static final byte UNKNOWN = 22;
+	public static final byte ERROR = 23;
+	public static final byte UPDATED = 24;
+	public static final byte RESYNC = 25;
+	public static final byte NOT_MODIFIED = 26;
+	public static final byte NOT_LEADER = 27;
+	public static final byte APPENDED = 28;
+	public static final byte VOTED = 29;
+	public static final byte REPLICAS = 30;
+	public static final byte RENEWED = 31;
+	public static final byte FILTERS = 33;
+	public static final byte DIFFERENCE = 34;
+
+	private IndexProtocol() {
+	}
+
+	/**
+	 * Name of a request type, for reports
+	 * @param type Request type
+	 * @return its name, or the number for an unknown type
+	 */
+	public static String typeName(byte type) {
+		switch(type) {
+		case REGISTER: return "REGISTER";
+		case UNREGISTER: return "UNREGISTER";
+		case DISCOVER: return "DISCOVER";
+		case RETRIEVE: return "RETRIEVE";
+		case LOOKUP: return "LOOKUP";
+		case PREFIX: return "PREFIX";
+		case FILES: return "FILES";
+		case UPDATE: return "UPDATE";
+		case APPEND: return "APPEND";
+		case INSTALL: return "INSTALL";
+		case VOTE: return "VOTE";
+		case JOIN: return "JOIN";
+		case MEMBERS: return "MEMBERS";
+		case RENEW: return "RENEW";
+		case SUMMARY: return "SUMMARY";
+		case RECONCILE: return "RECONCILE";
+		default: return "type " + type;
+		}
+	}
+
+	/**
+	 * One received frame; payload is positioned at the first payload byte
+	 */
+	public static final class Frame {
+		public final byte type;
+		public final ByteBuffer payload;
+
+		public Frame(byte type, ByteBuffer payload) {
+			this.type = type;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Checks the header at the position of buf without consuming it
+	 * @param buf Buffer holding at least HEADER bytes from its position
+	 * @return length of the payload
+	 * @throws IOException if the version is not supported or the length is out of range
+	 */
+	public static int payloadLength(ByteBuffer buf) throws IOException {
+		int p = buf.position();
+		if(buf.get(p) != VERSION)
+			throw new IOException("Unsupported index protocol version " + buf.get(p));
+		int length = buf.getInt(p + 2);
+		if(length < 0 || length > MAX_FRAME)
+			throw new IOException("Frame of " + length + " bytes");
+		return length;
+	}
+
+	/**
+	 * Decodes a complete frame, such as a datagram
+	 * @param buf Buffer holding exactly one frame between position and limit
+	 * @return the frame, its payload sharing the content of buf
+	 * @throws IOException if the frame is malformed
+	 */
+	public static Frame decode(ByteBuffer buf) throws IOException {
+		if(buf.remaining() < HEADER || payloadLength(buf) != buf.remaining() - HEADER)
+			throw new IOException("Truncated frame");
+		byte type = buf.get(buf.position() + 1);
+		buf.position(buf.position() + HEADER);
+		return new Frame(type, buf.slice());
+	}
+
+	/**
+	 * Reads one frame from a stream
+	 * @param in Stream the frame is read from
+	 * @return the frame
+	 * @throws IOException if the stream fails or the frame is malformed
+	 */
+	public static Frame read(DataInputStream in) throws IOException {
+		byte[] header = new byte[HEADER];
+		in.readFully(header);
+		int length = payloadLength(ByteBuffer.wrap(header));
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new Frame(header[1], ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Sends one request frame over TCP and reads the response frame
+	 * @param server Address of the index server
+	 * @param request Encoded request frame
+	 * @param timeout Connect and read timeout in milliseconds
+	 * @return the response
+	 * @throws IOException if the server cannot be reached or answers with ERROR
+	 */
+	public static Frame call(InetSocketAddress server, byte[] request, int timeout) throws IOException {
+		try (Socket s = new Socket()) {
+			s.connect(server, timeout);
+			s.setSoTimeout(timeout);
+			s.setTcpNoDelay(true);
+			OutputStream out = s.getOutputStream();
+			out.write(request);
+			out.flush();
+			Frame response = read(new DataInputStream(s.getInputStream()));
+			if(response.type == ERROR)
+				throw new IOException(readString(response.payload));
+			return response;
+		}
+	}
+
+	/**
+	 * Table version: the epoch of the index server and the version of its table
+	 */
+	public static final class Tag {
+		public static final Tag NONE = new Tag(0, 0);
+		public final long epoch;
+		public final long version;
+
+		public Tag(long epoch, long version) {
+			this.epoch = epoch;
+			this.version = version;
+		}
+
+		public void write(Writer w) {
+			w.writeLong(epoch).writeVarlong(version);
+		}
+
+		public static Tag read(ByteBuffer in) throws IOException {
+			if(in.remaining() < 8)
+				throw new IOException("Truncated tag");
+			return new Tag(in.getLong(), readVarlong(in));
+		}
+
+		@Override
+		public String toString() {
+			return Long.toHexString(epoch) + ":" + version;
+		}
+	}
+
+	/**
+	 * RETRIEVE request: which part of the table to send
+	 *
+	 * since(tag) peer(byte 0 | byte 1 address) pattern(string) cursor(byte 0 | byte 1 address string) limit(varint)
+	 */
+	public static final class Retrieve {
+		// Table version the client already has, NONE for the whole table
+		public final Tag since;
+		// Only this peer, or null for all
+		public final InetAddress peer;
+		// Glob the file names must match ('*', '?', "[abc]"), empty for all
+		public final String pattern;
+		// Continue after this peer and, within it, after this name; null for the first page
+		public final InetAddress afterPeer;
+		public final String afterName;
+		// Maximum number of names in the page
+		public final int limit;
+
+		public Retrieve(Tag since, InetAddress peer, String pattern, InetAddress afterPeer, String afterName, int limit) {
+			this.since = since;
+			this.peer = peer;
+			this.pattern = pattern;
+			this.afterPeer = afterPeer;
+			this.afterName = afterName;
+			this.limit = limit;
+		}
+
+		/**
+		 * Request for the page that follows p
+		 */
+		public Retrieve next(Page p) {
+			return new Retrieve(since, peer, pattern, p.nextPeer, p.nextName, limit);
+		}
+
+		public byte[] toFrame() {
+			Writer w = new Writer(RETRIEVE);
+			since.write(w);
+			if(peer == null)
+				w.writeByte(0);
+			else
+				w.writeByte(1).writeAddress(peer);
+			w.writeString(pattern);
+			if(afterPeer == null)
+				w.writeByte(0);
+			else
+				w.writeByte(1).writeAddress(afterPeer).writeString(afterName);
+			return w.writeVarint(limit).toFrame();
+		}
+
+		public static Retrieve read(ByteBuffer in) throws IOException {
+			Tag since = Tag.read(in);
+			InetAddress peer = get(in) == 0 ? null : readAddress(in);
+			String pattern = readString(in);
+			InetAddress afterPeer = null;
+			String afterName = null;
+			if(get(in) != 0) {
+				afterPeer = readAddress(in);
+				afterName = readString(in);
+			}
+			return new Retrieve(since, peer, pattern, afterPeer, afterName, readVarint(in));
+		}
+	}
+
+	/**
+	 * PEERS response: one page of the table
+	 *
+	 * tag full(byte) count(varint) {address file list} removed(address list)
+	 * cursor(byte 0 | byte 1 address string)
+	 */
+	public static final class Page {
+		// Version of the table when the page was built; the tag of the first page is the one to keep
+		public final Tag tag;
+		// True if the pages list the whole table: the client's copy is replaced, not patched
+		public final boolean full;
+		// Nothing changed since the requested version (NOT_MODIFIED)
+		public final boolean notModified;
+		// Peers with their matching names; a peer cut by the limit continues on the next page
+		public final Map<InetAddress, List<String>> peers;
+		// Peers that left since the requested version (first page only)
+		public final List<InetAddress> removed;
+		// Cursor of the next page, null if this is the last one
+		public final InetAddress nextPeer;
+		public final String nextName;
+
+		public Page(Tag tag, boolean full, boolean notModified, Map<InetAddress, List<String>> peers, List<InetAddress> removed,
+				InetAddress nextPeer, String nextName) {
+			this.tag = tag;
+			this.full = full;
+			this.notModified = notModified;
+			this.peers = peers;
+			this.removed = removed;
+			this.nextPeer = nextPeer;
+			this.nextName = nextName;
+		}
+
+		public static Page notModified(Tag tag) {
+			return new Page(tag, false, true, Collections.<InetAddress, List<String>>emptyMap(),
+					Collections.<InetAddress>emptyList(), null, null);
+		}
+
+		public byte[] toFrame() {
+			if(notModified) {
+				Writer w = new Writer(NOT_MODIFIED);
+				tag.write(w);
+				return w.toFrame();
+			}
+			Writer w = new Writer(PEERS);
+			tag.write(w);
+			w.writeByte(full ? 1 : 0).writeVarint(peers.size());
+			for(Map.Entry<InetAddress, List<String>> e : peers.entrySet())
+				w.writeAddress(e.getKey()).writeFileList(e.getValue());
+			w.writeAddresses(removed);
+			if(nextPeer == null)
+				w.writeByte(0);
+			else
+				w.writeByte(1).writeAddress(nextPeer).writeString(nextName);
+			return w.toFrame();
+		}
+
+		public static Page read(Frame f) throws IOException {
+			ByteBuffer in = f.payload;
+			Tag tag = Tag.read(in);
+			if(f.type == NOT_MODIFIED)
+				return notModified(tag);
+			if(f.type != PEERS)
+				throw new IOException("Unexpected response type " + f.type);
+			boolean full = get(in) != 0;
+			int n = readCount(in);
+			Map<InetAddress, List<String>> peers = new LinkedHashMap<InetAddress, List<String>>();
+			for(int i = 0; i < n; i++) {
+				InetAddress a = readAddress(in);
+				peers.put(a, readFileList(in));
+			}
+			List<InetAddress> removed = readAddresses(in);
+			InetAddress nextPeer = null;
+			String nextName = null;
+			if(get(in) != 0) {
+				nextPeer = readAddress(in);
+				nextName = readString(in);
+			}
+			return new Page(tag, full, false, peers, removed, nextPeer, nextName);
+		}
+	}
+
+	/**
+	 * Growable buffer a frame is encoded into
+	 */
+	public static final class Writer {
+		private byte[] buf;
+		private int length;
+
+		/**
+		 * Starts a frame of the given type
+		 * @param type Message type
+		 */
+		public Writer(byte type) {
+			buf = new byte[64];
+			buf[0] = VERSION;
+			buf[1] = type;
+			length = HEADER;
+		}
+
+		public Writer writeByte(int b) {
+			ensure(1);
+			buf[length++] = (byte) b;
+			return this;
+		}
+
+		public Writer writeVarint(int v) {
+			ensure(5);
+			while((v & ~0x7F) != 0) {
+				buf[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[length++] = (byte) v;
+			return this;
+		}
+
+		public Writer writeVarlong(long v) {
+			ensure(10);
+			while((v & ~0x7FL) != 0) {
+				buf[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[length++] = (byte) v;
+			return this;
+		}
+
+		public Writer writeInt(int v) {
+			ensure(4);
+			for(int shift = 24; shift >= 0; shift -= 8)
+				buf[length++] = (byte) (v >>> shift);
+			return this;
+		}
+
+		public Writer writeLong(long v) {
+			ensure(8);
+			for(int shift = 56; shift >= 0; shift -= 8)
+				buf[length++] = (byte) (v >>> shift);
+			return this;
+		}
+
+		public Writer writeBytes(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, buf, length, len);
+			length += len;
+			return this;
+		}
+
+		public Writer writeString(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			return writeVarint(b.length).writeBytes(b, 0, b.length);
+		}
+
+		public Writer writeAddress(InetAddress a) {
+			byte[] b = a.getAddress();
+			return writeByte(b.length).writeBytes(b, 0, b.length);
+		}
+
+		public Writer writeAddresses(Collection<InetAddress> peers) {
+			writeVarint(peers.size());
+			for(InetAddress a : peers)
+				writeAddress(a);
+			return this;
+		}
+
+		public Writer writeEndpoint(InetSocketAddress a) {
+			return writeAddress(a.getAddress()).writeVarint(a.getPort());
+		}
+
+		public Writer writeEndpoints(Collection<InetSocketAddress> endpoints) {
+			writeVarint(endpoints.size());
+			for(InetSocketAddress a : endpoints)
+				writeEndpoint(a);
+			return this;
+		}
+
+		/**
+		 * Writes names front coded, in sorted order
+		 */
+		public Writer writeFileList(Collection<String> names) {
+			String[] sorted = names.toArray(new String[names.size()]);
+			Arrays.sort(sorted);
+			writeVarint(sorted.length);
+			byte[] prev = new byte[0];
+			for(String name : sorted)
+				prev = writeFrontCoded(prev, name);
+			return this;
+		}
+
+		/**
+		 * Writes one name of a front-coded sequence
+		 * @param prev Encoded previous name, empty for the first one
+		 * @param name Name to write
+		 * @return the encoded name, to pass as prev for the next one
+		 */
+		public byte[] writeFrontCoded(byte[] prev, String name) {
+			byte[] b = name.getBytes(StandardCharsets.UTF_8);
+			int shared = 0;
+			int max = Math.min(prev.length, b.length);
+			while(shared < max && prev[shared] == b[shared])
+				shared++;
+			writeVarint(shared).writeVarint(b.length - shared).writeBytes(b, shared, b.length - shared);
+			return b;
+		}
+
+		/**
+		 * Getter for the size of the frame encoded so far
+		 * @return bytes including the header
+		 */
+		public int size() {
+			return length;
+		}
+
+		/**
+		 * Completes the frame
+		 * @return header and payload
+		 */
+		public byte[] toFrame() {
+			int payload = length - HEADER;
+			buf[2] = (byte) (payload >>> 24);
+			buf[3] = (byte) (payload >>> 16);
+			buf[4] = (byte) (payload >>> 8);
+			buf[5] = (byte) payload;
+			return Arrays.copyOf(buf, length);
+		}
+
+		private void ensure(int n) {
+			if(length + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+		}
+	}
+
+	/**
+	 * Shorthand for a frame without payload
+	 * @param type Message type
+	 * @return encoded frame
+	 */
+	public static byte[] empty(byte type) {
+		return new Writer(type).toFrame();
+	}
+
+	public static int readVarint(ByteBuffer in) throws IOException {
+		int v = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = get(in);
+			v |= (b & 0x7F) << shift;
+			if(b >= 0)
+				return v;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	public static long readVarlong(ByteBuffer in) throws IOException {
+		long v = 0;
+		for(int shift = 0; shift < 70; shift += 7) {
+			byte b = get(in);
+			v |= (long) (b & 0x7F) << shift;
+			if(b >= 0)
+				return v;
+		}
+		throw new IOException("Malformed varlong");
+	}
+
+	public static byte readByte(ByteBuffer in) throws IOException {
+		return get(in);
+	}
+
+	/**
+	 * Reads a length(varint) and that many bytes
+	 */
+	public static byte[] readBytes(ByteBuffer in) throws IOException {
+		int n = readVarint(in);
+		if(n < 0 || n > in.remaining())
+			throw new IOException("Truncated bytes");
+		byte[] b = new byte[n];
+		in.get(b);
+		return b;
+	}
+
+	public static String readString(ByteBuffer in) throws IOException {
+		int n = readVarint(in);
+		if(n > in.remaining())
+			throw new IOException("Truncated string");
+		String s;
+		if(in.hasArray()) {
+			s = new String(in.array(), in.arrayOffset() + in.position(), n, StandardCharsets.UTF_8);
+			in.position(in.position() + n);
+		}
+		else {
+			byte[] b = new byte[n];
+			in.get(b);
+			s = new String(b, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+
+	public static InetAddress readAddress(ByteBuffer in) throws IOException {
+		int n = get(in);
+		if(n != 4 && n != 16)
+			throw new IOException("Malformed address of " + n + " bytes");
+		byte[] b = new byte[n];
+		if(in.remaining() < n)
+			throw new IOException("Truncated address");
+		in.get(b);
+		return InetAddress.getByAddress(b);
+	}
+
+	public static List<InetAddress> readAddresses(ByteBuffer in) throws IOException {
+		int n = readCount(in);
+		List<InetAddress> peers = new ArrayList<InetAddress>(n);
+		for(int i = 0; i < n; i++)
+			peers.add(readAddress(in));
+		return peers;
+	}
+
+	public static InetSocketAddress readEndpoint(ByteBuffer in) throws IOException {
+		InetAddress a = readAddress(in);
+		int port = readVarint(in);
+		if(port < 0 || port > 0xFFFF)
+			throw new IOException("Malformed port " + port);
+		return new InetSocketAddress(a, port);
+	}
+
+	public static List<InetSocketAddress> readEndpoints(ByteBuffer in) throws IOException {
+		int n = readCount(in);
+		List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>(n);
+		for(int i = 0; i < n; i++)
+			endpoints.add(readEndpoint(in));
+		return endpoints;
+	}
+
+	public static List<String> readFileList(ByteBuffer in) throws IOException {
+		NameReader reader = new NameReader(in);
+		int n = reader.count();
+		List<String> names = new ArrayList<String>(n);
+		for(int i = 0; i < n; i++)
+			names.add(reader.next());
+		return names;
+	}
+
+	/**
+	 * Decoder of a front-coded sequence of names, reusing one buffer for all of them
+	 */
+	public static final class NameReader {
+		private final ByteBuffer in;
+		private byte[] name = new byte[256];
+		private int length;
+
+		public NameReader(ByteBuffer in) {
+			this.in = in;
+		}
+
+		/**
+		 * Reads the number of names that follow
+		 */
+		public int count() throws IOException {
+			return readCount(in);
+		}
+
+		public String next() throws IOException {
+			int shared = readVarint(in);
+			int suffix = readVarint(in);
+			if(shared > length || suffix > in.remaining())
+				throw new IOException("Malformed file list");
+			length = shared + suffix;
+			if(length > name.length)
+				name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+			in.get(name, shared, suffix);
+			return new String(name, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	// element count, bounded by the bytes left so a forged count cannot allocate much
+	private static int readCount(ByteBuffer in) throws IOException {
+		int n = readVarint(in);
+		if(n < 0 || n > in.remaining())
+			throw new IOException("Malformed count " + n);
+		return n;
+	}
+
+	private static byte get(ByteBuffer in) throws IOException {
+		try {
+			return in.get();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated frame");
+		}
+	}
+}
@@ -0,0 +1,824 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replication of the index server's table to standby index servers, after Raft.
+ * The leader appends every change of the table (REGISTER, UPDATE, UNREGISTER) to a log and
+ * copies the log to the standbys with APPEND, at least every HEARTBEAT_MS. An entry is applied
+ * to the table once a majority of the replicas holds it, on every replica in log order, and
+ * only then is the peer that sent it answered. A standby that hears no leader for an election
+ * timeout (ELECTION_TIMEOUT_MS to twice that) asks the other replicas for their VOTE and leads
+ * once a majority granted it; votes go only to candidates whose log is at least as complete as
+ * the voter's, so a committed change survives the loss of any minority of the replicas.
+ *
+ * The replicas themselves are entries of the log (MEMBERS): the leader takes in servers that
+ * JOIN until there are 1 + standbys replicas, and drops a replica it could not reach for
+ * MEMBER_TIMEOUT_MS, one change at a time. A leader that cannot reach a majority steps down,
+ * so the peers never keep writing to a cut-off replica. A replica that falls behind the
+ * trimmed log receives the whole table with INSTALL.
+ * Votes and the log live in memory only; a replica that restarts joins as a new standby.
+ * A first replica started on a table restored from disk (see DHT.persist) holds it as its
+ * snapshot at the index and term of the last entry the store recorded in it, so its log and
+ * terms continue from there and the standbys that join receive the table with INSTALL.
+ */
+public class IndexReplicator {
+	// Milliseconds between two APPEND sent to every standby, with or without entries
+	public static final long HEARTBEAT_MS = 50;
+	// Shortest time without a leader before a standby stands for election
+	public static final long ELECTION_TIMEOUT_MS = 150;
+	// A replica the leader cannot reach for this long is dropped from the replicas
+	public static final long MEMBER_TIMEOUT_MS = 5000;
+	// Applied entries kept for standbys that fall behind; older ones are trimmed
+	private static final int MAX_LOG = 4096;
+	// Bytes of entries in one APPEND; a larger single entry is sent alone
+	private static final int MAX_APPEND = 1 << 20;
+	// Timeouts of the connections between replicas, in milliseconds
+	private static final int CONNECT_TIMEOUT = 200;
+	private static final int READ_TIMEOUT = 2000;
+	// JOIN attempts before a server gives up becoming a standby
+	private static final int JOIN_ATTEMPTS = 50;
+
+	private enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+	private final DHT dht;
+	// Address of this replica as the others know it
+	private final InetSocketAddress self;
+	private final int standbys;
+	// Replica asked to JOIN at start, null for the first replica
+	private final InetSocketAddress seed;
+	private final Random random = new Random();
+
+	private Role role = Role.FOLLOWER;
+	private long term;
+	private InetSocketAddress votedFor;
+	private InetSocketAddress leader;
+	private final Set<InetSocketAddress> votes = new HashSet<InetSocketAddress>();
+	// Time a follower stands for election (or a candidate tries again), in milliseconds
+	private long electionDeadline;
+	// Last time the leader was heard from
+	private long leaderContact;
+	// Current replicas: those of the last MEMBERS entry in the log, or those of the snapshot
+	private List<InetSocketAddress> members;
+
+	// Log entries after snapshotIndex; entry i is at position i - snapshotIndex - 1
+	private final ArrayList<Long> terms = new ArrayList<Long>();
+	private final ArrayList<byte[]> entries = new ArrayList<byte[]>();
+	// Last trimmed entry, already part of the table
+	private long snapshotIndex;
+	private long snapshotTerm;
+	private List<InetSocketAddress> snapshotMembers;
+	private long commitIndex;
+	private long lastApplied;
+	// Leader: where to send the answer to an entry once it is applied, by index
+	private final HashMap<Long, Object> waiting = new HashMap<Long, Object>();
+	// Connection to every other replica
+	private final HashMap<InetSocketAddress, Link> links = new HashMap<InetSocketAddress, Link>();
+	private volatile boolean running;
+
+	/**
+	 * @param dht Table the log is applied to
+	 * @param self Address the other replicas reach this one at
+	 * @param standbys Number of standbys the leader keeps besides itself
+	 * @param seed Replica to join, null to start as the only replica (and leader)
+	 */
+	public IndexReplicator(DHT dht, InetSocketAddress self, int standbys, InetSocketAddress seed) {
+		this.dht = dht;
+		this.self = self;
+		this.standbys = standbys;
+		this.seed = seed;
+		members = seed == null ? Collections.singletonList(self) : Collections.<InetSocketAddress>emptyList();
+		snapshotMembers = members;
+		IndexStore store = dht.getStore();
+		if(seed == null && store != null && store.getIndex() > 0) {
+			//the restored table holds the entries up to the one it was stored at, applied and trimmed
+			term = store.getTerm();
+			snapshotIndex = store.getIndex();
+			snapshotTerm = term;
+			commitIndex = snapshotIndex;
+			lastApplied = snapshotIndex;
+		}
+		else if(seed == null && !dht.getDht().isEmpty()) {
+			//a table that was never replicated stands for a first entry, applied and trimmed
+			snapshotIndex = 1;
+			commitIndex = 1;
+			lastApplied = 1;
+		}
+	}
+
+	/**
+	 * Starts the election timer and the connections to the other replicas; the first replica
+	 * leads at once, any other asks the seed to JOIN
+	 */
+	public synchronized void start() {
+		running = true;
+		long now = System.currentTimeMillis();
+		resetElection(now);
+		if(seed == null)
+			startElection(now);
+		Thread timer = new Thread(this::tick, "IndexReplicator-" + self.getPort());
+		timer.setDaemon(true);
+		timer.start();
+		if(seed != null) {
+			Thread joiner = new Thread(this::join, "IndexReplicator-join-" + self.getPort());
+			joiner.setDaemon(true);
+			joiner.start();
+		}
+	}
+
+	public synchronized void close() {
+		running = false;
+		for(Link l : links.values())
+			l.close();
+		links.clear();
+		notifyAll();
+	}
+
+	public synchronized boolean isLeader() {
+		return role == Role.LEADER;
+	}
+
+	/**
+	 * Getter for the leader as far as this replica knows
+	 * @return address of the leader, null during an election
+	 */
+	public synchronized InetSocketAddress getLeader() {
+		return leader;
+	}
+
+	public synchronized List<InetSocketAddress> getMembers() {
+		return members;
+	}
+
+	public synchronized long getTerm() {
+		return term;
+	}
+
+	public synchronized long getCommitIndex() {
+		return commitIndex;
+	}
+
+	/**
+	 * Appends a change of the table to the log if this replica leads
+	 * @param entry Log entry (see IndexProtocol)
+	 * @param replyTo Where DHT sends the answer once the entry is applied, null for nowhere
+	 * @return false if this replica does not lead
+	 * @throws IOException if a MEMBERS entry is malformed
+	 */
+	public synchronized boolean propose(byte[] entry, Object replyTo) throws IOException {
+		if(role != Role.LEADER)
+			return false;
+		appendEntry(term, entry);
+		if(replyTo != null)
+			waiting.put(lastIndex(), replyTo);
+		//a leader without standbys commits at once
+		advanceCommit();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * True if a peer registering from ip should JOIN as a standby
+	 * @param ip Address of the peer
+	 */
+	public synchronized boolean invite(InetAddress ip) {
+		if(role != Role.LEADER || isFull() || configPending())
+			return false;
+		for(InetSocketAddress m : members)
+			if(m.getAddress().equals(ip))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Answer to a request only the leader serves
+	 * @return NOT_LEADER frame naming the leader, if known, and the replicas
+	 */
+	public synchronized byte[] notLeader() {
+		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.NOT_LEADER);
+		if(leader == null || leader.equals(self))
+			w.writeByte(0);
+		else
+			w.writeByte(1).writeEndpoint(leader);
+		return w.writeEndpoints(members).toFrame();
+	}
+
+	/**
+	 * Serves JOIN: a server asks to become a standby
+	 * @param candidate Address of the server
+	 * @param replyTo Where the answer goes once the new replicas are committed
+	 * @return REPLICAS at once if nothing changes, NOT_LEADER, or null if answered later
+	 */
+	public synchronized byte[] join(InetSocketAddress candidate, Object replyTo) throws IOException {
+		if(role != Role.LEADER)
+			return notLeader();
+		if(members.contains(candidate) || isFull() || configPending())
+			return replicas();
+		List<InetSocketAddress> m = new ArrayList<InetSocketAddress>(members);
+		m.add(candidate);
+		propose(membersEntry(m), replyTo);
+		return null;
+	}
+
+	/**
+	 * Serves APPEND from the leader
+	 * @param in Payload
+	 * @return APPENDED frame
+	 */
+	public synchronized byte[] append(ByteBuffer in) throws IOException {
+		long t = IndexProtocol.readVarlong(in);
+		InetSocketAddress from = IndexProtocol.readEndpoint(in);
+		long prevIndex = IndexProtocol.readVarlong(in);
+		long prevTerm = IndexProtocol.readVarlong(in);
+		long leaderCommit = IndexProtocol.readVarlong(in);
+		int n = IndexProtocol.readVarint(in);
+		long now = System.currentTimeMillis();
+		if(t < term)
+			return appended(false, lastIndex());
+		follow(t, from, now);
+		if(prevIndex > lastIndex())
+			return appended(false, lastIndex());
+		if(prevIndex >= snapshotIndex && termAt(prevIndex) != prevTerm) {
+			//skip the whole conflicting term at once
+			long conflict = termAt(prevIndex);
+			long i = prevIndex;
+			while(i - 1 > snapshotIndex && termAt(i - 1) == conflict)
+				i--;
+			return appended(false, i - 1);
+		}
+		long i = prevIndex;
+		for(int k = 0; k < n; k++) {
+			long entryTerm = IndexProtocol.readVarlong(in);
+			byte[] entry = IndexProtocol.readBytes(in);
+			i++;
+			if(i <= snapshotIndex)
+				continue;
+			if(i <= lastIndex()) {
+				if(termAt(i) == entryTerm)
+					continue;
+				if(i <= lastApplied)
+					throw new IOException("Entry " + i + " conflicts with an applied one");
+				truncate(i);
+			}
+			appendEntry(entryTerm, entry);
+		}
+		if(leaderCommit > commitIndex) {
+			commitIndex = Math.min(leaderCommit, i);
+			applyCommitted();
+		}
+		return appended(true, i);
+	}
+
+	/**
+	 * Serves INSTALL: the leader's whole table replaces this replica's log and table
+	 * @param in Payload
+	 * @return APPENDED frame
+	 */
+	public synchronized byte[] install(ByteBuffer in) throws IOException {
+		long t = IndexProtocol.readVarlong(in);
+		InetSocketAddress from = IndexProtocol.readEndpoint(in);
+		long index = IndexProtocol.readVarlong(in);
+		long lastTerm = IndexProtocol.readVarlong(in);
+		List<InetSocketAddress> m = IndexProtocol.readEndpoints(in);
+		if(t < term)
+			return appended(false, lastIndex());
+		follow(t, from, System.currentTimeMillis());
+		if(index <= commitIndex)
+			return appended(true, index);
+		dht.readTable(in, index, lastTerm);
+		terms.clear();
+		entries.clear();
+		snapshotIndex = index;
+		snapshotTerm = lastTerm;
+		snapshotMembers = m;
+		commitIndex = index;
+		lastApplied = index;
+		setMembers(m);
+		return appended(true, index);
+	}
+
+	/**
+	 * Serves VOTE from a candidate
+	 * @param in Payload
+	 * @return VOTED frame
+	 */
+	public synchronized byte[] vote(ByteBuffer in) throws IOException {
+		long t = IndexProtocol.readVarlong(in);
+		InetSocketAddress candidate = IndexProtocol.readEndpoint(in);
+		long candidateIndex = IndexProtocol.readVarlong(in);
+		long candidateTerm = IndexProtocol.readVarlong(in);
+		long now = System.currentTimeMillis();
+		//while a leader is heard, candidates are ignored: a replica cut off for a moment cannot depose it
+		if(role == Role.LEADER || (leader != null && now - leaderContact < ELECTION_TIMEOUT_MS))
+			return voted(false);
+		if(t > term)
+			stepDown(t, null, now);
+		long last = termAt(lastIndex());
+		boolean upToDate = candidateTerm > last || (candidateTerm == last && candidateIndex >= lastIndex());
+		boolean granted = t == term && upToDate && (votedFor == null || votedFor.equals(candidate));
+		if(granted) {
+			votedFor = candidate;
+			resetElection(now);
+		}
+		return voted(granted);
+	}
+
+	// election timer, and the leader's watch over the reachability of the others
+	private void tick() {
+		synchronized(this) {
+			while(running) {
+				long now = System.currentTimeMillis();
+				if(role == Role.LEADER) {
+					checkQuorum(now);
+					if(role == Role.LEADER)
+						dropUnreachable(now);
+				}
+				else if(members.contains(self) && now >= electionDeadline)
+					startElection(now);
+				try {
+					wait(10);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	// asks the seed (and whichever leader it names) to take this replica in
+	private void join() {
+		InetSocketAddress target = seed;
+		byte[] request = new IndexProtocol.Writer(IndexProtocol.JOIN).writeEndpoint(self).toFrame();
+		for(int attempt = 0; attempt < JOIN_ATTEMPTS && running; attempt++) {
+			try {
+				IndexProtocol.Frame f = IndexProtocol.call(target, request, READ_TIMEOUT);
+				if(f.type == IndexProtocol.NOT_LEADER) {
+					if(IndexProtocol.readByte(f.payload) != 0) {
+						target = IndexProtocol.readEndpoint(f.payload);
+						continue;
+					}
+				}
+				else if(f.type == IndexProtocol.REPLICAS) {
+					boolean full = IndexProtocol.readByte(f.payload) != 0;
+					if(IndexProtocol.readEndpoints(f.payload).contains(self))
+						return;
+					if(full) {
+						System.out.println("\tIndex replicas are complete: Standby");
+						return;
+					}
+				}
+			} catch (IOException e) {
+				target = seed;
+			}
+			try {
+				Thread.sleep(ELECTION_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void startElection(long now) {
+		term++;
+		role = Role.CANDIDATE;
+		votedFor = self;
+		leader = null;
+		votes.clear();
+		votes.add(self);
+		resetElection(now);
+		if(isMajority(votes))
+			becomeLeader(now);
+		notifyAll();
+	}
+
+	private void becomeLeader(long now) {
+		role = Role.LEADER;
+		leader = self;
+		for(Link l : links.values()) {
+			l.nextIndex = lastIndex() + 1;
+			l.matchIndex = 0;
+			l.contact = now;
+		}
+		System.out.println("\tIndex server " + self.getAddress().getHostAddress() + ":" + self.getPort()
+				+ " leads the index (term " + term + ", " + members.size() + " replicas)");
+		//entries of earlier terms are committed with one of this term: the current replicas serve as that
+		try {
+			appendEntry(term, membersEntry(members));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		advanceCommit();
+		notifyAll();
+	}
+
+	// a leader or candidate of term t was heard: follow it
+	private void follow(long t, InetSocketAddress from, long now) {
+		if(t > term || role != Role.FOLLOWER || !from.equals(leader))
+			stepDown(t, from, now);
+		leaderContact = now;
+		resetElection(now);
+	}
+
+	private void stepDown(long t, InetSocketAddress newLeader, long now) {
+		if(t > term) {
+			term = t;
+			votedFor = null;
+		}
+		if(role == Role.LEADER) {
+			//entries not yet committed may still be, by the next leader: the peers retry there
+			byte[] redirect = notLeader();
+			for(Object to : waiting.values())
+				dht.reply(to, redirect);
+			waiting.clear();
+		}
+		role = Role.FOLLOWER;
+		leader = newLeader;
+		resetElection(now);
+		notifyAll();
+	}
+
+	private void resetElection(long now) {
+		electionDeadline = now + ELECTION_TIMEOUT_MS + random.nextInt((int) ELECTION_TIMEOUT_MS);
+	}
+
+	private boolean isMajority(Collection<InetSocketAddress> reached) {
+		int n = 0;
+		for(InetSocketAddress m : members)
+			if(reached.contains(m))
+				n++;
+		return n > members.size() / 2;
+	}
+
+	// leader: commits the last entry of this term a majority holds
+	private void advanceCommit() {
+		for(long n = lastIndex(); n > commitIndex && termAt(n) == term; n--) {
+			int holders = 0;
+			for(InetSocketAddress m : members) {
+				Link l = links.get(m);
+				if(m.equals(self) || (l != null && l.matchIndex >= n))
+					holders++;
+			}
+			if(holders > members.size() / 2) {
+				commitIndex = n;
+				applyCommitted();
+				return;
+			}
+		}
+	}
+
+	private void applyCommitted() {
+		while(lastApplied < commitIndex) {
+			long i = ++lastApplied;
+			byte[] entry = entryAt(i);
+			byte[] answer = entry[1] == IndexProtocol.MEMBERS ? replicas() : dht.apply(entry, i, termAt(i));
+			Object to = waiting.remove(i);
+			if(to != null)
+				dht.reply(to, answer);
+		}
+		if(lastApplied - snapshotIndex > MAX_LOG)
+			trim(lastApplied - MAX_LOG / 2);
+	}
+
+	// drops the entries up to index, which are applied
+	private void trim(long index) {
+		snapshotMembers = membersAt(index);
+		snapshotTerm = termAt(index);
+		int n = (int) (index - snapshotIndex);
+		terms.subList(0, n).clear();
+		entries.subList(0, n).clear();
+		snapshotIndex = index;
+	}
+
+	// leader: steps down unless a majority answered within two election timeouts
+	private void checkQuorum(long now) {
+		Set<InetSocketAddress> reached = new HashSet<InetSocketAddress>();
+		reached.add(self);
+		for(Link l : links.values())
+			if(now - l.contact < 2 * ELECTION_TIMEOUT_MS)
+				reached.add(l.peer);
+		if(!isMajority(reached)) {
+			System.out.println("\tIndex server lost the majority of the replicas (term " + term + ")");
+			stepDown(term, null, now);
+		}
+	}
+
+	// leader: drops one replica that has not answered for MEMBER_TIMEOUT_MS
+	private void dropUnreachable(long now) {
+		if(configPending())
+			return;
+		for(Link l : links.values())
+			if(now - l.contact > MEMBER_TIMEOUT_MS) {
+				List<InetSocketAddress> m = new ArrayList<InetSocketAddress>(members);
+				m.remove(l.peer);
+				System.out.println("\tIndex replica " + l.peer.getAddress().getHostAddress() + ":" + l.peer.getPort()
+						+ " unreachable: dropped");
+				try {
+					propose(membersEntry(m), null);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return;
+			}
+	}
+
+	private boolean isFull() {
+		return members.size() >= 1 + standbys;
+	}
+
+	// true while a change of the replicas is not committed; only one may be under way
+	private boolean configPending() {
+		for(long i = commitIndex + 1; i <= lastIndex(); i++)
+			if(entryAt(i)[1] == IndexProtocol.MEMBERS)
+				return true;
+		return false;
+	}
+
+	private long lastIndex() {
+		return snapshotIndex + entries.size();
+	}
+
+	// term of entry i, snapshotIndex <= i <= lastIndex()
+	private long termAt(long i) {
+		return i == snapshotIndex ? snapshotTerm : terms.get((int) (i - snapshotIndex - 1));
+	}
+
+	private byte[] entryAt(long i) {
+		return entries.get((int) (i - snapshotIndex - 1));
+	}
+
+	// a MEMBERS entry takes effect as soon as it is in the log
+	private void appendEntry(long t, byte[] entry) throws IOException {
+		List<InetSocketAddress> m = entry.length > 1 && entry[1] == IndexProtocol.MEMBERS ? readMembers(entry) : null;
+		terms.add(t);
+		entries.add(entry);
+		if(m != null)
+			setMembers(m);
+	}
+
+	// drops the entries from index on
+	private void truncate(long index) {
+		int from = (int) (index - snapshotIndex - 1);
+		terms.subList(from, terms.size()).clear();
+		entries.subList(from, entries.size()).clear();
+		setMembers(membersAt(lastIndex()));
+	}
+
+	private List<InetSocketAddress> membersAt(long index) {
+		for(long i = index; i > snapshotIndex; i--)
+			if(entryAt(i)[1] == IndexProtocol.MEMBERS)
+				try {
+					return readMembers(entryAt(i));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+		return snapshotMembers;
+	}
+
+	// takes over the replicas and opens or closes the connections to them
+	private void setMembers(List<InetSocketAddress> m) {
+		members = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(m));
+		for(Iterator<Map.Entry<InetSocketAddress, Link>> it = links.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<InetSocketAddress, Link> e = it.next();
+			if(!members.contains(e.getKey())) {
+				e.getValue().close();
+				it.remove();
+			}
+		}
+		for(InetSocketAddress peer : members)
+			if(!peer.equals(self) && !links.containsKey(peer)) {
+				Link l = new Link(peer);
+				l.nextIndex = lastIndex() + 1;
+				links.put(peer, l);
+				l.thread.start();
+			}
+		notifyAll();
+	}
+
+	private static byte[] membersEntry(List<InetSocketAddress> m) {
+		return new IndexProtocol.Writer(IndexProtocol.MEMBERS).writeEndpoints(m).toFrame();
+	}
+
+	private static List<InetSocketAddress> readMembers(byte[] entry) throws IOException {
+		return IndexProtocol.readEndpoints(IndexProtocol.decode(ByteBuffer.wrap(entry)).payload);
+	}
+
+	private byte[] replicas() {
+		return new IndexProtocol.Writer(IndexProtocol.REPLICAS).writeByte(isFull() ? 1 : 0).writeEndpoints(members).toFrame();
+	}
+
+	private byte[] appended(boolean success, long index) {
+		return new IndexProtocol.Writer(IndexProtocol.APPENDED).writeVarlong(term).writeByte(success ? 1 : 0)
+				.writeVarlong(index).toFrame();
+	}
+
+	private byte[] voted(boolean granted) {
+		return new IndexProtocol.Writer(IndexProtocol.VOTED).writeVarlong(term).writeByte(granted ? 1 : 0).toFrame();
+	}
+
+	/**
+	 * Connection to one other replica: the leader sends it APPEND (or INSTALL), a candidate VOTE.
+	 * One request is outstanding at a time; the thread waits on the replicator's monitor.
+	 */
+	private final class Link implements Runnable {
+		final InetSocketAddress peer;
+		final Thread thread;
+		// Leader: next entry to send and last entry known to be held
+		long nextIndex;
+		long matchIndex;
+		// Last answer, in milliseconds
+		long contact = System.currentTimeMillis();
+		// Term of the last VOTE sent
+		long voteTerm;
+		long lastSent;
+		boolean closed;
+		private volatile Socket socket;
+		private DataInputStream in;
+		private OutputStream out;
+
+		Link(InetSocketAddress peer) {
+			this.peer = peer;
+			thread = new Thread(this, "IndexReplicator-" + self.getPort() + "-" + peer.getPort());
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				byte[] request;
+				long sentTerm;
+				synchronized(IndexReplicator.this) {
+					try {
+						while(true) {
+							if(closed || !running) {
+								disconnect();
+								return;
+							}
+							long now = System.currentTimeMillis();
+							if(role == Role.LEADER) {
+								if(nextIndex <= lastIndex() || now - lastSent >= HEARTBEAT_MS)
+									break;
+								IndexReplicator.this.wait(HEARTBEAT_MS - (now - lastSent));
+							}
+							else if(role == Role.CANDIDATE && voteTerm != term)
+								break;
+							else
+								IndexReplicator.this.wait();
+						}
+					} catch (InterruptedException e) {
+						disconnect();
+						return;
+					}
+					sentTerm = term;
+					lastSent = System.currentTimeMillis();
+					if(role == Role.CANDIDATE) {
+						voteTerm = term;
+						request = new IndexProtocol.Writer(IndexProtocol.VOTE).writeVarlong(term).writeEndpoint(self)
+								.writeVarlong(lastIndex()).writeVarlong(termAt(lastIndex())).toFrame();
+					}
+					else if(nextIndex - 1 < snapshotIndex)
+						request = installRequest();
+					else
+						request = appendRequest();
+				}
+				IndexProtocol.Frame response;
+				try {
+					response = exchange(request);
+				} catch (IOException e) {
+					disconnect();
+					synchronized(IndexReplicator.this) {
+						//a VOTE lost with a stale connection is asked again in the same term
+						voteTerm = 0;
+					}
+					try {
+						Thread.sleep(HEARTBEAT_MS);
+					} catch (InterruptedException ie) {
+						return;
+					}
+					continue;
+				}
+				try {
+					handle(response, sentTerm);
+				} catch (IOException e) {
+					//malformed answer: treated like no answer
+				}
+			}
+		}
+
+		// APPEND with the entries from nextIndex on, up to MAX_APPEND bytes
+		private byte[] appendRequest() {
+			long prev = nextIndex - 1;
+			int n = 0;
+			int bytes = 0;
+			for(long i = nextIndex; i <= lastIndex() && (n == 0 || bytes + entryAt(i).length <= MAX_APPEND); i++) {
+				bytes += entryAt(i).length;
+				n++;
+			}
+			IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.APPEND).writeVarlong(term).writeEndpoint(self)
+					.writeVarlong(prev).writeVarlong(termAt(prev)).writeVarlong(commitIndex).writeVarint(n);
+			for(long i = nextIndex; i < nextIndex + n; i++) {
+				byte[] entry = entryAt(i);
+				w.writeVarlong(termAt(i)).writeVarint(entry.length).writeBytes(entry, 0, entry.length);
+			}
+			return w.toFrame();
+		}
+
+		// INSTALL with the table as of the last applied entry
+		private byte[] installRequest() {
+			IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.INSTALL).writeVarlong(term).writeEndpoint(self)
+					.writeVarlong(lastApplied).writeVarlong(termAt(lastApplied)).writeEndpoints(membersAt(lastApplied));
+			dht.writeTable(w);
+			return w.toFrame();
+		}
+
+		private void handle(IndexProtocol.Frame response, long sentTerm) throws IOException {
+			long t = IndexProtocol.readVarlong(response.payload);
+			boolean success = IndexProtocol.readByte(response.payload) != 0;
+			long index = response.type == IndexProtocol.APPENDED ? IndexProtocol.readVarlong(response.payload) : 0;
+			synchronized(IndexReplicator.this) {
+				long now = System.currentTimeMillis();
+				if(t > term) {
+					stepDown(t, null, now);
+					return;
+				}
+				if(sentTerm != term || closed)
+					return;
+				if(response.type == IndexProtocol.VOTED) {
+					if(role == Role.CANDIDATE && success) {
+						votes.add(peer);
+						if(isMajority(votes))
+							becomeLeader(now);
+					}
+					return;
+				}
+				if(role != Role.LEADER)
+					return;
+				contact = now;
+				if(success) {
+					matchIndex = Math.max(matchIndex, index);
+					nextIndex = matchIndex + 1;
+					advanceCommit();
+				}
+				else
+					nextIndex = Math.max(1, Math.min(nextIndex - 1, index + 1));
+			}
+		}
+
+		private IndexProtocol.Frame exchange(byte[] request) throws IOException {
+			if(socket == null) {
+				Socket s = new Socket();
+				try {
+					s.connect(peer, CONNECT_TIMEOUT);
+					s.setSoTimeout(READ_TIMEOUT);
+					s.setTcpNoDelay(true);
+				} catch (IOException e) {
+					s.close();
+					throw e;
+				}
+				socket = s;
+				in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				out = s.getOutputStream();
+			}
+			out.write(request);
+			out.flush();
+			IndexProtocol.Frame f = IndexProtocol.read(in);
+			if(f.type == IndexProtocol.ERROR)
+				throw new IOException(IndexProtocol.readString(f.payload));
+			if(f.type != IndexProtocol.APPENDED && f.type != IndexProtocol.VOTED)
+				throw new IOException("Unexpected response type " + f.type);
+			return f;
+		}
+
+		// called with the replicator's monitor held, from any thread
+		void close() {
+			closed = true;
+			disconnect();
+		}
+
+		private void disconnect() {
+			Socket s = socket;
+			socket = null;
+			if(s != null)
+				try {
+					s.close();
+				} catch (IOException e) {
+					//already closed
+				}
+		}
+	}
+}
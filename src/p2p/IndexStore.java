@@ -0,0 +1,497 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Table of an index server kept on disk across restarts: a snapshot of the whole table and a
+ * write-ahead log of the changes made since.
+ * Every change of the table (a catalog registered or updated, a peer removed) is appended to
+ * the log as the entry the replicas exchange for it (see DHT.apply). A writer thread writes
+ * what was appended and forces it to disk in one go, so all the changes that arrive during one
+ * fsync share the next one (group commit); the answers to them wait until then (see sync).
+ * Once the log outgrows both MIN_LOG and the snapshot, the table is copied and a new log
+ * started at the same moment; the new snapshot names the first log it does not contain, and
+ * the older logs are deleted once it is in place. A restart reads the snapshot and replays
+ * the logs after it, so recovery takes at most about twice the time to read the table; a
+ * record whose check does not match ends the log, and the torn tail is cut off.
+ * A log or snapshot that cannot be written stops the store for good: the answers waiting for
+ * their changes, and those of every change after, are failed with the error instead of sent,
+ * and the index server is switched off (see DHT.failed) rather than serving a table it no
+ * longer keeps.
+ * Every record, and the snapshot, carries the index and term of the replicas' log entry the
+ * table was at (see IndexReplicator; 0 for a table that was never replicated), so a first
+ * replica restarted on the table continues the log from there.
+ *
+ * Files: snapshot: magic(int) version(byte) log(long) index(long) term(long) frame check(int),
+ *                  frame holding the table as writeTable writes it
+ *        log-n:    {index(long) term(long) entry check(int)}, entry being an IndexProtocol frame
+ *        check being the CRC32 of what comes before it in the record (or the file)
+ */
+public class IndexStore implements Closeable {
+	private static final int MAGIC = 0x50325449;
+	private static final byte VERSION = 1;
+	private static final String SNAPSHOT = "snapshot";
+	private static final String LOG = "log-";
+	// The log is not compacted before it holds this many bytes
+	private static final long MIN_LOG = 4 << 20;
+	// Bytes in front of the table in the snapshot, and in front of the entry in a record
+	private static final int SNAPSHOT_HEAD = 4 + 1 + 8 + 8 + 8;
+	private static final int RECORD_HEAD = 8 + 8;
+
+	// answer waiting for the log to be on disk up to position, and what to do if it never gets there
+	private static final class Waiter {
+		final long position;
+		final Runnable done;
+		final Consumer<IOException> failed;
+
+		Waiter(long position, Runnable done, Consumer<IOException> failed) {
+			this.position = position;
+			this.done = done;
+			this.failed = failed;
+		}
+	}
+
+	private final File dir;
+	private final DHT dht;
+	// Records appended and not written yet, and those of the log before the last switch
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream(64 << 10);
+	private byte[] sealed;
+	// Bytes appended since the store was opened, and how many of them are on disk
+	private long appended;
+	private long durable;
+	private final ArrayDeque<Waiter> waiting = new ArrayDeque<Waiter>();
+	// Index and term of the replicas' log entry the table is at, and where the table was copied for a snapshot
+	private long index;
+	private long term;
+	private long snapshotIndex;
+	private long snapshotTerm;
+	// Number of the current log, its size, and the size of the snapshot
+	private long generation;
+	private long logBytes;
+	private long snapshotBytes;
+	private FileChannel log;
+	private final CRC32 check = new CRC32();
+	// Changes and the fsync that made them durable, since the store was opened
+	private long changes;
+	private long syncs;
+	private long snapshots;
+	private Thread writer;
+	private boolean running = true;
+	// Why the log could not be written, null while it can
+	private IOException failure;
+
+	private IndexStore(File dir, DHT dht) {
+		this.dir = dir;
+		this.dht = dht;
+	}
+
+	/**
+	 * Restores the table of dht from dir (creating it if needed) and starts logging its changes.
+	 * The table is restored through DHT.readTable and DHT.apply, so dht must not log to a store yet.
+	 * @param dir Folder of the snapshot and the logs
+	 * @param dht Table to restore, and to copy into later snapshots (see DHT.checkpoint)
+	 * @throws IOException if the folder cannot be written or the snapshot does not match the table format
+	 */
+	public static IndexStore open(File dir, DHT dht) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		IndexStore s = new IndexStore(dir, dht);
+		s.recover();
+		s.writer = new Thread(s::write, "IndexStore");
+		s.writer.setDaemon(true);
+		s.writer.start();
+		return s;
+	}
+
+	// loads the snapshot and replays the logs after it; new changes go to a new log
+	private void recover() throws IOException {
+		long first = readSnapshot();
+		TreeMap<Long, File> logs = new TreeMap<Long, File>();
+		File[] listed = dir.listFiles();
+		for(File f : listed == null ? new File[0] : listed) {
+			String name = f.getName();
+			if(!name.startsWith(LOG))
+				continue;
+			try {
+				logs.put(Long.parseLong(name.substring(LOG.length())), f);
+			} catch (NumberFormatException e) {
+				//not a log
+			}
+		}
+		generation = Math.max(first, 1);
+		boolean torn = false;
+		for(Map.Entry<Long, File> e : logs.entrySet()) {
+			if(e.getKey() < first || torn) {
+				//already in the snapshot, or written after a record that was lost
+				Files.delete(e.getValue().toPath());
+				continue;
+			}
+			long length = e.getValue().length();
+			long valid = replay(e.getValue());
+			logBytes += valid;
+			if(valid < length) {
+				try (FileChannel fc = FileChannel.open(e.getValue().toPath(), StandardOpenOption.WRITE)) {
+					fc.truncate(valid);
+					fc.force(true);
+				}
+				torn = true;
+			}
+			generation = e.getKey() + 1;
+		}
+		log = FileChannel.open(logFile(generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		log.position(log.size());
+		syncDir();
+	}
+
+	// loads the snapshot into the table; returns the first log it does not contain, 0 without a snapshot
+	private long readSnapshot() throws IOException {
+		File f = new File(dir, SNAPSHOT);
+		if(!f.isFile())
+			return 0;
+		byte[] b = Files.readAllBytes(f.toPath());
+		ByteBuffer in = ByteBuffer.wrap(b);
+		if(b.length < SNAPSHOT_HEAD + IndexProtocol.HEADER + 4 || in.getInt() != MAGIC || in.get() != VERSION)
+			throw new IOException("Not an index snapshot: " + f);
+		check.reset();
+		check.update(b, 0, b.length - 4);
+		if((int) check.getValue() != in.getInt(b.length - 4))
+			throw new IOException("Damaged index snapshot: " + f);
+		long first = in.getLong();
+		index = in.getLong();
+		term = in.getLong();
+		in.position(in.position() + IndexProtocol.HEADER).limit(b.length - 4);
+		dht.readTable(in.slice());
+		snapshotBytes = b.length;
+		return first;
+	}
+
+	// applies the records of a log to the table; returns the length of its valid part
+	private long replay(File f) throws IOException {
+		long valid = 0;
+		byte[] head = new byte[RECORD_HEAD];
+		byte[] header = new byte[IndexProtocol.HEADER];
+		try (InputStream stream = new BufferedInputStream(Files.newInputStream(f.toPath()), 256 << 10)) {
+			DataInputStream in = new DataInputStream(stream);
+			while(true) {
+				byte[] entry;
+				try {
+					in.readFully(head);
+					in.readFully(header);
+					entry = new byte[IndexProtocol.HEADER + IndexProtocol.payloadLength(ByteBuffer.wrap(header))];
+					System.arraycopy(header, 0, entry, 0, header.length);
+					in.readFully(entry, header.length, entry.length - header.length);
+					int expected = in.readInt();
+					check.reset();
+					check.update(head);
+					check.update(entry);
+					if((int) check.getValue() != expected)
+						return valid;
+				} catch (IOException e) {
+					//the end of the log, or a record cut off in its header
+					return valid;
+				}
+				ByteBuffer h = ByteBuffer.wrap(head);
+				index = h.getLong();
+				term = h.getLong();
+				dht.apply(entry);
+				valid += RECORD_HEAD + entry.length + 4;
+			}
+		}
+	}
+
+	private File logFile(long n) {
+		return new File(dir, LOG + n);
+	}
+
+	// makes created, renamed and deleted files of the folder durable, where the platform allows it
+	private void syncDir() {
+		try (FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			fc.force(true);
+		} catch (IOException e) {
+			//not supported for folders here
+		}
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Getter for the index of the replicas' log entry the table is at, as restored or last applied
+	 * @return index, 0 if the table was never replicated
+	 */
+	public synchronized long getIndex() {
+		return index;
+	}
+
+	/**
+	 * Getter for the term of that entry
+	 */
+	public synchronized long getTerm() {
+		return term;
+	}
+
+	/**
+	 * Moves the table to a log entry of the replicas; called with the table locked, before the
+	 * changes of the entry are appended
+	 * @param index Index of the entry
+	 * @param term Term of the entry
+	 */
+	synchronized void position(long index, long term) {
+		this.index = index;
+		this.term = term;
+	}
+
+	/**
+	 * Appends a change of the table to the log; called with the table locked, in the order of the changes.
+	 * Once the store is closed or failed the change is not kept, and sync reports the failure.
+	 * @param entry Change as a log entry (see DHT.apply)
+	 */
+	public synchronized void append(byte[] entry) {
+		if(!running)
+			return;
+		ByteBuffer head = ByteBuffer.allocate(RECORD_HEAD).putLong(index).putLong(term);
+		check.reset();
+		check.update(head.array());
+		check.update(entry);
+		int c = (int) check.getValue();
+		pending.write(head.array(), 0, RECORD_HEAD);
+		pending.write(entry, 0, entry.length);
+		pending.write(c >>> 24);
+		pending.write(c >>> 16);
+		pending.write(c >>> 8);
+		pending.write(c);
+		appended += RECORD_HEAD + entry.length + 4;
+		logBytes += RECORD_HEAD + entry.length + 4;
+		changes++;
+		notifyAll();
+	}
+
+	/**
+	 * Runs done once every change appended so far is on disk, on the writer thread;
+	 * at once if they are (or the store is closed)
+	 * @param done Sends the answer to the last change
+	 * @param failed Reports instead why the changes could not be kept, once the log failed
+	 */
+	public void sync(Runnable done, Consumer<IOException> failed) {
+		IOException e;
+		synchronized(this) {
+			e = failure;
+			if(e == null && running && durable < appended) {
+				waiting.add(new Waiter(appended, done, failed));
+				return;
+			}
+		}
+		if(e != null)
+			failed.accept(e);
+		else
+			done.run();
+	}
+
+	/**
+	 * Getter for the error that stopped the store
+	 * @return the error, null unless the log or a snapshot could not be written
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Starts a new log for the changes from now on; called by DHT.checkpoint with the table locked,
+	 * so that the copy of the table and the log switch happen at the same change
+	 */
+	synchronized void rotate() {
+		snapshotIndex = index;
+		snapshotTerm = term;
+		sealed = pending.toByteArray();
+		pending.reset();
+		generation++;
+		logBytes = pending.size();
+	}
+
+	// true once a snapshot would be cheaper to read than the log
+	private boolean due() {
+		return logBytes > Math.max(MIN_LOG, snapshotBytes);
+	}
+
+	// writer thread: group commit of the appended records, and the snapshots
+	private void write() {
+		try {
+			while(true) {
+				boolean checkpoint;
+				synchronized(this) {
+					while(running && pending.size() == 0 && !due())
+						wait();
+					if(!running && pending.size() == 0)
+						break;
+					checkpoint = running && due();
+				}
+				byte[] table = checkpoint ? dht.checkpoint(this) : null;
+				byte[] before;
+				byte[] batch;
+				long end;
+				long n;
+				long at;
+				long atTerm;
+				synchronized(this) {
+					at = snapshotIndex;
+					atTerm = snapshotTerm;
+					before = sealed;
+					sealed = null;
+					batch = pending.toByteArray();
+					pending.reset();
+					end = appended;
+					n = generation;
+				}
+				if(before != null) {
+					//the end of the log the snapshot replaces, then the first records of the new one
+					writeFully(before);
+					log.force(false);
+					log.close();
+					log = FileChannel.open(logFile(n).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				}
+				writeFully(batch);
+				log.force(false);
+				synchronized(this) {
+					syncs++;
+				}
+				if(before != null)
+					syncDir();
+				release(end);
+				if(table != null)
+					writeSnapshot(table, n, at, atTerm);
+			}
+		} catch (IOException e) {
+			//nothing appended from here on is durable: the changes waiting, and every later one, are failed
+			List<Waiter> lost;
+			synchronized(this) {
+				failure = e;
+				running = false;
+				lost = new ArrayList<Waiter>(waiting);
+				waiting.clear();
+			}
+			for(Waiter w : lost)
+				w.failed.accept(e);
+			System.out.println("\t" + e.getMessage() + ": Index Store");
+			dht.failed("Index Store", e);
+			dht.switchOff();
+		} catch (InterruptedException e) {
+			//closed
+		}
+		//closed: everything appended was written and forced before the loop ended
+		synchronized(this) {
+			running = false;
+		}
+		release(Long.MAX_VALUE);
+		try {
+			log.close();
+		} catch (IOException e) {
+			//already closed
+		}
+	}
+
+	private void writeFully(byte[] b) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		while(buf.hasRemaining())
+			log.write(buf);
+	}
+
+	// runs the answers to the changes up to position, outside the lock
+	private void release(long position) {
+		List<Runnable> done = new ArrayList<Runnable>();
+		synchronized(this) {
+			durable = Math.max(durable, Math.min(position, appended));
+			while(!waiting.isEmpty() && waiting.peek().position <= position)
+				done.add(waiting.poll().done);
+		}
+		for(Runnable r : done)
+			r.run();
+	}
+
+	// writes the snapshot of the table at log entry index beside the old one, moves it into place
+	// and deletes the logs it contains
+	private void writeSnapshot(byte[] table, long first, long index, long term) throws IOException {
+		File tmp = new File(dir, SNAPSHOT + ".tmp");
+		CRC32 c = new CRC32();
+		ByteBuffer head = ByteBuffer.allocate(SNAPSHOT_HEAD).putInt(MAGIC).put(VERSION).putLong(first).putLong(index).putLong(term);
+		c.update(head.array());
+		c.update(table);
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(head.array());
+			out.write(table);
+			out.write(ByteBuffer.allocate(4).putInt((int) c.getValue()).array());
+			out.getFD().sync();
+		}
+		PartFile.moveIntoPlace(tmp, new File(dir, SNAPSHOT));
+		syncDir();
+		synchronized(this) {
+			snapshotBytes = head.capacity() + table.length + 4;
+			snapshots++;
+		}
+		File[] listed = dir.listFiles();
+		for(File f : listed == null ? new File[0] : listed)
+			if(f.getName().startsWith(LOG)) {
+				try {
+					if(Long.parseLong(f.getName().substring(LOG.length())) < first)
+						Files.delete(f.toPath());
+				} catch (NumberFormatException e) {
+					//not a log
+				}
+			}
+	}
+
+	/**
+	 * Getter for the changes logged since the store was opened
+	 */
+	public synchronized long getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Getter for the batches forced to disk since the store was opened; changes / syncs is the group size
+	 */
+	public synchronized long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * Getter for the snapshots written since the store was opened
+	 */
+	public synchronized long getSnapshots() {
+		return snapshots;
+	}
+
+	/**
+	 * Writes and forces what was appended, answers whatever waits for it, and stops the writer
+	 */
+	@Override
+	public void close() {
+		synchronized(this) {
+			running = false;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
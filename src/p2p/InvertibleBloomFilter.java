@@ -0,0 +1,178 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Invertible Bloom lookup table of 64-bit keys, to find the difference between two sets.
+ * Each key is added to one cell in each of HASHES equal parts of the table; a cell keeps the
+ * number of its keys, their XOR and the XOR of a check hash of each. Subtracting the table of
+ * one set from the table of the other (built with the same number of cells) cancels the keys
+ * both hold, whatever the size of the sets, and the keys left are read back by peeling cells
+ * that hold a single key. That works while the difference is below about two thirds of the
+ * cells; the size of a table depends on the difference only, not on the sets.
+ *
+ * Encoding: cells(varint) {count(varint, zigzag) keys(long) check(int)}
+ */
+public class InvertibleBloomFilter {
+	public static final int HASHES = 3;
+	// Most cells a table is given
+	public static final int MAX_CELLS = 1 << 24;
+
+	private final int[] counts;
+	private final long[] keys;
+	private final int[] checks;
+
+	/**
+	 * Keys found in only one of two sets
+	 */
+	public static final class Difference {
+		// Keys of the set whose table the other was subtracted from, and of the other set
+		public final List<Long> added;
+		public final List<Long> removed;
+
+		Difference(List<Long> added, List<Long> removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+	}
+
+	/**
+	 * Empty table
+	 * @param cells Number of cells, rounded up to a multiple of HASHES
+	 */
+	public InvertibleBloomFilter(int cells) {
+		if(cells <= 0 || cells > MAX_CELLS)
+			throw new IllegalArgumentException("cells out of range: " + cells);
+		int n = round(cells);
+		counts = new int[n];
+		keys = new long[n];
+		checks = new int[n];
+	}
+
+	/**
+	 * Number of cells a table asked to have the given number gets
+	 */
+	public static int round(int cells) {
+		return (cells + HASHES - 1) / HASHES * HASHES;
+	}
+
+	public int cells() {
+		return counts.length;
+	}
+
+	public InvertibleBloomFilter copy() {
+		InvertibleBloomFilter t = new InvertibleBloomFilter(counts.length);
+		System.arraycopy(counts, 0, t.counts, 0, counts.length);
+		System.arraycopy(keys, 0, t.keys, 0, keys.length);
+		System.arraycopy(checks, 0, t.checks, 0, checks.length);
+		return t;
+	}
+
+	public void add(long key) {
+		update(key, 1);
+	}
+
+	public void remove(long key) {
+		update(key, -1);
+	}
+
+	private void update(long key, int count) {
+		int check = check(key);
+		int part = counts.length / HASHES;
+		for(int i = 0; i < HASHES; i++) {
+			int c = i * part + (int) Long.remainderUnsigned(mix(key + i), part);
+			counts[c] += count;
+			keys[c] ^= key;
+			checks[c] ^= check;
+		}
+	}
+
+	/**
+	 * Removes the keys of another table from this one
+	 * @param other Table with the same number of cells
+	 */
+	public void subtract(InvertibleBloomFilter other) {
+		if(other.cells() != cells())
+			throw new IllegalArgumentException("Tables of " + cells() + " and " + other.cells() + " cells");
+		for(int c = 0; c < counts.length; c++) {
+			counts[c] -= other.counts[c];
+			keys[c] ^= other.keys[c];
+			checks[c] ^= other.checks[c];
+		}
+	}
+
+	/**
+	 * Reads the keys back out of a table that another was subtracted from; the table is emptied on the way
+	 * @return the keys only this set held (added) and only the other one held (removed),
+	 * 		null if the difference is too large for the table
+	 */
+	public Difference decode() {
+		List<Long> added = new ArrayList<Long>();
+		List<Long> removed = new ArrayList<Long>();
+		ArrayDeque<Integer> pure = new ArrayDeque<Integer>();
+		for(int c = 0; c < counts.length; c++)
+			if(isPure(c))
+				pure.add(c);
+		while(!pure.isEmpty()) {
+			int c = pure.poll();
+			if(!isPure(c))
+				continue;
+			long key = keys[c];
+			int count = counts[c];
+			(count > 0 ? added : removed).add(key);
+			update(key, -count);
+			int part = counts.length / HASHES;
+			for(int i = 0; i < HASHES; i++) {
+				int d = i * part + (int) Long.remainderUnsigned(mix(key + i), part);
+				if(isPure(d))
+					pure.add(d);
+			}
+		}
+		for(int c = 0; c < counts.length; c++)
+			if(counts[c] != 0 || keys[c] != 0 || checks[c] != 0)
+				return null;
+		return new Difference(added, removed);
+	}
+
+	// a cell holding exactly one key, added or removed
+	private boolean isPure(int c) {
+		return (counts[c] == 1 || counts[c] == -1) && checks[c] == check(keys[c]);
+	}
+
+	private static int check(long key) {
+		return (int) mix(key ^ 0x5DEECE66DL);
+	}
+
+	// finalizer of SplitMix64
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public void write(IndexProtocol.Writer w) {
+		w.writeVarint(counts.length);
+		for(int c = 0; c < counts.length; c++)
+			w.writeVarint((counts[c] << 1) ^ (counts[c] >> 31)).writeLong(keys[c]).writeInt(checks[c]);
+	}
+
+	public static InvertibleBloomFilter read(ByteBuffer in) throws IOException {
+		int n = IndexProtocol.readVarint(in);
+		if(n <= 0 || n > MAX_CELLS || n % HASHES != 0)
+			throw new IOException("Malformed lookup table of " + n + " cells");
+		InvertibleBloomFilter t = new InvertibleBloomFilter(n);
+		for(int c = 0; c < n; c++) {
+			int z = IndexProtocol.readVarint(in);
+			t.counts[c] = (z >>> 1) ^ -(z & 1);
+			if(in.remaining() < 12)
+				throw new IOException("Truncated lookup table");
+			t.keys[c] = in.getLong();
+			t.checks[c] = in.getInt();
+		}
+		return t;
+	}
+}
@@ -0,0 +1,332 @@
+package p2p;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one node.
+ * Bytes sent and received in total and per peer, durations of uploads and downloads (one per
+ * file), time spent waiting in the transfer queue, time the index
+ * server spent answering each type of request, failures by where they happened and their
+ * exception, and gauges read when reported (queue depth, running transfers). A component
+ * records into the Metrics it was given, if any. Recording a transfer allocates nothing: the
+ * per-peer counters are looked up once per connection with peer(). The whole of it is
+ * readable over JMX (see MetricsMBean) and as text with getReport.
+ */
+public class Metrics implements MetricsMBean {
+	// Index request types are below this
+	private static final int TYPES = 64;
+
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final Histogram uploads = new Histogram();
+	private final Histogram downloads = new Histogram();
+	private final Histogram queueWait = new Histogram();
+	// Service time of index requests by type, created with the first request of a type
+	private final AtomicReferenceArray<Histogram> indexOps = new AtomicReferenceArray<Histogram>(TYPES);
+	private final ConcurrentHashMap<InetAddress, Traffic> peers = new ConcurrentHashMap<InetAddress, Traffic>();
+	private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+	// Name this is registered under with the platform MBean server, null if not registered
+	private ObjectName registered;
+
+	/**
+	 * Bytes exchanged with one peer
+	 */
+	public static final class Traffic {
+		final LongAdder sent = new LongAdder();
+		final LongAdder received = new LongAdder();
+
+		public long getSent() {
+			return sent.sum();
+		}
+
+		public long getReceived() {
+			return received.sum();
+		}
+	}
+
+	/**
+	 * Counters of a peer, to be looked up once per connection
+	 * @param ip Address of the peer
+	 * @return its counters, created on first use
+	 */
+	public Traffic peer(InetAddress ip) {
+		Traffic t = peers.get(ip);
+		return t != null ? t : peers.computeIfAbsent(ip, k -> new Traffic());
+	}
+
+	/**
+	 * Records file data sent to a peer outside of a timed upload
+	 */
+	public void sent(Traffic peer, long bytes) {
+		peer.sent.add(bytes);
+		bytesSent.add(bytes);
+	}
+
+	public void received(Traffic peer, long bytes) {
+		peer.received.add(bytes);
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Records one file sent
+	 * @param peer Counters of the receiving peer
+	 * @param nanos Time from request to last byte
+	 * @param bytes Bytes on the wire
+	 */
+	public void upload(Traffic peer, long nanos, long bytes) {
+		sent(peer, bytes);
+		uploads.record(nanos);
+	}
+
+	/**
+	 * Records one file received
+	 * @param peer Counters of the sending peer
+	 * @param nanos Time from request to last byte
+	 * @param bytes Bytes on the wire
+	 */
+	public void download(Traffic peer, long nanos, long bytes) {
+		received(peer, bytes);
+		downloads.record(nanos);
+	}
+
+	public void queueWait(long nanos) {
+		queueWait.record(nanos);
+	}
+
+	/**
+	 * Records the time the index server took to answer a request
+	 * @param type Request type (see IndexProtocol)
+	 * @param nanos Service time
+	 */
+	public void indexOperation(byte type, long nanos) {
+		if(type < 0 || type >= TYPES)
+			return;
+		Histogram h = indexOps.get(type);
+		if(h == null) {
+			indexOps.compareAndSet(type, null, new Histogram());
+			h = indexOps.get(type);
+		}
+		h.record(nanos);
+	}
+
+	/**
+	 * Counts a failure under where it happened and the type of exception
+	 * @param where Operation, as printed on the console (Synchronization, Listener, ...)
+	 * @param cause Exception it failed with
+	 */
+	public void failure(String where, Throwable cause) {
+		String key = where + " / " + cause.getClass().getSimpleName();
+		LongAdder n = failures.get(key);
+		if(n == null)
+			n = failures.computeIfAbsent(key, k -> new LongAdder());
+		n.increment();
+	}
+
+	/**
+	 * Adds a value that is read whenever the metrics are reported, replacing one of the same name
+	 * @param name Name in the report
+	 * @param value Current value
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Adds the totals, histograms and failures of another node's metrics to this one, to report
+	 * on several nodes together; gauges and per-peer counters are not added
+	 * @param other Metrics to add
+	 */
+	public void add(Metrics other) {
+		bytesSent.add(other.bytesSent.sum());
+		bytesReceived.add(other.bytesReceived.sum());
+		uploads.add(other.uploads);
+		downloads.add(other.downloads);
+		queueWait.add(other.queueWait);
+		for(int type = 0; type < TYPES; type++) {
+			Histogram h = other.indexOps.get(type);
+			if(h == null)
+				continue;
+			indexOps.compareAndSet(type, null, new Histogram());
+			indexOps.get(type).add(h);
+		}
+		for(Map.Entry<String, LongAdder> e : other.failures.entrySet())
+			failures.computeIfAbsent(e.getKey(), k -> new LongAdder()).add(e.getValue().sum());
+	}
+
+	/**
+	 * Registers this with the platform MBean server as p2p:type=Metrics,name=name
+	 * @param name Name of the node
+	 * @throws JMException if the name is taken
+	 */
+	public synchronized void register(String name) throws JMException {
+		unregister();
+		ObjectName on = new ObjectName("p2p:type=Metrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		registered = on;
+	}
+
+	public synchronized void unregister() {
+		if(registered == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(registered);
+		} catch (JMException e) {
+			//already gone
+		}
+		registered = null;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getUploads() {
+		return uploads.getCount();
+	}
+
+	@Override
+	public long getDownloads() {
+		return downloads.getCount();
+	}
+
+	@Override
+	public double getUploadMillisP50() {
+		return uploads.percentile(0.5) / 1e6;
+	}
+
+	@Override
+	public double getUploadMillisP99() {
+		return uploads.percentile(0.99) / 1e6;
+	}
+
+	@Override
+	public double getDownloadMillisP50() {
+		return downloads.percentile(0.5) / 1e6;
+	}
+
+	@Override
+	public double getDownloadMillisP99() {
+		return downloads.percentile(0.99) / 1e6;
+	}
+
+	@Override
+	public double getQueueWaitMillisP99() {
+		return queueWait.percentile(0.99) / 1e6;
+	}
+
+	@Override
+	public String[] getGauges() {
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<String, LongSupplier> e : new TreeMap<String, LongSupplier>(gauges).entrySet())
+			lines.add(e.getKey() + ": " + e.getValue().getAsLong());
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public long getIndexRequests() {
+		long n = 0;
+		for(int type = 0; type < TYPES; type++) {
+			Histogram h = indexOps.get(type);
+			if(h != null)
+				n += h.getCount();
+		}
+		return n;
+	}
+
+	@Override
+	public String[] getIndexOperations() {
+		List<String> lines = new ArrayList<String>();
+		for(int type = 0; type < TYPES; type++) {
+			Histogram h = indexOps.get(type);
+			if(h != null)
+				lines.add(summary(IndexProtocol.typeName((byte) type), h, 1e3, "us"));
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getFailures() {
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(failures).entrySet())
+			lines.add(e.getKey() + ": " + e.getValue().sum());
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getPeers() {
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<InetAddress, Traffic> e : peers.entrySet())
+			lines.add(e.getKey().getHostAddress() + ": sent " + e.getValue().getSent() + " bytes, received "
+					+ e.getValue().getReceived() + " bytes");
+		lines.sort(null);
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("bytes sent ").append(getBytesSent()).append(", received ").append(getBytesReceived()).append('\n');
+		sb.append(summary("uploads", uploads, 1e6, "ms")).append('\n');
+		sb.append(summary("downloads", downloads, 1e6, "ms")).append('\n');
+		sb.append(summary("transfer queue wait", queueWait, 1e6, "ms")).append('\n');
+		section(sb, "gauges", getGauges());
+		section(sb, "index server requests", getIndexOperations());
+		section(sb, "failures", getFailures());
+		section(sb, "peers", getPeers());
+		return sb.toString();
+	}
+
+	private static void section(StringBuilder sb, String title, String[] lines) {
+		if(lines.length == 0)
+			return;
+		sb.append(title).append('\n');
+		for(String line : lines)
+			sb.append('\t').append(line).append('\n');
+	}
+
+	// count, mean and percentiles of a histogram in the given unit
+	private static String summary(String name, Histogram h, double scale, String unit) {
+		return String.format("%s: %d, mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, max %.2f %s", name, h.getCount(),
+				h.getMean() / scale, h.percentile(0.5) / scale, h.percentile(0.9) / scale, h.percentile(0.99) / scale,
+				h.getMax() / scale, unit);
+	}
+
+	@Override
+	public void reset() {
+		bytesSent.reset();
+		bytesReceived.reset();
+		uploads.reset();
+		downloads.reset();
+		queueWait.reset();
+		for(int type = 0; type < TYPES; type++)
+			indexOps.set(type, null);
+		//connections keep their peer's counters
+		for(Traffic t : peers.values()) {
+			t.sent.reset();
+			t.received.reset();
+		}
+		failures.clear();
+	}
+}
@@ -0,0 +1,43 @@
+package p2p;
+
+/**
+ * Management interface of Metrics, shown by JConsole and other JMX clients under
+ * p2p:type=Metrics,name=<node>. Durations are in milliseconds.
+ */
+public interface MetricsMBean {
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	long getUploads();
+
+	long getDownloads();
+
+	double getUploadMillisP50();
+
+	double getUploadMillisP99();
+
+	double getDownloadMillisP50();
+
+	double getDownloadMillisP99();
+
+	double getQueueWaitMillisP99();
+
+	// One line per gauge, index operation type, failure cause and peer
+	String[] getGauges();
+
+	// Requests answered by the index server, of all types
+	long getIndexRequests();
+
+	String[] getIndexOperations();
+
+	String[] getFailures();
+
+	String[] getPeers();
+
+	// Everything above as text, as printed by the stats command
+	String getReport();
+
+	void reset();
+}
@@ -0,0 +1,469 @@
+package p2p;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Download staged next to its target.
+ * The data goes to name.part, and every CHECKPOINT bytes the part file is forced to disk and
+ * its length recorded in name.part.progress together with the length and CRC32 of the version
+ * being downloaded. An interrupted download is continued from the recorded offset (see
+ * TransferProtocol.RESUME) as long as the sender still has the same version; data past the
+ * recorded offset is never trusted. Once all of it checks out against the CRC32 the part file
+ * is renamed over the target in one step, so the target is never seen half written.
+ * The part file is given its full length when opened, so the data lands in place rather than
+ * extending the file write by write. Data can come straight off a channel (receive), into a
+ * direct buffer or, for large files opened mapped, into a mapping of the part file itself.
+ * When finished files are forced to disk is up to the caller (see Sync): each before its
+ * rename, or a batch of them together before they are all moved into place with placeAll.
+ *
+ * Progress record: magic(int) length(long) crc(long) offset(long) check(int, CRC32 of the rest)
+ */
+public final class PartFile implements Closeable {
+	public static final String SUFFIX = ".part";
+	public static final String PROGRESS_SUFFIX = ".part.progress";
+	// Bytes between two progress records
+	public static final long CHECKPOINT = 8 << 20;
+	// Downloads with at least this much left are given their full length up front
+	public static final long PREALLOCATE = 1 << 20;
+	// Downloads at least this long are worth mapping
+	public static final long MAP_THRESHOLD = 64 << 20;
+	// Part of the file mapped at a time
+	private static final long MAP_WINDOW = 64 << 20;
+	// Threads forcing a batch of part files at once
+	private static final int FORCERS = 8;
+	private static final int MAGIC = 0x50415254;
+	private static final int RECORD = 32;
+
+	private final File target;
+	private final File part;
+	private final File progress;
+	private final long length;
+	private final long crc;
+	private final FileChannel fc;
+	// CRC32 of the data up to offset
+	private final CRC32 check = new CRC32();
+	private long offset;
+	private long checkpointed;
+	// Mapped part of the file from windowStart on, null if not mapped
+	private final boolean mapped;
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	/**
+	 * When finished downloads are forced to disk
+	 */
+	public enum Sync {
+		// each file before it is renamed into place
+		FILE,
+		// the files of a batch all at once at its end, before they are renamed into place together (see placeAll)
+		BATCH,
+		// never: left to the operating system, a crash may leave files renamed into place but not written
+		NONE
+	}
+
+	/**
+	 * Version and offset of an interrupted download, as found in its progress record
+	 */
+	public static final class Progress {
+		public final long length;
+		public final long crc;
+		public final long offset;
+
+		Progress(long length, long crc, long offset) {
+			this.length = length;
+			this.crc = crc;
+			this.offset = offset;
+		}
+	}
+
+	private PartFile(File target, long length, long crc, FileChannel fc, boolean mapped) {
+		this.target = target;
+		this.part = partOf(target);
+		this.progress = progressOf(target);
+		this.length = length;
+		this.crc = crc;
+		this.fc = fc;
+		this.mapped = mapped;
+	}
+
+	public static File partOf(File target) {
+		return new File(target.getParentFile(), target.getName() + SUFFIX);
+	}
+
+	private static File progressOf(File target) {
+		return new File(target.getParentFile(), target.getName() + PROGRESS_SUFFIX);
+	}
+
+	/**
+	 * Reads the progress record of an interrupted download of target
+	 * @return the progress, null if there is none worth resuming (missing, torn or empty)
+	 */
+	public static Progress progress(File target) {
+		File record = progressOf(target);
+		if(!record.isFile() || record.length() != RECORD || !partOf(target).isFile())
+			return null;
+		byte[] b = new byte[RECORD];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(record))) {
+			in.readFully(b);
+		} catch (IOException e) {
+			return null;
+		}
+		ByteBuffer r = ByteBuffer.wrap(b);
+		CRC32 c = new CRC32();
+		c.update(b, 0, RECORD - 4);
+		if(r.getInt() != MAGIC || r.getInt(RECORD - 4) != (int) c.getValue())
+			return null;
+		Progress p = new Progress(r.getLong(), r.getLong(), r.getLong());
+		if(p.offset <= 0 || p.offset > p.length || partOf(target).length() < p.offset)
+			return null;
+		return p;
+	}
+
+	/**
+	 * Starts or continues staging a download of target
+	 * @param target Final place of the file
+	 * @param length Length of the version being downloaded
+	 * @param crc CRC32 of the version being downloaded
+	 * @param offset Where the data about to be written starts: 0, or the offset of the progress
+	 * 		record of the same version
+	 * @return the staged download, null if offset cannot be continued from
+	 * @throws IOException if the part file cannot be opened
+	 */
+	public static PartFile open(File target, long length, long crc, long offset) throws IOException {
+		return open(target, length, crc, offset, false);
+	}
+
+	/**
+	 * Like open, but the data of a download of at least MAP_THRESHOLD bytes is received through
+	 * a mapping of the part file if map is true
+	 */
+	public static PartFile open(File target, long length, long crc, long offset, boolean map) throws IOException {
+		if(offset > 0) {
+			Progress p = progress(target);
+			if(p == null || p.length != length || p.crc != crc || p.offset != offset)
+				return null;
+		}
+		makeParent(target);
+		FileChannel fc = FileChannel.open(partOf(target).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		PartFile f = new PartFile(target, length, crc, fc, map && length >= MAP_THRESHOLD);
+		try {
+			fc.truncate(offset);
+			//the CRC32 of the whole file is checked at the end: read back what is already there
+			ByteBuffer buf = ByteBuffer.allocate(256 << 10);
+			while(f.offset < offset) {
+				buf.clear();
+				int n = fc.read(buf, f.offset);
+				if(n < 0)
+					throw new IOException(f.part + " is shorter than its progress record");
+				f.check.update(buf.array(), 0, n);
+				f.offset += n;
+			}
+			f.checkpointed = offset;
+			if(offset == 0)
+				f.progress.delete();
+			//allocate the whole length up front (sparse where the file system allows it): there is no
+			//portable fallocate, but writes then no longer grow the file and a mapping covers it all
+			if(length - offset >= PREALLOCATE)
+				fc.write(ByteBuffer.wrap(new byte[1]), length - 1);
+		} catch (IOException e) {
+			fc.close();
+			throw e;
+		}
+		return f;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Appends data to the part file
+	 * @throws IOException if the data runs past the announced length or the file fails
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(offset + len > length)
+			throw new IOException("More data than the " + length + " bytes of " + target.getName());
+		ByteBuffer data = ByteBuffer.wrap(b, off, len);
+		while(data.hasRemaining())
+			offset += fc.write(data, offset);
+		check.update(b, off, len);
+		if(offset - checkpointed >= CHECKPOINT)
+			checkpoint();
+	}
+
+	/**
+	 * Appends data to the part file
+	 * @param data Data from its position to its limit, all of which is consumed
+	 * @throws IOException if the data runs past the announced length or the file fails
+	 */
+	public void write(ByteBuffer data) throws IOException {
+		int len = data.remaining();
+		if(offset + len > length)
+			throw new IOException("More data than the " + length + " bytes of " + target.getName());
+		check.update(data.duplicate());
+		while(data.hasRemaining())
+			offset += fc.write(data, offset);
+		if(offset - checkpointed >= CHECKPOINT)
+			checkpoint();
+	}
+
+	/**
+	 * Appends the data available on a channel, at most max bytes, without copying it onto the heap:
+	 * it is read straight into the mapping of a mapped part file, or into a direct buffer and written from there
+	 * @param src Channel to read from, blocking
+	 * @param staging Direct buffer used if the part file is not mapped
+	 * @param max Most bytes to read
+	 * @return bytes read, -1 at the end of the stream
+	 * @throws IOException if the data runs past the announced length, or the channel or the file fails
+	 */
+	public int receive(ReadableByteChannel src, ByteBuffer staging, long max) throws IOException {
+		if(offset + max > length)
+			throw new IOException("More data than the " + length + " bytes of " + target.getName());
+		if(!mapped) {
+			staging.clear();
+			if(max < staging.capacity())
+				staging.limit((int) max);
+			int n = src.read(staging);
+			if(n > 0) {
+				staging.flip();
+				write(staging);
+			}
+			return n;
+		}
+		if(window == null || offset >= windowStart + window.capacity()) {
+			if(window != null)
+				window.force();
+			windowStart = offset;
+			window = fc.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(MAP_WINDOW, length - offset));
+		}
+		ByteBuffer b = window.duplicate();
+		int at = (int) (offset - windowStart);
+		b.limit((int) Math.min(b.capacity(), at + max));
+		b.position(at);
+		int n = src.read(b);
+		if(n <= 0)
+			return n;
+		b.flip();
+		b.position(at);
+		check.update(b);
+		offset += n;
+		if(offset - checkpointed >= CHECKPOINT)
+			checkpoint();
+		return n;
+	}
+
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	// forces the data to disk, then records how far it goes
+	private void checkpoint() throws IOException {
+		if(offset == checkpointed)
+			return;
+		if(window != null)
+			window.force();
+		fc.force(false);
+		ByteBuffer r = ByteBuffer.allocate(RECORD);
+		r.putInt(MAGIC).putLong(length).putLong(crc).putLong(offset);
+		CRC32 c = new CRC32();
+		c.update(r.array(), 0, RECORD - 4);
+		r.putInt((int) c.getValue());
+		try (RandomAccessFile raf = new RandomAccessFile(progress, "rw")) {
+			raf.write(r.array());
+			raf.setLength(RECORD);
+		}
+		checkpointed = offset;
+	}
+
+	/**
+	 * Moves the part file over the target if all of it arrived and matches the CRC32
+	 * @return false if it does not match, in which case the part file is removed
+	 * @throws IOException if the data is incomplete or the file cannot be moved
+	 */
+	public boolean commit() throws IOException {
+		return commit(true);
+	}
+
+	/**
+	 * Moves the part file over the target if all of it arrived and matches the CRC32
+	 * @param force true to force the data to disk first, so that a crash cannot leave a target that was never written
+	 * @return false if it does not match, in which case the part file is removed
+	 * @throws IOException if the data is incomplete or the file cannot be moved
+	 */
+	public boolean commit(boolean force) throws IOException {
+		if(!complete(force))
+			return false;
+		moveIntoPlace(part, target);
+		progress.delete();
+		return true;
+	}
+
+	/**
+	 * Closes the part file if all of it arrived and matches the CRC32, leaving it to be moved into place by placeAll
+	 * @return false if it does not match, in which case the part file is removed
+	 * @throws IOException if the data is incomplete
+	 */
+	public boolean complete() throws IOException {
+		return complete(false);
+	}
+
+	private boolean complete(boolean force) throws IOException {
+		if(offset != length)
+			throw new IOException(target.getName() + " ends at " + offset + " of " + length + " bytes");
+		if(check.getValue() != crc) {
+			discard();
+			return false;
+		}
+		if(force) {
+			if(window != null)
+				window.force();
+			fc.force(true);
+		}
+		window = null;
+		fc.close();
+		return true;
+	}
+
+	/**
+	 * Moves completed part files into place together
+	 * @param done Part files that were completed
+	 * @param force true to force them all to disk first and the folders they were moved in afterwards,
+	 * 		so that a crash cannot leave a target that was never written
+	 * @throws IOException if a file cannot be forced or moved
+	 */
+	public static void placeAll(List<PartFile> done, boolean force) throws IOException {
+		if(force)
+			forceAll(done);
+		Set<File> dirs = new HashSet<File>();
+		for(PartFile f : done) {
+			moveIntoPlace(f.part, f.target);
+			f.progress.delete();
+			dirs.add(f.target.getAbsoluteFile().getParentFile());
+		}
+		if(force)
+			for(File dir : dirs)
+				forceDirectory(dir);
+	}
+
+	// forces the part files from several threads at once, so that the file system can commit them together
+	private static void forceAll(List<PartFile> done) throws IOException {
+		AtomicInteger next = new AtomicInteger();
+		AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		Runnable forcer = () -> {
+			for(int i; failure.get() == null && (i = next.getAndIncrement()) < done.size(); ) {
+				try (FileChannel c = FileChannel.open(done.get(i).part.toPath(), StandardOpenOption.WRITE)) {
+					c.force(true);
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		};
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 1; t < Math.min(FORCERS, done.size()); t++) {
+			Thread thread = new Thread(forcer, "PartFile-force");
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		forcer.run();
+		try {
+			for(Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while forcing part files");
+		}
+		if(failure.get() != null)
+			throw failure.get();
+	}
+
+	// makes the renames in a folder durable where folders can be opened (not on Windows)
+	private static void forceDirectory(File dir) {
+		try (FileChannel c = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			c.force(true);
+		} catch (IOException e) {
+			//the renames are as durable as the platform makes them
+		}
+	}
+
+	/**
+	 * Removes the part file and its progress
+	 */
+	public void discard() {
+		window = null;
+		try {
+			fc.close();
+		} catch (IOException e) {
+			//removed anyway
+		}
+		remove(target);
+	}
+
+	/**
+	 * Creates the folders leading to target, for files received into subfolders
+	 */
+	public static void makeParent(File target) throws IOException {
+		File parent = target.getAbsoluteFile().getParentFile();
+		if(parent != null)
+			Files.createDirectories(parent.toPath());
+	}
+
+	/**
+	 * Removes whatever is staged for target
+	 */
+	public static void remove(File target) {
+		partOf(target).delete();
+		progressOf(target).delete();
+	}
+
+	/**
+	 * Keeps what arrived for a later attempt
+	 */
+	@Override
+	public void close() throws IOException {
+		if(!fc.isOpen())
+			return;
+		try {
+			checkpoint();
+		} finally {
+			window = null;
+			fc.close();
+		}
+	}
+
+	/**
+	 * Replaces target by a finished file in one step where the file system allows it
+	 * @param done File written next to target
+	 * @param target Final place
+	 * @throws IOException if the file cannot be moved
+	 */
+	public static void moveIntoPlace(File done, File target) throws IOException {
+		try {
+			Files.move(done.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(done.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * Versioned catalog of the files one peer shares: name, size, modification time and, once the
+ * file was hashed, its CRC32 (see HashCache).
+ * Every change moves the catalog from sequence number seq to seq + 1 and is described by a
+ * Delta, so the index server can follow a peer by applying the deltas in place and needs
+ * a full snapshot only when it notices that it missed one.
+ *
+ * Catalog encoding: count(varint) {shared(varint) suffixLength(varint) suffix size(varlong)
+ *                   modified(varlong) crc(varlong, CRC32 + 1, 0 while not hashed)}, names front
+ *                   coded in sorted order (see IndexProtocol)
+ * Delta encoding:   base(varlong) seq(varlong) added(catalog) modified(catalog) removed(file list)
+ */
+public class PeerCatalog {
+
+	/**
+	 * Size, modification time and CRC32 of one file
+	 */
+	public static final class Entry {
+		// CRC of a file not hashed yet
+		public static final long UNHASHED = -1;
+
+		public final long size;
+		public final long modified;
+		public final long crc;
+
+		public Entry(long size, long modified) {
+			this(size, modified, UNHASHED);
+		}
+
+		public Entry(long size, long modified, long crc) {
+			this.size = size;
+			this.modified = modified;
+			this.crc = crc;
+		}
+
+		/**
+		 * Checks whether both describe the same version of a file on disk, hashed or not
+		 */
+		public boolean sameVersion(Entry o) {
+			return o.size == size && o.modified == modified;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Entry && sameVersion((Entry) o) && ((Entry) o).crc == crc;
+		}
+
+		@Override
+		public int hashCode() {
+			return (Long.hashCode(size) * 31 + Long.hashCode(modified)) * 31 + Long.hashCode(crc);
+		}
+	}
+
+	/**
+	 * Changes that move a catalog from sequence number base to seq
+	 */
+	public static final class Delta {
+		public final long base;
+		public final long seq;
+		public final SortedMap<String, Entry> added;
+		public final SortedMap<String, Entry> modified;
+		public final SortedSet<String> removed;
+
+		public Delta(long base, long seq, SortedMap<String, Entry> added, SortedMap<String, Entry> modified, SortedSet<String> removed) {
+			this.base = base;
+			this.seq = seq;
+			this.added = added;
+			this.modified = modified;
+			this.removed = removed;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+		}
+
+		public void write(IndexProtocol.Writer w) {
+			w.writeVarlong(base).writeVarlong(seq);
+			writeEntries(w, added);
+			writeEntries(w, modified);
+			w.writeFileList(removed);
+		}
+
+		public static Delta read(ByteBuffer in) throws IOException {
+			long base = IndexProtocol.readVarlong(in);
+			long seq = IndexProtocol.readVarlong(in);
+			SortedMap<String, Entry> added = readEntries(in);
+			SortedMap<String, Entry> modified = readEntries(in);
+			SortedSet<String> removed = new TreeSet<String>(IndexProtocol.readFileList(in));
+			if(seq != base + 1)
+				throw new IOException("Malformed delta " + base + " -> " + seq);
+			return new Delta(base, seq, added, modified, removed);
+		}
+	}
+
+	// Files by name
+	private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+	// Sequence number of the current content; 0 is the empty catalog
+	private long seq;
+	// Summaries of the content as of their sequence number, built on demand
+	private CatalogSummary summary;
+
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * Getter for the summaries of the current content
+	 * @return summaries, built once per sequence number
+	 */
+	public synchronized CatalogSummary summary() {
+		if(summary == null || summary.getSeq() != seq)
+			summary = new CatalogSummary(seq, entries);
+		return summary;
+	}
+
+	/**
+	 * Getter for the names in the catalog
+	 * @return names in sorted order
+	 */
+	public synchronized List<String> names() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Getter for the names that sort after a given name
+	 * @param after Exclusive lower bound
+	 * @return names in sorted order
+	 */
+	public synchronized List<String> namesAfter(String after) {
+		return new ArrayList<String>(entries.tailMap(after, false).keySet());
+	}
+
+	/**
+	 * Getter for the names of the files directly in a folder, not below its subfolders
+	 * @param prefix Relative name of the folder followed by '/', "" for the top folder
+	 * @return names in sorted order
+	 */
+	public synchronized List<String> namesIn(String prefix) {
+		List<String> names = new ArrayList<String>();
+		for(String name : entries.subMap(prefix, prefix + Character.MAX_VALUE).keySet())
+			if(name.indexOf('/', prefix.length()) < 0)
+				names.add(name);
+		return names;
+	}
+
+	/**
+	 * Getter for a copy of the entries
+	 * @return entries by name
+	 */
+	public synchronized SortedMap<String, Entry> entries() {
+		return new TreeMap<String, Entry>(entries);
+	}
+
+	/**
+	 * Compares the catalog with the regular files of a folder tree and takes over the differences.
+	 * The tree is walked in parallel (see TreeWalk) without holding the catalog; files below
+	 * subfolders are named by their path relative to dir, separated by '/'. Files still being
+	 * written by a transfer are never listed, as they are not served (see TransferProtocol.resolve).
+	 * Every file found goes straight into the delta or, when unchanged, only marks its place in
+	 * a sorted copy of the catalog taken beforehand, so besides the delta a scan holds two
+	 * references and a flag per cataloged file rather than the tree once more: the first scan
+	 * of a tree needs about the delta and the catalog it ends in.
+	 * @param dir Folder to compare with
+	 * @param ignore Names left out of the catalog
+	 * @return the changes; when there are none the sequence number is unchanged
+	 */
+	public Delta scan(File dir, Predicate<String> ignore) {
+		String[] names;
+		Entry[] known;
+		synchronized(this) {
+			names = entries.keySet().toArray(new String[0]);
+			known = entries.values().toArray(new Entry[0]);
+		}
+		boolean[] seen = new boolean[names.length];
+		ConcurrentSkipListMap<String, Entry> added = new ConcurrentSkipListMap<String, Entry>();
+		ConcurrentSkipListMap<String, Entry> modified = new ConcurrentSkipListMap<String, Entry>();
+		TreeWalk.walk(dir, unserved(ignore), (name, e) -> {
+			int i = Arrays.binarySearch(names, name);
+			if(i < 0)
+				added.put(name, e);
+			else {
+				//each file is found once, and the walk finishes before seen is read
+				seen[i] = true;
+				if(!known[i].sameVersion(e))
+					modified.put(name, e);
+			}
+		});
+		synchronized(this) {
+			//the catalog may have changed during the walk: classify against its current content
+			TreeSet<String> removed = new TreeSet<String>();
+			for(int i = 0; i < names.length; i++)
+				if(!seen[i] && entries.containsKey(names[i]))
+					removed.add(names[i]);
+			for(String name : entries.keySet())
+				if(Arrays.binarySearch(names, name) < 0 && !added.containsKey(name))
+					removed.add(name);
+			for(Iterator<Map.Entry<String, Entry>> it = added.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Entry> e = it.next();
+				Entry old = entries.get(e.getKey());
+				if(old != null) {
+					it.remove();
+					if(!old.sameVersion(e.getValue()))
+						modified.put(e.getKey(), e.getValue());
+				}
+			}
+			for(Iterator<Map.Entry<String, Entry>> it = modified.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Entry> e = it.next();
+				Entry old = entries.get(e.getKey());
+				if(old == null || old.sameVersion(e.getValue()))
+					it.remove();
+				if(old == null)
+					added.put(e.getKey(), e.getValue());
+			}
+			Delta d = new Delta(seq, seq + 1, added, modified, removed);
+			if(!d.isEmpty())
+				apply(d);
+			return d;
+		}
+	}
+
+	/**
+	 * Compares the catalog with some files of a folder tree only and takes over the differences
+	 * @param dir Folder holding the files
+	 * @param names Relative names of the files that may have changed; for a folder, everything
+	 * 		in and below it, as when it was created, moved or removed as a whole
+	 * @param ignore Names left out of the catalog
+	 * @return the changes; when there are none the sequence number is unchanged
+	 */
+	public Delta refresh(File dir, Collection<String> names, Predicate<String> ignore) {
+		Predicate<String> skip = unserved(ignore);
+		HashMap<String, Entry> found = new HashMap<String, Entry>();
+		for(String name : names) {
+			File f = new File(dir, name);
+			if(f.isDirectory()) {
+				if(!skip.test(name))
+					TreeWalk.walk(dir, name, skip, (n, e) -> {
+						synchronized(found) {
+							found.put(n, e);
+						}
+					}, null);
+			}
+			else if(f.isFile() && !skip.test(name) && TransferProtocol.resolve(dir, name) != null)
+				found.put(name, new Entry(f.length(), f.lastModified()));
+		}
+		synchronized(this) {
+			TreeSet<String> removed = new TreeSet<String>();
+			for(String name : names) {
+				if(!found.containsKey(name) && entries.containsKey(name))
+					removed.add(name);
+				//files of a folder that went away or was walked again
+				for(String under : entries.subMap(name + "/", name + "0").keySet())
+					if(!found.containsKey(under))
+						removed.add(under);
+			}
+			return update(found, removed);
+		}
+	}
+
+	// names left out of a catalog: the given ones and the files being written by a transfer
+	private static Predicate<String> unserved(Predicate<String> ignore) {
+		return ignore.or(DirectoryWatcher::isTemporary);
+	}
+
+	// takes over the entries found that differ from the catalog, and the removals
+	private Delta update(Map<String, Entry> found, SortedSet<String> removed) {
+		TreeMap<String, Entry> added = new TreeMap<String, Entry>();
+		TreeMap<String, Entry> modified = new TreeMap<String, Entry>();
+		for(Map.Entry<String, Entry> e : found.entrySet()) {
+			Entry old = entries.get(e.getKey());
+			if(old == null)
+				added.put(e.getKey(), e.getValue());
+			else if(!old.sameVersion(e.getValue()))
+				modified.put(e.getKey(), e.getValue());
+		}
+		Delta d = new Delta(seq, seq + 1, added, modified, removed);
+		if(!d.isEmpty())
+			apply(d);
+		return d;
+	}
+
+	/**
+	 * Takes over the CRCs of hashed files that are still at the version that was hashed
+	 * @param hashed Files with their CRC, by name
+	 * @return the changes, as modified files; when there are none the sequence number is unchanged
+	 */
+	public synchronized Delta checksums(Map<String, Entry> hashed) {
+		TreeMap<String, Entry> modified = new TreeMap<String, Entry>();
+		for(Map.Entry<String, Entry> e : hashed.entrySet()) {
+			Entry old = entries.get(e.getKey());
+			if(old != null && old.sameVersion(e.getValue()) && old.crc != e.getValue().crc)
+				modified.put(e.getKey(), e.getValue());
+		}
+		Delta d = new Delta(seq, seq + 1, new TreeMap<String, Entry>(), modified, new TreeSet<String>());
+		if(!d.isEmpty())
+			apply(d);
+		return d;
+	}
+
+	/**
+	 * Applies a delta in place if it continues the current sequence number
+	 * @param d Changes to apply
+	 * @return false if d does not start at the current sequence number (nothing is changed)
+	 */
+	public synchronized boolean apply(Delta d) {
+		if(d.base != seq)
+			return false;
+		entries.putAll(d.added);
+		entries.putAll(d.modified);
+		entries.keySet().removeAll(d.removed);
+		seq = d.seq;
+		return true;
+	}
+
+	/**
+	 * Replaces the whole content
+	 * @param seq Sequence number of the snapshot
+	 * @param snapshot Entries by name
+	 */
+	public synchronized void reset(long seq, Map<String, Entry> snapshot) {
+		entries.clear();
+		entries.putAll(snapshot);
+		this.seq = seq;
+		summary = null;
+	}
+
+	/**
+	 * Writes sequence number and entries
+	 * @param w Frame being encoded
+	 * @return the sequence number written
+	 */
+	public synchronized long writeSnapshot(IndexProtocol.Writer w) {
+		w.writeVarlong(seq);
+		writeEntries(w, entries);
+		return seq;
+	}
+
+	static void writeEntries(IndexProtocol.Writer w, SortedMap<String, Entry> entries) {
+		w.writeVarint(entries.size());
+		byte[] prev = new byte[0];
+		for(Map.Entry<String, Entry> e : entries.entrySet()) {
+			prev = w.writeFrontCoded(prev, e.getKey());
+			w.writeVarlong(e.getValue().size).writeVarlong(e.getValue().modified).writeVarlong(e.getValue().crc + 1);
+		}
+	}
+
+	static SortedMap<String, Entry> readEntries(ByteBuffer in) throws IOException {
+		IndexProtocol.NameReader names = new IndexProtocol.NameReader(in);
+		TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+		for(int n = names.count(); n > 0; n--) {
+			String name = names.next();
+			entries.put(name, new Entry(IndexProtocol.readVarlong(in), IndexProtocol.readVarlong(in), IndexProtocol.readVarlong(in) - 1));
+		}
+		return Collections.unmodifiableSortedMap(entries);
+	}
+}
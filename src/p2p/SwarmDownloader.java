@@ -0,0 +1,233 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Downloads one file from several peers at once.
+ * The file is split into fixed-size chunks kept in a shared queue. Every peer gets its
+ * own connection and worker thread that pulls the next chunk whenever one of its
+ * requests is answered, so faster peers naturally take more chunks than slow ones.
+ * If a peer fails, the chunks it had in flight go back to the queue for the others.
+ * The assembled file is verified against the checksum advertised by the peers.
+ */
+public class SwarmDownloader {
+	// Default chunk size in bytes
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	// Chunk requests a peer may have outstanding on its connection
+	private static final int PIPELINE_DEPTH = 4;
+	// Peers holding the file
+	private final List<InetSocketAddress> peers;
+	// Size of one chunk in bytes
+	private final int chunkSize;
+	// Download rate limit shared by the connections to all peers, null for none
+	private TokenBucket limit;
+	// Where the bytes received from each peer and failed peers are recorded, null for nowhere
+	private Metrics metrics;
+	// Local address the connections are made from, null for any
+	private InetAddress local;
+
+	/**
+	 * Outcome of a swarm download
+	 */
+	public static final class Result {
+		public final String name;
+		public final long length;
+		// Number of chunks served by every peer, in the order of the peer list
+		public final int[] chunksPerPeer;
+		public final long nanos;
+
+		Result(String name, long length, int[] chunksPerPeer, long nanos) {
+			this.name = name;
+			this.length = length;
+			this.chunksPerPeer = chunksPerPeer;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Constructor for a downloader over the given peers
+	 * @param peers Addresses and file transfer ports of the peers holding the file
+	 * @param chunkSize Size of one chunk in bytes
+	 */
+	public SwarmDownloader(List<InetSocketAddress> peers, int chunkSize) {
+		if(peers.isEmpty())
+			throw new IllegalArgumentException("No peers to download from");
+		if(chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		this.peers = new ArrayList<InetSocketAddress>(peers);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Limits the download rate over all peers together
+	 * @param limit Bucket charged for every byte received, null for no limit
+	 */
+	public void setRateLimit(TokenBucket limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Makes the connections to the peers from the given local address
+	 * @param local Address to connect from, null for any
+	 */
+	public void setLocalAddress(InetAddress local) {
+		this.local = local;
+	}
+
+	/**
+	 * Records the bytes received from each peer and the peers that failed
+	 * @param metrics Metrics to record into, null for none
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Downloads a file from all peers into target
+	 * @param name Name of the file on the peers
+	 * @param target File to be written
+	 * @return outcome of the download
+	 * @throws IOException if no peer has the file, all peers fail, or the checksum does not match
+	 */
+	public Result download(String name, File target) throws IOException {
+		long start = System.nanoTime();
+		TransferProtocol.Header info = locate(name);
+		int chunks = (int) ((info.length + chunkSize - 1) / chunkSize);
+		LinkedBlockingDeque<Integer> queue = new LinkedBlockingDeque<Integer>();
+		for(int i = 0; i < chunks; i++)
+			queue.add(i);
+		AtomicInteger remaining = new AtomicInteger(chunks);
+		int[] served = new int[peers.size()];
+
+		//chunks land in a part file that replaces target once the whole of it checks out;
+		//they arrive out of order, so there is no progress to resume from
+		PartFile.remove(target);
+		PartFile.makeParent(target);
+		File part = PartFile.partOf(target);
+		try (FileChannel fc = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<Thread> workers = new ArrayList<Thread>();
+			for(int p = 0; p < peers.size(); p++) {
+				final int peer = p;
+				Thread t = new Thread(() -> served[peer] = work(peers.get(peer), info, fc, queue, remaining),
+						"Swarm-" + peers.get(peer));
+				t.setDaemon(true);
+				workers.add(t);
+				t.start();
+			}
+			for(Thread t : workers)
+				t.join();
+			if(remaining.get() > 0)
+				throw new IOException(remaining.get() + " chunks of " + name + " could not be downloaded from any peer");
+			if(checksum(fc, info.length) != info.crc)
+				throw new IOException("Checksum mismatch for " + name);
+			fc.force(true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			PartFile.remove(target);
+			throw new IOException("Interrupted while downloading " + name);
+		} catch (IOException e) {
+			PartFile.remove(target);
+			throw e;
+		}
+		PartFile.moveIntoPlace(part, target);
+		return new Result(name, info.length, served, System.nanoTime() - start);
+	}
+
+	// length and checksum of the file from the first peer that has it
+	private TransferProtocol.Header locate(String name) throws IOException {
+		for(InetSocketAddress peer : peers) {
+			try (TransferClient client = new TransferClient(peer, TransferProtocol.DEFLATE, local)) {
+				TransferProtocol.Header h = client.stat(name);
+				if(h.status == TransferProtocol.INFO)
+					return h;
+			} catch (IOException e) {
+				failed(peer, e);
+			}
+		}
+		throw new IOException("No peer has " + name);
+	}
+
+	private void failed(InetSocketAddress peer, IOException e) {
+		System.out.println("\t" + e.getMessage() + ": Swarm " + peer);
+		if(metrics != null)
+			metrics.failure("Swarm", e);
+	}
+
+	// pulls chunks from the queue until none are left; returns the number of chunks this peer served
+	private int work(InetSocketAddress peer, TransferProtocol.Header info, FileChannel fc,
+			LinkedBlockingDeque<Integer> queue, AtomicInteger remaining) {
+		ArrayDeque<Integer> inFlight = new ArrayDeque<Integer>();
+		int served = 0;
+		try (TransferClient client = new TransferClient(peer, TransferProtocol.DEFLATE, local)) {
+			client.setRateLimit(limit);
+			client.setMetrics(metrics);
+			//the peer must hold the same version of the file
+			TransferProtocol.Header h = client.stat(info.name);
+			if(h.status != TransferProtocol.INFO || h.length != info.length || h.crc != info.crc)
+				return 0;
+			while(remaining.get() > 0) {
+				Integer c;
+				while(inFlight.size() < PIPELINE_DEPTH && (c = queue.poll()) != null) {
+					long offset = (long) c * chunkSize;
+					client.requestRange(info.name, offset, Math.min(chunkSize, info.length - offset));
+					inFlight.add(c);
+				}
+				if(inFlight.isEmpty()) {
+					//other peers still hold chunks that may come back if they fail
+					c = queue.poll(50, TimeUnit.MILLISECONDS);
+					if(c != null)
+						queue.addFirst(c);
+					continue;
+				}
+				client.flush();
+				h = client.readHeader();
+				long offset = (long) inFlight.peek() * chunkSize;
+				if(h.status != TransferProtocol.PARTIAL || h.offset != offset || h.crc != info.crc)
+					throw new IOException("Unexpected answer for chunk at " + offset);
+				client.readInto(h, fc);
+				inFlight.poll();
+				served++;
+				remaining.decrementAndGet();
+			}
+		} catch (IOException e) {
+			failed(peer, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			//hand unfinished chunks to the remaining peers
+			while(!inFlight.isEmpty())
+				queue.addFirst(inFlight.pollLast());
+		}
+		return served;
+	}
+
+	private static long checksum(FileChannel fc, long length) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buf = ByteBuffer.allocateDirect(256 << 10);
+		long pos = 0;
+		while(pos < length) {
+			int n = fc.read(buf, pos);
+			if(n < 0)
+				break;
+			buf.flip();
+			crc.update(buf);
+			buf.clear();
+			pos += n;
+		}
+		return crc.getValue();
+	}
+}
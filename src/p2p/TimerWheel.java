@@ -0,0 +1,145 @@
+package p2p;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hashed timing wheel of deadlines, one per key.
+ * Time is cut into ticks; a key sits in the slot of the tick its deadline falls in, so
+ * scheduling, rescheduling and cancelling touch one slot, and advancing by a tick looks only
+ * at the keys of that tick's slot. The wheel has enough slots to hold the longest deadline
+ * it is built for in one revolution; a later deadline waits in its slot for more revolutions.
+ * Deadlines are rounded up to the next tick.
+ * @param <K> type of the keys
+ */
+public class TimerWheel<K> {
+
+	// position of one key: a doubly linked list per slot
+	private static final class Node<K> {
+		final K key;
+		long deadline;
+		long tick;
+		Node<K> prev;
+		Node<K> next;
+
+		Node(K key) {
+			this.key = key;
+		}
+	}
+
+	private final long tickMs;
+	private final Node<K>[] slots;
+	private final int mask;
+	private final HashMap<K, Node<K>> nodes = new HashMap<K, Node<K>>();
+	// Last tick advanced to
+	private long current;
+
+	/**
+	 * @param tickMs Length of a tick in milliseconds
+	 * @param spanMs Longest deadline, from now, expected to be scheduled
+	 * @param now Current time in milliseconds
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimerWheel(long tickMs, long spanMs, long now) {
+		this.tickMs = tickMs;
+		int n = 64;
+		while(n < spanMs / tickMs + 2)
+			n <<= 1;
+		slots = (Node<K>[]) new Node[n];
+		mask = n - 1;
+		current = now / tickMs;
+	}
+
+	/**
+	 * Sets the deadline of a key, replacing any earlier one
+	 * @param key Key
+	 * @param deadline Time in milliseconds
+	 */
+	public synchronized void schedule(K key, long deadline) {
+		Node<K> node = nodes.get(key);
+		if(node == null) {
+			node = new Node<K>(key);
+			nodes.put(key, node);
+		}
+		else
+			unlink(node);
+		node.deadline = deadline;
+		//a deadline already past is due with the next tick
+		node.tick = Math.max((deadline + tickMs - 1) / tickMs, current + 1);
+		int slot = (int) (node.tick & mask);
+		node.next = slots[slot];
+		if(node.next != null)
+			node.next.prev = node;
+		slots[slot] = node;
+	}
+
+	/**
+	 * Removes the deadline of a key
+	 * @return false if the key had none
+	 */
+	public synchronized boolean cancel(K key) {
+		Node<K> node = nodes.remove(key);
+		if(node == null)
+			return false;
+		unlink(node);
+		return true;
+	}
+
+	/**
+	 * Getter for the deadline of a key
+	 * @return time in milliseconds, -1 if the key has none
+	 */
+	public synchronized long deadline(K key) {
+		Node<K> node = nodes.get(key);
+		return node == null ? -1 : node.deadline;
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	public synchronized void clear() {
+		nodes.clear();
+		Arrays.fill(slots, null);
+	}
+
+	/**
+	 * Moves the wheel to the current time and removes every key whose deadline tick has passed.
+	 * Each slot is looked at once even if more than a revolution went by.
+	 * @param now Current time in milliseconds
+	 * @return the expired keys
+	 */
+	public synchronized List<K> advance(long now) {
+		List<K> expired = new ArrayList<K>();
+		long target = now / tickMs;
+		long steps = Math.min(target - current, slots.length);
+		for(long i = 1; i <= steps; i++) {
+			Node<K> node = slots[(int) ((current + i) & mask)];
+			while(node != null) {
+				Node<K> next = node.next;
+				if(node.tick <= target) {
+					unlink(node);
+					nodes.remove(node.key);
+					expired.add(node.key);
+				}
+				node = next;
+			}
+		}
+		if(target > current)
+			current = target;
+		return expired;
+	}
+
+	private void unlink(Node<K> node) {
+		if(node.prev != null)
+			node.prev.next = node.next;
+		else
+			slots[(int) (node.tick & mask)] = node.next;
+		if(node.next != null)
+			node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+	}
+}
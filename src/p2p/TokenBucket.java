@@ -0,0 +1,145 @@
+package p2p;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket limiting a byte rate.
+ * Tokens flow in at the rate and pile up to the burst size. Taking more tokens than there
+ * are leaves the bucket in debt, and the taker sleeps until the debt is paid off, so a
+ * request larger than the burst still goes through and callers are served in the order they
+ * came. A bucket may have a parent (a per-peer bucket under the global one, for example),
+ * from which everything taken is taken as well.
+ */
+public class TokenBucket {
+	// Smallest burst in bytes, so a few blocks go out back to back
+	public static final long MIN_BURST = 128 << 10;
+	// Bucket every take is charged to as well, null for none
+	private final TokenBucket parent;
+	// Bytes per second, 0 for no limit
+	private long rate;
+	// Most tokens the bucket holds
+	private long burst;
+	// Tokens available, negative while in debt
+	private double tokens;
+	// Time of the last refill in nanoseconds
+	private long last = System.nanoTime();
+	// Bytes taken and nanoseconds slept in total
+	private long taken;
+	private long waited;
+
+	/**
+	 * Constructor for a bucket with a burst of a tenth of a second
+	 * @param rate Bytes per second, 0 for no limit
+	 */
+	public TokenBucket(long rate) {
+		this(rate, null);
+	}
+
+	/**
+	 * Constructor for a bucket with a burst of a tenth of a second below a parent
+	 * @param rate Bytes per second, 0 for no limit
+	 * @param parent Bucket also charged for every take, null for none
+	 */
+	public TokenBucket(long rate, TokenBucket parent) {
+		this(rate, burstFor(rate), parent);
+	}
+
+	/**
+	 * @param rate Bytes per second, 0 for no limit
+	 * @param burst Most bytes let through at once after an idle time
+	 * @param parent Bucket also charged for every take, null for none
+	 */
+	public TokenBucket(long rate, long burst, TokenBucket parent) {
+		this.parent = parent;
+		setRate(rate, burst);
+	}
+
+	private static long burstFor(long rate) {
+		return Math.max(rate / 10, MIN_BURST);
+	}
+
+	/**
+	 * Changes the rate; the burst becomes a tenth of a second of it
+	 * @param rate Bytes per second, 0 for no limit
+	 */
+	public void setRate(long rate) {
+		setRate(rate, burstFor(rate));
+	}
+
+	public synchronized void setRate(long rate, long burst) {
+		if(rate < 0 || burst < 1)
+			throw new IllegalArgumentException("Invalid rate " + rate + " with burst " + burst);
+		refill(System.nanoTime());
+		this.rate = rate;
+		this.burst = burst;
+		//a full bucket to start with, and no debt carried over from another rate
+		tokens = burst;
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Checks whether takers may have to wait
+	 * @return true if this bucket or one above it has a rate
+	 */
+	public boolean isLimited() {
+		synchronized(this) {
+			if(rate > 0)
+				return true;
+		}
+		return parent != null && parent.isLimited();
+	}
+
+	/**
+	 * Getter for the bytes taken so far
+	 */
+	public synchronized long getTaken() {
+		return taken;
+	}
+
+	/**
+	 * Getter for the time takers spent waiting for tokens so far
+	 * @return nanoseconds
+	 */
+	public synchronized long getWaited() {
+		return waited;
+	}
+
+	/**
+	 * Takes tokens for n bytes, sleeping until the bucket (and its parent) allow them
+	 * @param n Number of bytes
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void acquire(long n) throws InterruptedIOException {
+		long wait;
+		synchronized(this) {
+			taken += n;
+			if(rate == 0)
+				wait = 0;
+			else {
+				refill(System.nanoTime());
+				tokens -= n;
+				wait = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+				waited += wait;
+			}
+		}
+		if(wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + n + " bytes of bandwidth");
+			}
+		}
+		if(parent != null)
+			parent.acquire(n);
+	}
+
+	private void refill(long now) {
+		if(rate > 0)
+			tokens = Math.min(burst, tokens + (now - last) * (rate / 1e9));
+		last = now;
+	}
+}
@@ -0,0 +1,619 @@
+package p2p;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Client side of the file transfer connection (see TransferProtocol).
+ * All requested names (and, in delta mode, the signatures of the local copies) are written by a separate thread while the answers are read,
+ * so the requests are pipelined and a batch of small files costs one round trip
+ * instead of one connection per file.
+ * The client offers DEFLATE in a HELLO in front of its first request; the server's choice is
+ * read in front of the first answer, so negotiating costs no extra round trip.
+ * Whole files are staged in a PartFile and renamed into place once verified; a download
+ * that was cut off is continued with RESUME from where its progress record ends. Raw data goes
+ * from the socket channel to the file through direct buffers (or a mapping of large files, see
+ * setMapping) without being copied onto the heap, and when the files are forced to disk is set with setSync.
+ * Everything read off the connection can be charged to a TokenBucket to limit the download rate.
+ * Given a Metrics, the client records every file it receives and the bytes received from the peer.
+ */
+public class TransferClient implements Closeable {
+	// Connect timeout in milliseconds
+	public static final int CONNECT_TIMEOUT = 5000;
+	// Raw data is read off the connection in pieces of this size at most
+	public static final int RECEIVE_BUFFER = 1 << 20;
+	// Direct buffer raw data passes through on its way to the file, one per receiving thread
+	private static final ThreadLocal<ByteBuffer> STAGING = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(RECEIVE_BUFFER));
+	// Channel connected to the file server of the peer
+	private final SocketChannel channel;
+	// Buffered reads off channel for headers and compressed data, direct reads for raw data
+	private final ChannelInput input;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	// Copy buffer for received data, holding one block of compressed data at most
+	private final byte[] buf = new byte[TransferProtocol.BLOCK];
+	// When received files are forced to disk, and whether large ones are written through a mapping
+	private PartFile.Sync sync = PartFile.Sync.FILE;
+	private boolean mapping;
+	// Codec the server chose in answer to HELLO, -1 until read
+	private byte codec;
+	// Compressed block being decoded and its decoder, created with the first one
+	private byte[] packed;
+	private Inflater inflater;
+	// File data read off the connection so far, block headers included
+	private long received;
+	// Download rate limit charged for every byte read, null for none
+	private volatile TokenBucket limit;
+	// Where downloads are recorded and the peer's counters there, null for nowhere
+	private Metrics metrics;
+	private Metrics.Traffic traffic;
+
+	/**
+	 * Outcome of one requested file
+	 */
+	public static final class Result {
+		public final String name;
+		public final long length;
+		// File data actually received, less than length for delta transfers
+		public final long transferred;
+		public final boolean ok;
+		public final String message;
+
+		Result(String name, long length, long transferred, boolean ok, String message) {
+			this.name = name;
+			this.length = length;
+			this.transferred = transferred;
+			this.ok = ok;
+			this.message = message;
+		}
+
+		@Override
+		public String toString() {
+			if(!ok)
+				return name + ": " + message;
+			return name + " (" + length + " bytes, " + transferred + " received" + (message == null ? "" : ", " + message) + ")";
+		}
+	}
+
+	/**
+	 * Connects to the file server of a peer, offering to receive compressed data
+	 * @param address Address and file transfer port of the peer
+	 * @throws IOException if the connection cannot be established
+	 */
+	public TransferClient(InetSocketAddress address) throws IOException {
+		this(address, TransferProtocol.DEFLATE);
+	}
+
+	/**
+	 * Connects to the file server of a peer
+	 * @param address Address and file transfer port of the peer
+	 * @param codecs Codecs offered to the server (TransferProtocol.DEFLATE), 0 for raw data only
+	 * @throws IOException if the connection cannot be established
+	 */
+	public TransferClient(InetSocketAddress address, byte codecs) throws IOException {
+		this(address, codecs, null);
+	}
+
+	/**
+	 * Connects to the file server of a peer from the given local address
+	 * @param address Address and file transfer port of the peer
+	 * @param codecs Codecs offered to the server (TransferProtocol.DEFLATE), 0 for raw data only
+	 * @param local Address to connect from, null for any
+	 * @throws IOException if the connection cannot be established
+	 */
+	public TransferClient(InetSocketAddress address, byte codecs, InetAddress local) throws IOException {
+		channel = SocketChannel.open();
+		try {
+			if(local != null)
+				channel.socket().bind(new InetSocketAddress(local, 0));
+			channel.socket().connect(address, CONNECT_TIMEOUT);
+			input = new ChannelInput();
+			in = new DataInputStream(input);
+			out = new DataOutputStream(new BufferedOutputStream(new ChannelOutput()));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		//sent along with the first request
+		if(codecs != 0) {
+			out.writeByte(TransferProtocol.HELLO);
+			out.writeByte(codecs);
+		}
+		codec = (byte) (codecs != 0 ? -1 : 0);
+	}
+
+	/**
+	 * Limits the download rate of this connection; buckets can be shared between connections
+	 * @param limit Bucket charged for every byte read, null for no limit
+	 */
+	public void setRateLimit(TokenBucket limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Sets when received files are forced to disk; with BATCH, the files received by one fetch
+	 * are moved into place together at its end, or when it fails
+	 * @param sync PartFile.Sync.FILE (the default), BATCH or NONE
+	 */
+	public void setSync(PartFile.Sync sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Sets whether raw data of files of PartFile.MAP_THRESHOLD bytes or more is received through
+	 * a mapping of the part file instead of a direct buffer; off by default, as the direct buffer
+	 * is as fast on loopback (see ReceiveBenchmark) and a mapping ties up address space
+	 */
+	public void setMapping(boolean mapping) {
+		this.mapping = mapping;
+	}
+
+	/**
+	 * Records downloads from now on
+	 * @param metrics Metrics to record into, null to stop recording
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+		this.traffic = metrics == null ? null : metrics.peer(channel.socket().getInetAddress());
+	}
+
+	/**
+	 * Downloads the named files into a folder over this connection.
+	 * The connection is finished afterwards (the server closes it after END).
+	 * @param names Names of the files, relative to the shared folder of the peer
+	 * @param dir Folder the files are written to
+	 * @return one result per requested name, in request order
+	 * @throws IOException if the connection fails
+	 */
+	public List<Result> fetch(List<String> names, File dir) throws IOException {
+		return fetch(names, dir, false);
+	}
+
+	/**
+	 * Like fetch, but files that already exist in dir are updated in delta mode:
+	 * only the blocks that differ from the local copy are transferred, and files
+	 * whose content already matches are skipped.
+	 * @param names Names of the files, relative to the shared folder of the peer
+	 * @param dir Folder the files are written to
+	 * @return one result per requested name, in request order
+	 * @throws IOException if the connection fails
+	 */
+	public List<Result> fetchDelta(List<String> names, File dir) throws IOException {
+		return fetch(names, dir, true);
+	}
+
+	private List<Result> fetch(List<String> names, File dir, boolean delta) throws IOException {
+		for(String name : names)
+			if(TransferProtocol.target(dir, name) == null)
+				throw new IOException(name + " is not a name within " + dir);
+		//signatures sent for local copies, read back when the delta arrives
+		AtomicReferenceArray<DeltaSync.Signature> sigs = new AtomicReferenceArray<DeltaSync.Signature>(names.size());
+		Thread requester = new Thread(() -> {
+			try {
+				for(int i = 0; i < names.size(); i++) {
+					String name = names.get(i);
+					File local = new File(dir, name);
+					DeltaSync.Signature sig = null;
+					if(delta && local.isFile() && PartFile.progress(local) == null) {
+						try {
+							sig = DeltaSync.signature(local, DeltaSync.blockSizeFor(local.length()));
+						} catch (IOException e) {
+							//unreadable local copy: download the whole file
+						}
+					}
+					PartFile.Progress part = PartFile.progress(local);
+					if(part != null) {
+						//a download of a newer version was cut off: continue it rather than patch the old copy
+						out.writeByte(TransferProtocol.RESUME);
+						out.writeUTF(name);
+						out.writeLong(part.offset);
+						out.writeLong(part.length);
+						out.writeLong(part.crc);
+					}
+					else if(sig != null) {
+						sigs.set(i, sig);
+						out.writeByte(TransferProtocol.DELTA);
+						out.writeUTF(name);
+						sig.write(out);
+					}
+					else {
+						out.writeByte(TransferProtocol.GET);
+						out.writeUTF(name);
+					}
+				}
+				out.writeByte(TransferProtocol.END);
+				out.flush();
+			} catch (IOException e) {
+				//the reading side fails as well and reports the error
+			}
+		}, "TransferClient-requests");
+		requester.setDaemon(true);
+		requester.start();
+
+		List<Result> results = new ArrayList<Result>(names.size());
+		//files completed but not yet moved into place, with BATCH
+		List<PartFile> done = new ArrayList<PartFile>();
+		try {
+			for(int i = 0; i < names.size(); i++) {
+				long start = System.nanoTime();
+				TransferProtocol.Header h = readHeader();
+				if(!h.name.equals(names.get(i)))
+					throw new IOException("Expected " + names.get(i) + " but received " + h.name);
+				File target = new File(dir, h.name);
+				switch(h.status) {
+				case TransferProtocol.OK:
+				case TransferProtocol.PARTIAL:
+					results.add(receive(h, target, done));
+					break;
+				case TransferProtocol.UNCHANGED:
+					results.add(new Result(h.name, h.length, 0, true, "unchanged"));
+					break;
+				case TransferProtocol.DELTA_FOLLOWS:
+					long literal = DeltaSync.applyDelta(in, target, sigs.get(i), h.crc);
+					if(literal < 0)
+						results.add(new Result(h.name, h.length, 0, false, "checksum mismatch"));
+					else
+						results.add(new Result(h.name, h.length, literal, true, "delta"));
+					break;
+				default:
+					results.add(new Result(h.name, 0, 0, false, "not found"));
+				}
+				Result r = results.get(i);
+				if(traffic != null && r.transferred > 0)
+					metrics.download(traffic, System.nanoTime() - start, r.transferred);
+			}
+		} catch (IOException | RuntimeException e) {
+			//the files completed before the failure are still moved into place, but the failure is what is reported
+			if(!done.isEmpty()) {
+				try {
+					PartFile.placeAll(done, true);
+				} catch (IOException placing) {
+					e.addSuppressed(placing);
+				}
+			}
+			throw e;
+		}
+		if(!done.isEmpty())
+			PartFile.placeAll(done, true);
+		return results;
+	}
+
+	// stages the data announced by h (all of the file, or the rest of it after a RESUME) and moves
+	// the file into place once it matches the advertised CRC32, or adds it to done with BATCH;
+	// if the connection fails, what arrived is kept
+	private Result receive(TransferProtocol.Header h, File target, List<PartFile> done) throws IOException {
+		long start = received;
+		PartFile part = PartFile.open(target, h.length, h.crc, h.offset, mapping && h.encoding != TransferProtocol.DEFLATE);
+		if(part == null) {
+			//the progress record went away since the request: drain the data and start over next time
+			for(long left = h.count; left > 0; left -= read(h, left)) {
+			}
+			PartFile.partOf(target).delete();
+			return new Result(h.name, h.length, received - start, false, "resume failed");
+		}
+		try {
+			if(h.encoding == TransferProtocol.DEFLATE) {
+				for(long left = h.count; left > 0; ) {
+					int len = read(h, left);
+					part.write(buf, 0, len);
+					left -= len;
+				}
+			}
+			else {
+				ByteBuffer b = STAGING.get();
+				for(long left = h.count; left > 0; ) {
+					int len = part.receive(input, b, left);
+					if(len < 0)
+						throw new IOException("Connection closed while receiving " + h.name);
+					received += len;
+					left -= len;
+				}
+			}
+		} catch (IOException e) {
+			part.close();
+			throw e;
+		}
+		long wire = received - start;
+		String how = h.offset > 0 ? "resumed at " + h.offset : null;
+		if(h.encoding == TransferProtocol.DEFLATE)
+			how = how == null ? "deflated" : how + ", deflated";
+		boolean ok;
+		if(sync == PartFile.Sync.BATCH) {
+			ok = part.complete();
+			if(ok)
+				done.add(part);
+		}
+		else
+			ok = part.commit(sync == PartFile.Sync.FILE);
+		if(!ok)
+			return new Result(h.name, h.length, wire, false, "checksum mismatch");
+		return new Result(h.name, h.length, wire, true, how);
+	}
+
+	// reads the next piece of the data announced by h into buf, at most left bytes; returns its length
+	private int read(TransferProtocol.Header h, long left) throws IOException {
+		if(h.encoding != TransferProtocol.DEFLATE) {
+			int len = in.read(buf, 0, (int) Math.min(buf.length, left));
+			if(len < 0)
+				throw new IOException("Connection closed while receiving " + h.name);
+			received += len;
+			return len;
+		}
+		int raw = in.readInt();
+		int stored = in.readInt();
+		if(raw <= 0 || raw > buf.length || raw > left || stored <= 0 || stored > raw)
+			throw new IOException("Malformed block of " + h.name);
+		received += 8 + stored;
+		if(stored == raw) {
+			in.readFully(buf, 0, raw);
+			return raw;
+		}
+		if(packed == null) {
+			packed = new byte[TransferProtocol.BLOCK];
+			inflater = new Inflater();
+		}
+		in.readFully(packed, 0, stored);
+		inflater.reset();
+		inflater.setInput(packed, 0, stored);
+		int n = 0;
+		try {
+			while(n < raw && !inflater.finished()) {
+				int k = inflater.inflate(buf, n, raw - n);
+				if(k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += k;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block of " + h.name + ": " + e.getMessage());
+		}
+		if(n != raw)
+			throw new IOException("Short block of " + h.name);
+		return raw;
+	}
+
+	/**
+	 * Asks for the length and checksum of a file
+	 * @param name Name of the file
+	 * @return INFO header, or NOT_FOUND header if the peer does not have the file
+	 * @throws IOException if the connection fails
+	 */
+	public TransferProtocol.Header stat(String name) throws IOException {
+		out.writeByte(TransferProtocol.STAT);
+		out.writeUTF(name);
+		out.flush();
+		return readHeader();
+	}
+
+	/**
+	 * Asks for the length and checksum of several files in one round trip.
+	 * The requests are written by a separate thread while the answers are read, as with fetch:
+	 * answers left unread would otherwise fill the socket buffers and stop both sides writing.
+	 * @param names Names of the files
+	 * @return one INFO or NOT_FOUND header per name, in request order
+	 * @throws IOException if the connection fails
+	 */
+	public List<TransferProtocol.Header> stat(List<String> names) throws IOException {
+		Thread requester = new Thread(() -> {
+			try {
+				for(String name : names) {
+					out.writeByte(TransferProtocol.STAT);
+					out.writeUTF(name);
+				}
+				out.flush();
+			} catch (IOException e) {
+				//the reading side fails as well and reports the error
+			}
+		}, "TransferClient-requests");
+		requester.setDaemon(true);
+		requester.start();
+		List<TransferProtocol.Header> headers = new ArrayList<TransferProtocol.Header>(names.size());
+		for(int i = 0; i < names.size(); i++)
+			headers.add(readHeader());
+		try {
+			//every request was answered, so it was written: the thread is only returning from its flush
+			requester.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while asking for " + names.size() + " files");
+		}
+		return headers;
+	}
+
+	/**
+	 * Queues a request for part of a file. Requests are sent on flush(),
+	 * answers are read in the same order with readHeader() and readInto().
+	 * @param name Name of the file
+	 * @param offset Position of the first requested byte
+	 * @param count Number of requested bytes
+	 * @throws IOException if the connection fails
+	 */
+	public void requestRange(String name, long offset, long count) throws IOException {
+		out.writeByte(TransferProtocol.RANGE);
+		out.writeUTF(name);
+		out.writeLong(offset);
+		out.writeLong(count);
+	}
+
+	/**
+	 * Sends all queued requests
+	 * @throws IOException if the connection fails
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Reads the header of the next answer
+	 * @return header of the answer
+	 * @throws IOException if the connection fails
+	 */
+	public TransferProtocol.Header readHeader() throws IOException {
+		//the answer to HELLO comes in front of the first header
+		if(codec < 0)
+			codec = in.readByte();
+		return TransferProtocol.Header.read(in);
+	}
+
+	/**
+	 * Getter for the file data read off the connection so far
+	 * @return bytes, less than the data's length where it came compressed
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Getter for the codec the server agreed to
+	 * @return TransferProtocol.DEFLATE or 0, -1 if no answer was read yet
+	 */
+	public byte getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Reads the data announced by a header into a file at the position given by the header
+	 * @param h Header of the answer
+	 * @param target Channel of the file being written
+	 * @throws IOException if the connection or the file fails
+	 */
+	public void readInto(TransferProtocol.Header h, FileChannel target) throws IOException {
+		long start = received;
+		long pos = h.offset;
+		long left = h.count;
+		while(left > 0) {
+			ByteBuffer data;
+			if(h.encoding == TransferProtocol.DEFLATE)
+				data = ByteBuffer.wrap(buf, 0, read(h, left));
+			else {
+				data = STAGING.get();
+				data.clear();
+				if(left < data.capacity())
+					data.limit((int) left);
+				int len = input.read(data);
+				if(len < 0)
+					throw new IOException("Connection closed while receiving " + h.name);
+				received += len;
+				data.flip();
+			}
+			left -= data.remaining();
+			while(data.hasRemaining())
+				pos += target.write(data, pos);
+		}
+		if(traffic != null)
+			metrics.received(traffic, received - start);
+	}
+
+	// reads off the channel: headers and compressed data through a buffer, raw data straight into
+	// the caller's buffer once the buffered bytes are used up; everything read is charged to the rate limit
+	private final class ChannelInput extends InputStream implements ReadableByteChannel {
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 << 10);
+
+		ChannelInput() {
+			buffer.flip();
+		}
+
+		// reads whatever the channel has into the empty buffer; false at the end of the stream
+		private boolean fill() throws IOException {
+			buffer.clear();
+			int n;
+			try {
+				n = channel.read(buffer);
+			} finally {
+				buffer.flip();
+			}
+			charge(n);
+			return n > 0;
+		}
+
+		private void charge(int n) throws IOException {
+			TokenBucket l = limit;
+			if(n > 0 && l != null)
+				l.acquire(n);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!buffer.hasRemaining() && !fill())
+				return -1;
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			if(!buffer.hasRemaining() && !fill())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if(!buffer.hasRemaining()) {
+				int n = channel.read(dst);
+				charge(n);
+				return n;
+			}
+			int len = Math.min(dst.remaining(), buffer.remaining());
+			ByteBuffer b = buffer.duplicate();
+			b.limit(b.position() + len);
+			dst.put(b);
+			buffer.position(buffer.position() + len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+	}
+
+	// writes straight to the channel; the streams of Channels and of the socket would take the
+	// channel's blocking lock, which the requesting thread and the reading thread would then contend for
+	private final class ChannelOutput extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer data = ByteBuffer.wrap(b, off, len);
+			while(data.hasRemaining())
+				channel.write(data);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(inflater != null)
+			inflater.end();
+		channel.close();
+	}
+}
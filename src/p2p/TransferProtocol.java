@@ -0,0 +1,205 @@
+package p2p;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Wire format of the file transfer connection (port _ftPort).
+ * The client names the files it wants and may send any number of requests
+ * before reading the first response; the server answers them in order,
+ * back-to-back on the same connection.
+ *
+ * Request:  op(byte) [name(UTF)] [offset(long) count(long) | signature | offset(long) length(long) crc32(long)]
+ *           | HELLO codecs(byte)
+ *           HELLO - codecs the client can decode (bit set, DEFLATE); the server answers with
+ *                   one byte, the codec it will use on this connection (0 for none). Sent
+ *                   first if at all; without it file data is never compressed
+ *           GET   - stream the named file
+ *           STAT  - length and checksum of the named file only
+ *           RANGE - stream count bytes of the named file starting at offset
+ *           DELTA - stream the changes against the client's copy described by the signature
+ *                   (see DeltaSync)
+ *           RESUME - continue an interrupted download (see PartFile): the rest of the file from
+ *                   offset if it still has the given length and crc, otherwise all of it
+ *           END   - no more requests, server closes the connection once all answers are sent
+ * Response: status(byte) name(UTF) [length(long) crc32(long)] [offset(long) count(long)] [data]
+ *           OK            - length and crc, followed by exactly length bytes of file data
+ *           PARTIAL       - length and crc of the whole file, offset and count of the range,
+ *                           followed by exactly count bytes of file data
+ *           INFO          - length and crc only
+ *           DELTA_FOLLOWS - length and crc, followed by a DeltaSync delta stream
+ *           UNCHANGED     - length and crc, the client's copy is already identical
+ *           NOT_FOUND     - name only
+ *           DEFLATED, PARTIAL_DEFLATED - like OK and PARTIAL, with the data in blocks
+ *
+ * Blocks:   {raw(int) stored(int) data(stored bytes)} covering the announced count of bytes;
+ *           each block holds at most BLOCK bytes of file data, deflated on its own, or stored
+ *           as is (stored == raw) where deflating did not make it smaller. The server only
+ *           deflates files whose sample shrank (see FileServer), so archives and media go raw.
+ */
+public final class TransferProtocol {
+	public static final byte END = 0;
+	public static final byte GET = 1;
+	public static final byte STAT = 2;
+	public static final byte RANGE = 3;
+	public static final byte DELTA = 4;
+	public static final byte HELLO = 5;
+	public static final byte RESUME = 6;
+
+	// Codecs offered in HELLO
+	public static final byte DEFLATE = 1;
+	// File data per compressed block
+	public static final int BLOCK = 128 << 10;
+
+	public static final byte OK = 1;
+	public static final byte NOT_FOUND = 2;
+	public static final byte PARTIAL = 3;
+	public static final byte INFO = 4;
+	public static final byte DELTA_FOLLOWS = 5;
+	public static final byte UNCHANGED = 6;
+	public static final byte DEFLATED = 7;
+	public static final byte PARTIAL_DEFLATED = 8;
+
+	private TransferProtocol() {
+	}
+
+	/**
+	 * Header sent in front of every answered file
+	 */
+	public static final class Header {
+		public final byte status;
+		public final String name;
+		public final long length;
+		public final long crc;
+		// Position and number of the data bytes following the header
+		public final long offset;
+		public final long count;
+		// Codec of the data: 0 for raw bytes, DEFLATE for blocks (status stays OK or PARTIAL)
+		public final byte encoding;
+
+		public Header(byte status, String name, long length, long crc) {
+			this(status, name, length, crc, 0, status == OK ? length : 0);
+		}
+
+		public Header(byte status, String name, long length, long crc, long offset, long count) {
+			this(status, name, length, crc, offset, count, (byte) 0);
+		}
+
+		public Header(byte status, String name, long length, long crc, long offset, long count, byte encoding) {
+			this.status = status;
+			this.name = name;
+			this.length = length;
+			this.crc = crc;
+			this.offset = offset;
+			this.count = count;
+			this.encoding = encoding;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			if(encoding == DEFLATE)
+				out.writeByte(status == PARTIAL ? PARTIAL_DEFLATED : DEFLATED);
+			else
+				out.writeByte(status);
+			out.writeUTF(name);
+			if(status == NOT_FOUND)
+				return;
+			out.writeLong(length);
+			out.writeLong(crc);
+			if(status == PARTIAL) {
+				out.writeLong(offset);
+				out.writeLong(count);
+			}
+		}
+
+		public static Header read(DataInputStream in) throws IOException {
+			byte status = in.readByte();
+			String name = in.readUTF();
+			switch(status) {
+			case NOT_FOUND:
+				return new Header(status, name, 0, 0);
+			case OK:
+			case INFO:
+			case DELTA_FOLLOWS:
+			case UNCHANGED:
+				return new Header(status, name, in.readLong(), in.readLong());
+			case PARTIAL:
+				return new Header(status, name, in.readLong(), in.readLong(), in.readLong(), in.readLong());
+			case DEFLATED: {
+				long length = in.readLong();
+				return new Header(OK, name, length, in.readLong(), 0, length, DEFLATE);
+			}
+			case PARTIAL_DEFLATED:
+				return new Header(PARTIAL, name, in.readLong(), in.readLong(), in.readLong(), in.readLong(), DEFLATE);
+			default:
+				throw new IOException("Unknown response status " + status);
+			}
+		}
+	}
+
+	/**
+	 * Resolves a requested name against the shared folder.
+	 * Names that escape the folder, also through a symbolic link, that do not denote a regular
+	 * file, or that denote a file still being written by a transfer are rejected.
+	 * @param root Shared folder
+	 * @param name Requested name, relative to root
+	 * @return the file, or null if the name may not be served
+	 */
+	public static File resolve(File root, String name) {
+		File f = target(root, name);
+		if(f == null || !f.isFile())
+			return null;
+		try {
+			return inside(root.toPath().toRealPath(), f.toPath()) ? f : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Resolves a name to be received against the shared folder; the file need not exist yet.
+	 * Names may lead into subfolders ('/' separated) but not out of the folder, neither by ".."
+	 * nor through a folder that is a symbolic link to elsewhere; names of part files and other
+	 * files being written by a transfer (see DirectoryWatcher.isTemporary) are rejected.
+	 * @param root Shared folder
+	 * @param name Name relative to root
+	 * @return the file, or null if the name may not be used
+	 */
+	public static File target(File root, String name) {
+		if(name == null || name.isEmpty() || DirectoryWatcher.isTemporary(name))
+			return null;
+		Path base = root.toPath().toAbsolutePath().normalize();
+		Path p = base.resolve(name).normalize();
+		if(!p.startsWith(base) || p.equals(base))
+			return null;
+		if(!Files.isDirectory(base))
+			return p.toFile();
+		//the folders of the name that exist already must really be in the shared folder
+		Path dir = p.getParent();
+		while(!Files.isDirectory(dir))
+			dir = dir.getParent();
+		try {
+			return inside(base.toRealPath(), dir) ? p.toFile() : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks where a file or folder really is, with every symbolic link on its path followed
+	 * @param realRoot Real path of the shared folder (see Path.toRealPath)
+	 * @param p Existing file or folder
+	 * @return true if p is realRoot or below it
+	 */
+	public static boolean inside(Path realRoot, Path p) {
+		try {
+			return p.toRealPath().startsWith(realRoot);
+		} catch (IOException e) {
+			//gone meanwhile, or a dangling link
+			return false;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package p2p;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of downloads run under limits.
+ * At most maxActive transfers run at once, and at most maxPerPeer of them against one peer.
+ * Waiting transfers are started by priority, then (unless turned off) smallest first so a
+ * few small files are not stuck behind a large one, then in the order they came. The last
+ * reserved slots are kept for INTERACTIVE transfers, which the per-peer limit does not hold back, so
+ * something the user is waiting for starts right away even while background syncs fill the
+ * link. All transfers share one TokenBucket for the download rate (see getDownloadLimit).
+ * Queue depth and the time transfers waited for a slot are kept for getStats.
+ */
+public class TransferScheduler {
+	// Default limits on transfers running at once
+	public static final int DEFAULT_MAX_ACTIVE = 4;
+	public static final int DEFAULT_MAX_PER_PEER = 2;
+	// Slots kept for interactive transfers
+	public static final int RESERVED = 1;
+	// Priorities, most urgent first
+	public static final int INTERACTIVE = 0;
+	public static final int PINNED = 1;
+	public static final int NORMAL = 2;
+
+	private final int maxActive;
+	private final int maxPerPeer;
+	// Download rate of all transfers together
+	private final TokenBucket downloadLimit = new TokenBucket(0);
+	// Transfers waiting for a slot, in the order they are to start
+	private final TreeSet<Transfer<?>> queue = new TreeSet<Transfer<?>>();
+	// Transfers running against each peer
+	private final Map<InetAddress, Integer> perPeer = new HashMap<InetAddress, Integer>();
+	private final ExecutorService workers;
+	private int active;
+	private long sequence;
+	private boolean smallFirst = true;
+	private boolean open = true;
+	// Counters for getStats
+	private long started;
+	private long finished;
+	private long failed;
+	private long waitedNanos;
+	private long maxWaitNanos;
+	// Where waits and failed transfers are recorded, null for nowhere
+	private volatile Metrics metrics;
+
+	/**
+	 * A queued or running transfer
+	 * @param <T> type of its outcome
+	 */
+	public final class Transfer<T> extends FutureTask<T> implements Comparable<Transfer<?>> {
+		public final String name;
+		public final int priority;
+		// Bytes expected, for the smallest-first order
+		public final long size;
+		private final List<InetAddress> peers;
+		private final long seq;
+		private final long queued = System.nanoTime();
+		// Set once the transfer holds a slot
+		private boolean running;
+
+		Transfer(String name, int priority, long size, Collection<InetAddress> peers, Callable<T> work, long seq) {
+			super(work);
+			this.name = name;
+			this.priority = priority;
+			this.size = size;
+			this.peers = new ArrayList<InetAddress>(peers);
+			this.seq = seq;
+		}
+
+		/**
+		 * Getter for the time since the transfer was queued
+		 * @return milliseconds
+		 */
+		public long getAge() {
+			return (System.nanoTime() - queued) / 1000000;
+		}
+
+		@Override
+		public int compareTo(Transfer<?> o) {
+			if(priority != o.priority)
+				return Integer.compare(priority, o.priority);
+			if(smallFirst && size != o.size)
+				return Long.compare(size, o.size);
+			return Long.compare(seq, o.seq);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized(TransferScheduler.this) {
+				queue.remove(this);
+			}
+			return super.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		protected void done() {
+			finish(this);
+		}
+
+		@Override
+		public String toString() {
+			return name + " (priority " + priority + ", " + size + " bytes, from " + peers + ")";
+		}
+	}
+
+	/**
+	 * Snapshot of the queue and of the waits so far
+	 */
+	public static final class Stats {
+		public final int queued;
+		public final int active;
+		public final long started;
+		public final long finished;
+		public final long failed;
+		// Time transfers waited for a slot, in milliseconds
+		public final double meanWait;
+		public final double maxWait;
+		// Waiting transfers in the order they are to start
+		public final List<String> waiting;
+
+		Stats(int queued, int active, long started, long finished, long failed, double meanWait, double maxWait,
+				List<String> waiting) {
+			this.queued = queued;
+			this.active = active;
+			this.started = started;
+			this.finished = finished;
+			this.failed = failed;
+			this.meanWait = meanWait;
+			this.maxWait = maxWait;
+			this.waiting = waiting;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d queued, %d running, %d started, %d finished (%d failed), wait mean %.0f ms, max %.0f ms",
+					queued, active, started, finished, failed, meanWait, maxWait);
+		}
+	}
+
+	/**
+	 * @param maxActive Limit on transfers running at once
+	 * @param maxPerPeer Limit on transfers running at once against one peer
+	 */
+	public TransferScheduler(int maxActive, int maxPerPeer) {
+		if(maxActive < 1 || maxPerPeer < 1)
+			throw new IllegalArgumentException("Limits must be positive: " + maxActive + ", " + maxPerPeer);
+		this.maxActive = maxActive;
+		this.maxPerPeer = maxPerPeer;
+		AtomicInteger count = new AtomicInteger();
+		workers = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "Transfer-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	public int getMaxPerPeer() {
+		return maxPerPeer;
+	}
+
+	/**
+	 * Getter for the download rate limit; transfers charge everything they receive to it
+	 * @return bucket to hand to TransferClient.setRateLimit
+	 */
+	public TokenBucket getDownloadLimit() {
+		return downloadLimit;
+	}
+
+	/**
+	 * Limits the download rate of all transfers together, including running ones
+	 * @param bytesPerSecond Rate in bytes per second, 0 for no limit
+	 */
+	public void setDownloadLimit(long bytesPerSecond) {
+		downloadLimit.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Records the time transfers wait for a slot, and the transfers that fail, from now on
+	 * @param metrics Metrics to record into, null to stop recording
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Chooses the order within a priority for transfers queued from now on
+	 * @param smallFirst true for smallest first, false for the order they came in
+	 */
+	public synchronized void setSmallFirst(boolean smallFirst) {
+		if(!queue.isEmpty())
+			throw new IllegalStateException("Order cannot change while transfers are queued");
+		this.smallFirst = smallFirst;
+	}
+
+	/**
+	 * Queues a transfer; it runs on a scheduler thread once the limits allow
+	 * @param name Description, shown in getStats
+	 * @param priority INTERACTIVE, PINNED or NORMAL
+	 * @param size Bytes expected, or 0 if not known
+	 * @param peers Peers the transfer connects to
+	 * @param work Transfer itself
+	 * @return future of the outcome of work
+	 */
+	public synchronized <T> Transfer<T> submit(String name, int priority, long size, Collection<InetAddress> peers,
+			Callable<T> work) {
+		if(!open)
+			throw new RejectedExecutionException("Scheduler is shut down");
+		Transfer<T> t = new Transfer<T>(name, priority, size, peers, work, sequence++);
+		queue.add(t);
+		dispatch();
+		return t;
+	}
+
+	/**
+	 * Queues a transfer from one peer
+	 * @see #submit(String, int, long, Collection, Callable)
+	 */
+	public <T> Transfer<T> submit(String name, int priority, long size, InetAddress peer, Callable<T> work) {
+		return submit(name, priority, size, Collections.singletonList(peer), work);
+	}
+
+	// starts every queued transfer the limits allow, in queue order
+	private synchronized void dispatch() {
+		for(Iterator<Transfer<?>> it = queue.iterator(); it.hasNext() && active < maxActive; ) {
+			Transfer<?> t = it.next();
+			boolean interactive = t.priority == INTERACTIVE;
+			if(!interactive && active >= maxActive - RESERVED)
+				continue;
+			if(!interactive && busy(t.peers))
+				continue;
+			it.remove();
+			t.running = true;
+			active++;
+			for(InetAddress peer : t.peers)
+				perPeer.merge(peer, 1, Integer::sum);
+			long wait = System.nanoTime() - t.queued;
+			started++;
+			waitedNanos += wait;
+			maxWaitNanos = Math.max(maxWaitNanos, wait);
+			Metrics m = metrics;
+			if(m != null)
+				m.queueWait(wait);
+			try {
+				workers.execute(t);
+			} catch (RejectedExecutionException e) {
+				t.cancel(false);
+			}
+		}
+	}
+
+	private boolean busy(List<InetAddress> peers) {
+		for(InetAddress peer : peers)
+			if(perPeer.getOrDefault(peer, 0) >= maxPerPeer)
+				return true;
+		return false;
+	}
+
+	// frees the slot of a transfer that ran, or was cancelled, and starts the next ones
+	private synchronized void finish(Transfer<?> t) {
+		if(!t.running)
+			return;
+		active--;
+		for(InetAddress peer : t.peers)
+			perPeer.computeIfPresent(peer, (ip, n) -> n == 1 ? null : n - 1);
+		finished++;
+		try {
+			t.get();
+		} catch (ExecutionException e) {
+			failed++;
+			Metrics m = metrics;
+			if(m != null)
+				m.failure("Transfer", e.getCause());
+		} catch (Exception e) {
+			failed++;
+		}
+		if(open)
+			dispatch();
+	}
+
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	public synchronized int getActive() {
+		return active;
+	}
+
+	/**
+	 * Getter for the state of the queue
+	 * @return snapshot of the queue and the waits so far
+	 */
+	public synchronized Stats getStats() {
+		List<String> waiting = new ArrayList<String>(queue.size());
+		for(Transfer<?> t : queue)
+			waiting.add(t + ", waiting " + t.getAge() + " ms");
+		return new Stats(queue.size(), active, started, finished, failed,
+				started == 0 ? 0 : waitedNanos / 1e6 / started, maxWaitNanos / 1e6, waiting);
+	}
+
+	/**
+	 * Cancels the queued transfers and interrupts the running ones
+	 */
+	public void shutdown() {
+		List<Transfer<?>> dropped;
+		synchronized(this) {
+			open = false;
+			dropped = new ArrayList<Transfer<?>>(queue);
+			queue.clear();
+		}
+		for(Transfer<?> t : dropped)
+			t.cancel(false);
+		workers.shutdownNow();
+	}
+}
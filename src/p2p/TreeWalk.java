@@ -0,0 +1,131 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Parallel walk of a folder tree that hands every regular file to a sink as it is found.
+ * Each folder is one fork/join task that reads its entries through a DirectoryStream (never
+ * a whole listing at once) and forks a task per subfolder, so memory follows the number of
+ * folders waiting to be read rather than the number of files, and the file system calls of
+ * many folders are in flight together. Names are relative to the root, separated by '/'
+ * whatever the platform, as they travel between peers. Symbolic links to files are followed
+ * as long as the file is really in the tree (see TransferProtocol.resolve, which would not
+ * serve it otherwise); links to folders are not, so a tree with a cycle still ends. Folders
+ * that cannot be read are left out, as File.list does.
+ */
+public final class TreeWalk {
+	// Walk threads: the work is mostly waiting for the file system, so more than the cores
+	private static final int PARALLELISM = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+	private static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM);
+
+	private final Path root;
+	// Root with every link resolved, where linked files have to be
+	private final Path realRoot;
+	private final Predicate<String> ignore;
+	private final BiConsumer<String, PeerCatalog.Entry> files;
+	private final Consumer<String> folders;
+
+	private TreeWalk(Path root, Path realRoot, Predicate<String> ignore, BiConsumer<String, PeerCatalog.Entry> files,
+			Consumer<String> folders) {
+		this.root = root;
+		this.realRoot = realRoot;
+		this.ignore = ignore;
+		this.files = files;
+		this.folders = folders;
+	}
+
+	/**
+	 * Walks the whole tree under root
+	 * @see #walk(File, String, Predicate, BiConsumer, Consumer)
+	 */
+	public static void walk(File root, Predicate<String> ignore, BiConsumer<String, PeerCatalog.Entry> files) {
+		walk(root, "", ignore, files, null);
+	}
+
+	/**
+	 * Walks the tree under one folder of root; returns once every file has been handed over
+	 * @param root Folder the names are relative to
+	 * @param start Relative name of the folder to walk, "" for root itself
+	 * @param ignore Names of files and folders left out, with everything under them
+	 * @param files Receives the name, size and modification time of every regular file,
+	 * 		from several threads at once
+	 * @param folders Receives the name of every folder below start, from several threads at once; may be null
+	 */
+	public static void walk(File root, String start, Predicate<String> ignore, BiConsumer<String, PeerCatalog.Entry> files,
+			Consumer<String> folders) {
+		Path real;
+		try {
+			real = root.toPath().toRealPath();
+		} catch (IOException e) {
+			//no tree to walk
+			return;
+		}
+		TreeWalk w = new TreeWalk(root.toPath(), real, ignore, files, folders);
+		Path dir = start.isEmpty() ? w.root : w.root.resolve(start);
+		if(!TransferProtocol.inside(real, dir))
+			return;
+		POOL.invoke(w.new Folder(dir, start.isEmpty() ? "" : start + "/"));
+	}
+
+	private final class Folder extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		// Relative name of dir followed by '/', "" for the root
+		private final String prefix;
+
+		Folder(Path dir, String prefix) {
+			this.dir = dir;
+			this.prefix = prefix;
+		}
+
+		@Override
+		protected void compute() {
+			List<Folder> forked = new ArrayList<Folder>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for(Path p : stream) {
+					String name = prefix + p.getFileName().toString();
+					if(ignore.test(name))
+						continue;
+					BasicFileAttributes a;
+					boolean link;
+					try {
+						a = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						link = a.isSymbolicLink();
+						if(link)
+							a = Files.readAttributes(p, BasicFileAttributes.class);
+					} catch (IOException e) {
+						//gone meanwhile, or a dangling link
+						continue;
+					}
+					if(a.isRegularFile() && (!link || TransferProtocol.inside(realRoot, p)))
+						files.accept(name, new PeerCatalog.Entry(a.size(), a.lastModifiedTime().toMillis()));
+					else if(a.isDirectory() && !link) {
+						if(folders != null)
+							folders.accept(name);
+						Folder f = new Folder(p, name + "/");
+						f.fork();
+						forked.add(f);
+					}
+				}
+			} catch (IOException | DirectoryIteratorException e) {
+				//unreadable or removed while walking: what was read so far stands
+			}
+			for(Folder f : forked)
+				f.join();
+		}
+	}
+}
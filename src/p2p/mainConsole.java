@@ -1,10 +1,22 @@
 package p2p;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Console of one p2pNode: every command is an operation of its asynchronous API, and the console
+ * only reads commands and prints the results. sync and swarm run in the background and print
+ * their outcome when they end, so other commands can be entered meanwhile.
+ */
 public class mainConsole {
 
 	public static void main(String[] args) {
@@ -12,18 +24,28 @@ public class mainConsole {
 		System.out.println("Welcome - this program simulate simple p2p network");
 		System.out.println("followings are list of commands:");
 		System.out.println("\trg: broadcast my ip addresss to register");
-		System.out.println("\trt: obtain list of registered ip and files");
+		System.out.println("\trt [ip address | file pattern]: obtain list of registered ip and files (changes since last rt)");
 		System.out.println("\tip: check my local ip addresses");
-		System.out.println("\tsync [ip address]: sync chosen directory with other specific user's directory");
+		System.out.println("\tsync [ip address]: sync chosen directory with other specific user's directory (in the background)");
+		System.out.println("\tswarm [file name]: download a file from every user who has it at once (in the background)");
+		System.out.println("\tfind [file name]: list the ip addresses of users who have a file");
+		System.out.println("\tsearch [prefix]: list registered files whose name starts with prefix");
+		System.out.println("\tpin [file name]: sync a file ahead of the others (again to unpin)");
+		System.out.println("\tqueue: show queued and running downloads and the rate limits");
+		System.out.println("\tstats: show transfer and index server metrics and failures (also over JMX)");
+		System.out.println("\tring [port]: from the next rg, keep who has which file on a ring of all users on port (0 for none)");
+		System.out.println("\tuplimit [KB/s]: limit the upload rate (0 for no limit)");
+		System.out.println("\tdownlimit [KB/s]: limit the download rate (0 for no limit)");
 		System.out.println("\texit: make my directory invisible to others and finish program");
 		System.out.println("****************************************************************************************************");
 
 		boolean exit = false;
 		try {
 			p2pNode node = new p2pNode();
+			//one scanner for the whole session: a new one per command loses what the last one buffered
+			Scanner input = new Scanner(System.in);
 			while(!exit) {
 				System.out.println("Enter your command: ");
-				Scanner input = new Scanner(System.in);
 				StringTokenizer token = new StringTokenizer(input.nextLine());
 				String command = "";
 				if(token.hasMoreTokens())
@@ -33,23 +55,134 @@ public class mainConsole {
 					parameter = token.nextToken();
 				switch(command) {
 				case "rg":
-					node.register();
+					p2pNode.Registration r = await(node.registerAsync(), "Register");
+					if(r != null) {
+						System.out.println(r.createdIndex ? "\tNo index server: created one" : "REGISTERED");
+						if(r.table != null)
+							print(r.table, "");
+					}
 					break;
 				case "rt":
-					node.retrieve();
+					p2pNode.Table table = await(node.retrieveAsync(parameter), "Retrieve");
+					if(table != null)
+						print(table, parameter);
 					break;
 				case "ip":
 					System.out.println("This system's local ip address: " + node.getAddress());
 					break;
 				case "sync":
 					//call method with param
-					if(parameter == null)
+					if(parameter.isEmpty())
 					{
 						System.out.println("sync operation requires ip address as parameter.");
 						System.out.println("Please follow format of [sync ipAddress]");
 						break;
 					}
-					node.sync(parameter);
+					InetAddress peer;
+					try {
+						peer = InetAddress.getByName(parameter);
+					} catch (UnknownHostException e) {
+						System.out.println("\t" + e.getMessage() + ": Synchronization");
+						break;
+					}
+					System.out.println("\treceiving files from " + peer.getHostAddress());
+					node.syncAsync(peer).whenComplete((s, e) -> {
+						if(e != null)
+							failed(e, "Synchronization");
+						else
+							print(s);
+					});
+					break;
+				case "swarm":
+					if(parameter.isEmpty())
+					{
+						System.out.println("swarm operation requires file name as parameter.");
+						System.out.println("Please follow format of [swarm fileName]");
+						break;
+					}
+					String file = parameter;
+					System.out.println("\treceiving " + file + " from every system that has it");
+					node.swarmAsync(file).whenComplete((s, e) -> {
+						if(e != null) {
+							failed(e, "Swarm");
+							return;
+						}
+						for(int i = 0; i < s.holders.size(); i++)
+							System.out.println("\t" + s.holders.get(i).getHostAddress() + " : " + s.download.chunksPerPeer[i] + " chunks");
+						System.out.printf("\t%s: %d bytes in %.2f s%n", file, s.download.length, s.download.nanos / 1e9);
+					});
+					break;
+				case "find":
+					if(parameter.isEmpty())
+					{
+						System.out.println("find operation requires file name as parameter.");
+						System.out.println("Please follow format of [find fileName]");
+						break;
+					}
+					List<InetAddress> holders = await(node.lookupAsync(parameter), "Find");
+					if(holders != null && holders.isEmpty())
+						System.out.println("\tNo registered system has " + parameter);
+					if(holders != null)
+						for(InetAddress ip : holders)
+							System.out.println("\t" + ip.getHostAddress());
+					break;
+				case "search":
+					Map<String, Set<InetAddress>> matches = await(node.searchAsync(parameter), "Search");
+					if(matches != null && matches.isEmpty())
+						System.out.println("\tNo registered file starts with " + parameter);
+					if(matches != null)
+						for(Map.Entry<String, Set<InetAddress>> e : matches.entrySet())
+							System.out.println("\t" + e.getKey() + " : " + DHT.addresses(e.getValue()));
+					break;
+				case "pin":
+					if(parameter.isEmpty())
+					{
+						System.out.println("pin operation requires file name as parameter.");
+						System.out.println("Please follow format of [pin fileName]");
+						break;
+					}
+					System.out.println("\t" + parameter + (node.pin(parameter) ? " pinned" : " unpinned"));
+					break;
+				case "queue":
+					TransferScheduler.Stats queued = node.getScheduler().getStats();
+					System.out.println("\t" + queued);
+					for(String waiting : queued.waiting)
+						System.out.println("\t\t" + waiting);
+					System.out.println("\tlimits (bytes/s, 0 for none): download " + node.getDownloadLimit() + ", upload "
+							+ node.getUploadLimit() + ", upload per system " + node.getPeerUploadLimit());
+					FileServer server = node.getFileServer();
+					if(server != null && server.isRunning())
+						System.out.printf("\tuploaded %d bytes, held back %.1f s by the upload limit%n", server.getUploaded(),
+								server.getThrottled() / 1e9);
+					break;
+				case "stats":
+					for(String line : node.getMetrics().getReport().split("\n"))
+						System.out.println("\t" + line);
+					break;
+				case "ring":
+					try {
+						node.setRingPort(Integer.parseInt(parameter));
+					} catch (IllegalArgumentException e) {
+						System.out.println("ring operation requires a port as parameter.");
+						System.out.println("Please follow format of [ring port]");
+					}
+					break;
+				case "uplimit":
+				case "downlimit":
+					long rate;
+					try {
+						rate = Long.parseLong(parameter) * 1024;
+						if(rate < 0)
+							throw new NumberFormatException(parameter);
+					} catch (NumberFormatException e) {
+						System.out.println(command + " operation requires a rate in KB/s as parameter.");
+						System.out.println("Please follow format of [" + command + " KBps]");
+						break;
+					}
+					if(command.equals("uplimit"))
+						node.setUploadLimit(rate);
+					else
+						node.setDownloadLimit(rate);
 					break;
 				case "exit":
 					//finish program
@@ -75,4 +208,49 @@ public class mainConsole {
 		
 	}
 
+	// waits for an operation; null if it failed, which is printed
+	private static <T> T await(CompletableFuture<T> operation, String where) throws InterruptedException {
+		try {
+			return operation.get();
+		} catch (ExecutionException e) {
+			failed(e.getCause(), where);
+			return null;
+		}
+	}
+
+	private static void failed(Throwable e, String where) {
+		if(e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		System.out.println("\t" + e.getMessage() + ": " + where);
+	}
+
+	private static void print(p2pNode.Table table, String filter) {
+		if(table.notModified) {
+			System.out.println("\tnot modified since the last retrieve");
+			return;
+		}
+		for(Map.Entry<InetAddress, List<String>> e : table.peers.entrySet())
+			System.out.println("\t" + e.getKey().getHostAddress() + " : " + String.join("@", e.getValue()));
+		for(InetAddress ip : table.removed)
+			System.out.println("\t" + ip.getHostAddress() + " left");
+		if(filter.isEmpty() && !table.full)
+			System.out.println("\t" + table.peers.size() + " changed, " + table.removed.size() + " left, "
+					+ table.registered + " registered in total");
+	}
+
+	private static void print(p2pNode.SyncReport s) {
+		if(!s.registered) {
+			System.out.println("\t" + s.peer.getHostAddress() + " is not registered: Synchronization");
+			return;
+		}
+		if(s.files.isEmpty()) {
+			System.out.println("\tnothing to receive from " + s.peer.getHostAddress());
+			return;
+		}
+		for(TransferClient.Result r : s.files)
+			if(!r.ok)
+				System.out.println("\t" + r + ": Synchronization");
+		System.out.printf("\t%s: %d of %d bytes transferred in %.2f s%n", s.peer.getHostAddress(), s.transferred, s.length,
+				s.nanos / 1e9);
+	}
 }
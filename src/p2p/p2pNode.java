@@ -2,42 +2,249 @@ package p2p;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
 public class p2pNode {
 
-	private static final String registered = "REGISTERED";
-	private static final String retrieve = "RETRIEVE";
-	private static final String unregister = "UNREGISTER";
-	//Index server's IP
-	private InetAddress _serverIP;
-	//Socket to be used for accepting connection
-    private Socket _node;
-    //Socket to be used for instantiating listener
-    private ServerSocket _listener;
+	/**
+	 * Outcome of a registration
+	 */
+	public static final class Registration {
+		// True if no index server answered and this system started one
+		public final boolean createdIndex;
+		// Replica leading the index server
+		public final InetSocketAddress leader;
+		// Milliseconds this system stays registered without a RENEW
+		public final long lease;
+		// Registered systems as retrieved right after, null if that failed
+		public final Table table;
+
+		Registration(boolean createdIndex, InetSocketAddress leader, long lease, Table table) {
+			this.createdIndex = createdIndex;
+			this.leader = leader;
+			this.lease = lease;
+			this.table = table;
+		}
+	}
+
+	/**
+	 * Registered systems and their files, as answered to a retrieve
+	 */
+	public static final class Table {
+		// Files of every system listed; without filter, of the systems that changed since the last retrieve
+		public final Map<InetAddress, List<String>> peers;
+		// Systems that left since the last retrieve, without filter only
+		public final List<InetAddress> removed;
+		// True if nothing changed since the last retrieve without filter
+		public final boolean notModified;
+		// True if peers is the whole table rather than the changes
+		public final boolean full;
+		// Number of systems registered, as far as this system knows
+		public final int registered;
+
+		Table(Map<InetAddress, List<String>> peers, List<InetAddress> removed, boolean notModified, boolean full,
+				int registered) {
+			this.peers = peers;
+			this.removed = removed;
+			this.notModified = notModified;
+			this.full = full;
+			this.registered = registered;
+		}
+	}
+
+	/**
+	 * Outcome of a sync with another system
+	 */
+	public static final class SyncReport {
+		public final InetAddress peer;
+		// False if the other system is not registered: nothing was requested
+		public final boolean registered;
+		// Every file that differed, received or not, the ones not received with the reason
+		public final List<TransferClient.Result> files;
+		// Bytes of the files, and of file data actually received
+		public final long length;
+		public final long transferred;
+		public final long nanos;
+
+		SyncReport(InetAddress peer, boolean registered, List<TransferClient.Result> files, long nanos) {
+			this.peer = peer;
+			this.registered = registered;
+			this.files = files;
+			long length = 0;
+			long transferred = 0;
+			for(TransferClient.Result r : files) {
+				length += r.length;
+				transferred += r.transferred;
+			}
+			this.length = length;
+			this.transferred = transferred;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Outcome of a swarm download
+	 */
+	public static final class SwarmReport {
+		// Systems the chunks came from, in the order of download.chunksPerPeer
+		public final List<InetAddress> holders;
+		public final SwarmDownloader.Result download;
+
+		SwarmReport(List<InetAddress> holders, SwarmDownloader.Result download) {
+			this.holders = holders;
+			this.download = download;
+		}
+	}
+
+	//Connection to the index server's replicas, following their leader; null until registered
+	private IndexClient _index;
+	//Number of standby index servers kept besides the leader when this system creates the index
+	private int _standbys = 2;
     //Socket to be used for communication with index server
     private DatagramSocket _broadcaster;
     //Current system's IP
     private InetAddress _ipAddress;
+    //Local address every socket is bound to, null for all interfaces (needed to receive broadcasts)
+    private final InetAddress _bindAddress;
+    //Default ports; every system of a network uses the same ports
+    public static final int DEFAULT_COM_PORT = DHT.DEFAULT_PORT;
+    public static final int DEFAULT_FT_PORT = 57265;
     //Communication Port
-    private final int _comPort = 57264;
+    private final int _comPort;
     //File Transfer Port
-    private final int _ftPort = 57265;
-    //Thread to be used for broadcasting communication
+    private final int _ftPort;
+    //Addresses a REGISTER goes to while no index server is known, the broadcast address of the subnet by default
+    private volatile List<InetAddress> _discovery;
+    //Lease time of the index server created by this system
+    private long _indexLease = DHT.DEFAULT_LEASE;
+    //Index server (leader or standby replica) run by this system, if any
     private DHT _bcThread = null;
-    //Thread to be used for file transfer
-    private Thread _dataThread;
+    //Port of the Chord ring the holders of every name are spread over (see ChordNode), 0 to ask the index server only
+    private volatile int _ringPort;
+    //This system's node of the ring while registered
+    private volatile ChordNode _ring;
+    //Milliseconds between stabilization rounds of _ring
+    private static final long RING_MAINTENANCE = 500;
+    //Server to be used for file transfer
+    private FileServer _fileServer;
+    //Limit on concurrent uploads served by _fileServer
+    private int _maxUploads = FileServer.DEFAULT_MAX_CONNECTIONS;
+    //Upload rate of _fileServer as a whole and to each peer in bytes per second, 0 for no limit
+    private volatile long _uploadLimit;
+    private volatile long _peerUploadLimit;
+    //Queue of the downloads of sync and swarm, with the download rate limit they share
+    private final TransferScheduler _scheduler = new TransferScheduler(TransferScheduler.DEFAULT_MAX_ACTIVE,
+    		TransferScheduler.DEFAULT_MAX_PER_PEER);
+    //When files received by sync are forced to disk: all files of a batch together by default
+    private volatile PartFile.Sync _fsync = PartFile.Sync.BATCH;
+    //Names of files synced ahead of the others
+    private final Set<String> _pinned = Collections.synchronizedSet(new LinkedHashSet<String>());
     //Current system's folder to be synchronized
     private String _workingDir;
-    //Files stored in _workingDir
-    private File[] _listFiles;
+    //Versioned catalog of the files stored in _workingDir, kept current by _watcher
+    private final PeerCatalog _catalog = new PeerCatalog();
+    //Tracker of changes in _workingDir
+    private DirectoryWatcher _watcher;
+    //Checksums of the files in _workingDir, kept beside it across restarts; files are hashed as they change
+    private HashCache _hashes;
+    //Files hashed at once, by threads of _hashes
+    private static final int HASHERS = Runtime.getRuntime().availableProcessors();
+    //True between register() and unregister(): catalog changes are pushed to the index server
+    private volatile boolean _registered;
+    //Sequence number of the catalog the index server holds as far as sent; older deltas are not sent again
+    private long _published = -1;
+    //Connections opened for one sync before it gives up; each one continues the files cut off before
+    private static final int SYNC_ATTEMPTS = 3;
+    //Files smaller than this are fetched together over one connection, up to this many bytes per batch
+    private static final long SYNC_BATCH = 1 << 20;
+    //Cells of the first lookup table sent to reconcile with another system, and of the largest one before
+    //sync asks for the whole file list instead; every retry has four times the cells
+    private static final int FIRST_CELLS = 96;
+    private static final int MAX_CELLS = 1 << 16;
+    //Bloom filters of the names held by each registered system as of _filterTag (see mayBeHeld), replaced
+    //as a whole by the one refresh in flight at a time; confirmed current by the index server at _filtersChecked
+    private volatile Map<InetAddress, BloomFilter> _filters = Collections.emptyMap();
+    private volatile IndexProtocol.Tag _filterTag = IndexProtocol.Tag.NONE;
+    private volatile long _filtersChecked = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    private final AtomicBoolean _filterRefresh = new AtomicBoolean();
+    //Milliseconds a name in no filter is known to be held by none after the filters were last confirmed;
+    //the filters are checked again in the background once half of it has passed
+    private static final long FILTER_AGE = 1000;
+    //Milliseconds the index server keeps this system registered, renewed by _renewer a third of it apart
+    private volatile long _lease = DHT.DEFAULT_LEASE;
+    private Thread _renewer;
+    //Copy of the index server's table as of _tableTag, patched by every unfiltered retrieve
+    private final Map<InetAddress, List<String>> _table = new HashMap<InetAddress, List<String>>();
+    private IndexProtocol.Tag _tableTag = IndexProtocol.Tag.NONE;
+    //Counters and latencies of transfers, index requests and failures, readable over JMX
+    private final Metrics _metrics = new Metrics();
+    //Operations of the asynchronous API run at once by _operations; more wait in its queue
+    private static final int MAX_OPERATIONS = 16;
+    //Executor of the asynchronous API: _operations, whose threads come and go with the load, unless one was set
+    private final ThreadPoolExecutor _operations;
+    private volatile Executor _executor;
 
-    //Constructor
+    //Constructor: default ports on all interfaces, sharing syncFolder in the current directory
     public p2pNode() throws UnknownHostException, IOException {
-    	_ipAddress = InetAddress.getLocalHost();
-        _node = new Socket();
-        _workingDir = Paths.get("").toAbsolutePath().toString() + "\\syncFolder";
-        updateList();
+    	this(InetAddress.getLocalHost(), null, DEFAULT_COM_PORT, DEFAULT_FT_PORT, Paths.get("syncFolder").toAbsolutePath().toFile());
+    }
+    //Constructor for one of several systems on one machine: every socket is bound to address (127.0.0.x on loopback)
+    public p2pNode(InetAddress address, int comPort, int ftPort, File workingDir) throws IOException {
+    	this(address, address, comPort, ftPort, workingDir);
+    }
+    private p2pNode(InetAddress address, InetAddress bindAddress, int comPort, int ftPort, File workingDir) throws IOException {
+    	_ipAddress = address;
+    	_bindAddress = bindAddress;
+    	_comPort = comPort;
+    	_ftPort = ftPort;
+    	_discovery = Collections.singletonList(broadcast(address));
+        _workingDir = workingDir.getPath();
+        AtomicInteger threads = new AtomicInteger();
+        _operations = new ThreadPoolExecutor(MAX_OPERATIONS, MAX_OPERATIONS, 60, TimeUnit.SECONDS,
+        		new LinkedBlockingQueue<Runnable>(), r -> {
+        			Thread t = new Thread(r, "p2pNode-" + _comPort + "-" + threads.incrementAndGet());
+        			t.setDaemon(true);
+        			return t;
+        		});
+        _operations.allowCoreThreadTimeOut(true);
+        _executor = _operations;
+        watch();
+        _scheduler.setMetrics(_metrics);
+        _metrics.gauge("transfers queued", _scheduler::getQueued);
+        _metrics.gauge("transfers running", _scheduler::getActive);
+        _metrics.gauge("uploads running", () -> _fileServer != null && _fileServer.isRunning() ? _fileServer.getActiveConnections() : 0);
+        _metrics.gauge("index peers", () -> isIndexServer() ? _bcThread.getDht().size() : 0);
+        try {
+        	_metrics.register(_ipAddress.getHostAddress() + ":" + _comPort);
+        } catch (JMException e) {
+        	//another node in this process took the name: the metrics are still shown by stats
+        	System.out.println("\t" + e.getMessage() + ": Metrics");
+        }
     }
     //getters and setters
     public int getComPort() {
@@ -49,301 +256,975 @@ public class p2pNode {
     public InetAddress getAddress() {
         return _ipAddress;
     }
+    public List<InetAddress> getDiscovery() {
+    	return _discovery;
+    }
+    //a REGISTER goes to every one of targets while no index server is known, and the first answer is followed;
+    //targets is read at every discovery, so it may keep changing if it is safe to iterate meanwhile
+    public void setDiscovery(List<InetAddress> targets) {
+    	_discovery = targets;
+    }
+    public int getRingPort() {
+    	return _ringPort;
+    }
+    //from the next register on, the holders of every name are kept on a Chord ring of the registered systems on port
+    //(every system on the same one) and lookup asks the ring; 0, the default, leaves them with the index server only
+    //a system that halts takes the names stored on it along, and its own names stay listed until it registers again
+    public void setRingPort(int port) {
+    	if(port < 0 || port > 0xFFFF)
+    		throw new IllegalArgumentException("Port out of range: " + port);
+    	_ringPort = port;
+    }
     public String getWorkingDir() {
         return _workingDir;
     }
-    public void setWorkingDir(String dir) {
+    //the catalog moves to the new folder's content; the difference is published as one change
+    public void setWorkingDir(String dir) throws IOException {
         _workingDir = dir;
-        updateList();
+        watch();
     }
     public File[] getListFiles() {
-        return _listFiles;
+    	List<String> names = _catalog.names();
+    	File[] files = new File[names.size()];
+    	for(int i = 0; i < files.length; i++)
+    		files[i] = new File(_workingDir, names.get(i));
+        return files;
+    }
+    public int getStandbys() {
+    	return _standbys;
+    }
+    //takes effect when this system creates the index server or becomes its leader
+    public void setStandbys(int standbys) {
+    	if(standbys < 0)
+    		throw new IllegalArgumentException("standbys must not be negative: " + standbys);
+    	_standbys = standbys;
+    }
+    public long getIndexLease() {
+    	return _indexLease;
+    }
+    //takes effect when this system creates the index server or becomes its leader
+    public void setIndexLease(long ms) {
+    	_indexLease = ms;
+    }
+    public PartFile.Sync getFsync() {
+    	return _fsync;
+    }
+    //takes effect with the next batch of files synced
+    public void setFsync(PartFile.Sync fsync) {
+    	_fsync = fsync;
+    }
+    public int getMaxUploads() {
+    	return _maxUploads;
     }
-    //helper method: make member variable _listFiles up to date
-    private void updateList() {
-    	//go to working directory
+    //takes effect the next time the listener is started
+    public void setMaxUploads(int maxUploads) {
+    	if(maxUploads < 1)
+    		throw new IllegalArgumentException("maxUploads must be positive: " + maxUploads);
+    	_maxUploads = maxUploads;
+    }
+    public long getUploadLimit() {
+    	return _uploadLimit;
+    }
+    //bytes per second over all uploads, 0 for no limit; takes effect at once
+    public void setUploadLimit(long bytesPerSecond) {
+    	_uploadLimit = bytesPerSecond;
+    	if(_fileServer != null)
+    		_fileServer.setUploadLimit(bytesPerSecond);
+    }
+    public long getPeerUploadLimit() {
+    	return _peerUploadLimit;
+    }
+    //bytes per second over the uploads to one system, 0 for no limit; takes effect at once
+    public void setPeerUploadLimit(long bytesPerSecond) {
+    	_peerUploadLimit = bytesPerSecond;
+    	if(_fileServer != null)
+    		_fileServer.setPeerUploadLimit(bytesPerSecond);
+    }
+    public long getDownloadLimit() {
+    	return _scheduler.getDownloadLimit().getRate();
+    }
+    //bytes per second over all downloads, 0 for no limit; takes effect at once
+    public void setDownloadLimit(long bytesPerSecond) {
+    	_scheduler.setDownloadLimit(bytesPerSecond);
+    }
+    public TransferScheduler getScheduler() {
+    	return _scheduler;
+    }
+    public FileServer getFileServer() {
+    	return _fileServer;
+    }
+    public Executor getExecutor() {
+    	return _executor;
+    }
+    //operations of the asynchronous API started from now on run on executor (such as a pool of the embedding
+    //service, or virtual threads where the runtime has them); null goes back to the one of this system
+    public void setExecutor(Executor executor) {
+    	_executor = executor != null ? executor : _operations;
+    }
+    public Metrics getMetrics() {
+    	return _metrics;
+    }
+    //pinned files are synced before all others; returns false if the file was pinned and is not anymore
+    public boolean pin(String fileName) {
+    	if(_pinned.remove(fileName))
+    		return false;
+    	_pinned.add(fileName);
+    	return true;
+    }
+    //helper method: (re)start tracking _workingDir, creating it if it does not exist
+    private void watch() throws IOException {
+    	if(_watcher != null)
+    		_watcher.close();
+    	if(_hashes != null)
+    		_hashes.close();
     	File dir = new File(_workingDir);
-    	//if working directory is not exist, create new one
-        if (!dir.exists())
-            dir.mkdir();
-        //update _listFiles
-        _listFiles = dir.listFiles();
+    	_hashes = HashCache.open(hashCacheOf(dir), HASHERS);
+    	if(_fileServer != null)
+    		_fileServer.setHashCache(_hashes);
+    	_watcher = new DirectoryWatcher(dir, DirectoryWatcher.DEFAULT_DEBOUNCE_MS, _catalog, this::publish);
+    	PeerCatalog.Delta initial = _watcher.start();
+    	_hashes.retain(_catalog.names());
+    	publish(initial);
+    }
+    
+    //helper method: file the hashes of dir are kept in, a hidden file beside it so it is neither cataloged nor served
+    static File hashCacheOf(File dir) {
+    	File abs = dir.getAbsoluteFile();
+    	return new File(abs.getParentFile(), "." + abs.getName() + ".hashes");
+    }
+    
+    //helper method: folder the index server run by this system keeps its table in, hidden beside dir like the hashes
+    static File indexStoreOf(File dir) {
+    	File abs = dir.getAbsoluteFile();
+    	return new File(abs.getParentFile(), "." + abs.getName() + ".index");
+    }
+    
+    public HashCache getHashCache() {
+    	return _hashes;
+    }
+    
+    //helper method: hash the files added or modified in the background; the ones the cache has are skipped,
+    //so after a restart only the files that changed meanwhile are read
+    //their CRCs are then cataloged and published, so that the lookup tables tell apart files of the same size
+    private void hash(PeerCatalog.Delta delta) {
+    	Map<String, PeerCatalog.Entry> files = new HashMap<String, PeerCatalog.Entry>(delta.added);
+    	files.putAll(delta.modified);
+    	files.values().removeIf(e -> e.crc != PeerCatalog.Entry.UNHASHED);
+    	if(files.isEmpty())
+    		return;
+    	HashCache cache = _hashes;
+    	cache.updateLater(new File(_workingDir), files, FileServer::digest).whenComplete((n, e) -> {
+    		if(e != null) {
+    			failed("Hashing", e);
+    			return;
+    		}
+    		Map<String, PeerCatalog.Entry> hashed = new HashMap<String, PeerCatalog.Entry>();
+    		for(Map.Entry<String, PeerCatalog.Entry> f : files.entrySet()) {
+    			PeerCatalog.Entry v = f.getValue();
+    			HashCache.Digest d = cache.get(f.getKey(), v.size, v.modified);
+    			if(d != null)
+    				hashed.put(f.getKey(), new PeerCatalog.Entry(v.size, v.modified, d.crc));
+    		}
+    		synchronized(this) {
+    			publish(_catalog.checksums(hashed));
+    		}
+    	});
     }
     
     /*
      * Purpose: try register to the index server so that other system can discover current system
      * Precondition: p2pNode is constructed (means at least 4 member variables are initialized in ctor)
      * Postcondition:
-     * 		1. register this system's IP address to the index server
-     * 		2. registered IP contains string value of name of files concatenated by '@'
-     * 		3. if no index server exist, create new server and put (ip, name of files)
+     * 		1. register this system's IP address to the leader of the index server's replicas
+     * 		2. registered IP contains the names of files (see IndexProtocol)
+     * 		3. if no index server exist, create new server and put (ip, name of files);
+     * 		   the new server restores the table it kept before this system restarted, if any
+     * 		4. if the index server asks for it, run a standby replica of the index
+     * 		returns the index server found and the registered systems
      */
-    public void register() throws IOException {
-    	//temporarily turn off broadcaster in index server if any
-    	if(_bcThread != null) {
-    		_bcThread.switchOff();
+    public synchronized Registration register() throws IOException {
+    	_registered = true;
+    	byte[] frame = snapshot();
+    	//the replicas are known from an earlier registration: register with their leader
+    	if(_index != null) {
+    		try {
+    			registered(_index.call(frame), _index);
+    			joinRing(false);
+    			return registration(false);
+    		} catch (IOException e) {
+    			failed("Index Server", e);
+    			_index = null;
+    		}
     	}
-    	//initialize broadcasting socket
-    	_broadcaster = new DatagramSocket(_comPort);
-    	_broadcaster.setBroadcast(true);
-    	//concatenate name of files into single string
-    	StringBuilder list = new StringBuilder();
-    	for(File f : _listFiles)
-    		list.append(f.getName()+"@");
-    	//transfer string (which contains name of files) into byte array format to be sent to index server
-    	byte[] sendList = list.toString().getBytes();
-    	//copy current system's IP address and convert to broadcast channel
-    	byte[] ip = _ipAddress.getAddress();
-    	ip[3] = (byte)255;
-    	//convert byte formatted IP address to InetAddress type
-    	InetAddress addr = InetAddress.getByAddress(ip);
-    	//create packet to be sent over broadcasting channel
-    	//packet contains information of name of files
-    	DatagramPacket outGoing = new DatagramPacket(sendList, sendList.length, addr, _comPort);
-		//broadcast
-    	_broadcaster.send(outGoing);
-		_broadcaster.close();
-		//response will come as TCP connection, thus wait for connection
-		ServerSocket ss = new ServerSocket(_comPort);
-		Socket s = new Socket();
-		try {
-			//set Timeout in case of no existence of index server
-			ss.setSoTimeout(2000);
-			//listen for connection for specified time
-			s = ss.accept();
-			//if response reached, 
-			BufferedReader input = new BufferedReader(new InputStreamReader(s.getInputStream()));
-			//print output to notify user that index server exist
-			System.out.println(input.readLine());
-			//set server IP as address where response was sent
-			_serverIP = ((InetSocketAddress) s.getRemoteSocketAddress()).getAddress();
-		} catch (SocketTimeoutException e) {
-			//if Socket Timeout Exception is thrown, refer as no index server exist
-			System.out.println("\t" + e.getMessage() + ": Creating Index Server...");
-			_serverIP = InetAddress.getByAddress(_ipAddress.getAddress());
-		}finally {
-			//create index server in a different thread
-			if(_bcThread == null) {
-				_bcThread = new DHT();
-				_bcThread.put(InetAddress.getByAddress(_ipAddress.getAddress()), list.toString());
-				_bcThread.start();
-			}
-			//close socket used for response
-	    	try {
-				s.close();
-				ss.close();
-			}catch(Exception e) {
-				System.out.println("\t" + e.getMessage() + ": Register Socket Close");
-			}
-		}
-		//turn back on broadcaster in index server
-        _bcThread.switchOn();
-		//start listener thread
-        listen();
-        retrieve();
+    	try {
+    		//broadcast, and follow the index server that answered
+    		_index = announce(_discovery, frame);
+    		joinRing(false);
+    		return registration(false);
+    	} catch (SocketTimeoutException e) {
+    		//if Socket Timeout Exception is thrown, refer as no index server exist
+    		stopIndexServer();
+    		//create index server in a different thread, as the first of its replicas
+    		_bcThread = indexServer();
+    		_bcThread.replicate(_ipAddress, _standbys, null);
+    		//the systems registered before a restart stay listed, so they only renew their lease
+    		_bcThread.persist(indexStoreOf(new File(_workingDir)));
+    		_bcThread.start();
+    		try {
+    			if(_bcThread.getLocalPort() < 0)
+    				throw new IOException("Index server could not start");
+    		} catch (InterruptedException ie) {
+    			Thread.currentThread().interrupt();
+    			throw new IOException("Interrupted while starting the index server");
+    		}
+    		_index = new IndexClient(_bindAddress, new InetSocketAddress(_ipAddress, _comPort));
+    		registered(_index.call(frame), _index);
+    		joinRing(true);
+    		return registration(true);
+    	}
+    }
+    
+    //helper method: join the ring on _ringPort through the system running the index server, or start it alone if this
+    //system created the index, and put this system's names on it; without a ring, lookups go to the index server
+    private void joinRing(boolean created) {
+    	if(_ringPort == 0 || _ring != null)
+    		return;
+    	ChordNode ring = null;
+    	try {
+    		ring = new ChordNode(new InetSocketAddress(_ipAddress, _ringPort), RING_MAINTENANCE);
+    		ring.start();
+    		if(!created)
+    			ring.join(new InetSocketAddress(_index.getLeader().getAddress(), _ringPort));
+    		String self = _ipAddress.getHostAddress();
+    		for(String name : _catalog.names())
+    			ring.put(name, self);
+    		_ring = ring;
+    	} catch (IOException e) {
+    		failed("Ring", e);
+    		if(ring != null)
+    			ring.close();
+    	}
+    }
+    
+    //helper method: take this system's names off the ring and leave it; the names stored here go to the successor
+    private void leaveRing() {
+    	ChordNode ring = _ring;
+    	if(ring == null)
+    		return;
+    	_ring = null;
+    	String self = _ipAddress.getHostAddress();
+    	try {
+    		for(String name : _catalog.names())
+    			ring.remove(name, self);
+    	} catch (IOException e) {
+    		failed("Ring", e);
+    	}
+    	ring.leave();
+    }
+    
+    //helper method: start serving files and renewing the lease once registered, and retrieve the table
+    private Registration registration(boolean created) throws IOException {
+    	listen();
+    	renewLease();
+    	Table table = null;
+    	try {
+    		table = retrieve("");
+    	} catch (IOException e) {
+    		failed("Retrieve", e);
+    	}
+    	return new Registration(created, _index.getLeader(), _lease, table);
+    }
+    
+    //helper method: REGISTER frame carrying the whole catalog
+    private byte[] snapshot() {
+    	IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.REGISTER);
+    	_published = _catalog.writeSnapshot(w);
+    	return w.toFrame();
+    }
+    
+    //helper method: check the answer to REGISTER and start a standby replica if the leader asks for one
+    private void registered(IndexProtocol.Frame f, IndexClient index) throws IOException {
+    	if(f.type != IndexProtocol.REGISTERED)
+    		throw new IOException("Catalog rejected by " + index.getLeader());
+    	boolean standby = IndexProtocol.readByte(f.payload) != 0;
+    	_lease = IndexProtocol.readVarint(f.payload);
+    	if(!standby || (_bcThread != null && _bcThread.isAlive()))
+    		return;
+    	_bcThread = indexServer();
+    	_bcThread.replicate(_ipAddress, _standbys, index.getLeader());
+    	_bcThread.start();
+    	System.out.println("\tStandby index server for " + index.getLeader().getAddress().getHostAddress());
+    }
+    
+    //helper method: index server (or standby) on this system's ports, not started yet
+    private DHT indexServer() {
+    	DHT dht = new DHT(new InetSocketAddress(_bindAddress, _comPort));
+    	dht.setLease(_indexLease);
+    	dht.setMetrics(_metrics);
+    	return dht;
+    }
+    
+    //helper method: keep the registration alive with a RENEW a third of the lease apart, until unregistered
+    private void renewLease() {
+    	if(_renewer != null && _renewer.isAlive())
+    		return;
+    	_renewer = new Thread(() -> {
+    		while(_registered) {
+    			try {
+    				Thread.sleep(_lease / 3);
+    			} catch (InterruptedException e) {
+    				return;
+    			}
+    			renew();
+    		}
+    	}, "Lease");
+    	_renewer.setDaemon(true);
+    	_renewer.start();
+    }
+    
+    //helper method: one heartbeat; if the lease ran out (or the index server lost this system) register again
+    private synchronized void renew() {
+    	if(!_registered || _index == null)
+    		return;
+    	try {
+    		IndexProtocol.Frame f = exchange(IndexProtocol.empty(IndexProtocol.RENEW));
+    		if(f.type == IndexProtocol.RENEWED)
+    			_lease = IndexProtocol.readVarint(f.payload);
+    		else if(f.type == IndexProtocol.UNKNOWN) {
+    			registered(_index.call(snapshot()), _index);
+    			System.out.println("REGISTERED");
+    		}
+    	} catch (IOException e) {
+    		//tried again with the next heartbeat, well before the lease runs out
+    		failed("Lease", e);
+    	}
+    }
+    
+    //helper method: send a REGISTER frame to targets (possibly a broadcast address) and return a client of the index server
+    //frames that fit in a datagram go over UDP, larger ones over TCP once a replica answered DISCOVER;
+    //a standby answers NOT_LEADER and the frame goes to the leader it names
+    private IndexClient announce(List<InetAddress> targets, byte[] frame) throws IOException {
+    	boolean fits = frame.length <= IndexProtocol.MAX_DATAGRAM;
+    	DatagramPacket response = datagram(targets, fits ? frame : IndexProtocol.empty(IndexProtocol.DISCOVER));
+    	IndexClient index = new IndexClient(_bindAddress, new InetSocketAddress(response.getAddress(), _comPort));
+    	IndexProtocol.Frame f = decode(response);
+    	if(!fits || f.type == IndexProtocol.NOT_LEADER)
+    		f = index.call(frame);
+    	registered(f, index);
+    	return index;
+    }
+    
+    //helper method: send a frame to the leader, over UDP if it fits in a datagram, and return the answer
+    //a leader that is gone or no longer leads is left to _index, which finds the new one over TCP
+    private IndexProtocol.Frame exchange(byte[] frame) throws IOException {
+    	if(frame.length <= IndexProtocol.MAX_DATAGRAM) {
+    		try (DatagramSocket ds = new DatagramSocket(new InetSocketAddress(_bindAddress, 0))) {
+    			//connected, so that a closed port fails at once
+    			ds.connect(_index.getLeader());
+    			ds.setSoTimeout(500);
+    			ds.send(new DatagramPacket(frame, frame.length));
+    			DatagramPacket response = new DatagramPacket(new byte[IndexProtocol.MAX_DATAGRAM], IndexProtocol.MAX_DATAGRAM);
+    			ds.receive(response);
+    			IndexProtocol.Frame f = decode(response);
+    			if(f.type != IndexProtocol.NOT_LEADER)
+    				return f;
+    		} catch (IOException e) {
+    			//no answer over UDP: try over TCP
+    		}
+    	}
+    	return _index.call(frame);
+    }
+    
+    //helper method: send a frame over UDP from an ephemeral socket to every target and wait for the first index server's answer to it
+    private DatagramPacket datagram(List<InetAddress> targets, byte[] frame) throws IOException {
+    	_broadcaster = new DatagramSocket(new InetSocketAddress(_bindAddress, 0));
+    	try {
+    		_broadcaster.setBroadcast(true);
+    		for(InetAddress target : targets)
+    			_broadcaster.send(new DatagramPacket(frame, frame.length, target, _comPort));
+    		//set Timeout in case of no existence of index server
+    		_broadcaster.setSoTimeout(2000);
+    		byte[] buf = new byte[IndexProtocol.MAX_DATAGRAM];
+    		while(true) {
+    			DatagramPacket response = new DatagramPacket(buf, buf.length);
+    			_broadcaster.receive(response);
+    			try {
+    				decode(response);
+    				return response;
+    			} catch (IOException e) {
+    				//not an index server's answer: keep waiting
+    			}
+    		}
+    	} finally {
+    		_broadcaster.close();
+    	}
+    }
+    
+    //helper method: broadcast address of the subnet of address, the limited broadcast address if its interface has none
+    private static InetAddress broadcast(InetAddress address) throws IOException {
+    	NetworkInterface nif = NetworkInterface.getByInetAddress(address);
+    	if(nif != null)
+    		for(InterfaceAddress a : nif.getInterfaceAddresses())
+    			if(address.equals(a.getAddress()) && a.getBroadcast() != null)
+    				return a.getBroadcast();
+    	return InetAddress.getByAddress(new byte[] { (byte)255, (byte)255, (byte)255, (byte)255 });
+    }
+    
+    private static IndexProtocol.Frame decode(DatagramPacket p) throws IOException {
+    	return IndexProtocol.decode(ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength()));
     }
     
     /*
-     * Purpose: runs thread responsible for the file transfer connection attempts
+     * Purpose: runs file server responsible for the file transfer connection attempts
      * Precondition: none
-     * Postcondition: separate thread runs for listening file transfer attempts
+     * Postcondition: file server serves up to _maxUploads file transfer connections at once
      */
     public void listen() {
-    	_dataThread = new Thread() {
-            @Override
-            public void run() {
-            	try {
-            		//server may already be opened
-					_listener = new ServerSocket(_ftPort);
-				} catch (IOException e) {
-					System.out.println(e.getMessage() + ": Listener");
-				}
-                System.out.println("\tSocket started listening for connection attempt...");
-                while(true) {
-	            	try {
-	            		//one file per connection
-	                    for(File f : _listFiles) {
-	                    	//stay listening for connection
-	                    	_node = _listener.accept();
-	                    	//once connection is made, send files
-	                    	System.out.println("Sending files to " + ((InetSocketAddress) _node.getRemoteSocketAddress()).getAddress());
-	                    	byte[] bytes = new byte[(int)f.length()];
-	                    	FileInputStream fis = new FileInputStream(f);
-	                    	OutputStream os = _node.getOutputStream();
-	                    	fis.read(bytes);
-	                    	os.write(bytes, 0, bytes.length);
-	                    	os.flush();
-	                    	_node.close();
-	                    }
-	                    
-	                } catch (IOException e) {
-	                    System.out.println("\t" + e.getMessage() + ": Listener");
-	                    break;
-					}
-                }
-            }
-        };
-        _dataThread.start();
+    	//server may already be opened
+    	if(_fileServer != null && _fileServer.isRunning())
+    		return;
+    	_fileServer = new FileServer(new InetSocketAddress(_bindAddress, _ftPort), _maxUploads, () -> new File(_workingDir));
+    	_fileServer.setUploadLimit(_uploadLimit);
+    	_fileServer.setPeerUploadLimit(_peerUploadLimit);
+    	_fileServer.setMetrics(_metrics);
+    	_fileServer.setHashCache(_hashes);
+    	try {
+    		_fileServer.start();
+    	} catch (IOException e) {
+    		System.out.println(e.getMessage() + ": Listener");
+    		_metrics.failure("Listener", e);
+    	}
     }
     
     /*
-     * Purpose: obtain address and file information from index server
+     * Purpose: obtain address and file information from index server, page by page
      * Precondition: system is registered to index server
-     * Postcondition: prints out the ip address registered to index server 
-     * 					and files corresponds to address
+     * Postcondition: with an ip address, returns that system's files only; with any other filter,
+     * 		the files whose name matches it as a glob ('*', '?', [abc]);
+     * 		without filter, only what changed in the table since the last retrieve
+     * 		if no replica of the index server answers, registers again (creating one) first
      */
-    public void retrieve() throws IOException {
-    	//if this system runs index server, simply obtain without connection
-    	if(_serverIP != null && _serverIP.equals(_ipAddress)) {
-    		_bcThread.print();
-    		return;
-    	}
-    	//if not, temporarily stop server thread
-    	_bcThread.switchOff();
-    	//broadcast string "RETRIEVE"
-    	_broadcaster = new DatagramSocket(_comPort);
-    	byte[] send = retrieve.getBytes();
-    	DatagramPacket outGoing = new DatagramPacket(send, send.length, _serverIP, _comPort);
-    	_broadcaster.send(outGoing);
-    	_broadcaster.close();
-    	//listen for response
+    public Table retrieve(String filter) throws IOException {
+    	InetAddress peer = null;
+    	String pattern = "";
+    	if(filter.matches("\\d{1,3}(\\.\\d{1,3}){3}") || filter.indexOf(':') >= 0)
+    		peer = InetAddress.getByName(filter);
+    	else
+    		pattern = filter;
+    	boolean whole = peer == null && pattern.isEmpty();
+    	IndexProtocol.Retrieve q = new IndexProtocol.Retrieve(whole ? _tableTag : IndexProtocol.Tag.NONE, peer, pattern,
+    			null, null, DHT.MAX_PAGE);
     	try {
-    		Socket s = new Socket();
-    		s.connect(new InetSocketAddress(_serverIP, _comPort), 5000);
-    		//response comes in as ip address: file name@file name@ ... separated by line
-    		BufferedReader input = new BufferedReader(new InputStreamReader(s.getInputStream()));
-			String str;
-    		while((str = input.readLine()) != null)
-    			System.out.println("\t" + str);
-			input.close();
-			s.close();
-		} catch (SocketTimeoutException e) {
-			//if the server is not responsive, create new server by re-registering
-			System.out.println("\tCannot access index server");
-			_serverIP = InetAddress.getByAddress(_ipAddress.getAddress());
-			register();
-		} catch (IOException e) {
-			System.out.println("\t" + e.getMessage() + ": Retrieve");
-		} finally {
-			_bcThread.switchOn();
+    		IndexProtocol.Page first = page(q);
+    		if(first.notModified) {
+    			synchronized(_table) {
+    				return new Table(Collections.<InetAddress, List<String>>emptyMap(), Collections.<InetAddress>emptyList(),
+    						true, false, _table.size());
+    			}
+    		}
+    		//response comes in as the address and the files of each peer; a peer may continue on the next page
+    		Map<InetAddress, List<String>> peers = new LinkedHashMap<InetAddress, List<String>>();
+    		for(IndexProtocol.Page p = first; ; p = page(q)) {
+    			for(Map.Entry<InetAddress, List<String>> e : p.peers.entrySet()) {
+    				List<String> names = peers.get(e.getKey());
+    				if(names == null)
+    					peers.put(e.getKey(), new ArrayList<String>(e.getValue()));
+    				else
+    					names.addAll(e.getValue());
+    			}
+    			if(p.nextPeer == null)
+    				break;
+    			q = q.next(p);
+    		}
+    		synchronized(_table) {
+    			if(whole) {
+    				//keep the table with the version of the first page, so nothing changed meanwhile is missed
+    				if(first.full)
+    					_table.clear();
+    				for(InetAddress ip : first.removed)
+    					_table.remove(ip);
+    				_table.putAll(peers);
+    				_tableTag = first.tag;
+    			}
+    			return new Table(peers, whole ? first.removed : Collections.<InetAddress>emptyList(), false,
+    					!whole || first.full, _table.size());
+    		}
+		} catch (SocketTimeoutException | ConnectException e) {
+			//if no replica of the server is responsive, create new server by re-registering
+			failed("Retrieve, registering again", e);
+			_index = null;
+			Registration r = register();
+			if(whole && r.table != null)
+				return r.table;
+			return retrieve(filter);
 		}
     }
     
+    //helper method: one page of the index table, without connection if this system runs the index server
+    private IndexProtocol.Page page(IndexProtocol.Retrieve q) throws IOException {
+    	if(isIndexServer())
+    		return _bcThread.retrieve(q);
+    	return IndexProtocol.Page.read(_index.call(q.toFrame()));
+    }
+    
     /*
      * Purpose: unregister and hide from the connection
      * Precondition: system is registered to index server
      * Postcondition: system will request to remove its ip and file info from index server
      */
-    public void unregister() throws IOException {
-    	//if this system runs index server, simply remove node
-    	if(_serverIP.equals(_ipAddress)) {
-    		_bcThread.nodeExit(_ipAddress);
-    		_bcThread.switchOff();
-    		_node.close();
-    		_listener.close();
-    		return;
-    	}
-    	//else, compose "UNREGISTER" and send to server
-    	_bcThread.switchOff();
-    	_broadcaster = new DatagramSocket(_comPort);
-    	byte[] send = unregister.getBytes();
-    	DatagramPacket outGoing = new DatagramPacket(send, send.length, _serverIP, _comPort);
-    	_broadcaster.send(outGoing);
-    	_broadcaster.close();
+    public synchronized void unregister() throws IOException {
+    	_registered = false;
+    	if(_renewer != null)
+    		_renewer.interrupt();
+    	leaveRing();
+    	//compose UNREGISTER and send to the leader, which removes this system from every replica
     	try {
-    		_node.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			_listener.close();
-	    	_bcThread.switchOn();
-		}
+    		if(_index != null)
+    			_index.call(IndexProtocol.empty(IndexProtocol.UNREGISTER));
+    	} finally {
+    		stopListening();
+    	}
     }   
     
+    //helper method: stop serving files to other systems
+    private void stopListening() {
+    	if(_fileServer != null)
+    		_fileServer.stop();
+    }
+    
     /*
      * Purpose: synchronize (download) files from the specified IP
      * Precondition: Parameter is passed as String data type in format of IP address
      * Postcondition: system requested synchronized should have files downloaded from other system
+     * 		only files missing here or of another size or CRC are requested: they are found by sending
+     * 		the lookup table of this system's catalog (see CatalogSummary), or from the whole file list
+     * 		if the difference is too large for MAX_CELLS
+     * 		files are requested by name over one connection and verified against their checksum
+     * 		files that already exist locally only receive the blocks that changed
+     * 		if the connection drops, it is opened again and cut-off files continue where they stopped
+     * 		files are queued in _scheduler as batches, pinned files first and then the smallest,
+     * 		and at most TransferScheduler.DEFAULT_MAX_PER_PEER batches are received at once
+     * 		returns every file that differed with its outcome; a batch that failed fails its files only
+     */
+    public SyncReport sync(InetAddress reqIP) throws IOException, InterruptedException {
+    	long start = System.nanoTime();
+    	//names of the files registered by the other system that differ from the files here
+    	List<String> files = reconcile(reqIP);
+    	//the difference is too large to be worth it: compare all of the names
+    	if(files == null && isIndexServer()) {
+    		files = _bcThread.getFiles(reqIP);
+    	}
+    	else if(files == null) {
+    		IndexProtocol.Frame f = _index.call(new IndexProtocol.Writer(IndexProtocol.FILES).writeAddress(reqIP).toFrame());
+    		files = f.type == IndexProtocol.FILE_LIST ? IndexProtocol.readFileList(f.payload) : null;
+    	}
+    	List<TransferClient.Result> results = new ArrayList<TransferClient.Result>();
+    	if(files == null || files.isEmpty())
+    		return new SyncReport(reqIP, files != null, results, System.nanoTime() - start);
+    	InetSocketAddress peer = new InetSocketAddress(reqIP, _ftPort);
+    	//the sizes decide the order and the batches
+    	List<TransferProtocol.Header> infos;
+    	try (TransferClient client = new TransferClient(peer, TransferProtocol.DEFLATE, _bindAddress)) {
+    		infos = client.stat(files);
+    	}
+    	List<List<String>> names = new ArrayList<List<String>>();
+    	List<Future<List<TransferClient.Result>>> pending = new ArrayList<Future<List<TransferClient.Result>>>();
+    	for(List<TransferProtocol.Header> batch : batches(infos, results)) {
+    		List<String> batchNames = new ArrayList<String>(batch.size());
+    		long size = 0;
+    		for(TransferProtocol.Header h : batch) {
+    			batchNames.add(h.name);
+    			size += h.length;
+    		}
+    		int priority = _pinned.contains(batchNames.get(0)) ? TransferScheduler.PINNED : TransferScheduler.NORMAL;
+    		String name = batchNames.get(0) + (batchNames.size() > 1 ? " and " + (batchNames.size() - 1) + " more" : "");
+    		names.add(batchNames);
+    		pending.add(_scheduler.submit(name, priority, size, reqIP, () -> fetch(peer, batchNames)));
+    	}
+    	for(int i = 0; i < pending.size(); i++) {
+    		try {
+    			results.addAll(pending.get(i).get());
+    		} catch (ExecutionException e) {
+    			_metrics.failure("Synchronization", e.getCause());
+    			for(String name : names.get(i))
+    				results.add(new TransferClient.Result(name, 0, 0, false, String.valueOf(e.getCause().getMessage())));
+    		}
+    	}
+    	return new SyncReport(reqIP, true, results, System.nanoTime() - start);
+    }
+    
+    //helper method: names of the files the other system has and this one does not (by name, size and CRC), found
+    //by sending the lookup table of this catalog, with more cells as long as the difference does not fit;
+    //null if it does not fit into MAX_CELLS or the other system is not registered
+    private List<String> reconcile(InetAddress peer) throws IOException {
+    	CatalogSummary summary = _catalog.summary();
+    	for(int cells = FIRST_CELLS; cells <= MAX_CELLS; cells *= 4) {
+    		Map<String, PeerCatalog.Entry> missing;
+    		if(isIndexServer()) {
+    			if(!_bcThread.isRegistered(peer))
+    				return null;
+    			missing = _bcThread.reconcile(peer, summary.table(cells));
+    		}
+    		else {
+    			IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.RECONCILE).writeAddress(peer);
+    			summary.table(cells).write(w);
+    			IndexProtocol.Frame f = _index.call(w.toFrame());
+    			if(f.type != IndexProtocol.DIFFERENCE)
+    				return null;
+    			missing = IndexProtocol.readByte(f.payload) == 1 ? PeerCatalog.readEntries(f.payload) : null;
+    		}
+    		if(missing != null)
+    			return new ArrayList<String>(missing.keySet());
+    	}
+    	return null;
+    }
+    
+    //helper method: group the files a peer has into batches, pinned files first and small ones before large ones;
+    //small files share a batch (one connection, pipelined) up to SYNC_BATCH bytes, larger files get one each;
+    //files that cannot be requested are added to skipped
+    private List<List<TransferProtocol.Header>> batches(List<TransferProtocol.Header> infos, List<TransferClient.Result> skipped) {
+    	List<TransferProtocol.Header> found = new ArrayList<TransferProtocol.Header>();
+    	for(TransferProtocol.Header h : infos) {
+    		if(h.status != TransferProtocol.INFO)
+    			skipped.add(new TransferClient.Result(h.name, 0, 0, false, "not found"));
+    		//names lead into subfolders, never out of the working directory
+    		else if(TransferProtocol.target(new File(_workingDir), h.name) == null)
+    			skipped.add(new TransferClient.Result(h.name, 0, 0, false, "not a name within " + _workingDir));
+    		else
+    			found.add(h);
+    	}
+    	found.sort(Comparator.comparing((TransferProtocol.Header h) -> !_pinned.contains(h.name)).thenComparingLong(h -> h.length));
+    	List<List<TransferProtocol.Header>> batches = new ArrayList<List<TransferProtocol.Header>>();
+    	List<TransferProtocol.Header> batch = null;
+    	long size = 0;
+    	boolean pinned = false;
+    	for(TransferProtocol.Header h : found) {
+    		boolean p = _pinned.contains(h.name);
+    		if(batch == null || p != pinned || size + h.length > SYNC_BATCH) {
+    			batch = new ArrayList<TransferProtocol.Header>();
+    			batches.add(batch);
+    			size = 0;
+    			pinned = p;
+    		}
+    		batch.add(h);
+    		size += h.length;
+    	}
+    	return batches;
+    }
+    
+    //helper method: download a batch of files over one connection, reconnecting if it drops;
+    //files finished before a drop come back unchanged and cut-off files continue where they stopped
+    private List<TransferClient.Result> fetch(InetSocketAddress peer, List<String> names) throws IOException {
+    	for(int attempt = 1; ; attempt++) {
+    		try (TransferClient client = new TransferClient(peer, TransferProtocol.DEFLATE, _bindAddress)) {
+    			client.setRateLimit(_scheduler.getDownloadLimit());
+    			client.setMetrics(_metrics);
+    			client.setSync(_fsync);
+    			return client.fetchDelta(names, new File(_workingDir));
+    		} catch (IOException e) {
+    			if(attempt == SYNC_ATTEMPTS)
+    				throw e;
+    			failed("Synchronization, resuming", e);
+    		}
+    	}
+    }
+    
+    /*
+     * Purpose: download one file from every registered system that has it at once
+     * Precondition: system is registered to index server
+     * Postcondition: file is downloaded in chunks spread over all systems holding it
+     * 		and verified against its checksum
+     * 		the download is queued as interactive, so it starts ahead of running syncs
+     * 		throws FileNotFoundException if no other system has the file
+     */
+    public SwarmReport swarm(String fileName) throws IOException, InterruptedException {
+    	File target = TransferProtocol.target(new File(_workingDir), fileName);
+    	if(target == null)
+    		throw new IOException(fileName + " is not a name within " + _workingDir);
+    	//find every other system holding fileName through the index
+    	List<InetSocketAddress> holders = new ArrayList<InetSocketAddress>();
+    	List<InetAddress> ips = new ArrayList<InetAddress>();
+    	for(InetAddress ip : lookup(fileName))
+    		if(!ip.equals(_ipAddress)) {
+    			holders.add(new InetSocketAddress(ip, _ftPort));
+    			ips.add(ip);
+    		}
+    	if(holders.isEmpty())
+    		throw new FileNotFoundException("No registered system has " + fileName);
+    	SwarmDownloader downloader = new SwarmDownloader(holders, SwarmDownloader.DEFAULT_CHUNK_SIZE);
+    	downloader.setRateLimit(_scheduler.getDownloadLimit());
+    	downloader.setMetrics(_metrics);
+    	downloader.setLocalAddress(_bindAddress);
+    	try {
+    		return new SwarmReport(ips, _scheduler.submit(fileName, TransferScheduler.INTERACTIVE, 0, ips,
+    				() -> downloader.download(fileName, target)).get());
+    	} catch (ExecutionException e) {
+    		if(e.getCause() instanceof IOException)
+    			throw (IOException) e.getCause();
+    		throw new IOException(e.getCause());
+    	}
+    }
+    
+    //helper method: report a failed operation on the console and count it in _metrics
+    private void failed(String where, Throwable e) {
+    	System.out.println("\t" + e.getMessage() + ": " + where);
+    	_metrics.failure(where, e);
+    }
+    
+    /*
+     * Purpose: find the systems holding a file
+     * Precondition: system is registered to index server
+     * Postcondition: returns the addresses the index server lists for the exact file name
+     * 		a name that is in no system's Bloom filter, as of the index server's table at most FILTER_AGE ago,
+     * 		is known to be held by none without asking for its holders
+     * 		with a ring (see setRingPort), the holders come from the system the name is stored on instead,
+     * 		found in O(log n) hops among the registered systems
+     */
+    public List<InetAddress> lookup(String fileName) throws IOException {
+    	ChordNode ring = _ring;
+    	if(ring != null) {
+    		List<InetAddress> holders = new ArrayList<InetAddress>();
+    		for(String ip : ring.get(fileName))
+    			holders.add(InetAddress.getByName(ip));
+    		return holders;
+    	}
+    	if(isIndexServer())
+    		return new ArrayList<InetAddress>(_bcThread.lookup(fileName));
+    	//no system's filter has the name: nobody holds it, no need to ask
+    	if(!mayBeHeld(fileName))
+    		return new ArrayList<InetAddress>();
+    	return IndexProtocol.readAddresses(query(new IndexProtocol.Writer(IndexProtocol.LOOKUP).writeString(fileName).toFrame(),
+    			IndexProtocol.HOLDERS));
+    }
+    
+    /*
+     * Purpose: search the registered files by the beginning of their name
+     * Precondition: system is registered to index server
+     * Postcondition: returns up to DHT.PREFIX_LIMIT matching file names and the ip addresses holding them
+     */
+    public SortedMap<String, Set<InetAddress>> search(String prefixParam) throws IOException {
+    	if(isIndexServer())
+    		return _bcThread.prefix(prefixParam, DHT.PREFIX_LIMIT);
+    	ByteBuffer matches = query(new IndexProtocol.Writer(IndexProtocol.PREFIX).writeString(prefixParam).toFrame(),
+    			IndexProtocol.MATCHES);
+    	SortedMap<String, Set<InetAddress>> found = new TreeMap<String, Set<InetAddress>>();
+    	for(int n = IndexProtocol.readVarint(matches); n > 0; n--) {
+    		String name = IndexProtocol.readString(matches);
+    		found.put(name, new LinkedHashSet<InetAddress>(IndexProtocol.readAddresses(matches)));
+    	}
+    	return found;
+    }
+    
+    /*
+     * Purpose: run register on the executor of the asynchronous API
+     * Precondition: p2pNode is constructed
+     * Postcondition: returns at once; the future completes with the outcome of register,
+     * 		or with its exception, which is counted in the metrics like every failure of this API
      */
-    public void sync(String ipParam) throws UnknownHostException {
-    	//str gets file names separated by '@'
-    	String str;
-    	//convert String ip to InetAddress data type
-    	InetAddress reqIP = InetAddress.getByName(ipParam);
+    public CompletableFuture<Registration> registerAsync() {
+    	return async("Register", this::register);
+    }
+    
+    //the same for retrieve, sync, swarm, lookup, search and unregister
+    public CompletableFuture<Table> retrieveAsync(String filter) {
+    	return async("Retrieve", () -> retrieve(filter));
+    }
+    public CompletableFuture<SyncReport> syncAsync(InetAddress peer) {
+    	return async("Synchronization", () -> sync(peer));
+    }
+    public CompletableFuture<SwarmReport> swarmAsync(String fileName) {
+    	return async("Swarm", () -> swarm(fileName));
+    }
+    public CompletableFuture<List<InetAddress>> lookupAsync(String fileName) {
+    	return async("Find", () -> lookup(fileName));
+    }
+    public CompletableFuture<SortedMap<String, Set<InetAddress>>> searchAsync(String prefix) {
+    	return async("Search", () -> search(prefix));
+    }
+    public CompletableFuture<Void> unregisterAsync() {
+    	return async("Unregister", () -> {
+    		unregister();
+    		return null;
+    	});
+    }
+    
+    //helper method: run an operation on _executor; its failure completes the future and is counted in _metrics
+    private <T> CompletableFuture<T> async(String where, Callable<T> operation) {
+    	CompletableFuture<T> result = new CompletableFuture<T>();
+    	try {
+    		_executor.execute(() -> {
+    			try {
+    				result.complete(operation.call());
+    			} catch (Throwable e) {
+    				if(e instanceof InterruptedException)
+    					Thread.currentThread().interrupt();
+    				_metrics.failure(where, e);
+    				result.completeExceptionally(e);
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		//this system has exited
+    		result.completeExceptionally(e);
+    	}
+    	return result;
+    }
+    
+    //helper method: false if no registered system holds a file according to the Bloom filters of their names,
+    //as confirmed by the index server within FILTER_AGE; a name in some filter needs a LOOKUP anyway, and so does
+    //one in none while the filters are older; never waits for the index server (see refreshFilters)
+    private boolean mayBeHeld(String fileName) {
+    	long age = System.nanoTime() - _filtersChecked;
+    	if(age > TimeUnit.MILLISECONDS.toNanos(FILTER_AGE / 2))
+    		refreshFilters();
+    	return inFilters(CatalogSummary.nameKey(fileName)) || age > TimeUnit.MILLISECONDS.toNanos(FILTER_AGE);
+    }
+    
+    //helper method: ask the index server in the background which filters changed since _filterTag, unless a request
+    //is in flight; it sends only the filters of the systems that changed and the systems that left
+    private void refreshFilters() {
+    	IndexClient index = _index;
+    	if(index == null || !_filterRefresh.compareAndSet(false, true))
+    		return;
+    	try {
+    		_operations.execute(() -> {
+    			try {
+    				long sent = System.nanoTime();
+    				IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.SUMMARY);
+    				_filterTag.write(w);
+    				IndexProtocol.Frame f = index.call(w.toFrame());
+    				if(f.type == IndexProtocol.FILTERS) {
+    					IndexProtocol.Tag tag = IndexProtocol.Tag.read(f.payload);
+    					boolean full = IndexProtocol.readByte(f.payload) != 0;
+    					Map<InetAddress, BloomFilter> filters = new HashMap<InetAddress, BloomFilter>(full
+    							? Collections.<InetAddress, BloomFilter>emptyMap() : _filters);
+    					for(int n = IndexProtocol.readVarint(f.payload); n > 0; n--)
+    						filters.put(IndexProtocol.readAddress(f.payload), BloomFilter.read(f.payload));
+    					filters.keySet().removeAll(IndexProtocol.readAddresses(f.payload));
+    					_filters = filters;
+    					_filterTag = tag;
+    				}
+    				else if(f.type != IndexProtocol.NOT_MODIFIED)
+    					return;
+    				_filtersChecked = sent;
+    			} catch (IOException e) {
+    				//lookups ask the index server until the next refresh succeeds
+    				failed("Filters", e);
+    			} finally {
+    				_filterRefresh.set(false);
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		//this system has exited
+    		_filterRefresh.set(false);
+    	}
+    }
+    
+    //helper method: true if some system's Bloom filter may hold the name with the given key
+    private boolean inFilters(long key) {
+    	for(BloomFilter filter : _filters.values())
+    		if(filter.mightContain(key))
+    			return true;
+    	return false;
+    }
+    
+    //helper method: send a request frame to the index server and return the payload of its response
+    private ByteBuffer query(byte[] request, byte expected) throws IOException {
+    	IndexProtocol.Frame f = _index.call(request);
+    	if(f.type != expected)
+    		throw new IOException("Unexpected response type " + f.type);
+    	return f.payload;
+    }
+    
+    //helper method: true if this system runs the leader of the index server's replicas (queries are answered locally)
+    private boolean isIndexServer() {
+    	return _bcThread != null && _bcThread.isLeader();
+    }
+    
+    //helper method: stop the index server run by this system, if any
+    private void stopIndexServer() {
+    	if(_bcThread == null)
+    		return;
+    	_bcThread.switchOff();
     	try {
-    		//
-    		if(_serverIP.equals(_ipAddress)) {
-            	str = _bcThread.getFiles(reqIP);
-            }
+    		_bcThread.join();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	_bcThread = null;
+    }
+    
+    //helper method: push one change of _workingDir to the index server (called by _watcher)
+    //a full snapshot is sent only if the index server missed an earlier change
+    private synchronized void publish(PeerCatalog.Delta delta) {
+    	hash(delta);
+    	ChordNode ring = _ring;
+    	if(ring != null && _registered)
+    		publish(ring, delta);
+    	//a delta already contained in a snapshot sent meanwhile would only be answered with RESYNC
+    	if(!_registered || _index == null || delta.isEmpty() || delta.seq <= _published)
+    		return;
+    	try {
+    		//even the leader's own changes go over the network, so that they are replicated
+    		IndexProtocol.Writer w = new IndexProtocol.Writer(IndexProtocol.UPDATE);
+    		delta.write(w);
+    		IndexProtocol.Frame response = exchange(w.toFrame());
+    		if(response.type == IndexProtocol.RESYNC) {
+    			registered(_index.call(snapshot()), _index);
+    			System.out.println("REGISTERED");
+    		}
     		else {
-	    		_broadcaster = new DatagramSocket(_comPort);
-	    		DatagramPacket dp = new DatagramPacket(ipParam.getBytes(), ipParam.length(), _serverIP, _comPort);
-	    		_broadcaster.send(dp);
-	    		_broadcaster.close();
-	    		Socket s = new Socket(_serverIP, _comPort);
-	    		BufferedReader input = new BufferedReader(new InputStreamReader(s.getInputStream()));
-	    		str = input.readLine();
-				input.close();
-				s.close();
+    			_published = delta.seq;
+    			System.out.println("\tUPDATED: " + delta.added.size() + " added, " + delta.modified.size() + " modified, "
+    					+ delta.removed.size() + " removed");
     		}
-    		String[] files = str.split("@");
-        	for(String fName :files) {
-            	Socket s = new Socket(reqIP, _ftPort);
-        		System.out.println("\treceiving files from " + reqIP);
-        		byte[] bytes = new byte[1024];
-        		InputStream is = s.getInputStream();
-        		FileOutputStream fos = new FileOutputStream(new File(_workingDir + "\\" + fName));
-        		
-        		int len;
-        		while ((len = is.read(bytes)) > 0) {
-        			fos.write(bytes, 0, len);
-        		}
-        		fos.flush();
-        		fos.close();
-        	}
-        } catch (IOException e) {
-        	System.out.println("\t" + e.getMessage() + ": Synchronization");
-        }finally {
-        	if(_serverIP.equals(_ipAddress)) {
-        		_bcThread.nodeExit(_ipAddress);
-        		updateList();
-        		StringBuilder list = new StringBuilder();
-            	for(File f : _listFiles)
-            		list.append(f.getName()+"@");
-        		_bcThread.put(InetAddress.getByAddress(_ipAddress.getAddress()), list.toString());
-        	}
-        	else {
-        		try {
-					_broadcaster = new DatagramSocket(_comPort);
-					DatagramPacket dp = new DatagramPacket(unregister.getBytes(), unregister.length(), _serverIP, _comPort);
-		    		_broadcaster.send(dp);
-		    		updateList();
-		    		StringBuilder list = new StringBuilder();
-		        	for(File f : _listFiles)
-		        		list.append(f.getName()+"@");
-		        	byte[] sendList = list.toString().getBytes();
-		    		dp = new DatagramPacket(sendList, sendList.length, _serverIP, _comPort);
-		    		_broadcaster.send(dp);
-		    		_broadcaster.close();
-		    		ServerSocket ss = new ServerSocket(_comPort);
-		    		ss.setSoTimeout(2000);
-		    		Socket s = ss.accept();
-	    			BufferedReader input = new BufferedReader(new InputStreamReader(s.getInputStream()));
-	    			System.out.println(input.readLine());
-	    			s.close();
-	    			ss.close();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-        	}
-        }
+    	} catch (IOException e) {
+    		//a lost update is noticed by the index server with the next one, which it answers with RESYNC
+    		failed("Publish", e);
+    	}
+    }
+    
+    //helper method: add this system to the holders of the names a change added on the ring, and remove it from the removed ones
+    private void publish(ChordNode ring, PeerCatalog.Delta delta) {
+    	String self = _ipAddress.getHostAddress();
+    	try {
+    		for(String name : delta.added.keySet())
+    			ring.put(name, self);
+    		for(String name : delta.removed)
+    			ring.remove(name, self);
+    	} catch (IOException e) {
+    		failed("Ring", e);
+    	}
+    }
+    
+    /*
+     * Purpose: stop as if this system crashed
+     * Precondition: none
+     * Postcondition: files are no longer served and the index server run by this system, if any, stops;
+     * 		the index server is not told, so it lists this system until its lease runs out
+     */
+    public synchronized void halt() throws IOException {
+    	_registered = false;
+    	if(_renewer != null)
+    		_renewer.interrupt();
+    	stopListening();
+    	if(_ring != null)
+    		_ring.close();
+    	_ring = null;
+    	_scheduler.shutdown();
+    	_operations.shutdown();
+    	_watcher.close();
+    	_hashes.close();
+    	stopIndexServer();
+    	_metrics.unregister();
     }
     
     public void exit() throws IOException, InterruptedException {
+    	_scheduler.shutdown();
+    	_operations.shutdown();
     	unregister();
-		_bcThread.switchOff();
-		_bcThread.join();
-		_dataThread.join();
+    	_watcher.close();
+    	_hashes.close();
+    	stopIndexServer();
+    	_metrics.unregister();
     }
-}
\ No newline at end of file
+}